@@ -69,7 +69,7 @@ public class AccessLevelHandlerServlet extends HttpServlet {
     }
     private void readAll(HttpServletRequest request, HttpServletResponse response) throws IOException {
         final AccessLevelManager accessLevelManager = new AccessLevelManager(HibernateUtil.getCurrentSession());
-        final List<AccessLevel> accessLevels = accessLevelManager.readAll();
+        final List<AccessLevel> accessLevels = accessLevelManager.readAll(AccessLevelManager.FetchPlan.LAYERS);
         JSONSerializer serializer = new JSONSerializer();
         final StringBuilder jsonLayersBuilder = new StringBuilder();
 
@@ -204,6 +204,14 @@ public class AccessLevelHandlerServlet extends HttpServlet {
             throw new RuntimeException("No name attribute specified");
         }
         final AccessLevel accessLevel = AccessLevel.makeAccessLevel(name);
+        try{
+            accessLevel.setMaxConcurrentRequests(parseInteger(request.getParameter("maxConcurrentRequests")));
+            accessLevel.setUserMaxConcurrentRequests(parseInteger(request.getParameter("userMaxConcurrentRequests")));
+            accessLevel.setUserRequestsPerSecond(parseDouble(request.getParameter("userRequestsPerSecond")));
+        }
+        catch(RuntimeException e){
+            throw new RuntimeException("Request limit out of range");
+        }
         String layerWmsId;
         int layerIndex = 0;
         final LayerManager layerManager = new LayerManager(HibernateUtil.getCurrentSession());
@@ -226,6 +234,23 @@ public class AccessLevelHandlerServlet extends HttpServlet {
         return accessLevel;
     }
     
+    /**
+     * Parses an optional limit, an empty value means the default of the application.
+     */
+    private static Integer parseInteger(String value){
+        if(value == null || value.trim().equals("")){
+            return null;
+        }
+        return Integer.parseInt(value.trim());
+    }
+    
+    private static Double parseDouble(String value){
+        if(value == null || value.trim().equals("")){
+            return null;
+        }
+        return Double.parseDouble(value.trim());
+    }
+    
     public AccessLevel loadObject(HttpServletRequest request,AccessLevelManager accessLevelManager){
         String name = request.getParameter("name");
         if(name == null || name.equals("")){
@@ -42,7 +42,6 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.hibernate.Hibernate;
 
 /**
  *
@@ -58,7 +57,8 @@ public class LayerHandlerServlet extends HttpServlet {
         DELETE,
         UPDATE,
         CREATE,
-        READALL
+        READALL,
+        SEED
     }
     final static Map<String,LAYER_ACTION> LAYER_ACTION_MAPPING = new HashMap<>();
     static{
@@ -66,6 +66,7 @@ public class LayerHandlerServlet extends HttpServlet {
         LAYER_ACTION_MAPPING.put("readAll", LAYER_ACTION.READALL);
         LAYER_ACTION_MAPPING.put("update", LAYER_ACTION.UPDATE);
         LAYER_ACTION_MAPPING.put("add", LAYER_ACTION.CREATE);
+        LAYER_ACTION_MAPPING.put("seed", LAYER_ACTION.SEED);
     }
     
     /**
@@ -101,6 +102,9 @@ public class LayerHandlerServlet extends HttpServlet {
                         request.getServletContext().log("DELETE");
                         this.delete(request,response);
                         break;
+                    case SEED:
+                        this.seed(request,response);
+                        break;
                     default:
                         response.sendError(404);
                         break;
@@ -114,10 +118,8 @@ public class LayerHandlerServlet extends HttpServlet {
     
     public void readAll(HttpServletRequest request,HttpServletResponse response) throws IOException{
         final LayerManager layerManager = new LayerManager(HibernateUtil.getCurrentSession());
-        final List<Layer> allLayers = layerManager.readAll();
-        for(Layer layer : allLayers){
-            Hibernate.initialize(layer.getAccessLevels());
-        }
+        //The features and the access levels that are serialized below are read along with the layers
+        final List<Layer> allLayers = layerManager.readAll(LayerManager.FetchPlan.FEATURES_AND_ACCESS_LEVELS);
         
         JSONSerializer serializer = new JSONSerializer();
         final StringBuilder jsonLayersBuilder = new StringBuilder();
@@ -208,6 +210,29 @@ public class LayerHandlerServlet extends HttpServlet {
         response.getWriter().flush();
     }
     
+    public void seed(HttpServletRequest request,HttpServletResponse response) throws IOException{
+        final String wmsId = request.getParameter("wmsId");
+        if(wmsId != null){
+            final LayerManager layerManager = new LayerManager(HibernateUtil.getCurrentSession());
+            try{
+                layerManager.seed(wmsId);
+                response.getWriter().print(OK_MESSAGE);
+            }
+            catch(ObjectNotFoundException e){
+                response.getWriter().print(NOTFOUND_MESSAGE);
+            }
+            catch(RuntimeException e){
+                response.getWriter().print(ERROR_MESSAGE);
+            }
+            finally{
+                response.getWriter().flush();
+            }
+        }
+        else{
+            response.getWriter().print(ERROR_MESSAGE);
+        }
+    }
+    
     public Layer retrieveObjectFromRequest(HttpServletRequest request) throws ObjectNotFoundException{
         String wmsId = request.getParameter("wmsId");
         String name = request.getParameter("name");
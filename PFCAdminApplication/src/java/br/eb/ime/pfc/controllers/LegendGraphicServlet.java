@@ -34,7 +34,8 @@ public class LegendGraphicServlet extends HttpServlet {
             throws ServletException, IOException {
         String layer = request.getParameter("layer");
         if(layer != null){
-            GeoServerCommunication.getLegendGraphic(layer, DEFAULT_SIZE, DEFAULT_SIZE, request, response);
+            final String style = request.getParameter("style");
+            GeoServerCommunication.getLegendGraphic(layer, style == null ? "" : style.trim(), DEFAULT_SIZE, DEFAULT_SIZE, request, response);
         }
     }
 
@@ -69,7 +69,7 @@ public class UserHandlerServlet extends HttpServlet {
     
     private void readAll(HttpServletRequest request, HttpServletResponse response) throws IOException {
         final UserManager userManager = new UserManager(HibernateUtil.getCurrentSession());
-        final List<User> users = userManager.readAll();
+        final List<User> users = userManager.readAll(UserManager.FetchPlan.ACCESS_LEVEL);
         request.getServletContext().log("USERSIZE:"+users.size());
         JSONSerializer serializer = new JSONSerializer();
         final StringBuilder jsonLayersBuilder = new StringBuilder();
@@ -44,6 +44,16 @@ public class AccessLevel implements Serializable{
     @OneToMany(fetch=FetchType.LAZY,cascade = CascadeType.ALL,mappedBy="accessLevel")
     private final Set<User> users;
     
+    //Limits of the requests made to GeoServer, null means the default of the application and 0 unlimited
+    @Column(name = "MAX_CONCURRENT_REQUESTS")
+    private Integer maxConcurrentRequests;
+    
+    @Column(name = "USER_MAX_CONCURRENT_REQUESTS")
+    private Integer userMaxConcurrentRequests;
+    
+    @Column(name = "USER_REQUESTS_PER_SECOND")
+    private Double userRequestsPerSecond;
+    
     //Constructors
     
     /**
@@ -125,6 +135,32 @@ public class AccessLevel implements Serializable{
         return this.name;
     }
     
+    /**
+     * Returns the maximum number of concurrent requests to GeoServer of all the
+     * users of this Access Level together.
+     * @return the limit, 0 if unlimited or null if the default of the application is used
+     */
+    public Integer getMaxConcurrentRequests(){
+        return this.maxConcurrentRequests;
+    }
+    
+    /**
+     * Returns the maximum number of concurrent requests to GeoServer of each
+     * user of this Access Level.
+     * @return the limit, 0 if unlimited or null if the default of the application is used
+     */
+    public Integer getUserMaxConcurrentRequests(){
+        return this.userMaxConcurrentRequests;
+    }
+    
+    /**
+     * Returns the maximum rate of requests to GeoServer of each user of this Access Level.
+     * @return the requests per second, 0 if unlimited or null if the default of the application is used
+     */
+    public Double getUserRequestsPerSecond(){
+        return this.userRequestsPerSecond;
+    }
+    
     /**
      * Returns the layers accessed by this Access Level.
      * @return layers
@@ -194,6 +230,49 @@ public class AccessLevel implements Serializable{
         }
     }
     
+    /**
+     * Sets the maximum number of concurrent requests to GeoServer of all the
+     * users of this Access Level together.
+     * @param maxConcurrentRequests
+     * The limit, 0 for unlimited or null to use the default of the application.
+     * @throws LimitOutOfRangeException
+     * If the limit is negative.
+     */
+    public void setMaxConcurrentRequests(Integer maxConcurrentRequests) throws LimitOutOfRangeException{
+        if(maxConcurrentRequests != null && maxConcurrentRequests < 0){
+            throw new LimitOutOfRangeException("The maximum number of concurrent requests must not be negative");
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+    
+    /**
+     * Sets the maximum number of concurrent requests to GeoServer of each user of this Access Level.
+     * @param userMaxConcurrentRequests
+     * The limit, 0 for unlimited or null to use the default of the application.
+     * @throws LimitOutOfRangeException
+     * If the limit is negative.
+     */
+    public void setUserMaxConcurrentRequests(Integer userMaxConcurrentRequests) throws LimitOutOfRangeException{
+        if(userMaxConcurrentRequests != null && userMaxConcurrentRequests < 0){
+            throw new LimitOutOfRangeException("The maximum number of concurrent requests must not be negative");
+        }
+        this.userMaxConcurrentRequests = userMaxConcurrentRequests;
+    }
+    
+    /**
+     * Sets the maximum rate of requests to GeoServer of each user of this Access Level.
+     * @param userRequestsPerSecond
+     * The requests per second, 0 for unlimited or null to use the default of the application.
+     * @throws LimitOutOfRangeException
+     * If the rate is negative or not a number.
+     */
+    public void setUserRequestsPerSecond(Double userRequestsPerSecond) throws LimitOutOfRangeException{
+        if(userRequestsPerSecond != null && !(userRequestsPerSecond >= 0.0 && userRequestsPerSecond < Double.POSITIVE_INFINITY)){
+            throw new LimitOutOfRangeException("The number of requests per second must not be negative");
+        }
+        this.userRequestsPerSecond = userRequestsPerSecond;
+    }
+    
     /**
      * Add another Layer to this Access Level. 
      * @param layer to be accessed by this Access Level
@@ -208,4 +287,20 @@ public class AccessLevel implements Serializable{
         
         checkRep();
     }
-}
\ No newline at end of file
+    
+    /**
+     * This exception is triggered when a request limit of an Access Level is negative.
+     */
+    public static class LimitOutOfRangeException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        /**
+         * Creates a LimitOutOfRangeException with a detail message.
+         * @param message 
+         * The message that specify the error.
+         */
+        public LimitOutOfRangeException(String message){
+            super(message);
+        }
+    }
+}
@@ -23,6 +23,7 @@
  */
 package br.eb.ime.pfc.domain;
 
+import br.eb.ime.pfc.hibernate.ChangeNotifier;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -43,11 +44,23 @@ public class AccessLevelManager {
         assert this.session!=null;
     }
     
+    /**
+     * The associations loaded along with the access levels, so that reading
+     * them afterwards does not issue a query per access level.
+     */
+    public enum FetchPlan {
+        /** Only the access levels, their layers are read when they are first used. */
+        ACCESS_LEVELS,
+        /** The access levels and their layers, in a single query. */
+        LAYERS
+    }
+    
     public void create(AccessLevel accessLevel) throws HibernateException{
         if(this.session.get(AccessLevel.class,accessLevel.getName())!=null){
             throw new ObjectDuplicateException("There's an access level with the specified name");
         }
         this.session.merge(accessLevel);
+        ChangeNotifier.publish(this.session, ChangeNotifier.ACCESS_LEVEL, accessLevel.getName());
     }
     
     public AccessLevel getById(String name) throws HibernateException{
@@ -61,6 +74,7 @@ public class AccessLevelManager {
     public void update(AccessLevel accessLevel) throws HibernateException{
         this.getById(accessLevel.getName());
         this.session.merge(accessLevel);
+        ChangeNotifier.publish(this.session, ChangeNotifier.ACCESS_LEVEL, accessLevel.getName());
     }
     
     public void delete(String name) throws HibernateException{
@@ -69,6 +83,7 @@ public class AccessLevelManager {
             throw new ObjectNotFoundException("No such accessLevel with the specified name");
         }
         this.session.delete(accessLevel);
+        ChangeNotifier.publish(this.session, ChangeNotifier.ACCESS_LEVEL, name);
     }
     
     public List<AccessLevel> readAll() throws HibernateException{
@@ -88,4 +103,18 @@ public class AccessLevelManager {
         return allAccessLevels;
     }
     
+    /**
+     * Reads every access level with the associations of a fetch plan.
+     * @param plan
+     * The associations to load along with the access levels.
+     * @return the access levels ordered by name
+     * @throws HibernateException 
+     */
+    @SuppressWarnings("unchecked")
+    public List<AccessLevel> readAll(FetchPlan plan) throws HibernateException{
+        final String fetch = plan == FetchPlan.LAYERS ? " left join fetch a.layers" : "";
+        final Query query = this.session.createQuery("select distinct a from AccessLevel a" + fetch + " order by a.name");
+        return query.list();
+    }
+    
 }
@@ -1,5 +1,6 @@
 package br.eb.ime.pfc.domain;
 
+import br.eb.ime.pfc.hibernate.ChangeNotifier;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -41,11 +42,22 @@ public class UserManager {
         this.session = session;
     }
     
+    /**
+     * The associations loaded along with the users.
+     */
+    public enum FetchPlan {
+        /** The users, their access levels are read with a query per access level. */
+        USERS,
+        /** The users and their access levels, in a single query. */
+        ACCESS_LEVEL
+    }
+    
     public void create(User user) throws HibernateException{
         if(this.session.get(User.class,user.getUsername())!=null){
             throw new ObjectDuplicateException("There's an user with the specified username");
         }
         this.session.merge(user);
+        ChangeNotifier.publish(this.session, ChangeNotifier.USER, user.getUsername());
     }
     
     public User getById(String username) throws HibernateException{
@@ -59,6 +71,7 @@ public class UserManager {
     public void update(User user) throws HibernateException{
         this.getById(user.getUsername());
         this.session.merge(user);
+        ChangeNotifier.publish(this.session, ChangeNotifier.USER, user.getUsername());
     }
     
     public void delete(String username) throws HibernateException{
@@ -67,6 +80,7 @@ public class UserManager {
             throw new ObjectNotFoundException("No such User with the specified username");
         }
         this.session.delete(user);
+        ChangeNotifier.publish(this.session, ChangeNotifier.USER, username);
     }
     
     public List<User> readAll() throws HibernateException{
@@ -85,4 +99,18 @@ public class UserManager {
         }
         return allUsers;
     }
+    
+    /**
+     * Reads every user with the associations of a fetch plan.
+     * @param plan
+     * The associations to load along with the users.
+     * @return the users ordered by username
+     * @throws HibernateException 
+     */
+    @SuppressWarnings("unchecked")
+    public List<User> readAll(FetchPlan plan) throws HibernateException{
+        final String fetch = plan == FetchPlan.ACCESS_LEVEL ? " join fetch u.accessLevel" : "";
+        final Query query = this.session.createQuery("select u from User u" + fetch + " order by u.username");
+        return query.list();
+    }
 }
@@ -24,6 +24,7 @@
 package br.eb.ime.pfc.geoserver;
 
 import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.hibernate.ChangeNotifier;
 import it.geosolutions.geoserver.rest.GeoServerRESTPublisher;
 import it.geosolutions.geoserver.rest.GeoServerRESTReader;
 import it.geosolutions.geoserver.rest.decoder.RESTLayer;
@@ -34,10 +35,12 @@ import it.geosolutions.geoserver.rest.encoder.GSLayerEncoder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 import javax.servlet.http.HttpServletRequest;
@@ -55,6 +58,8 @@ public class GeoServerCommunication {
     private final static String GEOSERVER_RESTUSER = "admin";
     private final static String GEOSERVER_RESTPW = "geoserver";
     private final static String BASE64_AUTHORIZATION = new String(Base64.encodeBase64((GEOSERVER_RESTUSER + ":" + GEOSERVER_RESTPW).getBytes()));
+    private final static int CONNECT_TIMEOUT = 5000;
+    private final static int READ_TIMEOUT = 60000;
     
     private final GeoServerRESTReader reader;
     private final GeoServerRESTPublisher publisher;
@@ -96,12 +101,91 @@ public class GeoServerCommunication {
     }
     
     public static void getLegendGraphic(String layerId,int width,int height,HttpServletRequest request,HttpServletResponse response){
-        final String urlName = GEOSERVER_URL + "/wms?" + "REQUEST=GetLegendGraphic&VERSION=1.0.0&FORMAT=image/png&WIDTH="
-                + width+"&HEIGHT="+height+"&LAYER="+layerId + "&EXCEPTIONS=application/vnd.ogc.se_blank";
-        redirectStream(urlName,request,response);
+        getLegendGraphic(layerId, "", width, height, request, response);
     }
     
-    private static void redirectStream(String urlName,HttpServletRequest request, HttpServletResponse response){
+    /**
+     * Answers the legend of a layer, from the {@link LegendCache} when it is enabled.
+     * The legend is validated with its ETag, so a browser that already has it
+     * receives 304 (Not Modified) without a body.
+     * @param layerId
+     * The wmsId of the layer.
+     * @param style
+     * The style of the legend, or an empty String for the default style of the layer.
+     * @param width
+     * The width of the legend, in pixels.
+     * @param height
+     * The height of the legend, in pixels.
+     * @param request
+     * The request of the client.
+     * @param response
+     * The response to the client.
+     */
+    public static void getLegendGraphic(String layerId,String style,int width,int height,HttpServletRequest request,HttpServletResponse response){
+        final String urlName;
+        try{
+            urlName = GEOSERVER_URL + "/wms?" + "REQUEST=GetLegendGraphic&VERSION=1.0.0&FORMAT=image/png&WIDTH="
+                    + width+"&HEIGHT="+height+"&LAYER="+URLEncoder.encode(layerId, "UTF-8")
+                    + (style.equals("") ? "" : "&STYLE="+URLEncoder.encode(style, "UTF-8"))
+                    + "&EXCEPTIONS=application/vnd.ogc.se_blank";
+        }
+        catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+        final LegendCache legendCache = LegendCache.getInstance();
+        if(!legendCache.isEnabled()){
+            redirectStream(urlName,request,response);
+            return;
+        }
+        LegendCache.Legend legend = legendCache.get(layerId, style, width, height);
+        if(legend == null){
+            final long version = legendCache.getVersion();
+            final HttpURLConnection conn = openConnection(urlName,response);
+            if(conn == null){
+                return;
+            }
+            try(InputStream is = conn.getInputStream()){
+                final byte[] data = IOUtils.toByteArray(is);
+                //Errors of GeoServer are answered but not kept
+                if(conn.getResponseCode() != HTTP_STATUS.SUCCESS.getCode()){
+                    response.setContentType(conn.getContentType());
+                    response.getOutputStream().write(data);
+                    return;
+                }
+                legend = legendCache.put(layerId, style, width, height, conn.getContentType(), data, version);
+            }
+            catch(IOException e){
+                request.getServletContext().log("IO");
+                sendError(HTTP_STATUS.INTERNAL_ERROR,response);
+                return;
+            }
+            finally{ //Close connection to save resources
+                conn.disconnect();
+            }
+        }
+        //The legend may change at any time, so it is always revalidated
+        response.setHeader("Cache-Control", "private, no-cache");
+        response.setHeader("ETag", legend.getETag());
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch != null && (ifNoneMatch.contains(legend.getETag()) || ifNoneMatch.trim().equals("*"))){
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(legend.getContentType());
+        response.setContentLength(legend.getData().length);
+        try(OutputStream os = response.getOutputStream()){
+            os.write(legend.getData());
+        }
+        catch(IOException e){
+            request.getServletContext().log("IO");
+        }
+    }
+    
+    /**
+     * Connects to GeoServer, reporting the outcome to {@link GeoServerHealth}.
+     * @return the connection or null if an error was sent to the client
+     */
+    private static HttpURLConnection openConnection(String urlName,HttpServletResponse response){
         URL url = null;
         try{
             url = new URL(urlName);
@@ -109,18 +193,40 @@ public class GeoServerCommunication {
         catch(MalformedURLException e){
             //Internal error, the user will receive no data.
             sendError(HTTP_STATUS.BAD_REQUEST,response);
-            return;
+            return null;
+        }
+        final GeoServerHealth health = GeoServerHealth.getInstance();
+        if(!health.allowRequest()){
+            sendError(HTTP_STATUS.SERVICE_UNAVAILABLE,response);
+            return null;
         }
         HttpURLConnection conn = null;
         try{
             conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
             conn.addRequestProperty("Authorization", "Basic "+BASE64_AUTHORIZATION);
             //conn.setRequestMethod("GET");
             //conn.setDoOutput(true);
             conn.connect();
+            if(conn.getResponseCode() >= HTTP_STATUS.INTERNAL_ERROR.getCode()){
+                health.recordFailure();
+            }
+            else{
+                health.recordSuccess();
+            }
         }
         catch(IOException e){
+            health.recordFailure();
             sendError(HTTP_STATUS.INTERNAL_ERROR,response);
+            return null;
+        }
+        return conn;
+    }
+    
+    private static void redirectStream(String urlName,HttpServletRequest request, HttpServletResponse response){
+        final HttpURLConnection conn = openConnection(urlName,response);
+        if(conn == null){
             return;
         }
         
@@ -138,6 +244,31 @@ public class GeoServerCommunication {
         }
     }
     
+    /**
+     * Checks whether GeoServer answers its REST API, used by the prober of {@link GeoServerHealth}.
+     * @param timeout
+     * The maximum time to wait for the response, in milliseconds.
+     * @return true if GeoServer answered without a server error
+     */
+    static boolean ping(int timeout){
+        HttpURLConnection conn = null;
+        try{
+            conn = (HttpURLConnection) new URL(GEOSERVER_URL + "/rest/").openConnection();
+            conn.setConnectTimeout(timeout);
+            conn.setReadTimeout(timeout);
+            conn.addRequestProperty("Authorization", "Basic "+BASE64_AUTHORIZATION);
+            return conn.getResponseCode() < HTTP_STATUS.INTERNAL_ERROR.getCode();
+        }
+        catch(IOException e){
+            return false;
+        }
+        finally{
+            if(conn != null){
+                conn.disconnect();
+            }
+        }
+    }
+    
     private GeoServerCommunication(GeoServerRESTReader reader, GeoServerRESTPublisher publisher){    
         this.reader = reader;
         this.publisher = publisher;
@@ -147,14 +278,24 @@ public class GeoServerCommunication {
         return this.reader.existGeoserver();
     }
     
+    /**
+     * Returns the names of the layers of GeoServer.
+     * The availability of GeoServer is checked with the health state kept by
+     * {@link GeoServerHealth} instead of an extra request.
+     * @return the layer names
+     * @throws GeoserverCommunicationException if GeoServer is not available
+     */
     public List<String> getLayerNames() throws GeoserverCommunicationException{
-        if(this.reader.existGeoserver()){
+        final GeoServerHealth health = GeoServerHealth.getInstance();
+        if(health.allowRequest()){
             final List<String> layerNames = new ArrayList<>();
             final RESTLayerList restLayerList = this.reader.getLayers();
 
             if(restLayerList == null){
+                health.recordFailure();
                 throw new GeoserverCommunicationException("Communication issue with Geoserver REST API at:"+GEOSERVER_URL);
             }
+            health.recordSuccess();
             for(NameLinkElem elem : restLayerList){
                 layerNames.add(elem.getName());
             }
@@ -165,13 +306,23 @@ public class GeoServerCommunication {
         }
     }
     
+    /**
+     * Returns the names of the styles of GeoServer.
+     * The availability of GeoServer is checked with the health state kept by
+     * {@link GeoServerHealth} instead of an extra request.
+     * @return the style names
+     * @throws GeoserverCommunicationException if GeoServer is not available
+     */
     public List<String> getStyleNames(){
-        if(this.reader.existGeoserver()){
+        final GeoServerHealth health = GeoServerHealth.getInstance();
+        if(health.allowRequest()){
             final List<String> styleNames = new ArrayList<>();
             final RESTStyleList restStyleList = this.reader.getStyles();
             if(restStyleList == null){
+                health.recordFailure();
                 throw new GeoserverCommunicationException("Communication issue with Geoserver REST API at:"+GEOSERVER_URL);
             }
+            health.recordSuccess();
             for(NameLinkElem elem : restStyleList){
                 styleNames.add(elem.getName());
             }
@@ -191,7 +342,13 @@ public class GeoServerCommunication {
             final GSLayerEncoder layerEnc = new GSLayerEncoder();
             layerEnc.addStyle(style);
             layerEnc.setDefaultStyle(style);
-            return publisher.configureLayer(workspace, layer, layerEnc);
+            final boolean configured = publisher.configureLayer(workspace, layer, layerEnc);
+            if(configured){
+                final String wmsId = workspace + ":" + layer;
+                LegendCache.getInstance().invalidateLayer(wmsId);
+                ChangeNotifier.publish(ChangeNotifier.LAYER, wmsId);
+            }
+            return configured;
         }
     }
     
@@ -204,11 +361,27 @@ public class GeoServerCommunication {
     }
 
     public boolean removeStyle(String styleName){
-        return publisher.removeStyle(styleName);
+        final boolean removed = publisher.removeStyle(styleName);
+        if(removed){
+            styleChanged(styleName);
+        }
+        return removed;
     }
     
     public boolean updateStyle(String name,String resourceURL,String format,Integer size){
-        return publisher.updateStyle(this.getSLDFileBody(resourceURL, format, size), name);
+        final boolean updated = publisher.updateStyle(this.getSLDFileBody(resourceURL, format, size), name);
+        if(updated){
+            styleChanged(name);
+        }
+        return updated;
+    }
+    
+    /**
+     * Drops the legends drawn with a style, in this application and in the user application.
+     */
+    private static void styleChanged(String styleName){
+        LegendCache.getInstance().invalidateStyle(styleName);
+        ChangeNotifier.publish(ChangeNotifier.STYLE, styleName);
     }
     
     private String getSLDFileBody(String resourceURL,String format,Integer size){
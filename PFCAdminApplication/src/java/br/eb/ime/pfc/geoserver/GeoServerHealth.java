@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+
+/**
+ * Shared health state of GeoServer: a circuit breaker fed by the outcome of
+ * every request to GeoServer and by a background prober.
+ *
+ * While the circuit is CLOSED requests go to GeoServer. After
+ * geoserver.health.failureThreshold consecutive failures, or a failed probe, the
+ * circuit OPENS and requests fail fast instead of waiting for the connect
+ * timeout. After
+ * geoserver.health.openTimeout milliseconds the circuit is HALF_OPEN and a
+ * single trial request is let through: its success closes the circuit and its
+ * failure opens it again. A successful probe closes the circuit at once.
+ *
+ * The following context parameters configure the health monitor:
+ * geoserver.health.probeInterval, geoserver.health.probeTimeout,
+ * geoserver.health.openTimeout (milliseconds) and geoserver.health.failureThreshold.
+ */
+public final class GeoServerHealth {
+    private static final Logger LOGGER = Logger.getLogger(GeoServerHealth.class.getName());
+
+    public static final long DEFAULT_PROBE_INTERVAL = 5000;
+    public static final int DEFAULT_PROBE_TIMEOUT = 3000;
+    public static final long DEFAULT_OPEN_TIMEOUT = 10000;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static volatile GeoServerHealth instance = null;
+
+    private final long probeInterval;
+    private final int probeTimeout;
+    private final long openTimeout;
+    private final int failureThreshold;
+    private final ScheduledExecutorService prober;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long stateChangeTime = System.currentTimeMillis();
+
+    private volatile long lastProbeTime = -1;
+    private volatile boolean lastProbeSucceeded = false;
+    private volatile long lastProbeMillis = -1;
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong openings = new AtomicLong();
+
+    /**
+     * Creates the application wide health monitor from the context parameters
+     * of the web application and starts the prober.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        destroy();
+        instance = new GeoServerHealth(
+            ContextParameters.getLong(context, "geoserver.health.probeInterval", DEFAULT_PROBE_INTERVAL),
+            ContextParameters.getInt(context, "geoserver.health.probeTimeout", DEFAULT_PROBE_TIMEOUT),
+            ContextParameters.getLong(context, "geoserver.health.openTimeout", DEFAULT_OPEN_TIMEOUT),
+            ContextParameters.getInt(context, "geoserver.health.failureThreshold", DEFAULT_FAILURE_THRESHOLD),
+            true);
+    }
+
+    /**
+     * Stops the prober.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            if(instance.prober != null){
+                instance.prober.shutdownNow();
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide health monitor.
+     * If it was not initialized by the application a monitor with the default
+     * configuration and without prober is created.
+     * @return the health monitor
+     */
+    public static GeoServerHealth getInstance(){
+        GeoServerHealth health = instance;
+        if(health == null){
+            synchronized(GeoServerHealth.class){
+                if(instance == null){
+                    instance = new GeoServerHealth(DEFAULT_PROBE_INTERVAL, DEFAULT_PROBE_TIMEOUT, DEFAULT_OPEN_TIMEOUT,
+                            DEFAULT_FAILURE_THRESHOLD, false);
+                }
+                health = instance;
+            }
+        }
+        return health;
+    }
+
+    private GeoServerHealth(long probeInterval,int probeTimeout,long openTimeout,int failureThreshold,boolean startProber){
+        this.probeInterval = Math.max(100, probeInterval);
+        this.probeTimeout = Math.max(100, probeTimeout);
+        this.openTimeout = Math.max(0, openTimeout);
+        this.failureThreshold = Math.max(1, failureThreshold);
+        if(startProber){
+            this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "GeoServerHealth-Prober");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.prober.scheduleWithFixedDelay(new Runnable(){
+                @Override
+                public void run() {
+                    probe();
+                }
+            }, 0, this.probeInterval, TimeUnit.MILLISECONDS);
+        }
+        else{
+            this.prober = null;
+        }
+    }
+
+    private void probe(){
+        final long start = System.nanoTime();
+        boolean succeeded;
+        try{
+            succeeded = GeoServerCommunication.ping(this.probeTimeout);
+        }
+        catch(RuntimeException e){
+            succeeded = false;
+        }
+        this.lastProbeMillis = (System.nanoTime() - start) / 1000000L;
+        this.lastProbeTime = System.currentTimeMillis();
+        this.lastProbeSucceeded = succeeded;
+        if(succeeded){
+            recordSuccess();
+        }
+        else{
+            open(this.state.get());
+        }
+    }
+
+    /**
+     * Indicates whether a request may be sent to GeoServer. Requests that are
+     * not allowed should fail at once with 503 (Service Unavailable).
+     * Every allowed request must report its outcome with {@link #recordSuccess()}
+     * or {@link #recordFailure()}.
+     * @return true if the circuit is closed or if this request is the trial of a half open circuit
+     */
+    public boolean allowRequest(){
+        final State current = this.state.get();
+        if(current == State.CLOSED){
+            return true;
+        }
+        //A trial that never reported does not keep the circuit half open forever
+        if(System.currentTimeMillis() - this.stateChangeTime >= this.openTimeout
+                && this.state.compareAndSet(current, State.HALF_OPEN)){
+            this.stateChangeTime = System.currentTimeMillis();
+            return true;
+        }
+        this.rejectedRequests.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Indicates whether GeoServer is believed to be available, without any request to it.
+     * @return false if the circuit is open
+     */
+    public boolean isAvailable(){
+        return this.state.get() != State.OPEN;
+    }
+
+    /**
+     * Reports that GeoServer answered a request.
+     */
+    public void recordSuccess(){
+        this.consecutiveFailures.set(0);
+        final State current = this.state.get();
+        if(current != State.CLOSED && this.state.compareAndSet(current, State.CLOSED)){
+            this.stateChangeTime = System.currentTimeMillis();
+            LOGGER.log(Level.INFO, "GeoServer is available again, circuit closed");
+        }
+    }
+
+    /**
+     * Reports that a request to GeoServer failed: it could not connect, timed
+     * out or GeoServer answered with a server error.
+     */
+    public void recordFailure(){
+        final int failures = this.consecutiveFailures.incrementAndGet();
+        final State current = this.state.get();
+        if(current == State.HALF_OPEN || (current == State.CLOSED && failures >= this.failureThreshold)){
+            open(current);
+        }
+    }
+
+    private void open(State current){
+        if(current == State.OPEN){
+            return;
+        }
+        if(this.state.compareAndSet(current, State.OPEN)){
+            this.stateChangeTime = System.currentTimeMillis();
+            this.openings.incrementAndGet();
+            LOGGER.log(Level.WARNING, "GeoServer is unavailable, circuit opened for {0} ms", this.openTimeout);
+        }
+    }
+
+    public State getState(){
+        return this.state.get();
+    }
+
+    /**
+     * Returns a snapshot of the health of GeoServer.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("state", this.state.get().name());
+        statistics.put("stateChangeTime", this.stateChangeTime);
+        statistics.put("consecutiveFailures", this.consecutiveFailures.get());
+        statistics.put("failureThreshold", this.failureThreshold);
+        statistics.put("openTimeout", this.openTimeout);
+        statistics.put("openings", this.openings.get());
+        statistics.put("rejectedRequests", this.rejectedRequests.get());
+        statistics.put("probeInterval", this.prober != null ? this.probeInterval : -1);
+        statistics.put("lastProbeTime", this.lastProbeTime);
+        statistics.put("lastProbeSucceeded", this.lastProbeSucceeded);
+        statistics.put("lastProbeMillis", this.lastProbeMillis);
+        return statistics;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * In-memory cache of the legends of the layers, the responses of GetLegendGraphic.
+ *
+ * Legends are keyed by layer, style, width and height and kept with the ETag of
+ * their bytes, so the legend images are answered without GeoServer and
+ * revalidated by the browsers with 304 (Not Modified).
+ *
+ * The legends are dropped by {@link GeoServerCommunication} when this application
+ * changes the default style of a layer or updates or removes a style. Legends
+ * requested without a style are dropped when any style changes, since the
+ * default style of a layer is only known by GeoServer. No legend is kept longer
+ * than legend.ttl milliseconds, and the least recently used legends are evicted
+ * beyond legend.maxEntries.
+ *
+ * The following context parameters configure the cache:
+ * legend.enabled, legend.maxEntries and legend.ttl (milliseconds).
+ */
+public final class LegendCache {
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_TTL = 3600000;
+
+    private static volatile LegendCache instance = null;
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttl;
+
+    //Guarded by itself, in access order
+    private final LinkedHashMap<String,Legend> legends = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong version = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * A legend image and its validator.
+     */
+    public static final class Legend {
+        private final String layer;
+        private final String style;
+        private final String contentType;
+        private final byte[] data;
+        private final String etag;
+        private final long expirationTime;
+
+        private Legend(String layer,String style,String contentType,byte[] data,long expirationTime){
+            this.layer = layer;
+            this.style = style;
+            this.contentType = contentType;
+            this.data = data;
+            this.etag = "\"" + DigestUtils.md5Hex(data) + "\"";
+            this.expirationTime = expirationTime;
+        }
+
+        public String getContentType(){
+            return this.contentType;
+        }
+
+        public byte[] getData(){
+            return this.data;
+        }
+
+        /**
+         * Returns the strong ETag of this legend, a quoted digest of its bytes.
+         * @return the ETag, with quotes
+         */
+        public String getETag(){
+            return this.etag;
+        }
+    }
+
+    /**
+     * Creates the application wide cache from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new LegendCache(
+            ContextParameters.getBoolean(context, "legend.enabled", DEFAULT_ENABLED),
+            ContextParameters.getInt(context, "legend.maxEntries", DEFAULT_MAX_ENTRIES),
+            ContextParameters.getLong(context, "legend.ttl", DEFAULT_TTL));
+    }
+
+    /**
+     * Drops every cached legend.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.invalidateLayer(null);
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide cache, creating the default one if the
+     * application did not initialize it.
+     * @return the legend cache
+     */
+    public static LegendCache getInstance(){
+        LegendCache cache = instance;
+        if(cache == null){
+            synchronized(LegendCache.class){
+                if(instance == null){
+                    instance = new LegendCache(DEFAULT_ENABLED, DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+                }
+                cache = instance;
+            }
+        }
+        return cache;
+    }
+
+    private LegendCache(boolean enabled,int maxEntries,long ttl){
+        this.enabled = enabled && maxEntries > 0;
+        this.maxEntries = Math.max(0, maxEntries);
+        this.ttl = Math.max(0, ttl);
+    }
+
+    /**
+     * Indicates whether legends should be looked up and stored in this cache.
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled(){
+        return this.enabled;
+    }
+
+    private static String getKey(String layer,String style,int width,int height){
+        return layer + "|" + style + "|" + width + "x" + height;
+    }
+
+    /**
+     * Returns a cached legend.
+     * @return the legend or null if it is not cached
+     */
+    public Legend get(String layer,String style,int width,int height){
+        final String key = getKey(layer, style, width, height);
+        synchronized(this.legends){
+            final Legend legend = this.legends.get(key);
+            if(legend != null){
+                if(System.currentTimeMillis() < legend.expirationTime){
+                    this.hits.incrementAndGet();
+                    return legend;
+                }
+                this.legends.remove(key);
+            }
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns the current version of the cache, to be passed to
+     * {@link #put(String, String, int, int, String, byte[], long)} by a request
+     * that starts fetching a legend.
+     * @return the version, changed by every invalidation
+     */
+    public long getVersion(){
+        return this.version.get();
+    }
+
+    /**
+     * Stores a legend fetched from GeoServer, unless the cache was invalidated
+     * after the legend was requested.
+     * @param version
+     * The version of the cache when the legend was requested.
+     * @return the legend
+     */
+    public Legend put(String layer,String style,int width,int height,String contentType,byte[] data,long version){
+        final Legend legend = new Legend(layer, style, contentType, data, System.currentTimeMillis() + this.ttl);
+        if(version == this.version.get()){
+            synchronized(this.legends){
+                this.legends.put(getKey(layer, style, width, height), legend);
+                final Iterator<Legend> iterator = this.legends.values().iterator();
+                while(this.legends.size() > this.maxEntries && iterator.hasNext()){
+                    iterator.next();
+                    iterator.remove();
+                    this.evictions.incrementAndGet();
+                }
+            }
+        }
+        return legend;
+    }
+
+    /**
+     * Drops the legends of a layer.
+     * @param layer
+     * The wmsId of the layer, or null to drop every legend.
+     */
+    public void invalidateLayer(String layer){
+        this.version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+        synchronized(this.legends){
+            if(layer == null){
+                this.legends.clear();
+                return;
+            }
+            final Iterator<Legend> iterator = this.legends.values().iterator();
+            while(iterator.hasNext()){
+                if(iterator.next().layer.equals(layer)){
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the legends drawn with a style, including the legends of the
+     * default styles, which may be the changed style.
+     * @param style
+     * The name of the style.
+     */
+    public void invalidateStyle(String style){
+        this.version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+        synchronized(this.legends){
+            final Iterator<Legend> iterator = this.legends.values().iterator();
+            while(iterator.hasNext()){
+                final Legend legend = iterator.next();
+                if(legend.style.equals("") || legend.style.equals(style)){
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        final int size;
+        long bytes = 0;
+        synchronized(this.legends){
+            size = this.legends.size();
+            for(Legend legend : this.legends.values()){
+                bytes += legend.data.length;
+            }
+        }
+        statistics.put("enabled", this.enabled);
+        statistics.put("entries", size);
+        statistics.put("maxEntries", this.maxEntries);
+        statistics.put("bytes", bytes);
+        statistics.put("ttl", this.ttl);
+        statistics.put("hits", this.hits.get());
+        statistics.put("misses", this.misses.get());
+        statistics.put("evictions", this.evictions.get());
+        statistics.put("invalidations", this.invalidations.get());
+        return statistics;
+    }
+}
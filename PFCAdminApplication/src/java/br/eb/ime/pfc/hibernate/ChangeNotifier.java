@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+/**
+ * Publishes the changes made by this application to the user application.
+ *
+ * The user application runs in another JVM and caches data derived from the
+ * database, such as tiles of layers. Every change is sent with PostgreSQL
+ * NOTIFY on the channel {@link #CHANNEL} with a payload "type:id". NOTIFY is
+ * transactional, so the change is only delivered if the transaction of the
+ * session commits.
+ */
+public final class ChangeNotifier {
+    private static final Logger LOGGER = Logger.getLogger(ChangeNotifier.class.getName());
+
+    public static final String CHANNEL = "pfc_changes";
+    public static final String LAYER = "layer";
+    public static final String ACCESS_LEVEL = "access_level";
+    public static final String USER = "user";
+    //A style of GeoServer, changed through its REST API and not in the database
+    public static final String STYLE = "style";
+    //Not a change: a request to seed the tiles of a layer in the user application
+    public static final String SEED = "seed";
+
+    /**
+     * Publishes the change of an object in the transaction of the session.
+     * @param session
+     * The session whose transaction changed the object.
+     * @param type
+     * The type of the object, e.g. {@link #LAYER}.
+     * @param id
+     * The id of the object.
+     */
+    public static void publish(Session session,final String type,final String id){
+        session.doWork(new Work(){
+            @Override
+            public void execute(Connection connection) throws SQLException {
+                try(PreparedStatement statement = connection.prepareStatement("SELECT pg_notify(?, ?)")){
+                    statement.setString(1, CHANNEL);
+                    statement.setString(2, type + ":" + id);
+                    statement.execute();
+                }
+            }
+        });
+    }
+
+    /**
+     * Publishes a change made outside of the database, such as a change of a
+     * style in GeoServer, in a transaction of its own. A failure is logged and
+     * not thrown, since the change itself was already made.
+     * @param type
+     * The type of the object, e.g. {@link #STYLE}.
+     * @param id
+     * The id of the object.
+     */
+    public static void publish(String type,String id){
+        Session session = null;
+        try{
+            session = HibernateUtil.openSession();
+            session.beginTransaction();
+            publish(session, type, id);
+            session.getTransaction().commit();
+        }
+        catch(HibernateException e){
+            if(session != null && session.getTransaction().isActive()){
+                session.getTransaction().rollback();
+            }
+            LOGGER.log(Level.WARNING, "Could not publish the change " + type + ":" + id, e);
+        }
+        finally{
+            if(session != null){
+                session.close();
+            }
+        }
+    }
+
+    private ChangeNotifier(){
+
+    }
+}
@@ -85,8 +85,18 @@ public class HibernateUtil {
         }
     }
     
+    /**
+     * Returns the session of the current request. The session of the
+     * {@link UnitOfWork} of the thread is opened on first use.
+     * @return the current session
+     * @throws HibernateException if there is no session or it could not be opened
+     */
     public static Session getCurrentSession() throws HibernateException{
         if(sessionFactory != null){
+            final Session session = UnitOfWork.currentSession();
+            if(session != null){
+                return session;
+            }
             //Throws HibernateException if there is no Session open.
             return sessionFactory.getCurrentSession();
         }
@@ -95,6 +105,16 @@ public class HibernateUtil {
         }
     }
     
+    /**
+     * Closes the session factory and its pool of connections, so their threads
+     * do not outlive the application when it is undeployed.
+     */
+    public static synchronized void close(){
+        if(sessionFactory != null && !sessionFactory.isClosed()){
+            sessionFactory.close();
+        }
+    }
+    
     private HibernateUtil(){
         
     }
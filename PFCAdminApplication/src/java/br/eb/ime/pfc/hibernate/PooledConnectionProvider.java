@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.hibernate;
+
+import com.mchange.v2.c3p0.PooledDataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import org.hibernate.c3p0.internal.C3P0ConnectionProvider;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+/**
+ * The JDBC connections of Hibernate, kept in a c3p0 pool.
+ *
+ * The pool is configured by the hibernate.c3p0.* properties of hibernate.cfg.xml:
+ * its minimum and maximum size, the validation of the connections, the time a
+ * request waits for a connection before failing (checkoutTimeout) and the time
+ * after which a connection that was never returned is taken back
+ * (unreturnedConnectionTimeout).
+ *
+ * On top of the pool this provider measures how long Hibernate waits for each
+ * connection and detects leaks: a connection held for longer than
+ * pfc.connection.leakThreshold milliseconds, e.g. by a session that was never
+ * closed, is logged once with the name of the thread that took it. Capturing a
+ * stack trace on every checkout is too expensive for production, so the stack
+ * trace of the code that took the connection is only logged when
+ * pfc.connection.leakStackTraces is true.
+ */
+public class PooledConnectionProvider extends C3P0ConnectionProvider {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(PooledConnectionProvider.class.getName());
+    public static final int DEFAULT_LEAK_THRESHOLD = 60000;
+
+    private static volatile PooledConnectionProvider instance = null;
+
+    private long leakThreshold = DEFAULT_LEAK_THRESHOLD;
+    private boolean leakStackTraces = false;
+    private final transient ConcurrentHashMap<Connection,Checkout> checkouts = new ConcurrentHashMap<>();
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong failedAcquisitions = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private volatile long maxWaitNanos = 0;
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * A connection taken from the pool and not returned yet.
+     */
+    private static final class Checkout {
+        private final long time = System.currentTimeMillis();
+        private final String thread;
+        private final Throwable origin;
+        private volatile boolean reported = false;
+
+        private Checkout(String thread,Throwable origin){
+            this.thread = thread;
+            this.origin = origin;
+        }
+    }
+
+    /**
+     * Returns the statistics of the pool of the session factory.
+     * @return map of statistic name to value, empty if Hibernate does not use this provider
+     */
+    public static Map<String,Object> getPoolStatistics(){
+        final PooledConnectionProvider provider = instance;
+        return provider == null ? new LinkedHashMap<String,Object>() : provider.getStatistics();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void configure(Map properties){
+        super.configure(properties);
+        this.leakThreshold = ConfigurationHelper.getLong("pfc.connection.leakThreshold", properties, DEFAULT_LEAK_THRESHOLD);
+        this.leakStackTraces = ConfigurationHelper.getBoolean("pfc.connection.leakStackTraces", properties, false);
+        instance = this;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException{
+        detectLeaks();
+        final long start = System.nanoTime();
+        final Connection connection;
+        try{
+            connection = super.getConnection();
+        }
+        catch(SQLException e){
+            this.failedAcquisitions.incrementAndGet();
+            throw e;
+        }
+        final long wait = System.nanoTime() - start;
+        this.acquisitions.incrementAndGet();
+        this.waitNanos.addAndGet(wait);
+        if(wait > this.maxWaitNanos){
+            this.maxWaitNanos = wait;
+        }
+        if(this.leakThreshold > 0){
+            final String thread = Thread.currentThread().getName();
+            this.checkouts.put(connection, new Checkout(thread, this.leakStackTraces ? new Throwable("Connection taken by thread " + thread) : null));
+        }
+        return connection;
+    }
+
+    @Override
+    public void closeConnection(Connection connection) throws SQLException{
+        this.checkouts.remove(connection);
+        super.closeConnection(connection);
+    }
+
+    @Override
+    public void stop(){
+        if(instance == this){
+            instance = null;
+        }
+        this.checkouts.clear();
+        super.stop();
+    }
+
+    /**
+     * Logs the connections held for longer than the leak threshold, once each.
+     * There are at most as many as the maximum size of the pool.
+     */
+    private void detectLeaks(){
+        if(this.leakThreshold <= 0){
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for(Checkout checkout : this.checkouts.values()){
+            if(!checkout.reported && now - checkout.time > this.leakThreshold){
+                checkout.reported = true;
+                this.leaks.incrementAndGet();
+                final String message = "A JDBC connection taken by thread " + checkout.thread + " has not been returned to the pool for "
+                        + (now - checkout.time) + " ms, the Hibernate session that holds it may never be closed";
+                if(checkout.origin != null){
+                    LOGGER.log(Level.WARNING, message, checkout.origin);
+                }
+                else{
+                    LOGGER.log(Level.WARNING, message + " (set pfc.connection.leakStackTraces to log where it was taken)");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the pool.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        detectLeaks();
+        final long acquired = this.acquisitions.get();
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("acquisitions", acquired);
+        statistics.put("failedAcquisitions", this.failedAcquisitions.get());
+        statistics.put("averageWaitMillis", acquired == 0 ? 0.0 : this.waitNanos.get() / 1000000.0 / acquired);
+        statistics.put("maxWaitMillis", this.maxWaitNanos / 1000000.0);
+        long oldestCheckout = -1;
+        final long now = System.currentTimeMillis();
+        for(Checkout checkout : this.checkouts.values()){
+            oldestCheckout = Math.max(oldestCheckout, now - checkout.time);
+        }
+        statistics.put("checkedOut", this.checkouts.size());
+        statistics.put("oldestCheckoutMillis", oldestCheckout);
+        statistics.put("leakThreshold", this.leakThreshold);
+        statistics.put("leakStackTraces", this.leakStackTraces);
+        statistics.put("leaks", this.leaks.get());
+        final DataSource dataSource = unwrap(DataSource.class);
+        if(dataSource instanceof PooledDataSource){
+            final PooledDataSource pool = (PooledDataSource) dataSource;
+            try{
+                statistics.put("connections", pool.getNumConnectionsDefaultUser());
+                statistics.put("active", pool.getNumBusyConnectionsDefaultUser());
+                statistics.put("idle", pool.getNumIdleConnectionsDefaultUser());
+                statistics.put("waitingThreads", pool.getNumThreadsAwaitingCheckoutDefaultUser());
+                statistics.put("failedCheckouts", pool.getNumFailedCheckoutsDefaultUser());
+                statistics.put("failedIdleTests", pool.getNumFailedIdleTestsDefaultUser());
+                statistics.put("unclosedOrphanedConnections", pool.getNumUnclosedOrphanedConnectionsDefaultUser());
+            }
+            catch(SQLException e){
+                LOGGER.log(Level.FINE, "Could not read the statistics of the connection pool", e);
+            }
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.listeners;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+
+/**
+ * Reads the context parameters declared in web.xml.
+ *
+ * Every getter falls back to the specified default value when the parameter is
+ * missing or can not be parsed, so a bad configuration never prevents the
+ * application from starting.
+ */
+public final class ContextParameters {
+    private static final Logger LOGGER = Logger.getLogger(ContextParameters.class.getName());
+
+    public static String getString(ServletContext context,String name,String defaultValue){
+        final String value = context.getInitParameter(name);
+        if(value == null || value.trim().equals("")){
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    public static int getInt(ServletContext context,String name,int defaultValue){
+        final String value = getString(context, name, null);
+        if(value == null){
+            return defaultValue;
+        }
+        try{
+            return Integer.parseInt(value);
+        }
+        catch(NumberFormatException e){
+            LOGGER.log(Level.WARNING,"Invalid value for context parameter {0}, using default: {1}",new Object[]{name,defaultValue});
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(ServletContext context,String name,long defaultValue){
+        final String value = getString(context, name, null);
+        if(value == null){
+            return defaultValue;
+        }
+        try{
+            return Long.parseLong(value);
+        }
+        catch(NumberFormatException e){
+            LOGGER.log(Level.WARNING,"Invalid value for context parameter {0}, using default: {1}",new Object[]{name,defaultValue});
+            return defaultValue;
+        }
+    }
+
+    public static double getDouble(ServletContext context,String name,double defaultValue){
+        final String value = getString(context, name, null);
+        if(value == null){
+            return defaultValue;
+        }
+        try{
+            return Double.parseDouble(value);
+        }
+        catch(NumberFormatException e){
+            LOGGER.log(Level.WARNING,"Invalid value for context parameter {0}, using default: {1}",new Object[]{name,defaultValue});
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(ServletContext context,String name,boolean defaultValue){
+        final String value = getString(context, name, null);
+        if(value == null){
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private ContextParameters(){
+
+    }
+}
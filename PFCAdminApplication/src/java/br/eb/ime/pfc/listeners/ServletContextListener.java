@@ -25,6 +25,8 @@
 package br.eb.ime.pfc.listeners;
 
 import br.eb.ime.pfc.geoserver.GeoServerCommunication;
+import br.eb.ime.pfc.geoserver.GeoServerHealth;
+import br.eb.ime.pfc.geoserver.LegendCache;
 import br.eb.ime.pfc.hibernate.HibernateUtil;
 import javax.servlet.ServletContextEvent;
 import org.hibernate.HibernateException;
@@ -37,6 +39,8 @@ public class ServletContextListener implements javax.servlet.ServletContextListe
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
+        GeoServerHealth.initialize(sce.getServletContext());
+        LegendCache.initialize(sce.getServletContext());
         
         try{
             HibernateUtil.getSessionFactory();
@@ -55,6 +59,8 @@ public class ServletContextListener implements javax.servlet.ServletContextListe
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
-        
+        LegendCache.destroy();
+        GeoServerHealth.destroy();
+        HibernateUtil.close();
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.hibernate;
+
+import br.eb.ime.pfc.domain.AccessLevel;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.testng.SkipException;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * The lazy session, the read only mode and the rollback of the {@link UnitOfWork}.
+ *
+ * The tests that use a session run against the database of hibernate.cfg.xml
+ * and are skipped if it is not available. Their access level is never committed.
+ */
+public class UnitOfWorkTest {
+    private static final String ACCESS_LEVEL = "unit-of-work-test";
+
+    private UnitOfWork unitOfWork;
+
+    private static void requireDatabase(){
+        try{
+            final Session probe = HibernateUtil.openSession();
+            try{
+                probe.beginTransaction().rollback();
+            }
+            finally{
+                probe.close();
+            }
+        }
+        catch(HibernateException e){
+            throw new SkipException("The database is not available", e);
+        }
+    }
+
+    private static long getStatistic(String name){
+        return (Long) UnitOfWork.getStatistics().get(name);
+    }
+
+    private static AccessLevel readAccessLevel(){
+        final Session session = HibernateUtil.openSession();
+        try{
+            return (AccessLevel) session.get(AccessLevel.class, ACCESS_LEVEL);
+        }
+        finally{
+            session.close();
+        }
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void endUnitOfWork(){
+        //A failed test must not leave its unit of work to the next one; ending it twice has no effect
+        if(this.unitOfWork != null){
+            this.unitOfWork.end(false);
+            this.unitOfWork = null;
+        }
+    }
+
+    @Test
+    public void unusedUnitOfWorkNeverOpensASession(){
+        final long sessionsOpened = getStatistic("sessionsOpened");
+        this.unitOfWork = UnitOfWork.begin(false);
+        assertFalse(this.unitOfWork.isSessionOpen());
+        this.unitOfWork.end(true);
+        assertFalse(this.unitOfWork.isSessionOpen());
+        assertNull(UnitOfWork.currentSession());
+        assertEquals(getStatistic("sessionsOpened"), sessionsOpened);
+    }
+
+    @Test
+    public void readOnlyUnitOfWorkDoesNotFlush(){
+        requireDatabase();
+        this.unitOfWork = UnitOfWork.begin(true);
+        final Session session = HibernateUtil.getCurrentSession();
+        assertTrue(this.unitOfWork.isSessionOpen());
+        assertEquals(session.getFlushMode(), FlushMode.MANUAL);
+        assertTrue(session.isDefaultReadOnly());
+        //Saved in the session only: the insert is issued by a flush, which must not happen
+        session.save(AccessLevel.makeAccessLevel(ACCESS_LEVEL));
+        this.unitOfWork.end(true);
+        assertFalse(session.isOpen());
+        assertNull(readAccessLevel());
+    }
+
+    @Test
+    public void failedUnitOfWorkRollsBackAndCloses(){
+        requireDatabase();
+        final long rollbacks = getStatistic("rollbacks");
+        this.unitOfWork = UnitOfWork.begin(false);
+        final Session session = HibernateUtil.getCurrentSession();
+        session.save(AccessLevel.makeAccessLevel(ACCESS_LEVEL));
+        session.flush();
+        this.unitOfWork.end(false);
+        assertFalse(session.isOpen());
+        assertFalse(this.unitOfWork.isSessionOpen());
+        assertNull(UnitOfWork.currentSession());
+        assertEquals(getStatistic("rollbacks"), rollbacks + 1);
+        assertNull(readAccessLevel());
+    }
+}
@@ -123,6 +123,39 @@
                         window.location.href = urlImport;
                     });
                     
+                    //Asks the user application to pre-render the tiles of a layer
+                    $("#layers-panel").on("click",".handler-seed-current",function(e){
+                        e.preventDefault();
+                        var wmsId = $(this).parents(".handler-template-obj").first().find(".handler-id-wmsId").first().text();
+                        var showMessage = function(title,message,importance){
+                            var messageContainer = $("#message-container");
+                            var messageView = messageContainer.find(".message-body").first().clone();
+                            messageView.removeClass("alert-danger alert-success alert-warning alert-info");
+                            messageView.addClass("alert-"+importance);
+                            messageView.find(".message-title").text(title);
+                            messageView.find(".message-text").text(message);
+                            messageView.find(".close").click(function(){
+                                messageView.fadeOut(400);
+                            });
+                            messageContainer.find(".message-body").remove();
+                            messageView.appendTo(messageContainer);
+                            messageView.fadeIn(400).delay(3500).fadeOut(400);
+                        };
+                        $.post("layer-handler",{action : "seed",wmsId : wmsId}).done(function(data){
+                            if(data === "OK"){
+                                showMessage("Sucesso: ","Pré-carregamento dos tiles de "+wmsId+" solicitado","success");
+                            }
+                            else if(data === "NOTFOUND"){
+                                showMessage("Erro: ","O item não foi encontrado","danger");
+                            }
+                            else{
+                                showMessage("Erro: ","Um problema ocorreu ao processar sua requisição","danger");
+                            }
+                        }).fail(function(){
+                            showMessage("Erro: ","O servidor não respondeu à requisição","danger");
+                        });
+                    });
+                    
                 });
             });
         </script>
@@ -236,6 +269,7 @@
                                         <label for="checkbox" class="clickable handler-id-wmsId"></label>
                                         
                                         <div class="pull-right action-buttons">
+                                            <a href="#" class="handler-seed-current" title="Pré-carregar tiles"><span class="glyphicon glyphicon-download-alt"></span></a>
                                             <a href="#" class="handler-load-current"><span class="glyphicon glyphicon-pencil"></span></a>
                                             <a href="#" class="trash handler-delete-selected"><span class="glyphicon glyphicon-trash"></span></a>
                                         </div>
@@ -356,6 +390,18 @@
                                         <span class="input-group-addon clickable handler-add-current handler-add-save">Adicionar</span>
                                 </div>
                                 <div class="panel-body">    
+                                    <div class="input-group">
+                                        <label for="handler-object-maxConcurrentRequests" class="input-group-addon">Requisições simultâneas (nível):</label>
+                                        <input type="text" class="form-control handler-object-maxConcurrentRequests handler-field" placeholder="Padrão">
+                                    </div>
+                                    <div class="input-group">
+                                        <label for="handler-object-userMaxConcurrentRequests" class="input-group-addon">Requisições simultâneas (usuário):</label>
+                                        <input type="text" class="form-control handler-object-userMaxConcurrentRequests handler-field" placeholder="Padrão">
+                                    </div>
+                                    <div class="input-group">
+                                        <label for="handler-object-userRequestsPerSecond" class="input-group-addon">Requisições por segundo (usuário):</label>
+                                        <input type="text" class="form-control handler-object-userRequestsPerSecond handler-field" placeholder="Padrão">
+                                    </div>
                                     <div class="panel panel-danger">
                                         <div class="panel-heading slidable clickable">
                                             Camadas
@@ -124,7 +124,7 @@ else{
     AccessLevelHandler.prototype = Object.create(WMSCRUD.ObjectHandler.prototype);
     AccessLevelHandler.constructor = AccessLevelHandler;
     AccessLevelHandler.prototype.mapping = function(){
-        return { name : "",layers: [{wmsId :""}]};
+        return { name : "",maxConcurrentRequests : "",userMaxConcurrentRequests : "",userRequestsPerSecond : "",layers: [{wmsId :""}]};
     };
     AccessLevelHandler.prototype.obeyRestrictions = function(matchObject){
         this.clearErrorHighlight();
@@ -138,6 +138,17 @@ else{
         else{
             matchObject['name'] = matchObject['name'].trim();
         }
+        //Empty limits use the default of the application, 0 means unlimited
+        var limits = ['maxConcurrentRequests','userMaxConcurrentRequests','userRequestsPerSecond'];
+        var j = 0,jj = limits.length;
+        for(;j<jj;j++){
+            var limit = typeof matchObject[limits[j]] === 'undefined' || matchObject[limits[j]] === null ? "" : matchObject[limits[j]].trim();
+            if(limit !== "" && !(Number(limit) >= 0)){
+                this.objectDiv.find(".handler-object-"+limits[j]).addClass("handler-error-highlight");
+                return false;
+            }
+            matchObject[limits[j]] = limit;
+        }
         var layers = matchObject['layers'];
         var layerViewIds = this.objectDiv.find(".handler-object-layers-wmsId");
         var i = 0,ii=layers.length;
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.controllers;
+
+import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.domain.LayerSet;
+import br.eb.ime.pfc.geoserver.FeatureInfoService;
+import br.eb.ime.pfc.geoserver.RequestLimiter;
+import br.eb.ime.pfc.logging.AccessLog;
+import br.eb.ime.pfc.logging.AccessLogEvent;
+import flexjson.JSONSerializer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ *
+ * This class is a Controller responsible for answering a click on the map with
+ * the features of every visible layer at the clicked point, as a JSON object.
+ * 
+ * The request has the parameters layers (the wmsIds of the visible layers
+ * separated by commas), x and y (the clicked point), resolution (the resolution
+ * of the map) and optionally crs (EPSG:3857 by default). Layers the user has no
+ * access to are ignored. The layers are queried in parallel by {@link FeatureInfoService}.
+ * 
+ * The user must be signed in to access this controller.
+ */
+@WebServlet(name = "FeatureInfoServlet", urlPatterns = {"/feature-info"})
+public class FeatureInfoServlet extends HttpServlet {
+    private static final String DEFAULT_CRS = "EPSG:3857";
+
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
+     * methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        final String layersParameter = request.getParameter("layers");
+        final AccessLogEvent event = AccessLog.getInstance().startEvent(request, "GETFEATUREINFO", layersParameter);
+        //A token or basic authorization must not create a session; the filter gives such requests one of their own
+        final HttpSession session = request.getSession(false);
+        final LayerSet layers = WMSProxyServlet.getLayers(session);
+        if(layers == null){
+            event.setStatus(HTTP_STATUS.UNAUTHORIZED.getCode());
+            event.finish();
+            response.sendError(HTTP_STATUS.UNAUTHORIZED.getCode());
+            return;
+        }
+        final double x, y, resolution;
+        try{
+            x = Double.parseDouble(request.getParameter("x"));
+            y = Double.parseDouble(request.getParameter("y"));
+            resolution = Double.parseDouble(request.getParameter("resolution"));
+        }
+        catch(NullPointerException | NumberFormatException e){
+            event.setStatus(HTTP_STATUS.BAD_REQUEST.getCode());
+            event.finish();
+            response.sendError(HTTP_STATUS.BAD_REQUEST.getCode());
+            return;
+        }
+        final String crsParameter = request.getParameter("crs");
+        final String crs = crsParameter == null || crsParameter.trim().equals("") ? DEFAULT_CRS : crsParameter.trim();
+        final List<String> layerWmsIds = getAuthorizedLayers(layersParameter, layers);
+
+        List<Map<String,Object>> results = new ArrayList<>();
+        if(!layerWmsIds.isEmpty()){
+            final RequestLimiter.Permit permit;
+            try{
+                permit = RequestLimiter.getInstance().acquire((String) session.getAttribute("user"), (String) session.getAttribute("accessLevel"));
+            }
+            catch(RequestLimiter.LimitExceededException e){
+                event.setStatus(HTTP_STATUS.TOO_MANY_REQUESTS.getCode());
+                event.finish();
+                response.setHeader("Retry-After", Integer.toString(e.getRetryAfter()));
+                response.sendError(HTTP_STATUS.TOO_MANY_REQUESTS.getCode());
+                return;
+            }
+            try{
+                results = FeatureInfoService.getInstance().query(layerWmsIds, x, y, resolution, crs);
+            }
+            finally{
+                permit.release();
+            }
+        }
+        try{
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+            new JSONSerializer().rootName("layers").exclude("*.class").deepSerialize(results, response.getWriter());
+            event.setStatus(HttpServletResponse.SC_OK);
+        }
+        finally{
+            event.finish();
+        }
+    }
+
+    /**
+     * Returns the layers of the request that the user has access to, without repetitions.
+     * @param layersParameter the layers parameter of the request, or null
+     * @param layers the layers that the user can access
+     * @return the wmsIds of the authorized layers, in the order of the request
+     */
+    protected List<String> getAuthorizedLayers(String layersParameter,LayerSet layers){
+        final List<String> layerWmsIds = new ArrayList<>();
+        if(layersParameter != null){
+            for(String layer : layersParameter.split(",")){
+                final String wmsId = layer.trim();
+                if(!wmsId.equals("") && layers.contains(wmsId) && !layerWmsIds.contains(wmsId)){
+                    layerWmsIds.add(wmsId);
+                }
+            }
+        }
+        return layerWmsIds;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Handles the HTTP <code>POST</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Short description";
+    }// </editor-fold>
+
+}
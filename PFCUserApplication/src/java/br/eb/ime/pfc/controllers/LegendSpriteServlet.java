@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.controllers;
+
+import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.domain.LayerSet;
+import br.eb.ime.pfc.geoserver.CachePolicy;
+import br.eb.ime.pfc.geoserver.GeoServerCommunication;
+import br.eb.ime.pfc.geoserver.LegendSprite;
+import br.eb.ime.pfc.geoserver.WMSResponse;
+import br.eb.ime.pfc.logging.AccessLog;
+import br.eb.ime.pfc.logging.AccessLogEvent;
+import flexjson.JSONSerializer;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ *
+ * This class is a Controller that serves the legend sprite of the access level
+ * of the user, built by {@link LegendSprite}.
+ * 
+ * /legend-sprite.json answers the rectangle of the legend of each layer in the
+ * image and the URL and size of the image, versioned by its ETag. /legend-sprite.png
+ * answers the image. Layers missing from the JSON must have their legends
+ * requested to the {@link LegendGraphicServlet}.
+ * 
+ * The user must be signed in to access this controller. If the sprites are
+ * disabled a Http 404 code is sent.
+ */
+@WebServlet(name = "LegendSpriteServlet", urlPatterns = {"/legend-sprite.png","/legend-sprite.json"})
+public class LegendSpriteServlet extends HttpServlet {
+    private static final String IMAGE_PATH = "/legend-sprite.png";
+
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
+     * methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        final AccessLogEvent event = AccessLog.getInstance().startEvent(request, "GETLEGENDSPRITE", null);
+        //A token or basic authorization must not create a session; the filter gives such requests one of their own
+        final HttpSession session = request.getSession(false);
+        final LayerSet layers = WMSProxyServlet.getLayers(session);
+        if(layers == null){
+            event.setStatus(HTTP_STATUS.UNAUTHORIZED.getCode());
+            event.finish();
+            response.sendError(HTTP_STATUS.UNAUTHORIZED.getCode());
+            return;
+        }
+        final LegendSprite legendSprite = LegendSprite.getInstance();
+        if(!legendSprite.isEnabled()){
+            event.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            event.finish();
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        try{
+            final LegendSprite.Sprite sprite = legendSprite.get((String) session.getAttribute("accessLevel"), layers);
+            if(request.getServletPath().equals(IMAGE_PATH)){
+                GeoServerCommunication.writeResponse(WMSResponse.success("image/png", sprite.getData(), sprite.getLastModified(), -1),
+                        CachePolicy.Validators.fromRequest(request), "GETLEGENDGRAPHIC", response, event);
+            }
+            else{
+                final Map<String,Object> result = new LinkedHashMap<>();
+                result.put("image", IMAGE_PATH.substring(1) + "?v=" + sprite.getVersion());
+                result.put("width", sprite.getWidth());
+                result.put("height", sprite.getHeight());
+                result.put("legends", sprite.getOffsets());
+                response.setContentType("application/json");
+                response.setCharacterEncoding("UTF-8");
+                response.setHeader("Cache-Control", "no-cache");
+                new JSONSerializer().exclude("*.class").deepSerialize(result, response.getWriter());
+                event.setStatus(HttpServletResponse.SC_OK);
+            }
+        }
+        catch(RuntimeException e){
+            event.setStatus(HTTP_STATUS.INTERNAL_ERROR.getCode());
+            response.sendError(HTTP_STATUS.INTERNAL_ERROR.getCode());
+        }
+        finally{
+            event.finish();
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Handles the HTTP <code>POST</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Short description";
+    }// </editor-fold>
+
+}
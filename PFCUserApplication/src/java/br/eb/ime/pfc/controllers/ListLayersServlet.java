@@ -23,25 +23,20 @@
  */
 package br.eb.ime.pfc.controllers;
 
-import br.eb.ime.pfc.domain.AccessLevel;
 import br.eb.ime.pfc.domain.Layer;
+import br.eb.ime.pfc.domain.LayerManager;
 import br.eb.ime.pfc.domain.ObjectNotFoundException;
 import br.eb.ime.pfc.domain.User;
 import br.eb.ime.pfc.domain.UserManager;
 import br.eb.ime.pfc.hibernate.HibernateUtil;
 import flexjson.JSONSerializer;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 
 /**
@@ -69,23 +64,9 @@ public class ListLayersServlet extends HttpServlet {
             try{
                 final UserManager userManager = new UserManager(HibernateUtil.getCurrentSession());
                 final User user = userManager.getById(username);
-                final AccessLevel accessLevel = user.getAccessLevel();
-                Hibernate.initialize(accessLevel);
-
-                final Collection<Layer> layers = accessLevel.getLayers();
-                final List<Layer> orderedLayers = new ArrayList<>();
-                for(Layer layer : layers){
-                    Hibernate.initialize(layer);
-                    orderedLayers.add(layer);
-                    request.getServletContext().log(layer.getName());
-                }
-                
-                Collections.sort(orderedLayers,new Comparator<Layer>(){
-                    @Override
-                    public int compare(Layer o1, Layer o2) {
-                        return o1.getWmsId().compareTo(o2.getWmsId());
-                    }
-                });
+                //The layers and the features that are serialized below are read with a single query
+                final LayerManager layerManager = new LayerManager(HibernateUtil.getCurrentSession());
+                final List<Layer> orderedLayers = layerManager.readByAccessLevel(user.getAccessLevel().getName(), LayerManager.FetchPlan.FEATURES);
                 
                 JSONSerializer serializer = new JSONSerializer();
                 response.setContentType("application/json");
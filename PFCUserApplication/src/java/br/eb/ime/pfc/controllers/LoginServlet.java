@@ -24,7 +24,9 @@
 package br.eb.ime.pfc.controllers;
 
 import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.filters.AccessTokens;
 import br.eb.ime.pfc.filters.AuthenticationFilter;
+import br.eb.ime.pfc.filters.AuthorizationRegistry;
 import java.io.IOException;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -82,6 +84,15 @@ public class LoginServlet extends HttpServlet {
         else{
             try{
                 if(AuthenticationFilter.authenticateUser(request, username, password)){
+                    final AccessTokens accessTokens = AccessTokens.getInstance();
+                    if(accessTokens.isEnabled()){
+                        //The token lets the other nodes serve this user without the session of this node
+                        final AuthorizationRegistry.Authorization authorization =
+                                AuthorizationRegistry.getInstance().get((String) request.getSession().getAttribute("accessLevel"));
+                        if(authorization != null){
+                            accessTokens.addCookie(request, response, (String) request.getSession().getAttribute("user"), authorization);
+                        }
+                    }
                     response.sendRedirect(request.getContextPath()+"/map");
                     return;
                 }
@@ -23,6 +23,7 @@
  */
 package br.eb.ime.pfc.controllers;
 
+import br.eb.ime.pfc.filters.AccessTokens;
 import java.io.IOException;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -56,6 +57,9 @@ public class LogoutServlet extends HttpServlet {
         }
         catch(IllegalStateException e){
             
+        }
+        if(AccessTokens.getInstance().isEnabled()){
+            AccessTokens.getInstance().clearCookie(request, response);
         }
         response.sendRedirect(request.getContextPath());
     }
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.controllers;
+
+import br.eb.ime.pfc.filters.AccessTokens;
+import br.eb.ime.pfc.filters.CredentialCache;
+import br.eb.ime.pfc.geoserver.AsyncWMSProxy;
+import br.eb.ime.pfc.geoserver.BufferPool;
+import br.eb.ime.pfc.geoserver.CachePolicy;
+import br.eb.ime.pfc.geoserver.CapabilitiesCache;
+import br.eb.ime.pfc.geoserver.FeatureInfoService;
+import br.eb.ime.pfc.geoserver.GeoServerCommunication;
+import br.eb.ime.pfc.geoserver.GeoServerConnectionPool;
+import br.eb.ime.pfc.geoserver.GeoServerNodePool;
+import br.eb.ime.pfc.geoserver.LayerRegistry;
+import br.eb.ime.pfc.geoserver.LegendCache;
+import br.eb.ime.pfc.geoserver.LegendSprite;
+import br.eb.ime.pfc.geoserver.Metatiler;
+import br.eb.ime.pfc.geoserver.RequestLimiter;
+import br.eb.ime.pfc.geoserver.TileCache;
+import br.eb.ime.pfc.geoserver.TileGrid;
+import br.eb.ime.pfc.geoserver.TileSeeder;
+import br.eb.ime.pfc.hibernate.ChangeNotificationListener;
+import br.eb.ime.pfc.hibernate.HibernateUtil;
+import br.eb.ime.pfc.hibernate.PooledConnectionProvider;
+import br.eb.ime.pfc.hibernate.UnitOfWork;
+import br.eb.ime.pfc.logging.AccessLog;
+import flexjson.JSONSerializer;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ * This class is a Controller responsible for reporting the runtime statistics of
+ * this application, such as the state of the GeoServer connection pool and of the tile cache, as a JSON object.
+ *
+ * The user must be signed in to access this controller.
+ */
+@WebServlet(name = "StatusServlet", urlPatterns = {"/status"})
+public class StatusServlet extends HttpServlet {
+
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
+     * methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        final Map<String,Object> status = new LinkedHashMap<>();
+        status.put("geoserverNodes", GeoServerNodePool.getInstance().getStatistics());
+        status.put("connectionPool", GeoServerConnectionPool.getInstance().getStatistics());
+        status.put("bufferPool", BufferPool.getInstance().getStatistics());
+        status.put("tileCache", TileCache.getInstance().getStatistics());
+        status.put("metatiling", Metatiler.getInstance().getStatistics());
+        status.put("tileGrid", TileGrid.getInstance().getStatistics());
+        status.put("layers", LayerRegistry.getInstance().getStatistics());
+        status.put("seeding", TileSeeder.getInstance().getStatistics());
+        status.put("getMapCoalescing", GeoServerCommunication.getCoalescingStatistics());
+        status.put("httpCaching", CachePolicy.getInstance().getStatistics());
+        status.put("capabilities", CapabilitiesCache.getInstance().getStatistics());
+        status.put("legends", LegendCache.getInstance().getStatistics());
+        status.put("legendSprites", LegendSprite.getInstance().getStatistics());
+        status.put("featureInfo", FeatureInfoService.getInstance().getStatistics());
+        status.put("asyncProxy", AsyncWMSProxy.getInstance().getStatistics());
+        status.put("requestLimits", RequestLimiter.getInstance().getStatistics());
+        status.put("credentials", CredentialCache.getInstance().getStatistics());
+        status.put("accessTokens", AccessTokens.getInstance().getStatistics());
+        status.put("accessLog", AccessLog.getInstance().getStatistics());
+        status.put("changeNotifications", ChangeNotificationListener.getStatistics());
+        status.put("databaseConnections", PooledConnectionProvider.getPoolStatistics());
+        status.put("unitsOfWork", UnitOfWork.getStatistics());
+        status.put("secondLevelCache", HibernateUtil.getCacheStatistics());
+
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-cache");
+        new JSONSerializer().exclude("*.class").deepSerialize(status, response.getWriter());
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Handles the HTTP <code>POST</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Short description";
+    }// </editor-fold>
+
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.controllers;
+
+import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.domain.LayerSet;
+import br.eb.ime.pfc.geoserver.CachePolicy;
+import br.eb.ime.pfc.geoserver.GeoServerCommunication;
+import br.eb.ime.pfc.geoserver.RequestLimiter;
+import br.eb.ime.pfc.geoserver.TileCache;
+import br.eb.ime.pfc.geoserver.TileGrid;
+import br.eb.ime.pfc.geoserver.WMSRequestKey;
+import br.eb.ime.pfc.logging.AccessLog;
+import br.eb.ime.pfc.logging.AccessLogEvent;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ *
+ * This class is a Controller that serves the tiles of the layers with stable
+ * URLs, /tiles/{layer}/{z}/{x}/{y}.{png|jpg|pbf}, in the grid of {@link TileGrid}.
+ * 
+ * Each tile is answered with the response of its canonical GetMap request, so
+ * the same tile always has the same URL and the same bytes and can be kept by
+ * the browsers for as long as cachecontrol.tiles allows. The map adds the
+ * tile version of the layer to the URL, e.g. ?v=3f2a9c1b, which changes with
+ * the style of the layer, so the browsers request the tiles again once the
+ * administrator changes the style. The version is not checked here: a tile is
+ * always drawn with the current style of its layer. The tiles of a layer the
+ * user can no longer access are not requested, since the layer is no longer
+ * listed, and are refused if they are.
+ * 
+ * The user must be signed in and have access to the layer, as in the
+ * {@link WMSProxyServlet}, otherwise a Http 401 code is sent. Tiles outside of
+ * the grid or of unknown layers are answered with a Http 404 code.
+ */
+@WebServlet(name = "TilesServlet", urlPatterns = {"/tiles/*"})
+public class TilesServlet extends HttpServlet {
+
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
+     * methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        //{layer}/{z}/{x}/{y}.{extension}
+        final String pathInfo = request.getPathInfo();
+        final String[] path = pathInfo == null ? new String[0] : pathInfo.substring(1).split("/");
+        final String layer = path.length > 0 ? path[0] : null;
+        final AccessLogEvent event = AccessLog.getInstance().startEvent(request, "GETMAP", layer);
+        //A token or basic authorization must not create a session; the filter gives such requests one of their own
+        final HttpSession session = request.getSession(false);
+        final LayerSet layers = WMSProxyServlet.getLayers(session);
+        if(layers == null || layer == null || layer.equals("")
+                || !WMSProxyServlet.authenticateLayers(layer, layers)){
+            event.setStatus(HTTP_STATUS.UNAUTHORIZED.getCode());
+            event.finish();
+            response.sendError(HTTP_STATUS.UNAUTHORIZED.getCode());
+            return;
+        }
+        final WMSRequestKey key = getTileKey(path);
+        if(key == null){
+            event.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            event.finish();
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final RequestLimiter.Permit permit;
+        try{
+            //Tiles already in the tile cache are answered without GeoServer
+            permit = TileCache.getInstance().contains(key) ? RequestLimiter.Permit.NONE :
+                    RequestLimiter.getInstance().acquire((String) session.getAttribute("user"), (String) session.getAttribute("accessLevel"));
+        }
+        catch(RequestLimiter.LimitExceededException e){
+            event.setStatus(HTTP_STATUS.TOO_MANY_REQUESTS.getCode());
+            event.finish();
+            response.setHeader("Retry-After", Integer.toString(e.getRetryAfter()));
+            response.sendError(HTTP_STATUS.TOO_MANY_REQUESTS.getCode());
+            return;
+        }
+        try{
+            GeoServerCommunication.writeResponse(GeoServerCommunication.fetchTile(key),
+                    CachePolicy.Validators.fromRequest(request), "TILES", response, event);
+        }
+        catch(RuntimeException e){
+            event.setStatus(HTTP_STATUS.INTERNAL_ERROR.getCode());
+            response.sendError(HTTP_STATUS.INTERNAL_ERROR.getCode());
+        }
+        finally{
+            permit.release();
+            event.finish();
+        }
+    }
+
+    /**
+     * Returns the key of the GetMap request of the tile of a path.
+     * @param path the segments of the path after /tiles
+     * @return the key or null if the path is not a tile of the grid
+     */
+    protected WMSRequestKey getTileKey(String[] path){
+        if(path.length != 4){
+            return null;
+        }
+        final int extensionSeparator = path[3].lastIndexOf('.');
+        if(extensionSeparator <= 0){
+            return null;
+        }
+        try{
+            final int zoom = Integer.parseInt(path[1]);
+            final long x = Long.parseLong(path[2]);
+            final long y = Long.parseLong(path[3].substring(0, extensionSeparator));
+            return TileGrid.getInstance().getTileKey(path[0], zoom, x, y, path[3].substring(extensionSeparator + 1));
+        }
+        catch(NumberFormatException e){
+            return null;
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        processRequest(request, response);
+    }
+
+    /**
+     * Returns a short description of the servlet.
+     *
+     * @return a String containing servlet description
+     */
+    @Override
+    public String getServletInfo() {
+        return "Short description";
+    }// </editor-fold>
+
+}
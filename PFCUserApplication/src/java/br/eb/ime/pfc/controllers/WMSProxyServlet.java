@@ -5,17 +5,30 @@
  */
 package br.eb.ime.pfc.controllers;
 
+import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.domain.LayerIndex;
+import br.eb.ime.pfc.domain.LayerSet;
+import br.eb.ime.pfc.filters.AuthorizationRegistry;
+import br.eb.ime.pfc.geoserver.AsyncWMSProxy;
+import br.eb.ime.pfc.geoserver.CachePolicy;
+import br.eb.ime.pfc.geoserver.CapabilitiesCache;
 import br.eb.ime.pfc.geoserver.GeoServerCommunication;
+import br.eb.ime.pfc.geoserver.RequestLimiter;
+import br.eb.ime.pfc.geoserver.TileCache;
+import br.eb.ime.pfc.geoserver.WMSRequestKey;
+import br.eb.ime.pfc.logging.AccessLog;
+import br.eb.ime.pfc.logging.AccessLogEvent;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Enumeration;
-import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.hibernate.HibernateException;
 
 /**
  *
@@ -25,10 +38,26 @@ import javax.servlet.http.HttpServletResponse;
  * This controller is responsible to verify the layers that are accessed by the 
  * WMS requests and to check if the user has access to the corresponding layers.
  * 
- * If the user has access denied, a Http 401 code is sent.
+ * If the user has access denied, a Http 401 code is sent. A request with
+ * conflicting LAYERS parameters, e.g. LAYERS and layers with different values,
+ * is rejected with a Http 400 code.
+ * If the user or its access level exceed their limits of requests to GeoServer,
+ * a Http 429 code is sent with a Retry-After header (see {@link RequestLimiter}).
+ * 
+ * GetCapabilities requests are answered by {@link CapabilitiesCache} with a
+ * document that only lists the layers of the access level of the user.
+ * 
+ * When the context parameter wmsproxy.async is true the authorized requests are
+ * answered asynchronously by {@link AsyncWMSProxy}.
+ * 
+ * GetMap requests are authorized with the layers of their canonical
+ * {@link WMSRequestKey}, the same key that looks up the tile cache and whose
+ * query is sent to GeoServer, so the layers that are checked are the layers
+ * that are rendered.
  */
-@WebServlet(name = "WMSProxyServlet", urlPatterns = {"/geoserver/wms/*","/geoserver/wms"})
+@WebServlet(name = "WMSProxyServlet", urlPatterns = {"/geoserver/wms/*","/geoserver/wms"}, asyncSupported = true)
 public class WMSProxyServlet extends HttpServlet {
+    private static final Logger LOGGER = Logger.getLogger(WMSProxyServlet.class.getName());
     
     /**
      * Processes requests for both HTTP <code>GET</code> and <code>POST</code>
@@ -41,88 +70,187 @@ public class WMSProxyServlet extends HttpServlet {
      */
     protected void processRequest(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        final Collection<String> layersIds = (Collection<String>) request.getSession().getAttribute("layers");
-        if(layersIds == null){
+        final String layersParameter;
+        try{
+            layersParameter = getLayersParameter(request.getParameterMap());
+        }
+        catch(IllegalArgumentException e){
+            final AccessLogEvent event = AccessLog.getInstance().startEvent(request, CachePolicy.getRequestType(request), null);
+            event.setStatus(HTTP_STATUS.BAD_REQUEST.getCode());
+            event.finish();
+            response.sendError(HTTP_STATUS.BAD_REQUEST.getCode());
+            return;
+        }
+        final AccessLogEvent event = AccessLog.getInstance().startEvent(request, CachePolicy.getRequestType(request), layersParameter);
+        final LayerSet layers = getLayers(request.getSession(false));
+        final WMSRequestKey key = GeoServerCommunication.getGetMapKey(request);
+        if(layers == null){
+            event.setStatus(401);
+            event.finish();
             response.sendError(401);
         }
         else{
-            if(authenticateLayers(request,response,layersIds)){
+            if(CapabilitiesCache.isGetCapabilities(request)){
+                //The capabilities list only the layers of the access level of the user
+                try{
+                    CapabilitiesCache.getInstance().write(request, response, event, layers,
+                            (String) request.getSession(false).getAttribute("accessLevel"));
+                }
+                finally{
+                    event.finish();
+                }
+            }
+            else if(authenticateLayers(key != null ? key.getParameter("LAYERS") : layersParameter,layers)){
+                final RequestLimiter.Permit permit;
                 try{
-                    request.getServletContext().log("Redirected");
-                    GeoServerCommunication.redirectStreamFromRequest(request,response);
+                    permit = acquirePermit(request,key);
                 }
-                catch(RuntimeException e){
-                    response.sendError(500);
+                catch(RequestLimiter.LimitExceededException e){
+                    event.setStatus(HTTP_STATUS.TOO_MANY_REQUESTS.getCode());
+                    event.finish();
+                    response.setHeader("Retry-After", Integer.toString(e.getRetryAfter()));
+                    response.sendError(HTTP_STATUS.TOO_MANY_REQUESTS.getCode());
+                    return;
+                }
+                final AsyncWMSProxy asyncProxy = AsyncWMSProxy.getInstance();
+                if(asyncProxy.isEnabled() && request.isAsyncSupported()){
+                    try{
+                        asyncProxy.proxy(request, key, response, event, permit);
+                    }
+                    catch(RuntimeException e){
+                        permit.release();
+                        event.setStatus(500);
+                        event.finish();
+                        response.sendError(500);
+                    }
+                }
+                else{
+                    try{
+                        GeoServerCommunication.redirectStreamFromRequest(request,key,response,event);
+                    }
+                    catch(RuntimeException e){
+                        event.setStatus(500);
+                        response.sendError(500);
+                    }
+                    finally{
+                        permit.release();
+                        event.finish();
+                    }
                 }
             }
             else{
+                event.setStatus(401);
+                event.finish();
                 response.sendError(401);
             }
         }
     }
 
     /**
-     * Specify if the user in this session has access to the layers of this WMS request.
+     * Acquires the permission to send this request to GeoServer within the limits
+     * of the user and of its access level. Tiles already in the tile cache are
+     * not limited because they are answered without GeoServer.
      * @param request servlet request
-     * @param response servlet response
-     * @param layersIds
-     * @return true if the user has access to the layers in its request parameters or false 
-     * otherwise.
+     * @param key the key of the request if it is a GetMap, or null
+     * @return the permit, that must be released when the request to GeoServer is done
+     * @throws RequestLimiter.LimitExceededException if the user or its access level is over its limits
      */
-    protected boolean authenticateLayers(HttpServletRequest request, HttpServletResponse response,Collection<String> layersIds){
-        final List<String> layerWmsIdsFromRequest = getLayerIdsFromRequest(request);
-        request.getServletContext().log("AUTHENTICATING"+layerWmsIdsFromRequest.size());
-        for(String layerId : layersIds){
-            request.getServletContext().log("CLAYER:"+layerId);
+    protected RequestLimiter.Permit acquirePermit(HttpServletRequest request,WMSRequestKey key) throws RequestLimiter.LimitExceededException{
+        if(key != null && TileCache.getInstance().contains(key)){
+            return RequestLimiter.Permit.NONE;
         }
-        for(String str : layerWmsIdsFromRequest){
-            request.getServletContext().log("LAYER:"+str);
+        final HttpSession session = request.getSession(false);
+        if(session == null){
+            return RequestLimiter.Permit.NONE;
         }
+        return RequestLimiter.getInstance().acquire((String) session.getAttribute("user"), (String) session.getAttribute("accessLevel"));
+    }
+
+    /**
+     * Returns the layers of the access level of the user in this session, shared
+     * by every session of the access level through the {@link AuthorizationRegistry}.
+     * @param session the session of the user, or null if the request has none
+     * @return the layers that the user can access, or null if the user is not
+     * signed in, its access level no longer exists or could not be read
+     */
+    protected static LayerSet getLayers(HttpSession session){
+        if(session == null){
+            return null;
+        }
+        try{
+            return AuthorizationRegistry.getInstance().getLayers((String) session.getAttribute("accessLevel"));
+        }
+        catch(HibernateException e){
+            LOGGER.log(Level.SEVERE, "Could not read the layers of the access level", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Specify if the user in this session has access to the layers of this WMS request.
+     * 
+     * The LAYERS parameter is parsed in a single pass: each layer id separated by
+     * commas is looked up directly in the {@link LayerIndex} and checked against
+     * the bitset of the layers of the user, without creating Strings.
+     * @param layersParameter the LAYERS parameter of the request, or null
+     * @param layers the layers that the user can access
+     * @return true if the user has access to the layers in its request parameters or false 
+     * otherwise.
+     */
+    protected static boolean authenticateLayers(String layersParameter,LayerSet layers){
         //User isn't trying to access any layer allow it
-        if(layerWmsIdsFromRequest.isEmpty()){
+        if(layersParameter == null){
             return true;
         }
-        for(String layerWmsId : layerWmsIdsFromRequest){
-            if(!layersIds.contains(layerWmsId)){
-                return false;
+        final int length = layersParameter.length();
+        int start = 0;
+        boolean blank = true;
+        for(int i = 0;i <= length;i++){
+            final char c = i < length ? layersParameter.charAt(i) : ',';
+            if(c == ','){
+                if(!blank){
+                    final int index = LayerIndex.indexOf(layersParameter, start, i);
+                    if(!layers.contains(index)){
+                        return false;
+                    }
+                }
+                start = i + 1;
+                blank = true;
+            }
+            else if(c != ' '){
+                blank = false;
             }
         }
         return true;
     }
     
     /**
-     * This method is responsible for finding a param named layers in the request object,
-     * where the name of this parameter is not case sensitive, and return a list containing 
-     * the WMS layer id's specified by this parameter and separated by comma.
-     * @param request the servlet request
-     * @return list of WMS Layer id's
+     * This method is responsible for finding the params named layers in the request,
+     * where the name of this parameter is not case sensitive.
+     * 
+     * Every value of every case variant is read, since GeoServer and the
+     * {@link WMSRequestKey} do not necessarily use the value that would be
+     * checked otherwise. Repeated values are accepted if they name the same layers.
+     * @param parameterMap the parameters of the request, as returned by ServletRequest.getParameterMap()
+     * @return the value of the parameter or null if there is no layers param
+     * @throws IllegalArgumentException if the request has conflicting layers params
      */
-    protected List<String> getLayerIdsFromRequest(HttpServletRequest request){
-        //Check if this request has layers as param, whether it's lowercase or uppercase
-        String layerParam = null;
-        final Enumeration<String> requestParams = request.getParameterNames();
-        for(;requestParams.hasMoreElements();){
-            String param = requestParams.nextElement();
-            if(param.equalsIgnoreCase("LAYERS")){
-                layerParam = request.getParameter(param);
+    protected static String getLayersParameter(Map<String,String[]> parameterMap){
+        String layersParameter = null;
+        for(Map.Entry<String,String[]> parameter : parameterMap.entrySet()){
+            if(!parameter.getKey().equalsIgnoreCase("LAYERS")){
+                continue;
             }
-        }
-        final List<String> layerIds = new ArrayList<>();
-        //Returns an empty list if there is no layer param
-        if(layerParam == null){
-            return layerIds;
-        }        
-        //Remove Spaces
-        layerParam = layerParam.replaceAll(" ", "");
-        //Each layer is separated by a comma
-        final String layerURISeparator = ",";
-        String layerURIArray[] = layerParam.split(layerURISeparator);
-        for(String layerURI : layerURIArray){
-            if(!layerURI.equals("")){
-                layerIds.add(layerURI);
+            for(String value : parameter.getValue()){
+                if(layersParameter == null){
+                    layersParameter = value;
+                }
+                else if(!layersParameter.replace(" ", "").equals(value.replace(" ", ""))){
+                    throw new IllegalArgumentException("Conflicting LAYERS parameters");
+                }
             }
-        }        
-        return layerIds;
+        }
+        return layersParameter;
     }
     
     // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
@@ -23,9 +23,12 @@
  */
 package br.eb.ime.pfc.domain;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
@@ -43,6 +46,17 @@ public class AccessLevelManager {
         assert this.session!=null;
     }
     
+    /**
+     * The associations loaded along with the access levels, so that reading
+     * them afterwards does not issue a query per access level.
+     */
+    public enum FetchPlan {
+        /** Only the access levels, their layers are read when they are first used. */
+        ACCESS_LEVELS,
+        /** The access levels and their layers, in a single query. */
+        LAYERS
+    }
+    
     public void create(AccessLevel accessLevel) throws HibernateException{
         if(this.session.get(AccessLevel.class,accessLevel.getName())!=null){
             throw new ObjectDuplicateException("There's an access level with the specified name");
@@ -73,6 +87,8 @@ public class AccessLevelManager {
     
     public List<AccessLevel> readAll() throws HibernateException{
         final Query query = session.createQuery("from AccessLevel");
+        //Results are kept in the query cache until a change is published by the administration application
+        query.setCacheable(true);
         final List<AccessLevel> allAccessLevels = query.list();
         
         Collections.sort(allAccessLevels, new Comparator<AccessLevel>(){
@@ -88,4 +104,67 @@ public class AccessLevelManager {
         return allAccessLevels;
     }
     
+    /**
+     * Reads every access level with the associations of a fetch plan.
+     * @param plan
+     * The associations to load along with the access levels.
+     * @return the access levels ordered by name
+     * @throws HibernateException 
+     */
+    @SuppressWarnings("unchecked")
+    public List<AccessLevel> readAll(FetchPlan plan) throws HibernateException{
+        final String fetch = plan == FetchPlan.LAYERS ? " left join fetch a.layers" : "";
+        final Query query = this.session.createQuery("select distinct a from AccessLevel a" + fetch + " order by a.name");
+        return query.list();
+    }
+
+    /**
+     * Reads the wmsIds of the layers of every access level with a single query,
+     * without loading the access levels nor their layers.
+     * @return map of access level name to the wmsIds of its layers
+     * @throws HibernateException 
+     */
+    public Map<String,List<String>> readLayerWmsIds() throws HibernateException{
+        final Query query = this.session.createQuery("select a.name, l.wmsId from AccessLevel a left join a.layers l");
+        final Map<String,List<String>> layerWmsIds = new HashMap<>();
+        for(Object row : query.list()){
+            final Object[] columns = (Object[]) row;
+            final String name = (String) columns[0];
+            List<String> wmsIds = layerWmsIds.get(name);
+            if(wmsIds == null){
+                wmsIds = new ArrayList<>();
+                layerWmsIds.put(name, wmsIds);
+            }
+            //An access level without layers has a single row without wmsId
+            if(columns[1] != null){
+                wmsIds.add((String) columns[1]);
+            }
+        }
+        return layerWmsIds;
+    }
+    
+    /**
+     * Reads the wmsIds of the layers of an access level with a single query.
+     * @param name
+     * The name of the access level.
+     * @return the wmsIds of its layers
+     * @throws HibernateException 
+     */
+    public List<String> readLayerWmsIds(String name) throws HibernateException{
+        final Query query = this.session.createQuery("select a.name, l.wmsId from AccessLevel a left join a.layers l where a.name = :name");
+        query.setString("name", name);
+        final List<?> rows = query.list();
+        if(rows.isEmpty()){
+            throw new ObjectNotFoundException("No such accessLevel with the specified name");
+        }
+        final List<String> wmsIds = new ArrayList<>();
+        for(Object row : rows){
+            final Object[] columns = (Object[]) row;
+            if(columns[1] != null){
+                wmsIds.add((String) columns[1]);
+            }
+        }
+        return wmsIds;
+    }
+    
 }
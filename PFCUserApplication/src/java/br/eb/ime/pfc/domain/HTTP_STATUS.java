@@ -29,7 +29,8 @@ package br.eb.ime.pfc.domain;
  */
 public enum HTTP_STATUS {
     SUCCESS(200),BAD_REQUEST(400),
-    UNAUTHORIZED(401),FORBIDDEN(403),INTERNAL_ERROR(500);
+    UNAUTHORIZED(401),FORBIDDEN(403),TOO_MANY_REQUESTS(429),INTERNAL_ERROR(500),
+    SERVICE_UNAVAILABLE(503),GATEWAY_TIMEOUT(504);
     private final int code;
     HTTP_STATUS(int code){
         this.code = code;
@@ -19,6 +19,9 @@ import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
 import javax.persistence.OrderColumn;
 import javax.persistence.Table;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 /**
  * A mutable representation of a WMS layer.
@@ -32,12 +35,14 @@ import javax.persistence.Table;
  */
 @Entity
 @Table(name = "layers")
+@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 public class Layer implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
     public static final double DEFAULT_OPACITY = 1.0;
     public static final String DEFAULT_STYLE = "";
+    private static final int TILE_VERSION_LENGTH = 8;
 
     @Column(name = "NAME") private final String name;
     @Id @Column(name = "LAYER_ID") private final String wmsId;
@@ -47,6 +52,7 @@ public class Layer implements Serializable {
     @ElementCollection(fetch = FetchType.LAZY) 
     @CollectionTable(name = "features") 
     @OrderColumn(name = "feature_index")
+    @Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
     private final Set<Feature> features;
 
     @ManyToMany(fetch = FetchType.LAZY, cascade = CascadeType.REFRESH)
@@ -166,6 +172,17 @@ public class Layer implements Serializable {
         return this.style;
     }
 
+    /**
+     * Returns the version of the tiles of this Layer, which changes with its
+     * style. It is added to the URLs of the tiles, so browsers do not keep
+     * drawing the tiles of an old style.
+     *
+     * @return a short hexadecimal String, the same in every node
+     */
+    public String getTileVersion() {
+        return DigestUtils.md5Hex(this.wmsId + "\n" + (this.style == null ? "" : this.style)).substring(0, TILE_VERSION_LENGTH);
+    }
+
     /**
      * Returns the opacity of this Layer.
      *
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.domain;
+
+import java.util.Arrays;
+
+/**
+ * Interns the wmsIds of the layers as small integer indexes.
+ *
+ * Each wmsId receives an index the first time it is interned and keeps it while
+ * the application runs, so sets of layers can be represented as bitsets (see
+ * {@link LayerSet}). Lookups read an immutable table without locks and can be
+ * made directly on a region of a String, e.g. one item of the LAYERS parameter
+ * of a WMS request, without creating substrings. Spaces in the region are
+ * ignored, as they are in the LAYERS parameter.
+ *
+ * Interning is rare (it only happens when layers are loaded), so it copies the
+ * table under a lock.
+ */
+public final class LayerIndex {
+    private static final Object LOCK = new Object();
+    private static volatile Table table = new Table(new String[0]);
+
+    /**
+     * Returns the index of a wmsId, assigning a new index if it has none.
+     * @param wmsId
+     * The wmsId of a layer.
+     * @return index of the layer
+     */
+    public static int intern(String wmsId){
+        final int index = indexOf(wmsId);
+        if(index >= 0){
+            return index;
+        }
+        synchronized(LOCK){
+            final Table current = table;
+            final int existing = current.indexOf(wmsId, 0, wmsId.length());
+            if(existing >= 0){
+                return existing;
+            }
+            final String[] names = Arrays.copyOf(current.names, current.names.length + 1);
+            names[current.names.length] = removeSpaces(wmsId);
+            table = new Table(names);
+            return current.names.length;
+        }
+    }
+
+    /**
+     * Returns the index of a wmsId.
+     * @param wmsId
+     * The wmsId of a layer.
+     * @return index of the layer or -1 if the wmsId was never interned
+     */
+    public static int indexOf(String wmsId){
+        return table.indexOf(wmsId, 0, wmsId.length());
+    }
+
+    /**
+     * Returns the index of the wmsId contained in a region of a String, ignoring spaces.
+     * @param source
+     * The String that contains the wmsId.
+     * @param start
+     * The index of the first character of the region.
+     * @param end
+     * The index after the last character of the region.
+     * @return index of the layer or -1 if the wmsId was never interned
+     */
+    public static int indexOf(String source,int start,int end){
+        return table.indexOf(source, start, end);
+    }
+
+    /**
+     * Returns the wmsId of an index.
+     * @param index
+     * An index returned by {@link #intern(String)}.
+     * @return the wmsId
+     */
+    public static String nameOf(int index){
+        return table.names[index];
+    }
+
+    /**
+     * Returns the number of interned wmsIds.
+     * @return size
+     */
+    public static int size(){
+        return table.names.length;
+    }
+
+    private static String removeSpaces(String value){
+        return value.indexOf(' ') < 0 ? value : value.replace(" ", "");
+    }
+
+    private static int hash(String source,int start,int end){
+        int hash = 0;
+        for(int i = start;i < end;i++){
+            final char c = source.charAt(i);
+            if(c != ' '){
+                hash = 31 * hash + c;
+            }
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * An immutable open addressing hash table from wmsId to index.
+     */
+    private static final class Table {
+        private final String[] names;
+        private final String[] slots;
+        private final int[] slotIndexes;
+        private final int mask;
+
+        private Table(String[] names){
+            this.names = names;
+            int capacity = 16;
+            while(capacity < names.length * 2){
+                capacity <<= 1;
+            }
+            this.slots = new String[capacity];
+            this.slotIndexes = new int[capacity];
+            this.mask = capacity - 1;
+            for(int index = 0;index < names.length;index++){
+                int slot = hash(names[index], 0, names[index].length()) & this.mask;
+                while(this.slots[slot] != null){
+                    slot = (slot + 1) & this.mask;
+                }
+                this.slots[slot] = names[index];
+                this.slotIndexes[slot] = index;
+            }
+        }
+
+        private int indexOf(String source,int start,int end){
+            int slot = hash(source, start, end) & this.mask;
+            while(this.slots[slot] != null){
+                if(matches(this.slots[slot], source, start, end)){
+                    return this.slotIndexes[slot];
+                }
+                slot = (slot + 1) & this.mask;
+            }
+            return -1;
+        }
+
+        private static boolean matches(String name,String source,int start,int end){
+            int position = 0;
+            for(int i = start;i < end;i++){
+                final char c = source.charAt(i);
+                if(c == ' '){
+                    continue;
+                }
+                if(position >= name.length() || name.charAt(position) != c){
+                    return false;
+                }
+                position++;
+            }
+            return position == name.length();
+        }
+    }
+
+    private LayerIndex(){
+
+    }
+}
@@ -4,6 +4,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
 import org.hibernate.Query;
 import org.hibernate.Session;
 
@@ -42,6 +43,21 @@ public class LayerManager {
         this.session = session;
     }
     
+    /**
+     * The associations loaded along with the layers, so that reading them
+     * afterwards does not issue a query per layer.
+     */
+    public enum FetchPlan {
+        /** Only the layers, their collections are read when they are first used. */
+        LAYERS,
+        /** The layers and their features, in a single query. */
+        FEATURES,
+        /** The layers and their access levels, in a single query. */
+        ACCESS_LEVELS,
+        /** The layers, their features and their access levels, in two queries. */
+        FEATURES_AND_ACCESS_LEVELS
+    }
+    
     public void create(Layer layer){
         if(this.session.get(Layer.class,layer.getWmsId())!=null){
             throw new ObjectDuplicateException("There's a layer with the specified wmsID");
@@ -59,6 +75,8 @@ public class LayerManager {
     
     public List<Layer> readAll(){
         final Query query = session.createQuery("from Layer");
+        //Results are kept in the query cache until a change is published by the administration application
+        query.setCacheable(true);
         final List<Layer> allLayers = query.list();
         
         Collections.sort(allLayers,new Comparator<Layer>(){
@@ -86,4 +104,77 @@ public class LayerManager {
         }
         this.session.delete(layer);
     }
+    
+    /**
+     * Reads every layer with the associations of a fetch plan.
+     * @param plan
+     * The associations to load along with the layers.
+     * @return the layers ordered by wmsId
+     * @throws HibernateException 
+     */
+    public List<Layer> readAll(FetchPlan plan) throws HibernateException{
+        return read(null, plan);
+    }
+    
+    /**
+     * Reads the layers of an access level with the associations of a fetch plan.
+     * @param accessLevelName
+     * The name of the access level.
+     * @param plan
+     * The associations to load along with the layers.
+     * @return the layers ordered by wmsId, empty if there is no such access level
+     * @throws HibernateException 
+     */
+    public List<Layer> readByAccessLevel(String accessLevelName,FetchPlan plan) throws HibernateException{
+        return read(accessLevelName, plan);
+    }
+    
+    /**
+     * Reads the wmsIds of the layers drawn with a style by default.
+     * @param style
+     * The name of the style.
+     * @return the wmsIds of the layers
+     * @throws HibernateException 
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> readWmsIdsByStyle(String style) throws HibernateException{
+        final Query query = this.session.createQuery("select l.wmsId from Layer l where l.style = :style");
+        query.setString("style", style);
+        return query.list();
+    }
+    
+    private List<Layer> read(String accessLevelName,FetchPlan plan) throws HibernateException{
+        final String from = " from Layer l";
+        //A subquery rather than a join, so that a fetched collection of access levels is not restricted to this one
+        final String where = accessLevelName == null ? ""
+                : " where l.wmsId in (select layer.wmsId from AccessLevel a join a.layers layer where a.name = :accessLevel)";
+        final String fetch;
+        switch(plan){
+            case FEATURES:
+            case FEATURES_AND_ACCESS_LEVELS:
+                fetch = " left join fetch l.features";
+                break;
+            case ACCESS_LEVELS:
+                fetch = " left join fetch l.accessLevels";
+                break;
+            default:
+                fetch = "";
+        }
+        final List<Layer> layers = list("select distinct l" + from + fetch + where + " order by l.wmsId", accessLevelName);
+        if(plan == FetchPlan.FEATURES_AND_ACCESS_LEVELS && !layers.isEmpty()){
+            //Fetching both collections in one query would return the product of the features and the access levels of each layer,
+            //the second query fills the access levels of the layers already in the session
+            list("select distinct l" + from + " left join fetch l.accessLevels" + where, accessLevelName);
+        }
+        return layers;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private List<Layer> list(String hql,String accessLevelName) throws HibernateException{
+        final Query query = this.session.createQuery(hql);
+        if(accessLevelName != null){
+            query.setString("accessLevel", accessLevelName);
+        }
+        return query.list();
+    }
 }
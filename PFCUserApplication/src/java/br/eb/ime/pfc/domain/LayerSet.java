@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.domain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable set of layers, represented as a bitset of the indexes given by
+ * {@link LayerIndex}.
+ *
+ * It is used to check if the layers of a WMS request can be accessed by a user
+ * without hashing Strings. Since indexes are only valid in the JVM that assigned
+ * them, a LayerSet is serialized as the list of its wmsIds.
+ */
+public final class LayerSet implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final LayerSet EMPTY = new LayerSet(new long[0]);
+
+    private final transient long[] words;
+
+    /**
+     * Creates the set of the specified layers, interning their wmsIds.
+     * @param wmsIds
+     * The wmsIds of the layers.
+     * @return the set of layers
+     */
+    public static LayerSet of(Collection<String> wmsIds){
+        long[] words = new long[0];
+        for(String wmsId : wmsIds){
+            final int index = LayerIndex.intern(wmsId);
+            final int word = index >>> 6;
+            if(word >= words.length){
+                words = Arrays.copyOf(words, word + 1);
+            }
+            words[word] |= 1L << index;
+        }
+        return new LayerSet(words);
+    }
+
+    private LayerSet(long[] words){
+        this.words = words;
+    }
+
+    /**
+     * Indicates whether the set contains the layer with the specified index.
+     * @param index
+     * The index of a layer in {@link LayerIndex}.
+     * @return true if the layer is in this set
+     */
+    public boolean contains(int index){
+        final int word = index >>> 6;
+        return index >= 0 && word < this.words.length && (this.words[word] & (1L << index)) != 0;
+    }
+
+    /**
+     * Indicates whether the set contains the layer with the specified wmsId.
+     * @param wmsId
+     * The wmsId of a layer.
+     * @return true if the layer is in this set
+     */
+    public boolean contains(String wmsId){
+        return contains(LayerIndex.indexOf(wmsId));
+    }
+
+    /**
+     * Returns the number of layers in this set.
+     * @return size
+     */
+    public int size(){
+        int size = 0;
+        for(long word : this.words){
+            size += Long.bitCount(word);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the wmsIds of the layers in this set, ordered by index.
+     * @return list of wmsIds
+     */
+    public List<String> getWmsIds(){
+        final List<String> wmsIds = new ArrayList<>();
+        for(int word = 0;word < this.words.length;word++){
+            long bits = this.words[word];
+            while(bits != 0){
+                final int bit = Long.numberOfTrailingZeros(bits);
+                wmsIds.add(LayerIndex.nameOf(word * 64 + bit));
+                bits &= bits - 1;
+            }
+        }
+        return wmsIds;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(o instanceof LayerSet){
+            final LayerSet other = (LayerSet) o;
+            final int length = Math.max(this.words.length, other.words.length);
+            for(int i = 0;i < length;i++){
+                final long word = i < this.words.length ? this.words[i] : 0;
+                final long otherWord = i < other.words.length ? other.words[i] : 0;
+                if(word != otherWord){
+                    return false;
+                }
+            }
+            return true;
+        }
+        else{
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode(){
+        long hash = 0;
+        for(int i = 0;i < this.words.length;i++){
+            hash ^= this.words[i] * (i + 1);
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private Object writeReplace(){
+        return new SerializedForm(getWmsIds());
+    }
+
+    /**
+     * The serialized form of a LayerSet: its wmsIds, interned again when it is read.
+     */
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<String> wmsIds;
+
+        private SerializedForm(List<String> wmsIds){
+            this.wmsIds = new ArrayList<>(wmsIds);
+        }
+
+        private Object readResolve(){
+            return LayerSet.of(this.wmsIds);
+        }
+    }
+}
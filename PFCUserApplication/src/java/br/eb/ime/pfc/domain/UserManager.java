@@ -2,7 +2,9 @@ package br.eb.ime.pfc.domain;
 
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
@@ -41,6 +43,16 @@ public class UserManager {
         this.session = session;
     }
     
+    /**
+     * The associations loaded along with the users.
+     */
+    public enum FetchPlan {
+        /** The users, their access levels are read with a query per access level. */
+        USERS,
+        /** The users and their access levels, in a single query. */
+        ACCESS_LEVEL
+    }
+    
     public void create(User user) throws HibernateException{
         if(this.session.get(User.class,user.getUsername())!=null){
             throw new ObjectDuplicateException("There's an user with the specified username");
@@ -71,6 +83,8 @@ public class UserManager {
     
     public List<User> readAll() throws HibernateException{
         final Query query = session.createQuery("from User");
+        //Results are kept in the query cache until a change is published by the administration application
+        query.setCacheable(true);
         final List<User> allUsers = query.list();
         
         Collections.sort(allUsers,new Comparator<User>(){
@@ -85,4 +99,49 @@ public class UserManager {
         }
         return allUsers;
     }
+    
+    /**
+     * Reads every user with the associations of a fetch plan.
+     * @param plan
+     * The associations to load along with the users.
+     * @return the users ordered by username
+     * @throws HibernateException 
+     */
+    @SuppressWarnings("unchecked")
+    public List<User> readAll(FetchPlan plan) throws HibernateException{
+        final String fetch = plan == FetchPlan.ACCESS_LEVEL ? " join fetch u.accessLevel" : "";
+        final Query query = this.session.createQuery("select u from User u" + fetch + " order by u.username");
+        return query.list();
+    }
+    
+    /**
+     * Reads the stored password and the name of the access level of every user
+     * with a single query, without loading the users.
+     * @return map of username to its stored password and the name of its access level
+     * @throws HibernateException 
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String,String[]> readCredentials() throws HibernateException{
+        final Query query = this.session.createQuery("select u.username, u.password, a.name from User u join u.accessLevel a");
+        final Map<String,String[]> credentials = new HashMap<>();
+        for(Object[] columns : (List<Object[]>) query.list()){
+            credentials.put((String) columns[0], new String[]{(String) columns[1], (String) columns[2]});
+        }
+        return credentials;
+    }
+    
+    /**
+     * Reads the stored password and the name of the access level of a user with
+     * a single query, without loading the user.
+     * @param username
+     * The username of the user.
+     * @return the stored password and the name of the access level, or null if there is no such user
+     * @throws HibernateException 
+     */
+    public String[] readCredentials(String username) throws HibernateException{
+        final Query query = this.session.createQuery("select u.password, a.name from User u join u.accessLevel a where u.username = :username");
+        query.setString("username", username);
+        final Object[] columns = (Object[]) query.uniqueResult();
+        return columns == null ? null : new String[]{(String) columns[0], (String) columns[1]};
+    }
 }
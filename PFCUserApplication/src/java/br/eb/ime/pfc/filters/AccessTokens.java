@@ -0,0 +1,546 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.filters;
+
+import br.eb.ime.pfc.domain.UserManager;
+import br.eb.ime.pfc.hibernate.HibernateUtil;
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.bind.DatatypeConverter;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+/**
+ * Signed access tokens, which let any node of the user application authorize
+ * the requests of a user without the HttpSession of the node where the user
+ * signed in, so the nodes need neither sticky sessions nor session replication.
+ *
+ * A token is issued at login, in the cookie {@link #COOKIE_NAME}, and may also be
+ * sent in an "Authorization: Bearer" header. It carries the username, the access
+ * level, a stamp and its expiration time, signed with HMAC-SHA256 and
+ * token.secret, which must be the same in every node. The stamp is derived
+ * from the database: from the username, the password and the access level of
+ * the user and from the version stamp of the layers of the access level, given
+ * by the {@link AuthorizationRegistry}. A token therefore no longer matches once
+ * the administrator changes the user, its access level or the layers of the
+ * access level, in every node and after a restart, without any list of revoked
+ * tokens. The stamp is keyed with token.secret, so it reveals nothing about the
+ * password.
+ *
+ * A token is checked with its signature, its expiration and its stamp, without
+ * a query per user: the part of the stamp that comes from each user is read
+ * for every user with a single query, the first time a node checks a token,
+ * and kept in an immutable map (copy-on-write). When the administrator changes
+ * a user only that user is read again, by the thread of the change
+ * notifications. A token of a user missing from the map, e.g. one created
+ * while its change notification is on its way, is refused until the
+ * notification arrives.
+ *
+ * The following context parameters configure the tokens:
+ * token.enabled, token.secret and token.ttl (milliseconds).
+ */
+public final class AccessTokens {
+    private static final Logger LOGGER = Logger.getLogger(AccessTokens.class.getName());
+
+    public static final boolean DEFAULT_ENABLED = false;
+    public static final long DEFAULT_TTL = 28800000;
+    public static final String COOKIE_NAME = "pfc_token";
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String FORMAT_VERSION = "2";
+    private static final int STAMP_LENGTH = 16;
+    private static final int GENERATED_SECRET_LENGTH = 32;
+
+    private static volatile AccessTokens instance = null;
+
+    private final boolean enabled;
+    private final long ttl;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+
+    //The part of the stamp that comes from each user, immutable, replaced as a whole, null until it is read from the database
+    private volatile Map<String,UserStamp> userStamps = null;
+    private final AtomicLong userStampsVersion = new AtomicLong();
+
+    private final AtomicLong issuedTokens = new AtomicLong();
+    private final AtomicLong acceptedTokens = new AtomicLong();
+    private final AtomicLong malformedTokens = new AtomicLong();
+    private final AtomicLong expiredTokens = new AtomicLong();
+    private final AtomicLong staleTokens = new AtomicLong();
+    private final AtomicLong revokedTokens = new AtomicLong();
+    private final AtomicLong userStampLoads = new AtomicLong();
+    private final AtomicLong userInvalidations = new AtomicLong();
+
+    /**
+     * The access level of a user and a keyed digest of its username, password
+     * and access level.
+     */
+    private static final class UserStamp {
+        private final String accessLevel;
+        private final String digest;
+
+        private UserStamp(String accessLevel,String digest){
+            this.accessLevel = accessLevel;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Creates the application wide tokens from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new AccessTokens(
+            ContextParameters.getBoolean(context, "token.enabled", DEFAULT_ENABLED),
+            ContextParameters.getString(context, "token.secret", null),
+            ContextParameters.getLong(context, "token.ttl", DEFAULT_TTL));
+    }
+
+    public static synchronized void destroy(){
+        instance = null;
+    }
+
+    /**
+     * Returns the application wide tokens, creating the default ones if the
+     * application did not initialize them.
+     * @return the access tokens
+     */
+    public static AccessTokens getInstance(){
+        AccessTokens tokens = instance;
+        if(tokens == null){
+            synchronized(AccessTokens.class){
+                if(instance == null){
+                    instance = new AccessTokens(DEFAULT_ENABLED, null, DEFAULT_TTL);
+                }
+                tokens = instance;
+            }
+        }
+        return tokens;
+    }
+
+    private AccessTokens(boolean enabled,String secret,long ttl){
+        this.enabled = enabled;
+        this.ttl = Math.max(1000, ttl);
+        final byte[] secretBytes;
+        if(secret == null){
+            secretBytes = new byte[GENERATED_SECRET_LENGTH];
+            new SecureRandom().nextBytes(secretBytes);
+            if(enabled){
+                LOGGER.log(Level.WARNING, "token.secret is not set, the access tokens are only valid in this node until it restarts");
+            }
+        }
+        else{
+            secretBytes = toBytes(secret);
+        }
+        this.key = new SecretKeySpec(secretBytes, ALGORITHM);
+        this.macs = new ThreadLocal<Mac>(){
+            @Override
+            protected Mac initialValue(){
+                try{
+                    final Mac mac = Mac.getInstance(ALGORITHM);
+                    mac.init(AccessTokens.this.key);
+                    return mac;
+                }
+                catch(GeneralSecurityException e){
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Indicates whether tokens are issued at login and accepted by the {@link AuthenticationFilter}.
+     * @return true if the tokens are enabled
+     */
+    public boolean isEnabled(){
+        return this.enabled;
+    }
+
+    /**
+     * Issues the token of a user that signed in.
+     * @param username
+     * The username.
+     * @param authorization
+     * The layers of the access level of the user.
+     * @return the signed token, or null if the user no longer belongs to the access level
+     * @throws HibernateException if the user had to be read from the database and could not
+     */
+    public String issue(String username,AuthorizationRegistry.Authorization authorization) throws HibernateException{
+        UserStamp userStamp = getUserStamps().get(username);
+        if(userStamp == null){
+            //A user created while its change notification is on its way, read at login only
+            userStamp = loadUser(username);
+        }
+        if(userStamp == null || !authorization.getAccessLevel().equals(userStamp.accessLevel)){
+            return null;
+        }
+        final long issuedAt = System.currentTimeMillis();
+        final String payload = FORMAT_VERSION + "|" + encode(username) + "|" + encode(authorization.getAccessLevel())
+                + "|" + getStamp(userStamp, authorization) + "|" + issuedAt + "|" + (issuedAt + this.ttl);
+        this.issuedTokens.incrementAndGet();
+        final byte[] payloadBytes = toBytes(payload);
+        return toBase64Url(payloadBytes) + "." + toBase64Url(sign(payloadBytes));
+    }
+
+    /**
+     * Issues the token of a user that signed in and sets it in the cookie {@link #COOKIE_NAME}.
+     * @param request
+     * The login request.
+     * @param response
+     * The response to the login.
+     * @param username
+     * The username.
+     * @param authorization
+     * The layers of the access level of the user.
+     * @throws HibernateException if the user had to be read from the database and could not
+     */
+    public void addCookie(HttpServletRequest request,HttpServletResponse response,String username,AuthorizationRegistry.Authorization authorization)
+            throws HibernateException{
+        final String token = issue(username, authorization);
+        if(token == null){
+            return;
+        }
+        final Cookie cookie = createCookie(request, token);
+        cookie.setMaxAge((int) (this.ttl / 1000));
+        response.addCookie(cookie);
+    }
+
+    /**
+     * Removes the cookie {@link #COOKIE_NAME} from the browser.
+     * @param request
+     * The logout request.
+     * @param response
+     * The response to the logout.
+     */
+    public void clearCookie(HttpServletRequest request,HttpServletResponse response){
+        final Cookie cookie = createCookie(request, "");
+        cookie.setMaxAge(0);
+        response.addCookie(cookie);
+    }
+
+    private static Cookie createCookie(HttpServletRequest request,String value){
+        final Cookie cookie = new Cookie(COOKIE_NAME, value);
+        cookie.setPath(request.getContextPath().equals("") ? "/" : request.getContextPath());
+        cookie.setHttpOnly(true);
+        cookie.setSecure(request.isSecure());
+        return cookie;
+    }
+
+    /**
+     * Authorizes a request with the token it carries.
+     * @param request
+     * A request without a signed in session.
+     * @return the user of the token, or null if the tokens are disabled or the
+     * request has no valid token
+     * @throws HibernateException if the layers of the access level had to be
+     * read from the database and could not
+     */
+    public CredentialCache.VerifiedUser authenticate(HttpServletRequest request) throws HibernateException{
+        if(!this.enabled){
+            return null;
+        }
+        final String token = getToken(request);
+        return token == null ? null : validate(token);
+    }
+
+    private static String getToken(HttpServletRequest request){
+        final String authorizationHeader = request.getHeader("Authorization");
+        if(authorizationHeader != null && authorizationHeader.regionMatches(true, 0, "Bearer ", 0, 7)){
+            return authorizationHeader.substring(7).trim();
+        }
+        final Cookie[] cookies = request.getCookies();
+        if(cookies != null){
+            for(Cookie cookie : cookies){
+                if(cookie.getName().equals(COOKIE_NAME) && !cookie.getValue().equals("")){
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks a token.
+     * @param token
+     * The token sent by the client.
+     * @return the user of the token, or null if the token is not valid
+     * @throws HibernateException if the users or the layers of the access levels
+     * had not been read from the database yet and could not be
+     */
+    public CredentialCache.VerifiedUser validate(String token) throws HibernateException{
+        final int separator = token.indexOf('.');
+        final String[] fields;
+        try{
+            if(separator <= 0){
+                throw new IllegalArgumentException("No signature");
+            }
+            final byte[] payloadBytes = fromBase64Url(token.substring(0, separator));
+            if(!MessageDigest.isEqual(sign(payloadBytes), fromBase64Url(token.substring(separator + 1)))){
+                throw new IllegalArgumentException("Invalid signature");
+            }
+            fields = new String(payloadBytes, "UTF-8").split("\\|");
+            if(fields.length != 6 || !fields[0].equals(FORMAT_VERSION)){
+                throw new IllegalArgumentException("Unknown format");
+            }
+        }
+        catch(IllegalArgumentException | UnsupportedEncodingException e){
+            this.malformedTokens.incrementAndGet();
+            return null;
+        }
+        final String username = decode(fields[1]);
+        final String accessLevel = decode(fields[2]);
+        final long expiresAt;
+        try{
+            Long.parseLong(fields[4]);
+            expiresAt = Long.parseLong(fields[5]);
+        }
+        catch(NumberFormatException e){
+            this.malformedTokens.incrementAndGet();
+            return null;
+        }
+        if(System.currentTimeMillis() >= expiresAt){
+            this.expiredTokens.incrementAndGet();
+            return null;
+        }
+        //A user that was deleted or moved to another access level
+        final UserStamp userStamp = getUserStamps().get(username);
+        if(userStamp == null || !accessLevel.equals(userStamp.accessLevel)){
+            this.revokedTokens.incrementAndGet();
+            return null;
+        }
+        final AuthorizationRegistry.Authorization authorization = AuthorizationRegistry.getInstance().get(accessLevel);
+        if(authorization == null || !MessageDigest.isEqual(toBytes(getStamp(userStamp, authorization)), toBytes(fields[3]))){
+            this.staleTokens.incrementAndGet();
+            return null;
+        }
+        this.acceptedTokens.incrementAndGet();
+        return new CredentialCache.VerifiedUser(username, accessLevel);
+    }
+
+    /**
+     * Reads a user again from the database, after the administrator changed it.
+     * Tokens issued before a change of the password or of the access level no
+     * longer match their stamp. Called by the thread of the change notifications,
+     * so the requests do not read the database. If the database can not be read
+     * the users are dropped and read again when the next token is checked.
+     * @param username
+     * The username, or null to read every user again.
+     */
+    public void invalidateUser(String username){
+        this.userStampsVersion.incrementAndGet();
+        this.userInvalidations.incrementAndGet();
+        try{
+            if(username == null){
+                reloadUsers();
+            }
+            else{
+                loadUser(username);
+            }
+        }
+        catch(HibernateException e){
+            LOGGER.log(Level.WARNING, "Could not read the users, they are read again by the next token", e);
+            synchronized(this){
+                this.userStamps = null;
+            }
+        }
+    }
+
+    private Map<String,UserStamp> getUserStamps() throws HibernateException{
+        final Map<String,UserStamp> current = this.userStamps;
+        return current != null ? current : reloadUsers();
+    }
+
+    /**
+     * Reads every user with a single query and replaces the map, unless a
+     * change was published while the query ran: the invalidation of that
+     * change reads the user again.
+     */
+    private synchronized Map<String,UserStamp> reloadUsers() throws HibernateException{
+        final long startVersion = this.userStampsVersion.get();
+        this.userStampLoads.incrementAndGet();
+        final Map<String,String[]> credentials = HibernateUtil.read(new HibernateUtil.Work<Map<String,String[]>>(){
+            @Override
+            public Map<String,String[]> execute(Session session) throws HibernateException{
+                return new UserManager(session).readCredentials();
+            }
+        });
+        final Map<String,UserStamp> loaded = new HashMap<>();
+        for(Map.Entry<String,String[]> entry : credentials.entrySet()){
+            loaded.put(entry.getKey(), toUserStamp(entry.getKey(), entry.getValue()));
+        }
+        final Map<String,UserStamp> immutable = Collections.unmodifiableMap(loaded);
+        if(startVersion == this.userStampsVersion.get()){
+            this.userStamps = immutable;
+        }
+        return immutable;
+    }
+
+    /**
+     * Reads a user and replaces it in a copy of the map, or removes it if
+     * there is no such user.
+     * @return the user, or null if there is no such user
+     */
+    private UserStamp loadUser(final String username) throws HibernateException{
+        final long startVersion = this.userStampsVersion.get();
+        this.userStampLoads.incrementAndGet();
+        final String[] credentials = HibernateUtil.read(new HibernateUtil.Work<String[]>(){
+            @Override
+            public String[] execute(Session session) throws HibernateException{
+                return new UserManager(session).readCredentials(username);
+            }
+        });
+        final UserStamp userStamp = credentials == null ? null : toUserStamp(username, credentials);
+        synchronized(this){
+            final Map<String,UserStamp> current = this.userStamps;
+            if(current != null && startVersion == this.userStampsVersion.get()){
+                final Map<String,UserStamp> copy = new HashMap<>(current);
+                if(userStamp == null){
+                    copy.remove(username);
+                }
+                else{
+                    copy.put(username, userStamp);
+                }
+                this.userStamps = Collections.unmodifiableMap(copy);
+            }
+        }
+        return userStamp;
+    }
+
+    private UserStamp toUserStamp(String username,String[] credentials){
+        final byte[] digest = sign(toBytes(encode(username) + "|" + encode(String.valueOf(credentials[0])) + "|" + encode(credentials[1])));
+        return new UserStamp(credentials[1], DatatypeConverter.printHexBinary(digest));
+    }
+
+    private String getStamp(UserStamp userStamp,AuthorizationRegistry.Authorization authorization){
+        final byte[] stamp = sign(toBytes(userStamp.digest + "|" + authorization.getStamp()));
+        return DatatypeConverter.printHexBinary(stamp).substring(0, STAMP_LENGTH).toLowerCase(Locale.ROOT);
+    }
+
+    private byte[] sign(byte[] payload){
+        final Mac mac = this.macs.get();
+        mac.reset();
+        return mac.doFinal(payload);
+    }
+
+    private static String encode(String value){
+        try{
+            return URLEncoder.encode(value, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value){
+        try{
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] toBytes(String value){
+        try{
+            return value.getBytes("UTF-8");
+        }
+        catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toBase64Url(byte[] data){
+        final String base64 = DatatypeConverter.printBase64Binary(data);
+        int end = base64.length();
+        while(end > 0 && base64.charAt(end - 1) == '='){
+            end--;
+        }
+        return base64.substring(0, end).replace('+', '-').replace('/', '_');
+    }
+
+    private static byte[] fromBase64Url(String value){
+        final StringBuilder base64 = new StringBuilder(value.length() + 3);
+        for(int i = 0;i < value.length();i++){
+            final char c = value.charAt(i);
+            if(c == '-'){
+                base64.append('+');
+            }
+            else if(c == '_'){
+                base64.append('/');
+            }
+            else if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')){
+                base64.append(c);
+            }
+            else{
+                throw new IllegalArgumentException("Invalid character in token");
+            }
+        }
+        while(base64.length() % 4 != 0){
+            base64.append('=');
+        }
+        return DatatypeConverter.parseBase64Binary(base64.toString());
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", this.enabled);
+        statistics.put("ttl", this.ttl);
+        statistics.put("issuedTokens", this.issuedTokens.get());
+        statistics.put("acceptedTokens", this.acceptedTokens.get());
+        statistics.put("malformedTokens", this.malformedTokens.get());
+        statistics.put("expiredTokens", this.expiredTokens.get());
+        statistics.put("staleTokens", this.staleTokens.get());
+        statistics.put("revokedTokens", this.revokedTokens.get());
+        final Map<String,UserStamp> users = this.userStamps;
+        statistics.put("users", users == null ? 0 : users.size());
+        statistics.put("userLoads", this.userStampLoads.get());
+        statistics.put("userInvalidations", this.userInvalidations.get());
+        statistics.put("accessLevels", AuthorizationRegistry.getInstance().getStatistics());
+        return statistics;
+    }
+}
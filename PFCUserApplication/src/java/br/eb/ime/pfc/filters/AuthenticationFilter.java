@@ -24,16 +24,13 @@
 package br.eb.ime.pfc.filters;
 
 import br.eb.ime.pfc.domain.HTTP_STATUS;
-import br.eb.ime.pfc.domain.Layer;
 import br.eb.ime.pfc.domain.ObjectNotFoundException;
 import br.eb.ime.pfc.domain.User;
 import br.eb.ime.pfc.domain.UserManager;
 import br.eb.ime.pfc.hibernate.HibernateUtil;
+import br.eb.ime.pfc.listeners.ContextParameters;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.Filter;
@@ -49,7 +46,6 @@ import javax.servlet.http.HttpSession;
 import javax.xml.bind.DatatypeConverter;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
-import org.hibernate.context.internal.ManagedSessionContext;
 
 /**
  *
@@ -60,41 +56,61 @@ import org.hibernate.context.internal.ManagedSessionContext;
  * otherwise it will try to find out if the user sends http basic authorization headers
  * to log in the user.
  * If no data is found regarding the basic http authorization or the user:password,
- * is not a match a 403 Http Error Code is sent to the user.
+ * is not a match a 401 Http Error Code is sent to the user.
+ * 
+ * When the {@link AccessTokens} are enabled, a request with a valid signed token
+ * is authorized without a session and without the database, so it may be served
+ * by any node of the user application.
+ * 
+ * Credentials sent with basic http authorization are verified through the
+ * {@link CredentialCache}. When authentication.sessionless is true (the default)
+ * such requests do not create an HttpSession: they are passed on as a
+ * {@link SessionlessRequest}, since GIS clients do not keep the session cookie.
  */
-@WebFilter(filterName = "AuthenticationFilter", servletNames = {"MapServlet","WMSProxyServlet","LegendGraphicServlet","ListLayersServlet"})
+@WebFilter(filterName = "AuthenticationFilter", servletNames = {"MapServlet","WMSProxyServlet","LegendGraphicServlet","LegendSpriteServlet","ListLayersServlet","FeatureInfoServlet","TilesServlet","StatusServlet"}, asyncSupported = true)
 public class AuthenticationFilter implements Filter{
     private static final Logger LOGGER = Logger.getLogger(AuthenticationFilter.class.getName());
+    public static final boolean DEFAULT_SESSIONLESS = true;
 
     private FilterConfig filterConfig = null;
+    private boolean sessionless = DEFAULT_SESSIONLESS;
     
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
         this.filterConfig = filterConfig;
+        this.sessionless = ContextParameters.getBoolean(filterConfig.getServletContext(), "authentication.sessionless", DEFAULT_SESSIONLESS);
     }
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
         final HttpServletRequest httpRequest = (HttpServletRequest) request;
         final HttpServletResponse httpResponse = (HttpServletResponse) response;
-        //Creates session for user if it wasn't created before with (true)
-        final HttpSession httpSession = httpRequest.getSession(true);
-        final String username = (String) httpSession.getAttribute("user");
+        //Sessions are only created by the login or, if sessionless is off, by basic http authorization
+        final HttpSession httpSession = httpRequest.getSession(false);
+        final String username = httpSession == null ? null : (String) httpSession.getAttribute("user");
         if(username == null){
-            HttpServletResponse resp = (HttpServletResponse) response;
             try{
-                final boolean basicAuthorized = this.basicAuthentication(httpRequest,httpResponse);
-                LOGGER.log(Level.INFO,"AUTHORIZATIONSTATUS:"+basicAuthorized);
-                if(basicAuthorized){
-                    LOGGER.log(Level.CONFIG, "BASIC HTTP AUTHORIZATION for: {0}", username);
-                    chain.doFilter(request, response);
+                final CredentialCache.VerifiedUser tokenUser = AccessTokens.getInstance().authenticate(httpRequest);
+                if(tokenUser != null){
+                    chain.doFilter(new SessionlessRequest(httpRequest, tokenUser), response);
+                    return;
+                }
+                final CredentialCache.VerifiedUser user = this.basicAuthentication(httpRequest);
+                if(user == null){
+                    httpResponse.sendError(HTTP_STATUS.UNAUTHORIZED.getCode());
+                }
+                else if(this.sessionless){
+                    LOGGER.log(Level.FINE, "Basic http authorization without session for: {0}", user.getUsername());
+                    chain.doFilter(new SessionlessRequest(httpRequest, user), response);
                 }
                 else{
-                    resp.sendError(HTTP_STATUS.UNAUTHORIZED.getCode());
+                    LOGGER.log(Level.FINE, "Basic http authorization for: {0}", user.getUsername());
+                    setSessionAttributes(httpRequest.getSession(true), user);
+                    chain.doFilter(request, response);
                 }
             }
             catch(HibernateException e){
-                resp.sendError(HTTP_STATUS.INTERNAL_ERROR.getCode());
+                httpResponse.sendError(HTTP_STATUS.INTERNAL_ERROR.getCode());
             }
         }
         else{
@@ -103,9 +119,6 @@ public class AuthenticationFilter implements Filter{
     }
     
     public static boolean authenticateUser(HttpServletRequest request, String username,String password) throws HibernateException{
-        if(!User.isValid(username)){
-            return false;
-        }
         //Try to retrieve user from database
         Session session = null;
         try{
@@ -114,88 +127,95 @@ public class AuthenticationFilter implements Filter{
         catch(Throwable ex){
             throw new HibernateException("Could not create session for user.");
         }
-        
+        final CredentialCache.VerifiedUser user = verifyUser(session, username, password);
+        if(user == null){
+            return false;
+        }
+        setSessionAttributes(request.getSession(), user);
+        return true;
+    }
+    
+    private static void setSessionAttributes(HttpSession session,CredentialCache.VerifiedUser user){
+        session.setAttribute("user", user.getUsername());
+        //The layers are read from the AuthorizationRegistry, shared by every session of the access level
+        session.setAttribute("accessLevel", user.getAccessLevel());
+    }
+    
+    /**
+     * Verifies the credentials of a user in the database.
+     * @param session
+     * The Hibernate session used to read the user.
+     * @return the user and its access level, or null if the credentials do not match
+     */
+    private static CredentialCache.VerifiedUser verifyUser(Session session,String username,String password) throws HibernateException{
+        if(!User.isValid(username)){
+            return null;
+        }
         final UserManager userManager = new UserManager(session);
         try{
-            User user = userManager.getById(username);
-        
+            final User user = userManager.getById(username);
             if(user.authenticatePassword(password)){
-                Set<String> layersIds = new HashSet<>();
-                for(Layer layer : user.getAccessLevel().getLayers()){
-                    layersIds.add(layer.getWmsId());
+                final AuthorizationRegistry.Authorization authorization = AuthorizationRegistry.getInstance().get(user.getAccessLevel().getName());
+                if(authorization != null){
+                    return new CredentialCache.VerifiedUser(username, authorization.getAccessLevel());
                 }
-                request.getSession().setAttribute("user", username);
-                request.getSession().setAttribute("layers", layersIds);
-                return true;
             }
         }
         catch(ObjectNotFoundException e){
-            return false;
+            return null;
         }
-        return false;
+        return null;
     }
     
-    protected boolean basicAuthentication(HttpServletRequest request,HttpServletResponse response) throws HibernateException{
-        final Enumeration<String> headers = request.getHeaderNames();
-        if(headers != null){
-            String authorizationHeader = null;
-            while(headers.hasMoreElements()){
-                final String header = headers.nextElement();
-                if(header.equalsIgnoreCase("authorization")){
-                    authorizationHeader = request.getHeader(header);
-                    break;
-                }
-            }
-            if(authorizationHeader == null || !authorizationHeader.toUpperCase().contains("BASIC")){
-                return false;
-            }
-            else{
-                request.getServletContext().log("HEADER"+authorizationHeader);
-                final String base64EncodedData = authorizationHeader.replace("Basic", "").replace(" ", "");
-                byte[] decodedData = DatatypeConverter.parseBase64Binary(base64EncodedData);
-                final String decodedString;
-                try {
-                    decodedString = new String(decodedData,"UTF-8");
-                } catch (UnsupportedEncodingException ex) {
-                    return false;
-                }
-                final String[] usernamePasswordArray = decodedString.split(":");
-                if(usernamePasswordArray.length != 2){
-                    return false;
-                }
-                else{
-                    
-                    final String username = usernamePasswordArray[0];
-                    final String password = usernamePasswordArray[1];
-                    Session session = createSessionForBasicAuthentication();
-                    try{
-                        boolean isAuthorized = AuthenticationFilter.authenticateUser(request,username, password);
-                        request.getServletContext().log("AUTHORIZED"+isAuthorized);
-                        return isAuthorized;
-                    }
-                    finally{
-                        session.close();
-                    }
-                }
-            }
+    /**
+     * Verifies the basic http authorization of a request, from the
+     * {@link CredentialCache} or else from the database. The Authorization
+     * header is never logged.
+     * @return the verified user or null if the request has no valid credentials
+     */
+    protected CredentialCache.VerifiedUser basicAuthentication(HttpServletRequest request) throws HibernateException{
+        final String authorizationHeader = request.getHeader("Authorization");
+        if(authorizationHeader == null || !authorizationHeader.toUpperCase().startsWith("BASIC")){
+            return null;
         }
-        else{
-            return false;
+        final String base64EncodedData = authorizationHeader.substring("Basic".length()).trim();
+        final String decodedString;
+        try {
+            decodedString = new String(DatatypeConverter.parseBase64Binary(base64EncodedData),"UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            return null;
         }
-    }
-    
-    protected Session createSessionForBasicAuthentication(){
-        Session session = null;
-        try{
-            session = HibernateUtil.openSession();   
-            session.beginTransaction();
-            ManagedSessionContext.bind(session);
+        //The password may contain ':', the username may not
+        final int separator = decodedString.indexOf(':');
+        if(separator <= 0){
+            return null;
         }
-        catch(Throwable e){
-            LOGGER.log(Level.SEVERE,"Could not retrieve session Factory for basic http authorization",e);
-            throw new HibernateException("Could not create session for basic http authorization");
+        final String username = decodedString.substring(0, separator);
+        final String password = decodedString.substring(separator + 1);
+        final CredentialCache credentialCache = CredentialCache.getInstance();
+        final CredentialCache.VerifiedUser cached = credentialCache.get(username, password);
+        if(cached != null){
+            return cached;
         }
-        return session;
+        final long version = credentialCache.getVersion();
+        final CredentialCache.VerifiedUser user = verifyUserInOwnSession(username, password);
+        if(user != null){
+            credentialCache.put(username, password, user, version);
+        }
+        return user;
+    }
+    
+    /**
+     * Verifies credentials in a Hibernate session of its own, which is not bound
+     * to the thread, so the session of the {@link TransactionHandlerFilter} is left alone.
+     */
+    private static CredentialCache.VerifiedUser verifyUserInOwnSession(final String username,final String password) throws HibernateException{
+        return HibernateUtil.read(new HibernateUtil.Work<CredentialCache.VerifiedUser>(){
+            @Override
+            public CredentialCache.VerifiedUser execute(Session session) throws HibernateException{
+                return verifyUser(session, username, password);
+            }
+        });
     }
     
     @Override
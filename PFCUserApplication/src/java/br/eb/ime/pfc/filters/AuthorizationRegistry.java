@@ -0,0 +1,304 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.filters;
+
+import br.eb.ime.pfc.domain.AccessLevelManager;
+import br.eb.ime.pfc.domain.LayerSet;
+import br.eb.ime.pfc.domain.ObjectNotFoundException;
+import br.eb.ime.pfc.hibernate.HibernateUtil;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+/**
+ * The layers of each access level, as known by this node of the user application.
+ *
+ * The layers of every access level are read from the database with a single
+ * query and kept in an immutable map shared by all the sessions, which only
+ * store the name of their access level. Requests read the map without locks.
+ * When the administrator changes an access level or a layer the map is read
+ * again and replaced as a whole (copy-on-write), so the sessions see the new
+ * layers at once instead of at their next login. The names of the access levels
+ * that do not exist are kept as well, so a request naming one, e.g. of an access
+ * level the administrator removed, does not read the database every time; they
+ * are forgotten when the map is read again.
+ *
+ * Each set of layers has a version stamp derived from its wmsIds, so every node
+ * computes the same stamp for the same layers and a stamp issued by one node can
+ * be checked by another, e.g. in an {@link AccessTokens access token}.
+ */
+public final class AuthorizationRegistry {
+    private static final Logger LOGGER = Logger.getLogger(AuthorizationRegistry.class.getName());
+    private static final int STAMP_LENGTH = 8;
+    private static final int MAX_MISSING_ACCESS_LEVELS = 1024;
+
+    private static volatile AuthorizationRegistry instance = null;
+
+    //Immutable, replaced as a whole, null until it is read from the database
+    private volatile Map<String,Authorization> authorizations = null;
+    //Immutable, replaced as a whole, the access levels known not to exist
+    private volatile Set<String> missingAccessLevels = Collections.emptySet();
+    private final AtomicLong version = new AtomicLong();
+
+    private volatile long loadTime = -1;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong missingHits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * The layers of an access level and their version stamp.
+     */
+    public static final class Authorization {
+        private final String accessLevel;
+        private final LayerSet layers;
+        private final String stamp;
+
+        private Authorization(String accessLevel,List<String> layerWmsIds){
+            Collections.sort(layerWmsIds);
+            this.accessLevel = accessLevel;
+            this.layers = LayerSet.of(layerWmsIds);
+            final StringBuilder builder = new StringBuilder(accessLevel);
+            for(String layerWmsId : layerWmsIds){
+                builder.append('\n').append(layerWmsId);
+            }
+            this.stamp = DigestUtils.md5Hex(builder.toString()).substring(0, STAMP_LENGTH);
+        }
+
+        public String getAccessLevel(){
+            return this.accessLevel;
+        }
+
+        public LayerSet getLayers(){
+            return this.layers;
+        }
+
+        /**
+         * Returns the version stamp of the layers, the same in every node.
+         * @return a short hexadecimal String that changes when the layers change
+         */
+        public String getStamp(){
+            return this.stamp;
+        }
+    }
+
+    /**
+     * Drops every authorization.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.version.incrementAndGet();
+            instance.authorizations = null;
+            instance.missingAccessLevels = Collections.emptySet();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide registry.
+     * @return the authorization registry
+     */
+    public static AuthorizationRegistry getInstance(){
+        AuthorizationRegistry registry = instance;
+        if(registry == null){
+            synchronized(AuthorizationRegistry.class){
+                if(instance == null){
+                    instance = new AuthorizationRegistry();
+                }
+                registry = instance;
+            }
+        }
+        return registry;
+    }
+
+    private AuthorizationRegistry(){
+
+    }
+
+    /**
+     * Returns the layers of an access level. The database is only read if the
+     * registry was not loaded yet or does not know the access level, e.g. one
+     * created while its change notification is on its way, and did not already
+     * find it missing since the last change.
+     * @param accessLevel
+     * The name of the access level.
+     * @return the authorization or null if the access level does not exist
+     * @throws HibernateException if the database could not be read
+     */
+    public Authorization get(String accessLevel) throws HibernateException{
+        if(accessLevel == null){
+            return null;
+        }
+        Map<String,Authorization> current = this.authorizations;
+        if(current == null){
+            current = reload();
+        }
+        final Authorization authorization = current.get(accessLevel);
+        if(authorization != null){
+            this.hits.incrementAndGet();
+            return authorization;
+        }
+        if(this.missingAccessLevels.contains(accessLevel)){
+            this.missingHits.incrementAndGet();
+            return null;
+        }
+        this.misses.incrementAndGet();
+        return loadAccessLevel(accessLevel);
+    }
+
+    /**
+     * Returns the layers of an access level.
+     * @param accessLevel
+     * The name of the access level, as stored in the session of the user.
+     * @return the layers or null if the access level does not exist
+     * @throws HibernateException if the database could not be read
+     */
+    public LayerSet getLayers(String accessLevel) throws HibernateException{
+        final Authorization authorization = get(accessLevel);
+        return authorization == null ? null : authorization.getLayers();
+    }
+
+    /**
+     * Reads the layers of every access level again, after the administrator
+     * changed an access level or a layer. Until the new map replaces the old one
+     * requests keep reading the old one. The access levels found missing are
+     * looked up again, since the change may have created them. If the database
+     * can not be read the map is dropped and read again by the next request.
+     * @param accessLevel
+     * The name of the access level that changed, or null if a layer or several
+     * access levels changed.
+     */
+    public void invalidate(String accessLevel){
+        this.version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+        try{
+            reload();
+        }
+        catch(HibernateException e){
+            LOGGER.log(Level.WARNING, "Could not read the layers of the access levels, they are read again by the next request", e);
+            synchronized(this){
+                this.authorizations = null;
+                this.missingAccessLevels = Collections.emptySet();
+            }
+        }
+    }
+
+    /**
+     * Reads the layers of every access level with a single query and replaces
+     * the map, unless a change was published while the query ran: the
+     * invalidation of that change reads them again.
+     */
+    private synchronized Map<String,Authorization> reload() throws HibernateException{
+        final long startVersion = this.version.get();
+        final Map<String,List<String>> layerWmsIds = read(null);
+        final Map<String,Authorization> loaded = new HashMap<>();
+        for(Map.Entry<String,List<String>> entry : layerWmsIds.entrySet()){
+            loaded.put(entry.getKey(), new Authorization(entry.getKey(), entry.getValue()));
+        }
+        final Map<String,Authorization> immutable = Collections.unmodifiableMap(loaded);
+        if(startVersion == this.version.get()){
+            this.authorizations = immutable;
+            this.missingAccessLevels = Collections.emptySet();
+            this.loadTime = System.currentTimeMillis();
+        }
+        return immutable;
+    }
+
+    /**
+     * Reads the layers of an access level missing from the map and adds them to
+     * a copy of the map, or adds the access level to a copy of the missing ones
+     * if it does not exist.
+     */
+    private Authorization loadAccessLevel(String accessLevel) throws HibernateException{
+        final long startVersion = this.version.get();
+        final Map<String,List<String>> layerWmsIds;
+        try{
+            layerWmsIds = read(accessLevel);
+        }
+        catch(ObjectNotFoundException e){
+            synchronized(this){
+                final Set<String> missing = this.missingAccessLevels;
+                if(this.authorizations != null && startVersion == this.version.get()
+                        && missing.size() < MAX_MISSING_ACCESS_LEVELS){
+                    final Set<String> copy = new HashSet<>(missing);
+                    copy.add(accessLevel);
+                    this.missingAccessLevels = Collections.unmodifiableSet(copy);
+                }
+            }
+            return null;
+        }
+        final Authorization authorization = new Authorization(accessLevel, layerWmsIds.get(accessLevel));
+        synchronized(this){
+            final Map<String,Authorization> current = this.authorizations;
+            if(current != null && startVersion == this.version.get()){
+                final Map<String,Authorization> copy = new HashMap<>(current);
+                copy.put(accessLevel, authorization);
+                this.authorizations = Collections.unmodifiableMap(copy);
+            }
+        }
+        return authorization;
+    }
+
+    private Map<String,List<String>> read(final String accessLevel) throws HibernateException{
+        this.loads.incrementAndGet();
+        return HibernateUtil.read(new HibernateUtil.Work<Map<String,List<String>>>(){
+            @Override
+            public Map<String,List<String>> execute(Session session) throws HibernateException{
+                final AccessLevelManager accessLevelManager = new AccessLevelManager(session);
+                return accessLevel == null
+                        ? accessLevelManager.readLayerWmsIds()
+                        : Collections.singletonMap(accessLevel, accessLevelManager.readLayerWmsIds(accessLevel));
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Authorization> current = this.authorizations;
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("accessLevels", current == null ? 0 : current.size());
+        statistics.put("loadTime", this.loadTime);
+        statistics.put("hits", this.hits.get());
+        statistics.put("misses", this.misses.get());
+        statistics.put("missingAccessLevels", this.missingAccessLevels.size());
+        statistics.put("missingHits", this.missingHits.get());
+        statistics.put("loads", this.loads.get());
+        statistics.put("invalidations", this.invalidations.get());
+        return statistics;
+    }
+}
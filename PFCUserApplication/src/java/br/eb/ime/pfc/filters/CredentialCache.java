@@ -0,0 +1,298 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.filters;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Cache of the credentials verified by HTTP Basic authentication.
+ *
+ * GIS clients send their credentials with every request. Instead of reading the
+ * user and its access level from the database for each request, the result of
+ * a successful verification is kept for credentials.ttl milliseconds. The layers
+ * are not kept, they are read from the {@link AuthorizationRegistry}.
+ * The cache is keyed by a SHA-256 hash of the credentials salted with a random
+ * value chosen when the cache is created, so neither passwords nor reusable
+ * hashes of them are kept in memory. Failed verifications are never cached.
+ *
+ * The entries of a user are dropped when the administrator changes the user and
+ * the entries of an access level when it changes. The least recently used
+ * entries are evicted beyond credentials.maxEntries.
+ *
+ * The following context parameters configure the cache:
+ * credentials.enabled, credentials.maxEntries and credentials.ttl (milliseconds).
+ */
+public final class CredentialCache {
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_TTL = 60000;
+
+    private static final int SALT_LENGTH = 16;
+
+    private static volatile CredentialCache instance = null;
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttl;
+    private final byte[] salt;
+
+    //Guarded by itself, in access order
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong version = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * A user whose credentials were verified, with what the requests need to be authorized.
+     */
+    public static final class VerifiedUser {
+        private final String username;
+        private final String accessLevel;
+
+        public VerifiedUser(String username,String accessLevel){
+            this.username = username;
+            this.accessLevel = accessLevel;
+        }
+
+        public String getUsername(){
+            return this.username;
+        }
+
+        public String getAccessLevel(){
+            return this.accessLevel;
+        }
+    }
+
+    private static final class Entry {
+        private final VerifiedUser user;
+        private final long expirationTime;
+
+        private Entry(VerifiedUser user,long expirationTime){
+            this.user = user;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    /**
+     * Creates the application wide cache from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new CredentialCache(
+            ContextParameters.getBoolean(context, "credentials.enabled", DEFAULT_ENABLED),
+            ContextParameters.getInt(context, "credentials.maxEntries", DEFAULT_MAX_ENTRIES),
+            ContextParameters.getLong(context, "credentials.ttl", DEFAULT_TTL));
+    }
+
+    /**
+     * Drops every verified credential.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.invalidateUser(null);
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide cache, creating the default one if the
+     * application did not initialize it.
+     * @return the credential cache
+     */
+    public static CredentialCache getInstance(){
+        CredentialCache cache = instance;
+        if(cache == null){
+            synchronized(CredentialCache.class){
+                if(instance == null){
+                    instance = new CredentialCache(DEFAULT_ENABLED, DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+                }
+                cache = instance;
+            }
+        }
+        return cache;
+    }
+
+    private CredentialCache(boolean enabled,int maxEntries,long ttl){
+        this.enabled = enabled && maxEntries > 0 && ttl > 0;
+        this.maxEntries = Math.max(0, maxEntries);
+        this.ttl = Math.max(0, ttl);
+        this.salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(this.salt);
+    }
+
+    /**
+     * Returns the current version of the cache, to be passed to
+     * {@link #put(String, String, VerifiedUser, long)} by a request that starts
+     * verifying credentials in the database.
+     * @return the version, changed by every invalidation
+     */
+    public long getVersion(){
+        return this.version.get();
+    }
+
+    /**
+     * Returns the user of credentials verified before.
+     * @param username
+     * The username sent by the client.
+     * @param password
+     * The password sent by the client.
+     * @return the user or null if the credentials must be verified in the database
+     */
+    public VerifiedUser get(String username,String password){
+        if(!this.enabled){
+            return null;
+        }
+        final String key = getKey(username, password);
+        synchronized(this.entries){
+            final Entry entry = this.entries.get(key);
+            if(entry != null){
+                if(System.currentTimeMillis() < entry.expirationTime){
+                    this.hits.incrementAndGet();
+                    return entry.user;
+                }
+                this.entries.remove(key);
+            }
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores credentials verified in the database, unless the cache was
+     * invalidated while they were being verified.
+     * @param version
+     * The version of the cache when the verification started.
+     */
+    public void put(String username,String password,VerifiedUser user,long version){
+        if(!this.enabled || version != this.version.get()){
+            return;
+        }
+        final String key = getKey(username, password);
+        synchronized(this.entries){
+            this.entries.put(key, new Entry(user, System.currentTimeMillis() + this.ttl));
+            final Iterator<Entry> iterator = this.entries.values().iterator();
+            while(this.entries.size() > this.maxEntries && iterator.hasNext()){
+                iterator.next();
+                iterator.remove();
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the credentials of a user.
+     * @param username
+     * The username, or null to drop every credential.
+     */
+    public void invalidateUser(String username){
+        this.version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+        synchronized(this.entries){
+            if(username == null){
+                this.entries.clear();
+                return;
+            }
+            final Iterator<Entry> iterator = this.entries.values().iterator();
+            while(iterator.hasNext()){
+                if(iterator.next().user.username.equals(username)){
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the credentials of the users of an access level.
+     * @param accessLevel
+     * The name of the access level, or null to drop every credential.
+     */
+    public void invalidateAccessLevel(String accessLevel){
+        if(accessLevel == null){
+            invalidateUser(null);
+            return;
+        }
+        this.version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+        synchronized(this.entries){
+            final Iterator<Entry> iterator = this.entries.values().iterator();
+            while(iterator.hasNext()){
+                if(accessLevel.equals(iterator.next().user.accessLevel)){
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private String getKey(String username,String password){
+        try{
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] usernameBytes = username.getBytes("UTF-8");
+            digest.update(this.salt);
+            //The length keeps "ab"+"c" and "a"+"bc" apart
+            digest.update(Integer.toString(usernameBytes.length).getBytes("UTF-8"));
+            digest.update((byte) ':');
+            digest.update(usernameBytes);
+            digest.update(password.getBytes("UTF-8"));
+            return DatatypeConverter.printHexBinary(digest.digest());
+        }
+        catch(NoSuchAlgorithmException | UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        final int size;
+        synchronized(this.entries){
+            size = this.entries.size();
+        }
+        statistics.put("enabled", this.enabled);
+        statistics.put("entries", size);
+        statistics.put("maxEntries", this.maxEntries);
+        statistics.put("ttl", this.ttl);
+        statistics.put("hits", this.hits.get());
+        statistics.put("misses", this.misses.get());
+        statistics.put("evictions", this.evictions.get());
+        statistics.put("invalidations", this.invalidations.get());
+        return statistics;
+    }
+}
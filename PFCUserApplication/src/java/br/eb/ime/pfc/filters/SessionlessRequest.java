@@ -0,0 +1,201 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.filters;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * A request authorized by HTTP Basic authentication that does not create an
+ * HttpSession in the container.
+ *
+ * The controllers read the user and its access level from the attributes of
+ * the session. This request answers getSession with a session that only lives
+ * as long as the request, holding those attributes, so GIS clients that never
+ * send the session cookie back do not leave a session behind for each request.
+ */
+public class SessionlessRequest extends HttpServletRequestWrapper {
+    private final RequestSession session;
+
+    /**
+     * Wraps a request of a verified user.
+     * @param request
+     * The request of the client.
+     * @param user
+     * The user whose credentials were verified.
+     */
+    public SessionlessRequest(HttpServletRequest request,CredentialCache.VerifiedUser user){
+        super(request);
+        this.session = new RequestSession(request.getServletContext());
+        this.session.setAttribute("user", user.getUsername());
+        this.session.setAttribute("accessLevel", user.getAccessLevel());
+    }
+
+    @Override
+    public HttpSession getSession(){
+        return this.session;
+    }
+
+    @Override
+    public HttpSession getSession(boolean create){
+        return this.session;
+    }
+
+    @Override
+    public String getRequestedSessionId(){
+        return null;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid(){
+        return false;
+    }
+
+    @Override
+    public String changeSessionId(){
+        return this.session.getId();
+    }
+
+    @Override
+    public String getRemoteUser(){
+        return (String) this.session.getAttribute("user");
+    }
+
+    /**
+     * A session that is never stored, its attributes are lost with the request.
+     */
+    private static final class RequestSession implements HttpSession {
+        private final ServletContext servletContext;
+        private final long creationTime = System.currentTimeMillis();
+        private final String id = UUID.randomUUID().toString();
+        private final Map<String,Object> attributes = new HashMap<>();
+        private int maxInactiveInterval = 0;
+
+        private RequestSession(ServletContext servletContext){
+            this.servletContext = servletContext;
+        }
+
+        @Override
+        public long getCreationTime(){
+            return this.creationTime;
+        }
+
+        @Override
+        public String getId(){
+            return this.id;
+        }
+
+        @Override
+        public long getLastAccessedTime(){
+            return this.creationTime;
+        }
+
+        @Override
+        public ServletContext getServletContext(){
+            return this.servletContext;
+        }
+
+        @Override
+        public void setMaxInactiveInterval(int interval){
+            this.maxInactiveInterval = interval;
+        }
+
+        @Override
+        public int getMaxInactiveInterval(){
+            return this.maxInactiveInterval;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public javax.servlet.http.HttpSessionContext getSessionContext(){
+            return null;
+        }
+
+        @Override
+        public synchronized Object getAttribute(String name){
+            return this.attributes.get(name);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public Object getValue(String name){
+            return getAttribute(name);
+        }
+
+        @Override
+        public synchronized Enumeration<String> getAttributeNames(){
+            return Collections.enumeration(new HashMap<>(this.attributes).keySet());
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public synchronized String[] getValueNames(){
+            return this.attributes.keySet().toArray(new String[this.attributes.size()]);
+        }
+
+        @Override
+        public synchronized void setAttribute(String name,Object value){
+            if(value == null){
+                this.attributes.remove(name);
+            }
+            else{
+                this.attributes.put(name, value);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void putValue(String name,Object value){
+            setAttribute(name, value);
+        }
+
+        @Override
+        public synchronized void removeAttribute(String name){
+            this.attributes.remove(name);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void removeValue(String name){
+            removeAttribute(name);
+        }
+
+        @Override
+        public synchronized void invalidate(){
+            this.attributes.clear();
+        }
+
+        @Override
+        public boolean isNew(){
+            return true;
+        }
+    }
+}
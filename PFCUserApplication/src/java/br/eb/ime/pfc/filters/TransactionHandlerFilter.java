@@ -25,6 +25,7 @@ package br.eb.ime.pfc.filters;
 
 import br.eb.ime.pfc.domain.HTTP_STATUS;
 import br.eb.ime.pfc.hibernate.HibernateUtil;
+import br.eb.ime.pfc.hibernate.UnitOfWork;
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -35,58 +36,60 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.hibernate.HibernateException;
-import org.hibernate.Session;
-import org.hibernate.context.internal.ManagedSessionContext;
 
 /**
+ *
+ * Begins the {@link UnitOfWork} of each request to the controllers that use the
+ * database. The session is only opened if the controller uses it, and GET
+ * requests and readAll actions run read only, without flushing.
  *
  * @author arthurfernandes
  */
 @WebFilter(filterName = "TransactionHandlerFilter", servletNames={"LoginServlet","ListLayersServlet","MapServlet","LayerHandlerServlet","AccessLevelHandlerServlet","UserHandlerServlet"})
 public class TransactionHandlerFilter implements Filter {
     private static final Logger LOGGER = Logger.getLogger(HibernateUtil.class.getName());
+    private static final String READ_ALL_ACTION = "readAll";
     
     private FilterConfig filterConfig = null;
-    private Session session = null;
     
     public TransactionHandlerFilter() {
     }    
     
-    private boolean doBeforeProcessing(ServletRequest request, ServletResponse response){
-        boolean createdSession = false;
-        
+    /**
+     * Begins the unit of work of a request. The filter is shared by every
+     * request, so the unit of work is confined to the thread of the request.
+     * @return the unit of work
+     */
+    private UnitOfWork doBeforeProcessing(ServletRequest request, ServletResponse response){
         LOGGER.log(Level.CONFIG,"TransactionHandlerFilter:DoBeforeProcessing");
         
-	try{
-            this.session = HibernateUtil.openSession();   
-            session.beginTransaction();
-            ManagedSessionContext.bind(session);
-            createdSession = true;
-        }
-        catch(Throwable e){
-            LOGGER.log(Level.SEVERE,"Could not retrieve session Factory",e);
+        return UnitOfWork.begin(isReadOnly((HttpServletRequest) request));
+    }
+    
+    /**
+     * Indicates whether a request only reads from the database: GET and HEAD
+     * requests and the readAll action of the administration controllers.
+     */
+    private static boolean isReadOnly(HttpServletRequest request){
+        final String method = request.getMethod();
+        if(method.equals("GET") || method.equals("HEAD")){
+            return true;
         }
-        return createdSession;
-    }    
+        return READ_ALL_ACTION.equals(request.getParameter("action"));
+    }
     
-    private void doAfterProcessing(ServletRequest request, ServletResponse response){
+    private void doAfterProcessing(UnitOfWork unitOfWork,boolean succeeded){
         
         LOGGER.log(Level.CONFIG,"TransactionHandlerFilter:DoAfterProcessing");
         
-        if(this.session != null){
-            ManagedSessionContext.unbind(this.session.getSessionFactory());
-            this.session.flush();
-            try{
-                this.session.getTransaction().commit();
-            }
-            catch(HibernateException e){
-                this.session.getTransaction().rollback();
-            }
-            finally{
-                this.session.close();
-            }
+        try{
+            unitOfWork.end(succeeded);
+        }
+        catch(HibernateException e){
+            LOGGER.log(Level.WARNING,"Could not commit the transaction of the request",e);
         }
     }
 
@@ -106,24 +109,19 @@ public class TransactionHandlerFilter implements Filter {
         final HttpServletResponse httpResponse = (HttpServletResponse) response;
         LOGGER.log(Level.CONFIG,"TransactionHandlerFilter:doFilter()");
         
-        final boolean createdSession = doBeforeProcessing(request, response);
+        final UnitOfWork unitOfWork = doBeforeProcessing(request, response);
         Throwable problem = null;
         
-        if(createdSession){
-            try {
-                chain.doFilter(request, response);
-            } catch (Throwable t) {
-                /* If an exception is thrown somewhere down the filter chain,
-                 we still want to execute our after processing, and then
-                 rethrow the problem after that.*/
-                problem = t;
-            }
-        }
-        else{
-            httpResponse.sendError(HTTP_STATUS.INTERNAL_ERROR.getCode());
+        try {
+            chain.doFilter(request, response);
+        } catch (Throwable t) {
+            /* If an exception is thrown somewhere down the filter chain,
+             we still want to execute our after processing, and then
+             rethrow the problem after that.*/
+            problem = t;
         }
         
-        doAfterProcessing(request, response);
+        doAfterProcessing(unitOfWork, problem == null);
 
 	/* If there was a problem, we want to rethrow it if it is
         / a known type, otherwise log it.*/
@@ -135,6 +133,10 @@ public class TransactionHandlerFilter implements Filter {
                 throw (IOException) problem;
             }
             LOGGER.log(Level.SEVERE,"Unknown exception in TransactionHandlerFilter",problem);
+            //e.g. the session could not be opened when the controller first used it
+            if(!httpResponse.isCommitted()){
+                httpResponse.sendError(HTTP_STATUS.INTERNAL_ERROR.getCode());
+            }
         }
     }
 
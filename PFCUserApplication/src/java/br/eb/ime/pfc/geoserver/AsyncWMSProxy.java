@@ -0,0 +1,359 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.listeners.ContextParameters;
+import br.eb.ime.pfc.logging.AccessLogEvent;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Asynchronous mode of the WMS proxy.
+ *
+ * The request is put in asynchronous mode with an AsyncContext and the
+ * container thread is given back as soon as the request is parsed, so slow
+ * renders of GeoServer do not use up the request threads of the server. The
+ * response of GeoServer is fetched by a bounded pool of upstream threads and
+ * written to the client with a WriteListener, which only writes when the
+ * client connection is ready to accept more data.
+ *
+ * When the upstream pool and its queue are full the request is refused with
+ * 503 (Service Unavailable) instead of piling up.
+ *
+ * The following context parameters configure this mode:
+ * wmsproxy.async (true to enable it, false, the default, to use the blocking proxy),
+ * wmsproxy.async.threads, wmsproxy.async.queueSize and
+ * wmsproxy.async.timeout (milliseconds).
+ */
+public final class AsyncWMSProxy {
+    private static final Logger LOGGER = Logger.getLogger(AsyncWMSProxy.class.getName());
+    private static final int WRITE_CHUNK_SIZE = 8192;
+
+    public static final boolean DEFAULT_ENABLED = false;
+    public static final int DEFAULT_THREADS = 40;
+    public static final int DEFAULT_QUEUE_SIZE = 400;
+    public static final long DEFAULT_TIMEOUT = 60000;
+
+    private static volatile AsyncWMSProxy instance = null;
+
+    private final boolean enabled;
+    private final long timeout;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong startedRequests = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong timedOutRequests = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+
+    /**
+     * Creates the application wide proxy from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        if(instance != null){
+            instance.shutdown();
+        }
+        instance = new AsyncWMSProxy(
+            ContextParameters.getBoolean(context, "wmsproxy.async", DEFAULT_ENABLED),
+            ContextParameters.getInt(context, "wmsproxy.async.threads", DEFAULT_THREADS),
+            ContextParameters.getInt(context, "wmsproxy.async.queueSize", DEFAULT_QUEUE_SIZE),
+            ContextParameters.getLong(context, "wmsproxy.async.timeout", DEFAULT_TIMEOUT));
+    }
+
+    /**
+     * Stops the upstream threads.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide proxy.
+     * If it was not initialized by the application the asynchronous mode is disabled.
+     * @return the asynchronous proxy
+     */
+    public static AsyncWMSProxy getInstance(){
+        AsyncWMSProxy proxy = instance;
+        if(proxy == null){
+            synchronized(AsyncWMSProxy.class){
+                if(instance == null){
+                    instance = new AsyncWMSProxy(DEFAULT_ENABLED, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_TIMEOUT);
+                }
+                proxy = instance;
+            }
+        }
+        return proxy;
+    }
+
+    private AsyncWMSProxy(boolean enabled,int threads,int queueSize,long timeout){
+        this.enabled = enabled;
+        this.timeout = timeout;
+        final int threadCount = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory(){
+            private final AtomicInteger threadNumber = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "AsyncWMSProxy-" + this.threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        if(enabled){
+            LOGGER.log(Level.INFO, "Asynchronous WMS proxy enabled with {0} upstream threads", threadCount);
+        }
+    }
+
+    /**
+     * Indicates whether the WMS proxy should answer requests asynchronously.
+     * @return true if the asynchronous mode is enabled
+     */
+    public boolean isEnabled(){
+        return this.enabled;
+    }
+
+    /**
+     * Answers an authorized WMS request asynchronously. The calling container
+     * thread returns as soon as the request is handed to the upstream threads.
+     * @param request
+     * An authorized request to /geoserver/wms that supports asynchronous processing.
+     * @param key
+     * The key of the request returned by {@link GeoServerCommunication#getGetMapKey(HttpServletRequest)},
+     * whose layers were authorized, or null if it is not a GetMap.
+     * @param response
+     * The response to the client.
+     * @param event
+     * The access log event of the request, finished when the request completes.
+     * @param permit
+     * The permit of the request to GeoServer, released when the request completes.
+     */
+    public void proxy(HttpServletRequest request,final WMSRequestKey key,HttpServletResponse response,AccessLogEvent event,final RequestLimiter.Permit permit){
+        //The request is parsed in the container thread, before it is recycled
+        final String pathAndQuery = GeoServerCommunication.getUpstreamPathAndQuery(request);
+        final String affinityKey = GeoServerCommunication.getAffinityKey(request);
+        final String requestType = key != null ? key.getRequest() : CachePolicy.getRequestType(request);
+        final CachePolicy.Validators validators = CachePolicy.Validators.fromRequest(request);
+
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(this.timeout);
+        final ProxiedRequest proxiedRequest = new ProxiedRequest(asyncContext,event,permit);
+        asyncContext.addListener(proxiedRequest);
+        this.startedRequests.incrementAndGet();
+        this.inFlightRequests.incrementAndGet();
+        try{
+            this.executor.execute(new Runnable(){
+                @Override
+                public void run() {
+                    final WMSResponse wmsResponse;
+                    try{
+                        wmsResponse = key != null ? GeoServerCommunication.fetchTile(key) :
+                                GeoServerCommunication.fetch(pathAndQuery, affinityKey);
+                    }
+                    finally{ //The permit limits the requests to GeoServer, not the writes to slow clients
+                        permit.release();
+                    }
+                    proxiedRequest.write(wmsResponse, validators, requestType);
+                }
+            });
+        }
+        catch(RejectedExecutionException e){
+            this.rejectedRequests.incrementAndGet();
+            proxiedRequest.sendError(HTTP_STATUS.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Returns a snapshot of the asynchronous proxy statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", this.enabled);
+        statistics.put("upstreamThreads", this.executor.getMaximumPoolSize());
+        statistics.put("activeUpstreamThreads", this.executor.getActiveCount());
+        statistics.put("queuedRequests", this.executor.getQueue().size());
+        statistics.put("inFlightRequests", this.inFlightRequests.get());
+        statistics.put("startedRequests", this.startedRequests.get());
+        statistics.put("rejectedRequests", this.rejectedRequests.get());
+        statistics.put("timedOutRequests", this.timedOutRequests.get());
+        statistics.put("failedWrites", this.failedWrites.get());
+        return statistics;
+    }
+
+    private void shutdown(){
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * The state of one asynchronous request. The AsyncContext is completed
+     * exactly once, either after the response is written, on an error or when
+     * the request times out.
+     */
+    private final class ProxiedRequest implements AsyncListener {
+        private final AsyncContext asyncContext;
+        private final AccessLogEvent event;
+        private final RequestLimiter.Permit permit;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        private ProxiedRequest(AsyncContext asyncContext,AccessLogEvent event,RequestLimiter.Permit permit){
+            this.asyncContext = asyncContext;
+            this.event = event;
+            this.permit = permit;
+        }
+
+        private void write(final WMSResponse wmsResponse,CachePolicy.Validators validators,String requestType){
+            if(this.finished.get()){
+                return;
+            }
+            this.event.setUpstreamMillis(wmsResponse.getUpstreamMillis());
+            if(wmsResponse.isError()){
+                sendError(wmsResponse.getErrorStatus());
+                return;
+            }
+            final HttpServletResponse response = (HttpServletResponse) this.asyncContext.getResponse();
+            final CachePolicy cachePolicy = CachePolicy.getInstance();
+            cachePolicy.applyHeaders(response, requestType, wmsResponse.getETag(), wmsResponse.getLastModified());
+            if(validators.isNotModified(wmsResponse.getETag(), wmsResponse.getLastModified())){
+                cachePolicy.sendNotModified(response);
+                this.event.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                finish();
+                return;
+            }
+            if(wmsResponse.getContentType() != null){
+                response.setContentType(wmsResponse.getContentType());
+            }
+            final byte[] data = wmsResponse.getData();
+            response.setContentLength(data.length);
+            try{
+                final ServletOutputStream os = response.getOutputStream();
+                os.setWriteListener(new WriteListener(){
+                    private int offset = 0;
+
+                    @Override
+                    public void onWritePossible() throws IOException {
+                        while(os.isReady()){
+                            if(this.offset >= data.length){
+                                event.setBytes(data.length);
+                                finish();
+                                return;
+                            }
+                            final int length = Math.min(WRITE_CHUNK_SIZE, data.length - this.offset);
+                            os.write(data, this.offset, length);
+                            this.offset += length;
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        //The client closed the connection.
+                        failedWrites.incrementAndGet();
+                        finish();
+                    }
+                });
+            }
+            catch(IOException | IllegalStateException e){
+                failedWrites.incrementAndGet();
+                finish();
+            }
+        }
+
+        private void sendError(HTTP_STATUS status){
+            if(this.finished.get()){
+                return;
+            }
+            this.event.setStatus(status.getCode());
+            try{
+                ((HttpServletResponse) this.asyncContext.getResponse()).sendError(status.getCode());
+            }
+            catch(IOException | IllegalStateException e){
+            }
+            finish();
+        }
+
+        private void finish(){
+            if(this.finished.compareAndSet(false, true)){
+                inFlightRequests.decrementAndGet();
+                this.permit.release();
+                this.event.finish();
+                try{
+                    this.asyncContext.complete();
+                }
+                catch(IllegalStateException e){
+                    //The container already completed the request.
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            if(this.finished.compareAndSet(false, true)){
+                inFlightRequests.decrementAndGet();
+                this.permit.release();
+                this.event.finish();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            timedOutRequests.incrementAndGet();
+            sendError(HTTP_STATUS.GATEWAY_TIMEOUT);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            finish();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+
+        }
+    }
+}
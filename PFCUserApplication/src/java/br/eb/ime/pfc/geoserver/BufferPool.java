@@ -0,0 +1,336 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Pool of the buffers used to copy the responses of GeoServer to the clients.
+ *
+ * The buffers are reused instead of allocating a new array for every response,
+ * and their size is chosen to hold a typical tile, so most responses are read
+ * in a single buffer. At most bufferpool.maxBuffers idle buffers are kept.
+ *
+ * Responses up to bufferpool.inlineThreshold bytes whose length GeoServer does
+ * not announce are read completely before they are written, so the client
+ * receives a Content-Length and the connection can be kept alive. Larger
+ * responses are streamed one buffer at a time: each buffer is written before
+ * the next one is read from GeoServer, so a slow client slows down the read
+ * instead of making the proxy hold the whole response.
+ *
+ * The following context parameters configure the pool:
+ * bufferpool.bufferSize (bytes), bufferpool.maxBuffers and bufferpool.inlineThreshold (bytes).
+ */
+public final class BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 32768;
+    public static final int DEFAULT_MAX_BUFFERS = 256;
+    public static final int DEFAULT_INLINE_THRESHOLD = 262144;
+
+    private static final long RATE_INTERVAL = 1000;
+
+    private static volatile BufferPool instance = null;
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final int inlineThreshold;
+
+    private final ConcurrentLinkedQueue<byte[]> idleBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger buffersInUse = new AtomicInteger();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private final AtomicLong bufferedResponses = new AtomicLong();
+    private final AtomicLong streamedResponses = new AtomicLong();
+
+    private long rateSampleTime = System.currentTimeMillis();
+    private long rateSampleBytes = 0;
+    private double bytesCopiedPerSecond = 0;
+
+    /**
+     * Creates the application wide pool from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new BufferPool(
+            ContextParameters.getInt(context, "bufferpool.bufferSize", DEFAULT_BUFFER_SIZE),
+            ContextParameters.getInt(context, "bufferpool.maxBuffers", DEFAULT_MAX_BUFFERS),
+            ContextParameters.getInt(context, "bufferpool.inlineThreshold", DEFAULT_INLINE_THRESHOLD));
+    }
+
+    /**
+     * Drops the idle buffers.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.idleBuffers.clear();
+            instance.idleCount.set(0);
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide pool, creating the default one if the
+     * application did not initialize it.
+     * @return the buffer pool
+     */
+    public static BufferPool getInstance(){
+        BufferPool pool = instance;
+        if(pool == null){
+            synchronized(BufferPool.class){
+                if(instance == null){
+                    instance = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_BUFFERS, DEFAULT_INLINE_THRESHOLD);
+                }
+                pool = instance;
+            }
+        }
+        return pool;
+    }
+
+    private BufferPool(int bufferSize,int maxBuffers,int inlineThreshold){
+        this.bufferSize = Math.max(1024, bufferSize);
+        this.maxBuffers = Math.max(0, maxBuffers);
+        this.inlineThreshold = Math.max(0, inlineThreshold);
+    }
+
+    /**
+     * Takes an idle buffer or allocates a new one. Every buffer must be given back with {@link #release(byte[])}.
+     * @return a buffer of bufferpool.bufferSize bytes
+     */
+    public byte[] acquire(){
+        this.acquisitions.incrementAndGet();
+        this.buffersInUse.incrementAndGet();
+        final byte[] buffer = this.idleBuffers.poll();
+        if(buffer != null){
+            this.idleCount.decrementAndGet();
+            return buffer;
+        }
+        this.allocations.incrementAndGet();
+        return new byte[this.bufferSize];
+    }
+
+    /**
+     * Gives a buffer back to the pool. It is dropped if the pool is full.
+     * @param buffer
+     * A buffer returned by {@link #acquire()}.
+     */
+    public void release(byte[] buffer){
+        this.buffersInUse.decrementAndGet();
+        if(buffer.length == this.bufferSize && this.idleCount.incrementAndGet() <= this.maxBuffers){
+            this.idleBuffers.offer(buffer);
+        }
+        else{
+            this.idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reads a whole stream into an array.
+     * @param is
+     * The stream to be read.
+     * @param contentLength
+     * The length of the stream, if known in advance, or -1.
+     * @return the bytes of the stream
+     * @throws IOException if the stream could not be read
+     */
+    public byte[] read(InputStream is,long contentLength) throws IOException{
+        if(contentLength >= 0 && contentLength <= Integer.MAX_VALUE){
+            //The array is allocated with its final size, without intermediate copies
+            final byte[] data = new byte[(int) contentLength];
+            int offset = 0;
+            while(offset < data.length){
+                final int read = is.read(data, offset, data.length - offset);
+                if(read < 0){
+                    throw new IOException("Premature end of the response of GeoServer");
+                }
+                offset += read;
+            }
+            this.bytesCopied.addAndGet(data.length);
+            return data;
+        }
+        final List<byte[]> buffers = new ArrayList<>();
+        try{
+            final int length = fill(is, buffers, Integer.MAX_VALUE);
+            final byte[] data = new byte[length];
+            int offset = 0;
+            for(byte[] buffer : buffers){
+                final int chunk = Math.min(buffer.length, length - offset);
+                System.arraycopy(buffer, 0, data, offset, chunk);
+                offset += chunk;
+            }
+            return data;
+        }
+        finally{
+            releaseAll(buffers);
+        }
+    }
+
+    /**
+     * Copies the body of a response of GeoServer to the client.
+     * If the length of the body is not known and the body fits in
+     * bufferpool.inlineThreshold bytes, it is read completely and sent with a
+     * Content-Length, otherwise it is streamed.
+     * @param is
+     * The body of the response of GeoServer.
+     * @param contentLength
+     * The length announced by GeoServer or -1 if it is not known.
+     * @param response
+     * The response to the client, whose headers were already set.
+     * @return the number of bytes written to the client
+     * @throws IOException if GeoServer or the client closed the connection
+     */
+    public long copy(InputStream is,long contentLength,HttpServletResponse response) throws IOException{
+        final List<byte[]> buffers = new ArrayList<>();
+        try{
+            long length = contentLength;
+            int buffered = 0;
+            if(length < 0){
+                buffered = fill(is, buffers, this.inlineThreshold);
+                if(buffered <= this.inlineThreshold){
+                    length = buffered;
+                }
+            }
+            if(length >= 0){
+                response.setContentLengthLong(length);
+            }
+            try(OutputStream os = response.getOutputStream()){
+                long written = writeAll(os, buffers, buffered);
+                if(written == length){
+                    this.bufferedResponses.incrementAndGet();
+                    return written;
+                }
+                //Each buffer is written before the next one is read
+                this.streamedResponses.incrementAndGet();
+                final byte[] buffer;
+                if(buffers.isEmpty()){
+                    buffer = acquire();
+                    buffers.add(buffer);
+                }
+                else{
+                    buffer = buffers.remove(0);
+                    releaseAll(buffers);
+                    buffers.add(buffer);
+                }
+                int read;
+                while((read = is.read(buffer)) >= 0){
+                    os.write(buffer, 0, read);
+                    written += read;
+                    this.bytesCopied.addAndGet(read);
+                }
+                return written;
+            }
+        }
+        finally{
+            releaseAll(buffers);
+        }
+    }
+
+    /**
+     * Reads a stream into pooled buffers, filling each one before taking the next,
+     * until the end of the stream or until more than limit bytes were read.
+     * @return the number of bytes read
+     */
+    private int fill(InputStream is,List<byte[]> buffers,int limit) throws IOException{
+        int total = 0;
+        while(total <= limit){
+            final byte[] buffer = acquire();
+            buffers.add(buffer);
+            int offset = 0;
+            int read = 0;
+            while(offset < buffer.length && (read = is.read(buffer, offset, buffer.length - offset)) >= 0){
+                offset += read;
+            }
+            total += offset;
+            this.bytesCopied.addAndGet(offset);
+            if(read < 0){
+                break;
+            }
+        }
+        return total;
+    }
+
+    private static long writeAll(OutputStream os,List<byte[]> buffers,int length) throws IOException{
+        long written = 0;
+        for(byte[] buffer : buffers){
+            final int chunk = (int) Math.min(buffer.length, length - written);
+            if(chunk > 0){
+                os.write(buffer, 0, chunk);
+                written += chunk;
+            }
+        }
+        return written;
+    }
+
+    private void releaseAll(List<byte[]> buffers){
+        for(byte[] buffer : buffers){
+            release(buffer);
+        }
+        buffers.clear();
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * bytesCopiedPerSecond is measured between two snapshots at least one second apart.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final long now = System.currentTimeMillis();
+        final long copied = this.bytesCopied.get();
+        final double rate;
+        synchronized(this){
+            if(now - this.rateSampleTime >= RATE_INTERVAL){
+                this.bytesCopiedPerSecond = (copied - this.rateSampleBytes) * 1000.0 / (now - this.rateSampleTime);
+                this.rateSampleTime = now;
+                this.rateSampleBytes = copied;
+            }
+            rate = this.bytesCopiedPerSecond;
+        }
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("bufferSize", this.bufferSize);
+        statistics.put("maxBuffers", this.maxBuffers);
+        statistics.put("inlineThreshold", this.inlineThreshold);
+        statistics.put("idleBuffers", this.idleCount.get());
+        statistics.put("buffersInUse", this.buffersInUse.get());
+        statistics.put("acquisitions", this.acquisitions.get());
+        statistics.put("allocations", this.allocations.get());
+        statistics.put("bufferedResponses", this.bufferedResponses.get());
+        statistics.put("streamedResponses", this.streamedResponses.get());
+        statistics.put("bytesCopied", copied);
+        statistics.put("bytesCopiedPerSecond", Math.round(rate));
+        return statistics;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HTTP caching rules of the responses of the WMS proxy.
+ *
+ * Every response carries validators (a strong ETag and Last-Modified) and a
+ * Cache-Control header chosen by the type of the WMS request, so browsers can
+ * keep tiles and legends and revalidate them with conditional requests, which
+ * are answered with 304 (Not Modified) and no body.
+ *
+ * The Cache-Control of each request type is configured by the context parameters
+ * cachecontrol.getmap, cachecontrol.getlegendgraphic, cachecontrol.getcapabilities,
+ * cachecontrol.tiles (the tiles of /tiles, whose URLs carry the tile version
+ * of their layer and change with its style) and
+ * cachecontrol.default (used for any other request).
+ */
+public final class CachePolicy {
+    public static final String DEFAULT_GETMAP = "private, max-age=3600";
+    public static final String DEFAULT_GETLEGENDGRAPHIC = "private, max-age=86400";
+    public static final String DEFAULT_GETCAPABILITIES = "private, no-cache";
+    public static final String DEFAULT_TILES = "private, max-age=604800";
+    public static final String DEFAULT_OTHER = "private, no-cache";
+
+    private static volatile CachePolicy instance = null;
+
+    private final Map<String,String> cacheControls = new HashMap<>();
+    private final String defaultCacheControl;
+    private final AtomicLong notModifiedResponses = new AtomicLong();
+
+    /**
+     * The conditional headers of a request, read before the request is handed
+     * to another thread.
+     */
+    public static final class Validators {
+        private final String ifNoneMatch;
+        private final long ifModifiedSince;
+
+        public static Validators fromRequest(HttpServletRequest request){
+            long ifModifiedSince;
+            try{
+                ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            }
+            catch(IllegalArgumentException e){
+                ifModifiedSince = -1;
+            }
+            return new Validators(request.getHeader("If-None-Match"), ifModifiedSince);
+        }
+
+        private Validators(String ifNoneMatch,long ifModifiedSince){
+            this.ifNoneMatch = ifNoneMatch;
+            this.ifModifiedSince = ifModifiedSince;
+        }
+
+        public String getIfNoneMatch(){
+            return this.ifNoneMatch;
+        }
+
+        public long getIfModifiedSince(){
+            return this.ifModifiedSince;
+        }
+
+        /**
+         * Indicates whether the client already has the current version of a response.
+         * If-None-Match takes precedence over If-Modified-Since.
+         * @param etag
+         * The ETag of the response, with quotes.
+         * @param lastModified
+         * The time the response was last modified, in milliseconds, or -1 if unknown.
+         * @return true if a 304 (Not Modified) must be sent
+         */
+        public boolean isNotModified(String etag,long lastModified){
+            if(this.ifNoneMatch != null){
+                if(etag == null){
+                    return false;
+                }
+                for(String candidate : this.ifNoneMatch.split(",")){
+                    String value = candidate.trim();
+                    if(value.equals("*")){
+                        return true;
+                    }
+                    //If-None-Match uses the weak comparison
+                    if(value.startsWith("W/")){
+                        value = value.substring(2);
+                    }
+                    if(value.equals(etag)){
+                        return true;
+                    }
+                }
+                return false;
+            }
+            //HTTP dates have a precision of one second
+            return this.ifModifiedSince >= 0 && lastModified >= 0 && lastModified / 1000 <= this.ifModifiedSince / 1000;
+        }
+    }
+
+    /**
+     * Creates the application wide policy from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new CachePolicy(
+            ContextParameters.getString(context, "cachecontrol.getmap", DEFAULT_GETMAP),
+            ContextParameters.getString(context, "cachecontrol.getlegendgraphic", DEFAULT_GETLEGENDGRAPHIC),
+            ContextParameters.getString(context, "cachecontrol.getcapabilities", DEFAULT_GETCAPABILITIES),
+            ContextParameters.getString(context, "cachecontrol.tiles", DEFAULT_TILES),
+            ContextParameters.getString(context, "cachecontrol.default", DEFAULT_OTHER));
+    }
+
+    /**
+     * Returns the application wide policy, creating the default one if the
+     * application did not initialize it.
+     * @return the cache policy
+     */
+    public static CachePolicy getInstance(){
+        CachePolicy policy = instance;
+        if(policy == null){
+            synchronized(CachePolicy.class){
+                if(instance == null){
+                    instance = new CachePolicy(DEFAULT_GETMAP, DEFAULT_GETLEGENDGRAPHIC, DEFAULT_GETCAPABILITIES, DEFAULT_TILES, DEFAULT_OTHER);
+                }
+                policy = instance;
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Returns the value of the REQUEST parameter in upper case, whatever the case of its name.
+     * @param request
+     * A WMS request.
+     * @return the request type, e.g. GETMAP, or an empty String
+     */
+    public static String getRequestType(HttpServletRequest request){
+        final Enumeration<String> names = request.getParameterNames();
+        while(names.hasMoreElements()){
+            final String name = names.nextElement();
+            if(name.equalsIgnoreCase("REQUEST")){
+                final String value = request.getParameter(name);
+                return value == null ? "" : value.trim().toUpperCase(Locale.ROOT);
+            }
+        }
+        return "";
+    }
+
+    private CachePolicy(String getMap,String getLegendGraphic,String getCapabilities,String tiles,String other){
+        this.cacheControls.put("GETMAP", getMap);
+        this.cacheControls.put("GETLEGENDGRAPHIC", getLegendGraphic);
+        this.cacheControls.put("GETCAPABILITIES", getCapabilities);
+        this.cacheControls.put("TILES", tiles);
+        this.defaultCacheControl = other;
+    }
+
+    /**
+     * Returns the Cache-Control of a type of request.
+     * @param requestType
+     * The REQUEST parameter in upper case.
+     * @return the value of the Cache-Control header
+     */
+    public String getCacheControl(String requestType){
+        final String cacheControl = this.cacheControls.get(requestType);
+        return cacheControl == null ? this.defaultCacheControl : cacheControl;
+    }
+
+    /**
+     * Sets the Cache-Control and the validators of a response.
+     * @param response
+     * The response to the client.
+     * @param requestType
+     * The REQUEST parameter in upper case.
+     * @param etag
+     * The ETag, with quotes, or null if unknown.
+     * @param lastModified
+     * The time the body was last modified, in milliseconds, or -1 if unknown.
+     */
+    public void applyHeaders(HttpServletResponse response,String requestType,String etag,long lastModified){
+        response.setHeader("Cache-Control", getCacheControl(requestType));
+        if(etag != null){
+            response.setHeader("ETag", etag);
+        }
+        if(lastModified >= 0){
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+    }
+
+    /**
+     * Sends 304 (Not Modified), without a body. The caching headers must have
+     * been applied to the response already.
+     * @param response
+     * The response to the client.
+     */
+    public void sendNotModified(HttpServletResponse response){
+        this.notModifiedResponses.incrementAndGet();
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("notModifiedResponses", this.notModifiedResponses.get());
+        return statistics;
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.domain.LayerSet;
+import br.eb.ime.pfc.listeners.ContextParameters;
+import br.eb.ime.pfc.logging.AccessLogEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Cache of the WMS capabilities documents of the access levels.
+ *
+ * A GetCapabilities request made to the proxy is not sent to GeoServer as is:
+ * the capabilities document of GeoServer lists every layer, so the proxy answers
+ * with a copy that only lists the layers of the access level of the user. The
+ * copy is made by a streaming XML filter that drops each named Layer element
+ * whose Name is not in the {@link LayerSet} of the user, keeping the unnamed
+ * container layers and everything else.
+ *
+ * The filtered documents are kept per access level and version of WMS, already
+ * serialized and compressed with gzip, with their ETag, so GIS clients that ask
+ * for the capabilities again and again are answered from memory, with 304
+ * (Not Modified) when they revalidate. The document of GeoServer is fetched once
+ * per version for every access level.
+ *
+ * The document of an access level is invalidated when the administrator changes
+ * the access level, every document is invalidated when a layer changes, and no
+ * document is kept longer than capabilities.ttl milliseconds, so changes made
+ * directly in GeoServer, e.g. new styles, are eventually seen.
+ *
+ * The following context parameters configure the cache:
+ * capabilities.enabled and capabilities.ttl (milliseconds).
+ */
+public final class CapabilitiesCache {
+    private static final Logger LOGGER = Logger.getLogger(CapabilitiesCache.class.getName());
+
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final long DEFAULT_TTL = 300000;
+
+    private static final String DEFAULT_CONTENT_TYPE = "text/xml";
+    private static final String WMS_PATH = "/wms";
+    private static final String LAYER = "Layer";
+    private static final String NAME = "Name";
+
+    private static volatile CapabilitiesCache instance = null;
+
+    private final boolean enabled;
+    private final long ttl;
+    private final XMLInputFactory inputFactory;
+    private final XMLOutputFactory outputFactory;
+
+    private final ConcurrentHashMap<String,Document> upstreamDocuments = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,Document> accessLevelDocuments = new ConcurrentHashMap<>();
+    private final SingleFlight<String,Document> upstreamFlights = new SingleFlight<>();
+    private final SingleFlight<String,Document> filterFlights = new SingleFlight<>();
+    private final AtomicLong version = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong upstreamFetches = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong filteredLayers = new AtomicLong();
+
+    /**
+     * A serialized capabilities document.
+     */
+    private static final class Document {
+        private final String contentType;
+        private final byte[] data;
+        private final byte[] gzipData;
+        private final String etag;
+        private final long lastModified;
+        private final long expirationTime;
+        private final LayerSet layers;
+
+        private Document(String contentType,byte[] data,byte[] gzipData,long lastModified,long expirationTime,LayerSet layers){
+            this.contentType = contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+            this.data = data;
+            this.gzipData = gzipData;
+            this.etag = "\"" + DigestUtils.md5Hex(data) + "\"";
+            this.lastModified = lastModified;
+            this.expirationTime = expirationTime;
+            this.layers = layers;
+        }
+
+        private boolean isExpired(){
+            return System.currentTimeMillis() >= this.expirationTime;
+        }
+    }
+
+    /**
+     * Creates the application wide cache from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new CapabilitiesCache(
+            ContextParameters.getBoolean(context, "capabilities.enabled", DEFAULT_ENABLED),
+            ContextParameters.getLong(context, "capabilities.ttl", DEFAULT_TTL));
+    }
+
+    /**
+     * Drops every cached document.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.invalidate(null);
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide cache, creating the default one if the
+     * application did not initialize it.
+     * @return the capabilities cache
+     */
+    public static CapabilitiesCache getInstance(){
+        CapabilitiesCache cache = instance;
+        if(cache == null){
+            synchronized(CapabilitiesCache.class){
+                if(instance == null){
+                    instance = new CapabilitiesCache(DEFAULT_ENABLED, DEFAULT_TTL);
+                }
+                cache = instance;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Indicates whether a request made to the proxy is a GetCapabilities.
+     * @param request
+     * A request to /geoserver/wms.
+     * @return true if the REQUEST parameter is GetCapabilities
+     */
+    public static boolean isGetCapabilities(HttpServletRequest request){
+        return CachePolicy.getRequestType(request).equals("GETCAPABILITIES");
+    }
+
+    private CapabilitiesCache(boolean enabled,long ttl){
+        this.enabled = enabled;
+        this.ttl = Math.max(0, ttl);
+        this.inputFactory = XMLInputFactory.newInstance();
+        //The DTD of WMS 1.1.1 must not be downloaded for every document
+        this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        this.outputFactory = XMLOutputFactory.newInstance();
+    }
+
+    /**
+     * Indicates whether GetCapabilities requests are answered by this cache.
+     * When it is disabled the documents are filtered for every request.
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled(){
+        return this.enabled;
+    }
+
+    /**
+     * Answers a GetCapabilities request with the document of the access level of the user.
+     * @param request
+     * An authorized GetCapabilities request to /geoserver/wms.
+     * @param response
+     * The response to the client.
+     * @param event
+     * The access log event of the request, filled with the status and the size
+     * of the response. The caller finishes it.
+     * @param layers
+     * The layers of the user.
+     * @param accessLevel
+     * The access level of the user.
+     */
+    public void write(HttpServletRequest request,HttpServletResponse response,AccessLogEvent event,LayerSet layers,String accessLevel){
+        final CachePolicy.Validators validators = CachePolicy.Validators.fromRequest(request);
+        final Document document;
+        try{
+            document = getDocument(GeoServerCommunication.getUpstreamPath(request), getVersion(request), layers, accessLevel);
+        }
+        catch(GeoServerCommunication.GeoserverCommunicationException e){
+            event.setStatus(HTTP_STATUS.SERVICE_UNAVAILABLE.getCode());
+            try{
+                response.sendError(HTTP_STATUS.SERVICE_UNAVAILABLE.getCode());
+            }
+            catch(IOException ex){
+                //The client closed the connection.
+            }
+            return;
+        }
+        final CachePolicy cachePolicy = CachePolicy.getInstance();
+        cachePolicy.applyHeaders(response, "GETCAPABILITIES", document.etag, document.lastModified);
+        response.setHeader("Vary", "Accept-Encoding");
+        if(validators.isNotModified(document.etag, document.lastModified)){
+            cachePolicy.sendNotModified(response);
+            event.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        final byte[] body;
+        if(acceptsGzip(request)){
+            body = document.gzipData;
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        else{
+            body = document.data;
+        }
+        response.setContentType(document.contentType);
+        response.setContentLength(body.length);
+        event.setStatus(HttpServletResponse.SC_OK);
+        try(OutputStream os = response.getOutputStream()){
+            os.write(body);
+            event.setBytes(body.length);
+        }
+        catch(IOException e){
+            //The client closed the connection.
+        }
+    }
+
+    /**
+     * Drops the documents of an access level. A document being built while the
+     * access level changes is not kept.
+     * @param accessLevel
+     * The name of the access level, or null to drop every document, including
+     * the documents of GeoServer.
+     */
+    public void invalidate(String accessLevel){
+        this.version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+        if(accessLevel == null){
+            this.upstreamDocuments.clear();
+            this.accessLevelDocuments.clear();
+        }
+        else{
+            final String prefix = accessLevel + "|";
+            for(String key : this.accessLevelDocuments.keySet()){
+                if(key.startsWith(prefix)){
+                    this.accessLevelDocuments.remove(key);
+                }
+            }
+        }
+    }
+
+    private Document getDocument(final String path,final String wmsVersion,final LayerSet layers,String accessLevel){
+        //Only the documents of the WMS service are kept, other paths are filtered for every request
+        if(!this.enabled || accessLevel == null || !path.equals(WMS_PATH)){
+            this.misses.incrementAndGet();
+            return filter(fetchUpstream(path, wmsVersion), layers);
+        }
+        final String key = accessLevel + "|" + wmsVersion;
+        final Document cached = this.accessLevelDocuments.get(key);
+        //A document built before the layers of the access level changed is not served
+        if(cached != null && !cached.isExpired() && cached.layers.equals(layers)){
+            this.hits.incrementAndGet();
+            return cached;
+        }
+        this.misses.incrementAndGet();
+        final long startVersion = this.version.get();
+        final Document document = execute(this.filterFlights, key + "|" + layers.hashCode(), new Callable<Document>(){
+            @Override
+            public Document call() {
+                return filter(getUpstreamDocument(path, wmsVersion), layers);
+            }
+        });
+        if(startVersion == this.version.get()){
+            this.accessLevelDocuments.put(key, document);
+        }
+        return document;
+    }
+
+    private Document getUpstreamDocument(final String path,final String wmsVersion){
+        final Document cached = this.upstreamDocuments.get(wmsVersion);
+        if(cached != null && !cached.isExpired()){
+            return cached;
+        }
+        final long startVersion = this.version.get();
+        final Document document = execute(this.upstreamFlights, wmsVersion, new Callable<Document>(){
+            @Override
+            public Document call() {
+                return fetchUpstream(path, wmsVersion);
+            }
+        });
+        if(startVersion == this.version.get()){
+            this.upstreamDocuments.put(wmsVersion, document);
+        }
+        return document;
+    }
+
+    private Document execute(SingleFlight<String,Document> flights,String key,Callable<Document> call){
+        try{
+            return flights.execute(key, call);
+        }
+        catch(ExecutionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new GeoServerCommunication.GeoserverCommunicationException(e.getMessage());
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new GeoServerCommunication.GeoserverCommunicationException("Interrupted while waiting for the capabilities");
+        }
+    }
+
+    private Document fetchUpstream(String path,String wmsVersion){
+        this.upstreamFetches.incrementAndGet();
+        final WMSResponse response = GeoServerCommunication.fetch(path + "?SERVICE=WMS&REQUEST=GetCapabilities&VERSION=" + wmsVersion, null);
+        if(response.isError()){
+            throw new GeoServerCommunication.GeoserverCommunicationException("GeoServer did not answer the capabilities: " + response.getErrorStatus());
+        }
+        return new Document(response.getContentType(), response.getData(), null, response.getLastModified(), System.currentTimeMillis() + this.ttl, null);
+    }
+
+    /**
+     * Copies the capabilities document without the named layers that are not in the set.
+     * The events of a Layer element are held until its Name is read, then they
+     * are either written or dropped with the rest of the element.
+     */
+    private Document filter(Document upstream,LayerSet layers){
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(upstream.data.length);
+        long dropped = 0;
+        try{
+            final XMLEventReader reader = this.inputFactory.createXMLEventReader(new ByteArrayInputStream(upstream.data));
+            final XMLEventWriter writer = this.outputFactory.createXMLEventWriter(output, "UTF-8");
+            //Events of the Layer whose Name is not known yet
+            List<XMLEvent> pending = null;
+            int pendingDepth = 0;
+            StringBuilder name = null;
+            //Depth inside a dropped Layer
+            int skipDepth = 0;
+            while(reader.hasNext()){
+                final XMLEvent event = reader.nextEvent();
+                if(skipDepth > 0){
+                    if(event.isStartElement()){
+                        skipDepth++;
+                    }
+                    else if(event.isEndElement()){
+                        skipDepth--;
+                    }
+                    continue;
+                }
+                if(event.isStartElement() && event.asStartElement().getName().getLocalPart().equals(LAYER)){
+                    //A Layer inside a Layer without Name: the outer one is a container and is kept
+                    if(pending != null){
+                        write(writer, pending);
+                    }
+                    pending = new ArrayList<>();
+                    pending.add(event);
+                    pendingDepth = 1;
+                    name = null;
+                }
+                else if(pending == null){
+                    writer.add(event);
+                }
+                else if(event.isStartElement()){
+                    if(pendingDepth == 1 && event.asStartElement().getName().getLocalPart().equals(NAME)){
+                        name = new StringBuilder();
+                    }
+                    pending.add(event);
+                    pendingDepth++;
+                }
+                else if(event.isEndElement()){
+                    pending.add(event);
+                    pendingDepth--;
+                    if(pendingDepth == 1 && name != null){
+                        if(layers.contains(name.toString().trim())){
+                            write(writer, pending);
+                        }
+                        else{
+                            dropped++;
+                            skipDepth = 1;
+                        }
+                        pending = null;
+                    }
+                    else if(pendingDepth == 0){
+                        write(writer, pending);
+                        pending = null;
+                    }
+                }
+                else{
+                    if(name != null && event.isCharacters()){
+                        name.append(event.asCharacters().getData());
+                    }
+                    pending.add(event);
+                }
+            }
+            writer.flush();
+            writer.close();
+            reader.close();
+        }
+        catch(XMLStreamException e){
+            LOGGER.log(Level.WARNING, "Could not filter the capabilities document of GeoServer", e);
+            throw new GeoServerCommunication.GeoserverCommunicationException("Invalid capabilities document");
+        }
+        this.filteredLayers.addAndGet(dropped);
+        final byte[] data = output.toByteArray();
+        return new Document(upstream.contentType, data, gzip(data), upstream.lastModified, upstream.expirationTime, layers);
+    }
+
+    private static void write(XMLEventWriter writer,List<XMLEvent> events) throws XMLStreamException{
+        for(XMLEvent event : events){
+            writer.add(event);
+        }
+    }
+
+    private static byte[] gzip(byte[] data){
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 4 + 64);
+        try(GZIPOutputStream gzipStream = new GZIPOutputStream(output)){
+            gzipStream.write(data);
+        }
+        catch(IOException e){
+            throw new IllegalStateException(e);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns the version of the document to be fetched from GeoServer. Any
+     * version requested by the client is negotiated to 1.1.1 or 1.3.0, so the
+     * cache holds at most two documents per access level.
+     */
+    private static String getVersion(HttpServletRequest request){
+        String requested = null;
+        for(Map.Entry<String,String[]> parameter : request.getParameterMap().entrySet()){
+            if(parameter.getValue().length > 0 && (parameter.getKey().equalsIgnoreCase("VERSION")
+                    || parameter.getKey().equalsIgnoreCase("WMTVER"))){
+                requested = parameter.getValue()[0].trim();
+            }
+        }
+        if(requested != null && (requested.startsWith("1.0") || requested.startsWith("1.1"))){
+            return "1.1.1";
+        }
+        return "1.3.0";
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request){
+        final String acceptEncoding = request.getHeader("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * filteredLayers is the number of Layer elements removed from the documents of GeoServer.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", this.enabled);
+        statistics.put("ttl", this.ttl);
+        statistics.put("documents", this.accessLevelDocuments.size());
+        long bytes = 0;
+        for(Document document : this.accessLevelDocuments.values()){
+            bytes += document.data.length + document.gzipData.length;
+        }
+        statistics.put("bytes", bytes);
+        statistics.put("hits", this.hits.get());
+        statistics.put("misses", this.misses.get());
+        statistics.put("upstreamFetches", this.upstreamFetches.get());
+        statistics.put("invalidations", this.invalidations.get());
+        statistics.put("filteredLayers", this.filteredLayers.get());
+        return statistics;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.domain.Feature;
+import br.eb.ime.pfc.domain.Layer;
+import br.eb.ime.pfc.listeners.ContextParameters;
+import flexjson.JSONDeserializer;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+
+/**
+ * Answers the GetFeatureInfo of several layers at once.
+ *
+ * A click on the map is sent to GeoServer as one GetFeatureInfo per layer, all
+ * of them in parallel on a bounded pool of threads, and the answers are merged
+ * in a single result. The attributes returned by GeoServer are projected to the
+ * {@link Feature}s configured on each {@link Layer}, labelled with their names,
+ * so attributes that are not shown to the user are not sent to the browser.
+ * Layers without features are not queried at all.
+ *
+ * The features of the layers are read from the database once, by the
+ * {@link LayerRegistry}, and kept until the administrator changes the layer.
+ *
+ * The following context parameters configure the queries:
+ * featureinfo.threads, featureinfo.queueSize, featureinfo.timeout (milliseconds)
+ * and featureinfo.featureCount (maximum number of features per layer).
+ */
+public final class FeatureInfoService {
+    private static final Logger LOGGER = Logger.getLogger(FeatureInfoService.class.getName());
+
+    public static final int DEFAULT_THREADS = 16;
+    public static final int DEFAULT_QUEUE_SIZE = 200;
+    public static final long DEFAULT_TIMEOUT = 10000;
+    public static final int DEFAULT_FEATURE_COUNT = 1;
+
+    /**
+     * Size in pixels of the window around the clicked point that is sent to GeoServer.
+     */
+    private static final int WINDOW_SIZE = 101;
+
+    private static volatile FeatureInfoService instance = null;
+
+    private final long timeout;
+    private final int featureCount;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong layerQueries = new AtomicLong();
+    private final AtomicLong skippedLayers = new AtomicLong();
+    private final AtomicLong failedLayerQueries = new AtomicLong();
+    private final AtomicLong timedOutLayerQueries = new AtomicLong();
+    private final AtomicLong rejectedLayerQueries = new AtomicLong();
+
+    /**
+     * Creates the application wide service from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        if(instance != null){
+            instance.shutdown();
+        }
+        instance = new FeatureInfoService(
+            ContextParameters.getInt(context, "featureinfo.threads", DEFAULT_THREADS),
+            ContextParameters.getInt(context, "featureinfo.queueSize", DEFAULT_QUEUE_SIZE),
+            ContextParameters.getLong(context, "featureinfo.timeout", DEFAULT_TIMEOUT),
+            ContextParameters.getInt(context, "featureinfo.featureCount", DEFAULT_FEATURE_COUNT));
+    }
+
+    /**
+     * Stops the query threads.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide service, creating the default one if the
+     * application did not initialize it.
+     * @return the feature info service
+     */
+    public static FeatureInfoService getInstance(){
+        FeatureInfoService service = instance;
+        if(service == null){
+            synchronized(FeatureInfoService.class){
+                if(instance == null){
+                    instance = new FeatureInfoService(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_TIMEOUT, DEFAULT_FEATURE_COUNT);
+                }
+                service = instance;
+            }
+        }
+        return service;
+    }
+
+    private FeatureInfoService(int threads,int queueSize,long timeout,int featureCount){
+        this.timeout = Math.max(1, timeout);
+        this.featureCount = Math.max(1, featureCount);
+        final int threadCount = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory(){
+            private final AtomicInteger threadNumber = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "FeatureInfoService-" + this.threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    private void shutdown(){
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Queries the features of several layers at a point of the map.
+     * Layers that fail or do not answer within featureinfo.timeout milliseconds
+     * are left out of the result.
+     * @param layerWmsIds
+     * The wmsIds of the layers, which must have been authorized already.
+     * @param x
+     * The first coordinate of the point.
+     * @param y
+     * The second coordinate of the point.
+     * @param resolution
+     * The resolution of the map, in units of the CRS per pixel.
+     * @param crs
+     * The coordinate reference system of the point, e.g. EPSG:3857.
+     * @return for each layer with features at the point, in the order of the
+     * request, a map with its wmsId, its name and its features, each one a map
+     * of the name of a {@link Feature} to its value
+     */
+    public List<Map<String,Object>> query(List<String> layerWmsIds,double x,double y,double resolution,final String crs){
+        this.queries.incrementAndGet();
+        final double halfWindow = resolution * (WINDOW_SIZE / 2);
+        final String boundingBox = (x - halfWindow) + "," + (y - halfWindow) + "," + (x + halfWindow) + "," + (y + halfWindow);
+        final List<Future<Map<String,Object>>> futures = new ArrayList<>(layerWmsIds.size());
+        for(final String layerWmsId : layerWmsIds){
+            try{
+                futures.add(this.executor.submit(new Callable<Map<String,Object>>(){
+                    @Override
+                    public Map<String,Object> call() {
+                        return queryLayer(layerWmsId, boundingBox, crs);
+                    }
+                }));
+            }
+            catch(RejectedExecutionException e){
+                this.rejectedLayerQueries.incrementAndGet();
+            }
+        }
+        final List<Map<String,Object>> results = new ArrayList<>();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeout);
+        for(Future<Map<String,Object>> future : futures){
+            try{
+                final Map<String,Object> result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if(result != null){
+                    results.add(result);
+                }
+            }
+            catch(TimeoutException e){
+                this.timedOutLayerQueries.incrementAndGet();
+                future.cancel(true);
+            }
+            catch(ExecutionException e){
+                this.failedLayerQueries.incrementAndGet();
+                LOGGER.log(Level.FINE, "GetFeatureInfo failed", e.getCause());
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private Map<String,Object> queryLayer(String layerWmsId,String boundingBox,String crs){
+        final LayerRegistry.LayerDefinition layer = LayerRegistry.getInstance().get(layerWmsId);
+        if(layer == null || layer.getFeatures().isEmpty()){
+            this.skippedLayers.incrementAndGet();
+            return null;
+        }
+        this.layerQueries.incrementAndGet();
+        final WMSResponse response = GeoServerCommunication.fetch(getPathAndQuery(layerWmsId, boundingBox, crs), layerWmsId);
+        if(response.isError()){
+            this.failedLayerQueries.incrementAndGet();
+            return null;
+        }
+        final List<Map<String,Object>> features = new ArrayList<>();
+        for(Map<String,Object> properties : readProperties(response.getData())){
+            final Map<String,Object> feature = new LinkedHashMap<>();
+            for(Feature configured : layer.getFeatures()){
+                final Object value = properties.get(configured.getWmsId());
+                if(value != null){
+                    feature.put(configured.getName(), value);
+                }
+            }
+            if(!feature.isEmpty()){
+                features.add(feature);
+            }
+        }
+        if(features.isEmpty()){
+            return null;
+        }
+        final Map<String,Object> result = new LinkedHashMap<>();
+        result.put("wmsId", layerWmsId);
+        result.put("name", layer.getName());
+        result.put("features", features);
+        return result;
+    }
+
+    private String getPathAndQuery(String layerWmsId,String boundingBox,String crs){
+        final int center = WINDOW_SIZE / 2;
+        try{
+            final String layer = URLEncoder.encode(layerWmsId, "UTF-8");
+            return "/wms?SERVICE=WMS&VERSION=1.3.0&REQUEST=GetFeatureInfo&FORMAT=image%2Fpng&STYLES="
+                    + "&LAYERS=" + layer + "&QUERY_LAYERS=" + layer
+                    + "&INFO_FORMAT=application%2Fjson&FEATURE_COUNT=" + this.featureCount
+                    + "&CRS=" + URLEncoder.encode(crs, "UTF-8") + "&BBOX=" + boundingBox
+                    + "&WIDTH=" + WINDOW_SIZE + "&HEIGHT=" + WINDOW_SIZE + "&I=" + center + "&J=" + center;
+        }
+        catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the properties of the features of a GeoJSON FeatureCollection.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Map<String,Object>> readProperties(byte[] data){
+        final List<Map<String,Object>> properties = new ArrayList<>();
+        final Object collection;
+        try{
+            collection = new JSONDeserializer<Object>().deserialize(new String(data, "UTF-8"));
+        }
+        catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+        catch(RuntimeException e){
+            //GeoServer answers with a service exception in XML when the layer can not be queried
+            return properties;
+        }
+        if(collection instanceof Map && ((Map<String,Object>) collection).get("features") instanceof List){
+            for(Object feature : (List<Object>) ((Map<String,Object>) collection).get("features")){
+                if(feature instanceof Map && ((Map<String,Object>) feature).get("properties") instanceof Map){
+                    properties.add((Map<String,Object>) ((Map<String,Object>) feature).get("properties"));
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * skippedLayers is the number of layers not sent to GeoServer because they have no features.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("threads", this.executor.getMaximumPoolSize());
+        statistics.put("activeThreads", this.executor.getActiveCount());
+        statistics.put("queuedLayerQueries", this.executor.getQueue().size());
+        statistics.put("timeout", this.timeout);
+        statistics.put("queries", this.queries.get());
+        statistics.put("layerQueries", this.layerQueries.get());
+        statistics.put("skippedLayers", this.skippedLayers.get());
+        statistics.put("failedLayerQueries", this.failedLayerQueries.get());
+        statistics.put("timedOutLayerQueries", this.timedOutLayerQueries.get());
+        statistics.put("rejectedLayerQueries", this.rejectedLayerQueries.get());
+        return statistics;
+    }
+}
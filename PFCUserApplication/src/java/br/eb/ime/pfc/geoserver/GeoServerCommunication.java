@@ -24,6 +24,8 @@
 package br.eb.ime.pfc.geoserver;
 
 import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.logging.AccessLog;
+import br.eb.ime.pfc.logging.AccessLogEvent;
 import it.geosolutions.geoserver.rest.GeoServerRESTPublisher;
 import it.geosolutions.geoserver.rest.GeoServerRESTReader;
 import it.geosolutions.geoserver.rest.decoder.RESTLayer;
@@ -34,16 +36,27 @@ import it.geosolutions.geoserver.rest.encoder.GSLayerEncoder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
 
 /**
  *
@@ -51,35 +64,41 @@ import org.apache.commons.io.IOUtils;
  */
 public class GeoServerCommunication {
     //private final static String GEOSERVER_URL = "http://ec2-54-94-206-253.sa-east-1.compute.amazonaws.com/geoserver";
-    private final static String GEOSERVER_URL = "http://localhost:9090";
+    final static String GEOSERVER_URL = "http://localhost:9090";
     //private final static String GEOSERVER_URL = "http://localhost:9090/geoserver";
     private final static String GEOSERVER_RESTUSER = "admin";
     private final static String GEOSERVER_RESTPW = "geoserver";
     private final static String BASE64_AUTHORIZATION = new String(Base64.encodeBase64((GEOSERVER_RESTUSER + ":" + GEOSERVER_RESTPW).getBytes()));
     
+    private static final SingleFlight<WMSRequestKey,WMSResponse> GETMAP_FLIGHTS = new SingleFlight<>();
+    private static final SingleFlight<WMSRequestKey,Map<WMSRequestKey,WMSResponse>> METATILE_FLIGHTS = new SingleFlight<>();
+    
     private final GeoServerRESTReader reader;
     private final GeoServerRESTPublisher publisher;
+    private final GeoServerNodePool.Node primary;
     
     public static GeoServerCommunication makeGeoserverCommunication() throws GeoserverCommunicationException{
         GeoServerRESTReader reader = null;
         GeoServerRESTPublisher publisher = null;
+        final GeoServerNodePool.Node primary = GeoServerNodePool.getInstance().getPrimary();
         
         try{
-            reader = new GeoServerRESTReader(GEOSERVER_URL, GEOSERVER_RESTUSER, GEOSERVER_RESTPW);
-            publisher = new GeoServerRESTPublisher(GEOSERVER_URL, GEOSERVER_RESTUSER, GEOSERVER_RESTPW);
+            reader = new GeoServerRESTReader(primary.getURL(), GEOSERVER_RESTUSER, GEOSERVER_RESTPW);
+            publisher = new GeoServerRESTPublisher(primary.getURL(), GEOSERVER_RESTUSER, GEOSERVER_RESTPW);
         }
         catch(MalformedURLException | IllegalArgumentException e){
-            throw new GeoserverCommunicationException("Could not stablish GeoserverCommunication due to malformed URL: "+GEOSERVER_URL);
+            throw new GeoserverCommunicationException("Could not stablish GeoserverCommunication due to malformed URL: "+primary.getURL());
         }
         if((reader != null) && (publisher != null)){
-            return new GeoServerCommunication(reader,publisher);
+            return new GeoServerCommunication(reader,publisher,primary);
         }
         else{
             throw new GeoserverCommunicationException("Could not stablish GeoserverCommunication due to unknown Problem.");
         }
     }
     
-    private static void sendError(HTTP_STATUS status,HttpServletResponse response){
+    private static void sendError(HTTP_STATUS status,HttpServletResponse response,AccessLogEvent event){
+        event.setStatus(status.getCode());
         try(Writer writer = response.getWriter()){
             response.sendError(status.getCode());
         }
@@ -87,99 +106,550 @@ public class GeoServerCommunication {
         }
     }
     
-    public static void redirectStreamFromRequest(HttpServletRequest request,HttpServletResponse response){
-        
-        final String urlName = GEOSERVER_URL + request.getRequestURI().replace(request.getContextPath()+"/geoserver","")+ "?" +request.getQueryString();
-        request.getServletContext().log("URL"+urlName);
-        request.getServletContext().log("CONTEXT"+request.getContextPath());
-        request.getServletContext().log("URL"+request.getRequestURI());
-        redirectStream(urlName,request,response);
+    /**
+     * Answers a WMS request made to the proxy with the response of GeoServer.
+     * @param request
+     * An authorized request to /geoserver/wms.
+     * @param key
+     * The key of the request returned by {@link #getGetMapKey(HttpServletRequest)},
+     * whose layers were authorized, or null if it is not a GetMap.
+     * @param response
+     * The response to the client.
+     * @param event
+     * The access log event of the request, filled with the status, the size and
+     * the upstream latency of the response. The caller finishes it.
+     */
+    public static void redirectStreamFromRequest(HttpServletRequest request,WMSRequestKey key,HttpServletResponse response,AccessLogEvent event){
+        final CachePolicy.Validators validators = CachePolicy.Validators.fromRequest(request);
+        if(key != null){
+            writeResponse(fetchTile(key),validators,key.getRequest(),response,event);
+            return;
+        }
+        redirectStream(getUpstreamPathAndQuery(request),getAffinityKey(request),CachePolicy.getRequestType(request),validators,response,event);
+    }
+    
+    /**
+     * Returns the path and query string, relative to the base URL of a GeoServer
+     * node, that answers a request made to the WMS proxy.
+     * @param request
+     * A request to /geoserver/wms.
+     * @return the path of the corresponding GeoServer service with the same query string
+     */
+    public static String getUpstreamPathAndQuery(HttpServletRequest request){
+        return getUpstreamPath(request) + "?" +request.getQueryString();
+    }
+    
+    /**
+     * Returns the path and query string, relative to the base URL of a GeoServer
+     * node, that answers a canonical WMS request.
+     * @param key
+     * The key of the request.
+     * @return the path of the corresponding GeoServer service with the canonical query string
+     */
+    public static String getUpstreamPathAndQuery(WMSRequestKey key){
+        return key.getPath() + "?" + key.toQueryString();
+    }
+    
+    /**
+     * Returns the layers of a request, used to send the requests of the same
+     * layers to the same GeoServer node when affinity is enabled.
+     * @param request
+     * A request to /geoserver/wms.
+     * @return the LAYERS (or LAYER) parameter or null if the request has none
+     */
+    public static String getAffinityKey(HttpServletRequest request){
+        String layer = null;
+        for(Map.Entry<String,String[]> parameter : request.getParameterMap().entrySet()){
+            if(parameter.getValue().length > 0){
+                if(parameter.getKey().equalsIgnoreCase("LAYERS")){
+                    return parameter.getValue()[0];
+                }
+                else if(parameter.getKey().equalsIgnoreCase("LAYER")){
+                    layer = parameter.getValue()[0];
+                }
+            }
+        }
+        return layer;
+    }
+    
+    static String getUpstreamPath(HttpServletRequest request){
+        return request.getRequestURI().replace(request.getContextPath()+"/geoserver","");
+    }
+    
+    /**
+     * Returns the key of a GetMap request, used by the tile cache and to
+     * coalesce identical concurrent requests.
+     * @param request
+     * A request to /geoserver/wms.
+     * @return the canonical key of the request or null if it is not a GetMap made with GET
+     */
+    public static WMSRequestKey getGetMapKey(HttpServletRequest request){
+        if(!request.getMethod().equals("GET")){
+            return null;
+        }
+        final WMSRequestKey key = WMSRequestKey.fromParameters(getUpstreamPath(request), request.getParameterMap());
+        return key.isGetMap() ? key : null;
     }
     
     public static void getLegendGraphic(String layerId,int width,int height,HttpServletRequest request,HttpServletResponse response){
-        final String urlName = GEOSERVER_URL + "/wms?" + "REQUEST=GetLegendGraphic&VERSION=1.0.0&FORMAT=image/png&WIDTH="
-                + width+"&HEIGHT="+height+"&LAYER="+layerId + "&EXCEPTIONS=application/vnd.ogc.se_blank";
-        redirectStream(urlName,request,response);
+        getLegendGraphic(layerId, "", width, height, request, response);
+    }
+    
+    /**
+     * Answers the legend of a layer, from the {@link LegendCache} when it is enabled.
+     * @param layerId
+     * The wmsId of the layer.
+     * @param style
+     * The style of the legend, or an empty String for the default style of the layer.
+     * @param width
+     * The width of the legend, in pixels.
+     * @param height
+     * The height of the legend, in pixels.
+     * @param request
+     * The request of the client.
+     * @param response
+     * The response to the client.
+     */
+    public static void getLegendGraphic(String layerId,String style,int width,int height,HttpServletRequest request,HttpServletResponse response){
+        final String pathAndQuery = getLegendPath(layerId, style, width, height);
+        final AccessLogEvent event = AccessLog.getInstance().startEvent(request, "GETLEGENDGRAPHIC", layerId);
+        final CachePolicy.Validators validators = CachePolicy.Validators.fromRequest(request);
+        final LegendCache legendCache = LegendCache.getInstance();
+        if(legendCache.isEnabled()){
+            writeResponse(legendCache.get(layerId, style, width, height, pathAndQuery),validators,"GETLEGENDGRAPHIC",response,event);
+        }
+        else{
+            redirectStream(pathAndQuery,layerId,"GETLEGENDGRAPHIC",validators,response,event);
+        }
+        event.finish();
+    }
+    
+    /**
+     * Returns the legend of a layer, from the {@link LegendCache} when it is enabled.
+     * @param layerId
+     * The wmsId of the layer.
+     * @param style
+     * The style of the legend, or an empty String for the default style of the layer.
+     * @param width
+     * The width of the legend, in pixels.
+     * @param height
+     * The height of the legend, in pixels.
+     * @return the legend or an error response if GeoServer could not answer
+     */
+    static WMSResponse fetchLegend(String layerId,String style,int width,int height){
+        final String pathAndQuery = getLegendPath(layerId, style, width, height);
+        final LegendCache legendCache = LegendCache.getInstance();
+        if(legendCache.isEnabled()){
+            return legendCache.get(layerId, style, width, height, pathAndQuery);
+        }
+        return fetch(pathAndQuery, layerId);
+    }
+    
+    private static String getLegendPath(String layerId,String style,int width,int height){
+        try{
+            return "/wms?" + "REQUEST=GetLegendGraphic&VERSION=1.0.0&FORMAT=image/png&WIDTH="
+                    + width+"&HEIGHT="+height+"&LAYER="+URLEncoder.encode(layerId, "UTF-8")
+                    + (style.equals("") ? "" : "&STYLE="+URLEncoder.encode(style, "UTF-8"))
+                    + "&EXCEPTIONS=application/vnd.ogc.se_blank";
+        }
+        catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
     }
     
-    private static void redirectStream(String urlName,HttpServletRequest request, HttpServletResponse response){
-        URL url = null;
+    /**
+     * Streams the response of GeoServer to the client. The conditional headers
+     * of the client are forwarded to GeoServer and its validators are passed back,
+     * so a 304 (Not Modified) of GeoServer reaches the client without a body.
+     * The body is copied with the buffers of the {@link BufferPool}.
+     */
+    private static void redirectStream(String pathAndQuery,String affinityKey,String requestType,CachePolicy.Validators validators,
+            HttpServletResponse response,AccessLogEvent event){
+        final GeoServerNodePool.Node node = GeoServerNodePool.getInstance().acquire(affinityKey);
+        if(node == null){
+            sendError(HTTP_STATUS.SERVICE_UNAVAILABLE,response,event);
+            return;
+        }
+        final GetMethod method;
         try{
-            url = new URL(urlName);
+            method = new GetMethod(node.getURL() + pathAndQuery);
         }
-        catch(MalformedURLException e){
+        catch(IllegalArgumentException | IllegalStateException e){
             //Internal error, the user will receive no data.
-            sendError(HTTP_STATUS.BAD_REQUEST,response);
+            node.cancel();
+            sendError(HTTP_STATUS.BAD_REQUEST,response,event);
             return;
         }
-        HttpURLConnection conn = null;
+        method.addRequestHeader("Authorization", "Basic "+BASE64_AUTHORIZATION);
+        if(validators.getIfNoneMatch() != null){
+            method.addRequestHeader("If-None-Match", validators.getIfNoneMatch());
+        }
+        if(validators.getIfModifiedSince() >= 0){
+            method.addRequestHeader("If-Modified-Since", DateUtil.formatDate(new Date(validators.getIfModifiedSince())));
+        }
+        final GeoServerConnectionPool connectionPool = GeoServerConnectionPool.getInstance();
+        final long start = System.nanoTime();
+        final int status;
         try{
-            conn = (HttpURLConnection) url.openConnection();
-            conn.addRequestProperty("Authorization", "Basic "+BASE64_AUTHORIZATION);
-            //conn.setRequestMethod("GET");
-            //conn.setDoOutput(true);
-            conn.connect();
+            status = connectionPool.execute(method);
+        }
+        catch(ConnectionPoolTimeoutException e){
+            //The local pool is saturated, which says nothing about the health of the node
+            node.cancel();
+            sendError(HTTP_STATUS.SERVICE_UNAVAILABLE,response,event);
+            return;
         }
         catch(IOException e){
-            sendError(HTTP_STATUS.INTERNAL_ERROR,response);
+            node.fail(start);
+            sendError(HTTP_STATUS.INTERNAL_ERROR,response,event);
             return;
         }
+        event.setUpstreamMillis((System.nanoTime() - start) / 1000000L);
+        node.complete(start, status);
         
-        try(InputStream is = conn.getInputStream();OutputStream os = response.getOutputStream()){
-            response.setContentType(conn.getContentType());
-            IOUtils.copy(is, os);
+        try{
+            if(status >= HTTP_STATUS.BAD_REQUEST.getCode()){
+                sendError(HTTP_STATUS.INTERNAL_ERROR,response,event);
+                return;
+            }
+            final Header etag = method.getResponseHeader("ETag");
+            final CachePolicy cachePolicy = CachePolicy.getInstance();
+            cachePolicy.applyHeaders(response, requestType, etag == null ? null : etag.getValue(), getLastModified(method, -1));
+            if(status == HttpServletResponse.SC_NOT_MODIFIED){
+                cachePolicy.sendNotModified(response);
+                event.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            final Header contentType = method.getResponseHeader("Content-Type");
+            if(contentType != null){
+                response.setContentType(contentType.getValue());
+            }
+            final InputStream is = method.getResponseBodyAsStream();
+            if(is != null){
+                event.setBytes(BufferPool.getInstance().copy(is, method.getResponseContentLength(), response));
+            }
+        }
+        catch(IOException e){
+            sendError(HTTP_STATUS.INTERNAL_ERROR,response,event);
+        }
+        finally{ //Give the kept-alive connection back to the pool
+            connectionPool.release(method);
+        }
+    }
+    
+    /**
+     * Requests a path to a GeoServer node and reads the whole response into memory.
+     * @param pathAndQuery
+     * The path and query string relative to the base URL of a node.
+     * @param affinityKey
+     * The layers of the request, see {@link GeoServerNodePool#acquire(String)}.
+     * @return the response or an error response if GeoServer could not answer
+     */
+    public static WMSResponse fetch(String pathAndQuery,String affinityKey){
+        final GeoServerNodePool.Node node = GeoServerNodePool.getInstance().acquire(affinityKey);
+        if(node == null){
+            return WMSResponse.error(HTTP_STATUS.SERVICE_UNAVAILABLE);
+        }
+        final GetMethod method;
+        try{
+            method = new GetMethod(node.getURL() + pathAndQuery);
+        }
+        catch(IllegalArgumentException | IllegalStateException e){
+            node.cancel();
+            return WMSResponse.error(HTTP_STATUS.BAD_REQUEST);
+        }
+        method.addRequestHeader("Authorization", "Basic "+BASE64_AUTHORIZATION);
+        final GeoServerConnectionPool connectionPool = GeoServerConnectionPool.getInstance();
+        final long start = System.nanoTime();
+        final int status;
+        try{
+            status = connectionPool.execute(method);
+        }
+        catch(ConnectionPoolTimeoutException e){
+            //The local pool is saturated, which says nothing about the health of the node
+            node.cancel();
+            return WMSResponse.error(HTTP_STATUS.SERVICE_UNAVAILABLE);
+        }
+        catch(IOException e){
+            node.fail(start);
+            return WMSResponse.error(HTTP_STATUS.INTERNAL_ERROR);
+        }
+        node.complete(start, status);
+        try{
+            if(status >= HTTP_STATUS.BAD_REQUEST.getCode()){
+                return WMSResponse.error(HTTP_STATUS.INTERNAL_ERROR);
+            }
+            final Header contentType = method.getResponseHeader("Content-Type");
+            final InputStream is = method.getResponseBodyAsStream();
+            final byte[] data = is == null ? new byte[0] : BufferPool.getInstance().read(is, method.getResponseContentLength());
+            return WMSResponse.success(contentType == null ? null : contentType.getValue(), data,
+                    getLastModified(method, System.currentTimeMillis()), (System.nanoTime() - start) / 1000000L);
+        }
+        catch(IOException e){
+            return WMSResponse.error(HTTP_STATUS.INTERNAL_ERROR);
+        }
+        finally{ //Give the kept-alive connection back to the pool
+            connectionPool.release(method);
+        }
+    }
+    
+    /**
+     * Checks whether a GeoServer node answers its REST API, used by the prober of {@link GeoServerNodePool}.
+     * @param nodeURL
+     * The base URL of the node.
+     * @param timeout
+     * The maximum time to wait for the response, in milliseconds.
+     * @return true if the node answered without a server error
+     * @throws ConnectionPoolTimeoutException if no connection of the local pool
+     * was available, so the node could not be checked
+     */
+    static boolean ping(String nodeURL,int timeout) throws ConnectionPoolTimeoutException{
+        final GetMethod method = new GetMethod(nodeURL + "/rest/");
+        method.addRequestHeader("Authorization", "Basic "+BASE64_AUTHORIZATION);
+        method.getParams().setSoTimeout(timeout);
+        final GeoServerConnectionPool connectionPool = GeoServerConnectionPool.getInstance();
+        final int status;
+        try{
+            status = connectionPool.execute(method);
+        }
+        catch(ConnectionPoolTimeoutException e){
+            throw e;
+        }
+        catch(IOException e){
+            return false;
+        }
+        try{
+            final InputStream is = method.getResponseBodyAsStream();
+            if(is != null){
+                BufferPool.getInstance().read(is, method.getResponseContentLength());
+            }
+            return status < HTTP_STATUS.INTERNAL_ERROR.getCode();
         }
         catch(IOException e){
-            request.getServletContext().log("IO");
-            sendError(HTTP_STATUS.INTERNAL_ERROR,response);
+            return false;
+        }
+        finally{ //Give the kept-alive connection back to the pool
+            connectionPool.release(method);
+        }
+    }
+    
+    /**
+     * Returns the Last-Modified header of a response of GeoServer in milliseconds.
+     */
+    private static long getLastModified(HttpMethod method,long defaultValue){
+        final Header lastModified = method.getResponseHeader("Last-Modified");
+        if(lastModified != null){
+            try{
+                return DateUtil.parseDate(lastModified.getValue()).getTime();
+            }
+            catch(DateParseException e){
+            }
+        }
+        return defaultValue;
+    }
+    
+    /**
+     * Answers a GetMap request from the tile cache. On a miss the tile is
+     * requested to GeoServer and stored in the cache if it is an image, so error
+     * documents of GeoServer are never cached.
+     * Identical requests that miss the cache at the same time share a single
+     * request to GeoServer.
+     * GeoServer is always sent the canonical query of the key, never the query
+     * string of the client, so the cached tile is exactly the tile of the key.
+     * @param key
+     * The key of the request.
+     * @return the response to be written to the client
+     */
+    public static WMSResponse fetchTile(final WMSRequestKey key){
+        final TileCache tileCache = TileCache.getInstance();
+        final WMSResponse tile = tileCache.get(key);
+        if(tile != null){
+            return tile;
+        }
+        //Metatiles are only useful if the siblings can be stored for the requests that follow
+        final Metatiler.Metatile metatile = tileCache.isEnabled() ? Metatiler.getInstance().getMetatile(key) : null;
+        if(metatile != null){
+            final WMSResponse response = fetchMetatile(metatile,key);
+            if(response != null){
+                return response;
+            }
+        }
+        try{
+            return GETMAP_FLIGHTS.execute(key, new Callable<WMSResponse>(){
+                @Override
+                public WMSResponse call() {
+                    final WMSResponse response = fetch(getUpstreamPathAndQuery(key),key.getParameter("LAYERS"));
+                    if(!response.isError() && response.getContentType() != null && response.getContentType().startsWith("image/")){
+                        tileCache.put(key, response);
+                    }
+                    return response;
+                }
+            });
+        }
+        catch(ExecutionException e){
+            return WMSResponse.error(HTTP_STATUS.INTERNAL_ERROR);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return WMSResponse.error(HTTP_STATUS.INTERNAL_ERROR);
+        }
+    }
+    
+    /**
+     * Requests the metatile that contains a tile to GeoServer, slices it and
+     * stores every tile of the metatile in the tile cache. Concurrent requests
+     * for tiles of the same metatile share a single request to GeoServer.
+     * @return the response of the tile or null if the metatile could not be sliced
+     */
+    private static WMSResponse fetchMetatile(final Metatiler.Metatile metatile,WMSRequestKey key){
+        final Map<WMSRequestKey,WMSResponse> tiles;
+        try{
+            tiles = METATILE_FLIGHTS.execute(metatile.getKey(), new Callable<Map<WMSRequestKey,WMSResponse>>(){
+                @Override
+                public Map<WMSRequestKey,WMSResponse> call() {
+                    final WMSResponse response = fetch(getUpstreamPathAndQuery(metatile.getKey()),metatile.getKey().getParameter("LAYERS"));
+                    if(response.isError()){
+                        final Map<WMSRequestKey,WMSResponse> errors = new HashMap<>();
+                        for(WMSRequestKey tileKey : metatile.getTileKeys()){
+                            errors.put(tileKey, response);
+                        }
+                        return errors;
+                    }
+                    final Map<WMSRequestKey,WMSResponse> slices = Metatiler.getInstance().slice(metatile, response);
+                    if(slices != null){
+                        final TileCache tileCache = TileCache.getInstance();
+                        for(Map.Entry<WMSRequestKey,WMSResponse> slice : slices.entrySet()){
+                            tileCache.put(slice.getKey(), slice.getValue());
+                        }
+                    }
+                    return slices;
+                }
+            });
+        }
+        catch(ExecutionException e){
+            return null;
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return WMSResponse.error(HTTP_STATUS.INTERNAL_ERROR);
+        }
+        return tiles == null ? null : tiles.get(key);
+    }
+    
+    /**
+     * Returns the statistics of the coalescing of identical GetMap requests.
+     * @return map of statistic name to value
+     */
+    public static Map<String,Object> getCoalescingStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("tiles", GETMAP_FLIGHTS.getStatistics());
+        statistics.put("metatiles", METATILE_FLIGHTS.getStatistics());
+        return statistics;
+    }
+    
+    /**
+     * Writes a response read into memory to the client, blocking the current thread.
+     * If the client already has the response a 304 (Not Modified) is sent instead.
+     * @param wmsResponse
+     * The response of GeoServer.
+     * @param validators
+     * The conditional headers of the request of the client.
+     * @param requestType
+     * The REQUEST parameter in upper case, which defines the Cache-Control.
+     * @param response
+     * The response to the client.
+     * @param event
+     * The access log event of the request.
+     */
+    public static void writeResponse(WMSResponse wmsResponse,CachePolicy.Validators validators,String requestType,
+            HttpServletResponse response,AccessLogEvent event){
+        event.setUpstreamMillis(wmsResponse.getUpstreamMillis());
+        if(wmsResponse.isError()){
+            sendError(wmsResponse.getErrorStatus(),response,event);
+            return;
+        }
+        final CachePolicy cachePolicy = CachePolicy.getInstance();
+        cachePolicy.applyHeaders(response, requestType, wmsResponse.getETag(), wmsResponse.getLastModified());
+        if(validators.isNotModified(wmsResponse.getETag(), wmsResponse.getLastModified())){
+            cachePolicy.sendNotModified(response);
+            event.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
             return;
         }
-        finally{ //Close connection to save resources
-            conn.disconnect();
+        if(wmsResponse.getContentType() != null){
+            response.setContentType(wmsResponse.getContentType());
+        }
+        response.setContentLength(wmsResponse.getData().length);
+        try(OutputStream os = response.getOutputStream()){
+            os.write(wmsResponse.getData());
+            event.setBytes(wmsResponse.getData().length);
+        }
+        catch(IOException e){
+            //The client closed the connection.
         }
     }
     
-    private GeoServerCommunication(GeoServerRESTReader reader, GeoServerRESTPublisher publisher){    
+    private GeoServerCommunication(GeoServerRESTReader reader, GeoServerRESTPublisher publisher, GeoServerNodePool.Node primary){    
         this.reader = reader;
         this.publisher = publisher;
+        this.primary = primary;
     }
     
     public boolean existsGeoserver(){
         return this.reader.existGeoserver();
     }
     
+    /**
+     * Returns the names of the layers of GeoServer.
+     * The availability of GeoServer is checked with the health state of the
+     * primary node ({@link GeoServerHealth}) instead of an extra request.
+     * @return the layer names
+     * @throws GeoserverCommunicationException if GeoServer is not available
+     */
     public List<String> getLayerNames() throws GeoserverCommunicationException{
-        if(this.reader.existGeoserver()){
+        final GeoServerHealth health = this.primary.getHealth();
+        if(health.allowRequest()){
             final List<String> layerNames = new ArrayList<>();
             final RESTLayerList restLayerList = this.reader.getLayers();
 
             if(restLayerList == null){
-                throw new GeoserverCommunicationException("Communication issue with Geoserver REST API at:"+GEOSERVER_URL);
+                health.recordFailure();
+                throw new GeoserverCommunicationException("Communication issue with Geoserver REST API at:"+this.primary.getURL());
             }
+            health.recordSuccess();
             for(NameLinkElem elem : restLayerList){
                 layerNames.add(elem.getName());
             }
             return layerNames;
         }
         else{
-            throw new GeoserverCommunicationException("Could not establish REST Communication with Server at +"+GEOSERVER_URL);
+            throw new GeoserverCommunicationException("Could not establish REST Communication with Server at +"+this.primary.getURL());
         }
     }
     
+    /**
+     * Returns the names of the styles of GeoServer.
+     * The availability of GeoServer is checked with the health state of the
+     * primary node ({@link GeoServerHealth}) instead of an extra request.
+     * @return the style names
+     * @throws GeoserverCommunicationException if GeoServer is not available
+     */
     public List<String> getStyleNames(){
-        if(this.reader.existGeoserver()){
+        final GeoServerHealth health = this.primary.getHealth();
+        if(health.allowRequest()){
             final List<String> styleNames = new ArrayList<>();
             final RESTStyleList restStyleList = this.reader.getStyles();
             if(restStyleList == null){
-                throw new GeoserverCommunicationException("Communication issue with Geoserver REST API at:"+GEOSERVER_URL);
+                health.recordFailure();
+                throw new GeoserverCommunicationException("Communication issue with Geoserver REST API at:"+this.primary.getURL());
             }
+            health.recordSuccess();
             for(NameLinkElem elem : restStyleList){
                 styleNames.add(elem.getName());
             }
             return styleNames;
         }
         else{
-            throw new GeoserverCommunicationException("Could not establish REST Communication with Server at +"+GEOSERVER_URL);
+            throw new GeoserverCommunicationException("Could not establish REST Communication with Server at +"+this.primary.getURL());
         }
     }
     
@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * Shared pool of keep-alive HTTP connections used to talk to GeoServer.
+ *
+ * The pool is owned by the web application: it is created by the
+ * ServletContextListener when the application starts and shut down when it is
+ * undeployed. Every proxied request borrows a connection from this pool and
+ * gives it back with {@link #release(HttpMethod)} once the response body has
+ * been read, so consecutive tiles reuse the same TCP connections instead of
+ * paying a handshake each.
+ *
+ * The following context parameters configure the pool:
+ * geoserver.pool.maxConnectionsPerHost, geoserver.pool.maxTotalConnections,
+ * geoserver.pool.connectTimeout, geoserver.pool.readTimeout,
+ * geoserver.pool.acquireTimeout and geoserver.pool.idleTimeout (milliseconds).
+ */
+public final class GeoServerConnectionPool {
+    private static final Logger LOGGER = Logger.getLogger(GeoServerConnectionPool.class.getName());
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 40;
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 80;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final int DEFAULT_READ_TIMEOUT = 60000;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT = 10000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static volatile GeoServerConnectionPool instance = null;
+
+    private final MultiThreadedHttpConnectionManager connectionManager;
+    private final HttpClient httpClient;
+    private final IdleConnectionTimeoutThread idleConnectionEvictor;
+    private final long idleTimeout;
+
+    private final AtomicLong executedRequests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong acquireTimeouts = new AtomicLong();
+    private final AtomicInteger leasedConnections = new AtomicInteger();
+
+    /**
+     * Creates the application wide pool from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        if(instance != null){
+            instance.shutdown();
+        }
+        instance = new GeoServerConnectionPool(
+            ContextParameters.getInt(context, "geoserver.pool.maxConnectionsPerHost", DEFAULT_MAX_CONNECTIONS_PER_HOST),
+            ContextParameters.getInt(context, "geoserver.pool.maxTotalConnections", DEFAULT_MAX_TOTAL_CONNECTIONS),
+            ContextParameters.getInt(context, "geoserver.pool.connectTimeout", DEFAULT_CONNECT_TIMEOUT),
+            ContextParameters.getInt(context, "geoserver.pool.readTimeout", DEFAULT_READ_TIMEOUT),
+            ContextParameters.getLong(context, "geoserver.pool.acquireTimeout", DEFAULT_ACQUIRE_TIMEOUT),
+            ContextParameters.getLong(context, "geoserver.pool.idleTimeout", DEFAULT_IDLE_TIMEOUT));
+    }
+
+    /**
+     * Closes every pooled connection and stops the idle connection evictor.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide pool.
+     * If the pool was not initialized by the application (e.g. when this class is
+     * used from a main method) a pool with the default configuration is created.
+     * @return the connection pool
+     */
+    public static GeoServerConnectionPool getInstance(){
+        GeoServerConnectionPool pool = instance;
+        if(pool == null){
+            synchronized(GeoServerConnectionPool.class){
+                if(instance == null){
+                    instance = new GeoServerConnectionPool(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_TOTAL_CONNECTIONS,
+                            DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_ACQUIRE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+                }
+                pool = instance;
+            }
+        }
+        return pool;
+    }
+
+    private GeoServerConnectionPool(int maxConnectionsPerHost,int maxTotalConnections,int connectTimeout,
+            int readTimeout,long acquireTimeout,long idleTimeout){
+        this.idleTimeout = idleTimeout;
+        this.connectionManager = new MultiThreadedHttpConnectionManager();
+        final HttpConnectionManagerParams params = this.connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setConnectionTimeout(connectTimeout);
+        params.setSoTimeout(readTimeout);
+        params.setStaleCheckingEnabled(true);
+        params.setTcpNoDelay(true);
+
+        this.httpClient = new HttpClient(this.connectionManager);
+        this.httpClient.getParams().setConnectionManagerTimeout(acquireTimeout);
+
+        this.idleConnectionEvictor = new IdleConnectionTimeoutThread();
+        this.idleConnectionEvictor.setName("GeoServerConnectionPool-IdleEvictor");
+        this.idleConnectionEvictor.setConnectionTimeout(idleTimeout);
+        this.idleConnectionEvictor.setTimeoutInterval(Math.max(1000, idleTimeout / 2));
+        this.idleConnectionEvictor.addConnectionManager(this.connectionManager);
+        this.idleConnectionEvictor.start();
+
+        LOGGER.log(Level.INFO, "GeoServer connection pool created: {0} connections per host, {1} in total",
+                new Object[]{maxConnectionsPerHost, maxTotalConnections});
+    }
+
+    /**
+     * Executes a method using a pooled connection.
+     * The caller must call {@link #release(HttpMethod)} when it is done with the
+     * response, preferably after reading the whole body so the connection can be kept alive.
+     * If this method throws an exception the connection is already released.
+     * @param method
+     * The http method to be executed.
+     * @return the HTTP status code of the response.
+     * @throws IOException
+     * If no connection could be acquired or the request failed.
+     */
+    public int execute(HttpMethod method) throws IOException{
+        this.leasedConnections.incrementAndGet();
+        try{
+            final int status = this.httpClient.executeMethod(method);
+            this.executedRequests.incrementAndGet();
+            return status;
+        }
+        catch(ConnectionPoolTimeoutException e){
+            this.acquireTimeouts.incrementAndGet();
+            this.leasedConnections.decrementAndGet();
+            throw e;
+        }
+        catch(IOException | RuntimeException e){
+            this.failedRequests.incrementAndGet();
+            this.leasedConnections.decrementAndGet();
+            method.releaseConnection();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives the connection used by the method back to the pool.
+     * @param method
+     * A method previously executed with {@link #execute(HttpMethod)}.
+     */
+    public void release(HttpMethod method){
+        this.leasedConnections.decrementAndGet();
+        method.releaseConnection();
+    }
+
+    /**
+     * Returns a snapshot of the pool statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final HttpConnectionManagerParams params = this.connectionManager.getParams();
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("maxConnectionsPerHost", params.getDefaultMaxConnectionsPerHost());
+        statistics.put("maxTotalConnections", params.getMaxTotalConnections());
+        statistics.put("connectionsInPool", this.connectionManager.getConnectionsInPool());
+        statistics.put("leasedConnections", this.leasedConnections.get());
+        statistics.put("idleTimeout", this.idleTimeout);
+        statistics.put("executedRequests", this.executedRequests.get());
+        statistics.put("failedRequests", this.failedRequests.get());
+        statistics.put("acquireTimeouts", this.acquireTimeouts.get());
+        return statistics;
+    }
+
+    private void shutdown(){
+        this.idleConnectionEvictor.shutdown();
+        this.connectionManager.shutdown();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+
+/**
+ * Health state of a GeoServer node: a circuit breaker fed by the outcome of
+ * every request to the node and by the prober of the {@link GeoServerNodePool}.
+ *
+ * While the circuit is CLOSED requests go to the node. After
+ * geoserver.health.failureThreshold consecutive failures, or a failed probe, the
+ * circuit OPENS and the node is ejected from the pool: requests go to the other
+ * nodes or, if there is none, fail fast instead of waiting for the connect
+ * timeout, so the proxy only answers what is in its caches. After
+ * geoserver.health.openTimeout milliseconds the circuit is HALF_OPEN and a
+ * single trial request is let through: its success closes the circuit and its
+ * failure opens it again. A successful probe closes the circuit at once,
+ * readmitting the node.
+ *
+ * The following context parameters configure the health of the nodes:
+ * geoserver.health.probeInterval, geoserver.health.probeTimeout,
+ * geoserver.health.openTimeout (milliseconds) and geoserver.health.failureThreshold.
+ */
+public final class GeoServerHealth {
+    private static final Logger LOGGER = Logger.getLogger(GeoServerHealth.class.getName());
+
+    public static final long DEFAULT_PROBE_INTERVAL = 5000;
+    public static final int DEFAULT_PROBE_TIMEOUT = 3000;
+    public static final long DEFAULT_OPEN_TIMEOUT = 10000;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String nodeURL;
+    private final int probeTimeout;
+    private final long openTimeout;
+    private final int failureThreshold;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long stateChangeTime = System.currentTimeMillis();
+
+    private volatile long lastProbeTime = -1;
+    private volatile boolean lastProbeSucceeded = false;
+    private volatile long lastProbeMillis = -1;
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong openings = new AtomicLong();
+
+    GeoServerHealth(String nodeURL,int probeTimeout,long openTimeout,int failureThreshold){
+        this.nodeURL = nodeURL;
+        this.probeTimeout = Math.max(100, probeTimeout);
+        this.openTimeout = Math.max(0, openTimeout);
+        this.failureThreshold = Math.max(1, failureThreshold);
+    }
+
+    /**
+     * Checks the node and updates its state. Called by the prober of the pool.
+     */
+    void probe(){
+        final long start = System.nanoTime();
+        boolean succeeded;
+        try{
+            succeeded = GeoServerCommunication.ping(this.nodeURL, this.probeTimeout);
+        }
+        catch(ConnectionPoolTimeoutException e){
+            //The local pool is saturated, which says nothing about the health of the node
+            LOGGER.log(Level.FINE, "GeoServer node {0} not probed, no connection available", this.nodeURL);
+            return;
+        }
+        catch(RuntimeException e){
+            succeeded = false;
+        }
+        this.lastProbeMillis = (System.nanoTime() - start) / 1000000L;
+        this.lastProbeTime = System.currentTimeMillis();
+        this.lastProbeSucceeded = succeeded;
+        if(succeeded){
+            recordSuccess();
+        }
+        else{
+            open(this.state.get());
+        }
+    }
+
+    /**
+     * Indicates whether a request may be sent to GeoServer. Requests that are
+     * not allowed should fail at once with 503 (Service Unavailable).
+     * Every allowed request must report its outcome with {@link #recordSuccess()}
+     * or {@link #recordFailure()}.
+     * @return true if the circuit is closed or if this request is the trial of a half open circuit
+     */
+    public boolean allowRequest(){
+        final State current = this.state.get();
+        if(current == State.CLOSED){
+            return true;
+        }
+        //A trial that never reported does not keep the circuit half open forever
+        if(System.currentTimeMillis() - this.stateChangeTime >= this.openTimeout
+                && this.state.compareAndSet(current, State.HALF_OPEN)){
+            this.stateChangeTime = System.currentTimeMillis();
+            return true;
+        }
+        this.rejectedRequests.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Indicates whether GeoServer is believed to be available, without any request to it.
+     * @return false if the circuit is open
+     */
+    public boolean isAvailable(){
+        return this.state.get() != State.OPEN;
+    }
+
+    /**
+     * Reports that GeoServer answered a request.
+     */
+    public void recordSuccess(){
+        this.consecutiveFailures.set(0);
+        final State current = this.state.get();
+        if(current != State.CLOSED && this.state.compareAndSet(current, State.CLOSED)){
+            this.stateChangeTime = System.currentTimeMillis();
+            LOGGER.log(Level.INFO, "GeoServer node {0} is available again, circuit closed", this.nodeURL);
+        }
+    }
+
+    /**
+     * Reports that a request to GeoServer failed: it could not connect, timed
+     * out or GeoServer answered with a server error.
+     */
+    public void recordFailure(){
+        final int failures = this.consecutiveFailures.incrementAndGet();
+        final State current = this.state.get();
+        if(current == State.HALF_OPEN || (current == State.CLOSED && failures >= this.failureThreshold)){
+            open(current);
+        }
+    }
+
+    private void open(State current){
+        if(current == State.OPEN){
+            return;
+        }
+        if(this.state.compareAndSet(current, State.OPEN)){
+            this.stateChangeTime = System.currentTimeMillis();
+            this.openings.incrementAndGet();
+            LOGGER.log(Level.WARNING, "GeoServer node {0} is unavailable, circuit opened for {1} ms", new Object[]{this.nodeURL, this.openTimeout});
+        }
+    }
+
+    public State getState(){
+        return this.state.get();
+    }
+
+    /**
+     * Returns a snapshot of the health of GeoServer.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("state", this.state.get().name());
+        statistics.put("stateChangeTime", this.stateChangeTime);
+        statistics.put("consecutiveFailures", this.consecutiveFailures.get());
+        statistics.put("failureThreshold", this.failureThreshold);
+        statistics.put("openTimeout", this.openTimeout);
+        statistics.put("openings", this.openings.get());
+        statistics.put("rejectedRequests", this.rejectedRequests.get());
+        statistics.put("lastProbeTime", this.lastProbeTime);
+        statistics.put("lastProbeSucceeded", this.lastProbeSucceeded);
+        statistics.put("lastProbeMillis", this.lastProbeMillis);
+        return statistics;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+
+/**
+ * The GeoServer nodes that render the requests of the WMS proxy.
+ *
+ * Each request goes to the healthy node with the least outstanding requests.
+ * When affinity is enabled, requests of the same layers prefer the same node,
+ * chosen by rendezvous hashing, so the tile and feature caches of each node stay
+ * warm; a node is only preferred while it has at most geoserver.nodes.affinitySlack
+ * more outstanding requests than the least loaded node.
+ *
+ * A node whose circuit ({@link GeoServerHealth}) is open is ejected from the
+ * pool and readmitted when a probe succeeds. If every node is ejected a trial
+ * request is let through after the open timeout of a node.
+ *
+ * The following context parameters configure the pool:
+ * geoserver.nodes (comma separated base URLs, the first node also answers the
+ * REST API), geoserver.nodes.affinity and geoserver.nodes.affinitySlack,
+ * besides the geoserver.health.* parameters of the nodes.
+ */
+public final class GeoServerNodePool {
+    private static final Logger LOGGER = Logger.getLogger(GeoServerNodePool.class.getName());
+
+    public static final boolean DEFAULT_AFFINITY = false;
+    public static final int DEFAULT_AFFINITY_SLACK = 8;
+    //Weight of the last request in the average latency of a node
+    private static final double LATENCY_WEIGHT = 0.1;
+
+    private static volatile GeoServerNodePool instance = null;
+
+    private final List<Node> nodes;
+    private final boolean affinity;
+    private final int affinitySlack;
+    private final long probeInterval;
+    private final ScheduledExecutorService prober;
+    private final AtomicInteger nextNode = new AtomicInteger();
+    private final AtomicLong unavailableRequests = new AtomicLong();
+
+    /**
+     * Creates the application wide pool from the context parameters of the web
+     * application and starts the prober of the nodes.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        destroy();
+        final List<String> urls = new ArrayList<>();
+        for(String url : ContextParameters.getString(context, "geoserver.nodes", GeoServerCommunication.GEOSERVER_URL).split(",")){
+            final String trimmedURL = url.trim();
+            if(!trimmedURL.equals("")){
+                urls.add(trimmedURL.endsWith("/") ? trimmedURL.substring(0, trimmedURL.length() - 1) : trimmedURL);
+            }
+        }
+        if(urls.isEmpty()){
+            urls.add(GeoServerCommunication.GEOSERVER_URL);
+        }
+        instance = new GeoServerNodePool(urls,
+            ContextParameters.getBoolean(context, "geoserver.nodes.affinity", DEFAULT_AFFINITY),
+            ContextParameters.getInt(context, "geoserver.nodes.affinitySlack", DEFAULT_AFFINITY_SLACK),
+            ContextParameters.getLong(context, "geoserver.health.probeInterval", GeoServerHealth.DEFAULT_PROBE_INTERVAL),
+            ContextParameters.getInt(context, "geoserver.health.probeTimeout", GeoServerHealth.DEFAULT_PROBE_TIMEOUT),
+            ContextParameters.getLong(context, "geoserver.health.openTimeout", GeoServerHealth.DEFAULT_OPEN_TIMEOUT),
+            ContextParameters.getInt(context, "geoserver.health.failureThreshold", GeoServerHealth.DEFAULT_FAILURE_THRESHOLD),
+            true);
+    }
+
+    /**
+     * Stops the prober of the nodes.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            if(instance.prober != null){
+                instance.prober.shutdownNow();
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide pool.
+     * If the pool was not initialized by the application (e.g. when this class is
+     * used from a main method) a pool with the default node and without prober is created.
+     * @return the node pool
+     */
+    public static GeoServerNodePool getInstance(){
+        GeoServerNodePool pool = instance;
+        if(pool == null){
+            synchronized(GeoServerNodePool.class){
+                if(instance == null){
+                    instance = new GeoServerNodePool(Collections.singletonList(GeoServerCommunication.GEOSERVER_URL),
+                            DEFAULT_AFFINITY, DEFAULT_AFFINITY_SLACK, GeoServerHealth.DEFAULT_PROBE_INTERVAL,
+                            GeoServerHealth.DEFAULT_PROBE_TIMEOUT, GeoServerHealth.DEFAULT_OPEN_TIMEOUT,
+                            GeoServerHealth.DEFAULT_FAILURE_THRESHOLD, false);
+                }
+                pool = instance;
+            }
+        }
+        return pool;
+    }
+
+    private GeoServerNodePool(List<String> urls,boolean affinity,int affinitySlack,long probeInterval,
+            int probeTimeout,long openTimeout,int failureThreshold,boolean startProber){
+        final List<Node> poolNodes = new ArrayList<>();
+        for(String url : urls){
+            poolNodes.add(new Node(url, new GeoServerHealth(url, probeTimeout, openTimeout, failureThreshold)));
+        }
+        this.nodes = Collections.unmodifiableList(poolNodes);
+        this.affinity = affinity;
+        this.affinitySlack = Math.max(0, affinitySlack);
+        this.probeInterval = Math.max(100, probeInterval);
+        if(startProber){
+            this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "GeoServerNodePool-Prober");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.prober.scheduleWithFixedDelay(new Runnable(){
+                @Override
+                public void run() {
+                    for(Node node : nodes){
+                        node.health.probe();
+                    }
+                }
+            }, 0, this.probeInterval, TimeUnit.MILLISECONDS);
+            LOGGER.log(Level.INFO, "GeoServer node pool created with {0} nodes, affinity {1}",
+                    new Object[]{this.nodes.size(), affinity});
+        }
+        else{
+            this.prober = null;
+        }
+    }
+
+    /**
+     * Chooses the node that answers a request and counts the request as outstanding.
+     * The caller must report the outcome of the request with
+     * {@link Node#complete(long, int)}, {@link Node#fail(long)} or {@link Node#cancel()}.
+     * @param affinityKey
+     * The layers of the request, used to prefer the same node for the same layers, or null.
+     * @return the node or null if every node is unavailable
+     */
+    public Node acquire(String affinityKey){
+        final Node node = select(affinityKey);
+        if(node == null){
+            this.unavailableRequests.incrementAndGet();
+            return null;
+        }
+        node.inFlight.incrementAndGet();
+        return node;
+    }
+
+    private Node select(String affinityKey){
+        final int size = this.nodes.size();
+        //Ties are broken round robin
+        final int offset = (this.nextNode.getAndIncrement() & Integer.MAX_VALUE) % size;
+        Node leastLoaded = null;
+        int leastInFlight = Integer.MAX_VALUE;
+        for(int i = 0;i < size;i++){
+            final Node node = this.nodes.get((offset + i) % size);
+            if(node.health.getState() == GeoServerHealth.State.CLOSED){
+                final int inFlight = node.inFlight.get();
+                if(inFlight < leastInFlight){
+                    leastInFlight = inFlight;
+                    leastLoaded = node;
+                }
+            }
+        }
+        if(leastLoaded == null){
+            //Every node is ejected, one of them may take a trial request
+            for(int i = 0;i < size;i++){
+                final Node node = this.nodes.get((offset + i) % size);
+                if(node.health.allowRequest()){
+                    return node;
+                }
+            }
+            return null;
+        }
+        if(!this.affinity || affinityKey == null || size == 1){
+            return leastLoaded;
+        }
+        final long keyHash = hash(affinityKey.hashCode());
+        Node preferred = leastLoaded;
+        long preferredScore = Long.MIN_VALUE;
+        for(Node node : this.nodes){
+            if(node.health.getState() == GeoServerHealth.State.CLOSED && node.inFlight.get() <= leastInFlight + this.affinitySlack){
+                final long score = hash(node.hash ^ keyHash);
+                if(score > preferredScore){
+                    preferredScore = score;
+                    preferred = node;
+                }
+            }
+        }
+        return preferred;
+    }
+
+    /**
+     * Mixes the bits of a value (the finalizer of MurmurHash3), so the scores of
+     * rendezvous hashing are uniformly distributed.
+     */
+    private static long hash(long value){
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Returns the first node, that also answers the REST API.
+     * @return the primary node
+     */
+    public Node getPrimary(){
+        return this.nodes.get(0);
+    }
+
+    /**
+     * Indicates whether any node is believed to be available, without any request to them.
+     * @return true if the circuit of some node is not open
+     */
+    public boolean isAvailable(){
+        for(Node node : this.nodes){
+            if(node.health.isAvailable()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of requests being answered by the nodes.
+     * @return the outstanding requests of every node
+     */
+    public int getInFlightRequests(){
+        int inFlight = 0;
+        for(Node node : this.nodes){
+            inFlight += node.inFlight.get();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the pool and of each node.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("affinity", this.affinity);
+        statistics.put("affinitySlack", this.affinitySlack);
+        statistics.put("probeInterval", this.prober != null ? this.probeInterval : -1);
+        statistics.put("unavailableRequests", this.unavailableRequests.get());
+        final List<Map<String,Object>> nodeStatistics = new ArrayList<>();
+        for(Node node : this.nodes){
+            nodeStatistics.add(node.getStatistics());
+        }
+        statistics.put("nodes", nodeStatistics);
+        return statistics;
+    }
+
+    /**
+     * A GeoServer node, with its health and the metrics of its requests.
+     */
+    public static final class Node {
+        private final String url;
+        private final long hash;
+        private final GeoServerHealth health;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        //Exponentially weighted moving average of the latency, in nanoseconds
+        private final AtomicLong averageLatency = new AtomicLong(-1);
+
+        private Node(String url,GeoServerHealth health){
+            this.url = url;
+            this.hash = hash(url.hashCode());
+            this.health = health;
+        }
+
+        /**
+         * Returns the base URL of the node, without a trailing '/'.
+         * @return url
+         */
+        public String getURL(){
+            return this.url;
+        }
+
+        public GeoServerHealth getHealth(){
+            return this.health;
+        }
+
+        /**
+         * Reports that the node answered a request.
+         * @param startNanos
+         * The value of System.nanoTime() when the request was sent.
+         * @param status
+         * The HTTP status of the response. Server errors count as failures.
+         */
+        public void complete(long startNanos,int status){
+            this.inFlight.decrementAndGet();
+            this.requests.incrementAndGet();
+            updateLatency(System.nanoTime() - startNanos);
+            if(status >= 500){
+                this.failures.incrementAndGet();
+                this.health.recordFailure();
+            }
+            else{
+                this.health.recordSuccess();
+            }
+        }
+
+        /**
+         * Reports that a request to the node could not be made or timed out.
+         * @param startNanos
+         * The value of System.nanoTime() when the request was sent.
+         */
+        public void fail(long startNanos){
+            this.inFlight.decrementAndGet();
+            this.requests.incrementAndGet();
+            this.failures.incrementAndGet();
+            updateLatency(System.nanoTime() - startNanos);
+            this.health.recordFailure();
+        }
+
+        /**
+         * Reports that a request acquired for the node was not sent.
+         */
+        public void cancel(){
+            this.inFlight.decrementAndGet();
+        }
+
+        private void updateLatency(long latency){
+            while(true){
+                final long average = this.averageLatency.get();
+                final long newAverage = average < 0 ? latency : (long) (average + LATENCY_WEIGHT * (latency - average));
+                if(this.averageLatency.compareAndSet(average, newAverage)){
+                    return;
+                }
+            }
+        }
+
+        private Map<String,Object> getStatistics(){
+            final Map<String,Object> statistics = new LinkedHashMap<>();
+            statistics.put("url", this.url);
+            statistics.put("inFlightRequests", this.inFlight.get());
+            statistics.put("requests", this.requests.get());
+            statistics.put("failures", this.failures.get());
+            final long average = this.averageLatency.get();
+            statistics.put("averageLatencyMillis", average < 0 ? -1 : average / 1000000.0);
+            statistics.put("health", this.health.getStatistics());
+            return statistics;
+        }
+    }
+}
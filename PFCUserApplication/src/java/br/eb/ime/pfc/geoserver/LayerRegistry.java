@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.domain.Feature;
+import br.eb.ime.pfc.domain.Layer;
+import br.eb.ime.pfc.domain.LayerManager;
+import br.eb.ime.pfc.domain.ObjectNotFoundException;
+import br.eb.ime.pfc.hibernate.HibernateUtil;
+import br.eb.ime.pfc.hibernate.LoadingCache;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+/**
+ * The configuration of each layer that the requests to GeoServer need, as known
+ * by this node of the user application: its name, its style and the features
+ * shown to the users.
+ *
+ * Each layer is read from the database the first time it is used and kept until
+ * the administrator changes it, so the {@link TileGrid} and the
+ * {@link FeatureInfoService} share a single read of each layer.
+ */
+public final class LayerRegistry {
+    private static volatile LayerRegistry instance = null;
+
+    private final LoadingCache<String,LayerDefinition> layers = new LoadingCache<String,LayerDefinition>(){
+        @Override
+        protected LayerDefinition load(String layerWmsId) throws HibernateException{
+            return read(layerWmsId);
+        }
+    };
+
+    /**
+     * The name, the style and the features of a layer, detached from the database.
+     */
+    public static final class LayerDefinition {
+        private final String name;
+        private final String style;
+        private final List<Feature> features;
+
+        private LayerDefinition(String name,String style,List<Feature> features){
+            this.name = name;
+            this.style = style;
+            this.features = features;
+        }
+
+        public String getName(){
+            return this.name;
+        }
+
+        /**
+         * Returns the style configured on the layer.
+         * @return the style, or an empty String for the default style of GeoServer
+         */
+        public String getStyle(){
+            return this.style;
+        }
+
+        /**
+         * Returns the features shown to the users.
+         * @return an unmodifiable list of features
+         */
+        public List<Feature> getFeatures(){
+            return this.features;
+        }
+    }
+
+    /**
+     * Returns the application wide registry.
+     * @return the layer registry
+     */
+    public static LayerRegistry getInstance(){
+        LayerRegistry registry = instance;
+        if(registry == null){
+            synchronized(LayerRegistry.class){
+                if(instance == null){
+                    instance = new LayerRegistry();
+                }
+                registry = instance;
+            }
+        }
+        return registry;
+    }
+
+    private LayerRegistry(){
+
+    }
+
+    /**
+     * Returns the configuration of a layer.
+     * @param layerWmsId
+     * The wmsId of the layer.
+     * @return the layer, or null if it does not exist
+     * @throws HibernateException if the layer had to be read from the database and could not
+     */
+    public LayerDefinition get(String layerWmsId) throws HibernateException{
+        return this.layers.get(layerWmsId);
+    }
+
+    /**
+     * Forgets a layer, which is read again by its next use.
+     * @param layerWmsId
+     * The wmsId of the layer, or null to forget every layer.
+     */
+    public void invalidate(String layerWmsId){
+        this.layers.invalidate(layerWmsId);
+    }
+
+    private static LayerDefinition read(final String layerWmsId) throws HibernateException{
+        return HibernateUtil.read(new HibernateUtil.Work<LayerDefinition>(){
+            @Override
+            public LayerDefinition execute(Session session) throws HibernateException{
+                final Layer layer;
+                try{
+                    layer = new LayerManager(session).getById(layerWmsId);
+                }
+                catch(ObjectNotFoundException e){
+                    return null;
+                }
+                final List<Feature> features = new ArrayList<>();
+                for(Feature feature : layer.getFeatures()){
+                    features.add(feature.clone());
+                }
+                return new LayerDefinition(layer.getName(), layer.getStyle() == null ? "" : layer.getStyle(),
+                        Collections.unmodifiableList(features));
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("cachedLayers", this.layers.size());
+        statistics.put("loads", this.layers.getLoads());
+        return statistics;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.domain.HTTP_STATUS;
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+
+/**
+ * In-memory cache of the legends of the layers, the responses of GetLegendGraphic.
+ *
+ * Legends are keyed by layer, style, width and height and kept with the ETag of
+ * their bytes, so the legend images of the layer list are answered without
+ * GeoServer and revalidated by the browsers with 304 (Not Modified). Identical
+ * concurrent misses are coalesced into a single request to GeoServer.
+ *
+ * The legends of a layer are dropped when the administrator changes the layer,
+ * e.g. its default style, and the legends drawn with a style are dropped when
+ * the administrator updates or removes the style. Since the default style of a
+ * layer is only known by GeoServer, legends requested without a style are also
+ * dropped when any style changes. No legend is kept longer than legend.ttl
+ * milliseconds, and the least recently used legends are evicted beyond
+ * legend.maxEntries.
+ *
+ * The following context parameters configure the cache:
+ * legend.enabled, legend.maxEntries and legend.ttl (milliseconds).
+ */
+public final class LegendCache {
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_TTL = 3600000;
+
+    private static volatile LegendCache instance = null;
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttl;
+
+    //Guarded by itself, in access order
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final SingleFlight<String,WMSResponse> flights = new SingleFlight<>();
+    private final AtomicLong version = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static final class Entry {
+        private final String layer;
+        private final String style;
+        private final WMSResponse response;
+        private final long expirationTime;
+
+        private Entry(String layer,String style,WMSResponse response,long expirationTime){
+            this.layer = layer;
+            this.style = style;
+            this.response = response;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    /**
+     * Creates the application wide cache from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new LegendCache(
+            ContextParameters.getBoolean(context, "legend.enabled", DEFAULT_ENABLED),
+            ContextParameters.getInt(context, "legend.maxEntries", DEFAULT_MAX_ENTRIES),
+            ContextParameters.getLong(context, "legend.ttl", DEFAULT_TTL));
+    }
+
+    /**
+     * Drops every cached legend.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.invalidateLayer(null);
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide cache, creating the default one if the
+     * application did not initialize it.
+     * @return the legend cache
+     */
+    public static LegendCache getInstance(){
+        LegendCache cache = instance;
+        if(cache == null){
+            synchronized(LegendCache.class){
+                if(instance == null){
+                    instance = new LegendCache(DEFAULT_ENABLED, DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+                }
+                cache = instance;
+            }
+        }
+        return cache;
+    }
+
+    private LegendCache(boolean enabled,int maxEntries,long ttl){
+        this.enabled = enabled && maxEntries > 0;
+        this.maxEntries = Math.max(0, maxEntries);
+        this.ttl = Math.max(0, ttl);
+    }
+
+    /**
+     * Indicates whether legends should be looked up and stored in this cache.
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled(){
+        return this.enabled;
+    }
+
+    /**
+     * Returns the legend of a layer, requesting it to GeoServer if it is not cached.
+     * @param layer
+     * The wmsId of the layer.
+     * @param style
+     * The style of the legend, or an empty String for the default style of the layer.
+     * @param width
+     * The width of the legend, in pixels.
+     * @param height
+     * The height of the legend, in pixels.
+     * @param pathAndQuery
+     * The GetLegendGraphic request of the legend, relative to the base URL of a GeoServer node.
+     * @return the legend or an error response if GeoServer could not answer
+     */
+    public WMSResponse get(final String layer,final String style,int width,int height,final String pathAndQuery){
+        final String key = layer + "|" + style + "|" + width + "x" + height;
+        synchronized(this.entries){
+            final Entry entry = this.entries.get(key);
+            if(entry != null){
+                if(System.currentTimeMillis() < entry.expirationTime){
+                    this.hits.incrementAndGet();
+                    return entry.response;
+                }
+                this.entries.remove(key);
+            }
+        }
+        this.misses.incrementAndGet();
+        final long startVersion = this.version.get();
+        WMSResponse response;
+        try{
+            response = this.flights.execute(key, new Callable<WMSResponse>(){
+                @Override
+                public WMSResponse call() {
+                    return GeoServerCommunication.fetch(pathAndQuery, layer);
+                }
+            });
+        }
+        catch(ExecutionException e){
+            response = WMSResponse.error(HTTP_STATUS.INTERNAL_ERROR);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            response = WMSResponse.error(HTTP_STATUS.INTERNAL_ERROR);
+        }
+        //A legend requested before its layer or style changed is not kept
+        if(!response.isError() && startVersion == this.version.get()){
+            synchronized(this.entries){
+                this.entries.put(key, new Entry(layer, style, response, System.currentTimeMillis() + this.ttl));
+                final Iterator<Entry> iterator = this.entries.values().iterator();
+                while(this.entries.size() > this.maxEntries && iterator.hasNext()){
+                    iterator.next();
+                    iterator.remove();
+                    this.evictions.incrementAndGet();
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Drops the legends of a layer.
+     * @param layer
+     * The wmsId of the layer, or null to drop every legend.
+     */
+    public void invalidateLayer(String layer){
+        this.version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+        synchronized(this.entries){
+            if(layer == null){
+                this.entries.clear();
+                return;
+            }
+            final Iterator<Entry> iterator = this.entries.values().iterator();
+            while(iterator.hasNext()){
+                if(iterator.next().layer.equals(layer)){
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the legends drawn with a style, including the legends of the
+     * default styles, which may be the changed style.
+     * @param style
+     * The name of the style.
+     */
+    public void invalidateStyle(String style){
+        this.version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+        synchronized(this.entries){
+            final Iterator<Entry> iterator = this.entries.values().iterator();
+            while(iterator.hasNext()){
+                final Entry entry = iterator.next();
+                if(entry.style.equals("") || entry.style.equals(style)){
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        final int size;
+        long bytes = 0;
+        synchronized(this.entries){
+            size = this.entries.size();
+            for(Entry entry : this.entries.values()){
+                bytes += entry.response.getData().length;
+            }
+        }
+        statistics.put("enabled", this.enabled);
+        statistics.put("entries", size);
+        statistics.put("maxEntries", this.maxEntries);
+        statistics.put("bytes", bytes);
+        statistics.put("ttl", this.ttl);
+        statistics.put("hits", this.hits.get());
+        statistics.put("misses", this.misses.get());
+        statistics.put("evictions", this.evictions.get());
+        statistics.put("invalidations", this.invalidations.get());
+        statistics.put("coalescedRequests", this.flights.getStatistics().get("coalescedCalls"));
+        return statistics;
+    }
+}
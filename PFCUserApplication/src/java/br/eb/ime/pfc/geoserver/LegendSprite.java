@@ -0,0 +1,454 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.domain.LayerSet;
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.servlet.ServletContext;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Builds and caches the legend sprites of the access levels.
+ *
+ * A sprite is a single PNG image with the legends of every layer of an access
+ * level stacked vertically, and a map from the wmsId of each layer to the
+ * rectangle of its legend in the image, so the browser draws the whole layer
+ * bar with two requests instead of one request per layer.
+ *
+ * The legends are requested in parallel on a bounded pool of threads, through
+ * the {@link LegendCache}, each one with the style configured on its layer.
+ * Layers whose legend fails or does not answer within legendsprite.timeout
+ * milliseconds are left out of the sprite, and the browser requests their
+ * legends one by one. Such a sprite is built again after a minute.
+ *
+ * The sprite of an access level is rebuilt when the administrator changes the
+ * access level, every sprite is rebuilt when a layer or a style changes, and no
+ * sprite is kept longer than legendsprite.ttl milliseconds.
+ *
+ * The following context parameters configure the sprites:
+ * legendsprite.enabled, legendsprite.threads, legendsprite.timeout and
+ * legendsprite.ttl (milliseconds).
+ */
+public final class LegendSprite {
+    private static final Logger LOGGER = Logger.getLogger(LegendSprite.class.getName());
+
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final int DEFAULT_THREADS = 8;
+    public static final long DEFAULT_TIMEOUT = 10000;
+    public static final long DEFAULT_TTL = 3600000;
+
+    /**
+     * Size in pixels of the symbols of the legends, as requested by LegendGraphicServlet.
+     */
+    private static final int LEGEND_SIZE = 32;
+
+    /**
+     * Time in milliseconds a sprite with missing legends is kept, so legends
+     * that failed for a moment are requested again soon.
+     */
+    private static final long INCOMPLETE_TTL = 60000;
+
+    private static volatile LegendSprite instance = null;
+
+    private final boolean enabled;
+    private final long timeout;
+    private final long ttl;
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentHashMap<String,Sprite> sprites = new ConcurrentHashMap<>();
+    private final SingleFlight<String,Sprite> flights = new SingleFlight<>();
+    private final AtomicLong version = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong missingLegends = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * A legend sprite: the PNG image and the rectangle of the legend of each layer.
+     */
+    public static final class Sprite {
+        private final byte[] data;
+        private final int width;
+        private final int height;
+        private final String etag;
+        private final long lastModified;
+        private final long expirationTime;
+        private final Map<String,Map<String,Integer>> offsets;
+        private final LayerSet layers;
+
+        private Sprite(byte[] data,int width,int height,Map<String,Map<String,Integer>> offsets,long expirationTime,LayerSet layers){
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.etag = "\"" + DigestUtils.md5Hex(data) + "\"";
+            this.lastModified = System.currentTimeMillis();
+            this.expirationTime = expirationTime;
+            this.offsets = Collections.unmodifiableMap(offsets);
+            this.layers = layers;
+        }
+
+        private boolean isExpired(){
+            return System.currentTimeMillis() >= this.expirationTime;
+        }
+
+        /**
+         * Returns the PNG image of the sprite.
+         * @return the bytes of the image
+         */
+        public byte[] getData(){
+            return this.data;
+        }
+
+        public int getWidth(){
+            return this.width;
+        }
+
+        public int getHeight(){
+            return this.height;
+        }
+
+        /**
+         * Returns the strong ETag of the image, a quoted digest of its bytes.
+         * @return the ETag, with quotes
+         */
+        public String getETag(){
+            return this.etag;
+        }
+
+        /**
+         * Returns a version of the image that can be used in its URL, the ETag without quotes.
+         * @return the version
+         */
+        public String getVersion(){
+            return this.etag.substring(1, this.etag.length() - 1);
+        }
+
+        public long getLastModified(){
+            return this.lastModified;
+        }
+
+        /**
+         * Returns the rectangles of the legends in the image.
+         * @return map of wmsId to a map with x, y, width and height, in pixels,
+         * in the order of the image
+         */
+        public Map<String,Map<String,Integer>> getOffsets(){
+            return this.offsets;
+        }
+    }
+
+    /**
+     * Creates the application wide sprites from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        if(instance != null){
+            instance.shutdown();
+        }
+        instance = new LegendSprite(
+            ContextParameters.getBoolean(context, "legendsprite.enabled", DEFAULT_ENABLED),
+            ContextParameters.getInt(context, "legendsprite.threads", DEFAULT_THREADS),
+            ContextParameters.getLong(context, "legendsprite.timeout", DEFAULT_TIMEOUT),
+            ContextParameters.getLong(context, "legendsprite.ttl", DEFAULT_TTL));
+    }
+
+    /**
+     * Stops the threads and drops every sprite.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.shutdown();
+            instance.invalidate(null);
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide sprites, creating the default ones if the
+     * application did not initialize them.
+     * @return the legend sprites
+     */
+    public static LegendSprite getInstance(){
+        LegendSprite sprite = instance;
+        if(sprite == null){
+            synchronized(LegendSprite.class){
+                if(instance == null){
+                    instance = new LegendSprite(DEFAULT_ENABLED, DEFAULT_THREADS, DEFAULT_TIMEOUT, DEFAULT_TTL);
+                }
+                sprite = instance;
+            }
+        }
+        return sprite;
+    }
+
+    private LegendSprite(boolean enabled,int threads,long timeout,long ttl){
+        this.enabled = enabled;
+        this.timeout = Math.max(1, timeout);
+        this.ttl = Math.max(0, ttl);
+        final int threadCount = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){
+            private final AtomicInteger threadNumber = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "LegendSprite-" + this.threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    private void shutdown(){
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Indicates whether the sprites are served. When they are not, the browser
+     * requests the legends one by one.
+     * @return true if the sprites are enabled
+     */
+    public boolean isEnabled(){
+        return this.enabled;
+    }
+
+    /**
+     * Returns the sprite of an access level, building it if it is not cached.
+     * Concurrent requests of the same access level share a single build.
+     * @param accessLevel
+     * The name of the access level of the user.
+     * @param layers
+     * The layers of the user.
+     * @return the sprite
+     */
+    public Sprite get(String accessLevel,final LayerSet layers){
+        final String key = accessLevel == null ? "" : accessLevel;
+        final Sprite cached = this.sprites.get(key);
+        //A sprite built before the layers of the access level changed is not served
+        if(cached != null && !cached.isExpired() && cached.layers.equals(layers)){
+            this.hits.incrementAndGet();
+            return cached;
+        }
+        this.misses.incrementAndGet();
+        final long startVersion = this.version.get();
+        Sprite sprite;
+        try{
+            sprite = this.flights.execute(key + "|" + layers.hashCode(), new Callable<Sprite>(){
+                @Override
+                public Sprite call() {
+                    return build(layers);
+                }
+            });
+        }
+        catch(ExecutionException e){
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        if(startVersion == this.version.get()){
+            this.sprites.put(key, sprite);
+        }
+        return sprite;
+    }
+
+    /**
+     * Drops the sprite of an access level. A sprite being built while the
+     * access level changes is not kept.
+     * @param accessLevel
+     * The name of the access level, or null to drop every sprite.
+     */
+    public void invalidate(String accessLevel){
+        this.version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+        if(accessLevel == null){
+            this.sprites.clear();
+        }
+        else{
+            this.sprites.remove(accessLevel);
+        }
+    }
+
+    private Sprite build(LayerSet layers){
+        this.builds.incrementAndGet();
+        final List<String> layerWmsIds = new ArrayList<>(layers.getWmsIds());
+        Collections.sort(layerWmsIds);
+        final List<Future<BufferedImage>> futures = new ArrayList<>(layerWmsIds.size());
+        for(final String layerWmsId : layerWmsIds){
+            try{
+                futures.add(this.executor.submit(new Callable<BufferedImage>(){
+                    @Override
+                    public BufferedImage call() throws IOException {
+                        return fetchLegend(layerWmsId);
+                    }
+                }));
+            }
+            catch(RejectedExecutionException e){
+                futures.add(null);
+            }
+        }
+        final Map<String,BufferedImage> legends = new LinkedHashMap<>();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeout);
+        for(int i = 0;i < futures.size();i++){
+            final Future<BufferedImage> future = futures.get(i);
+            BufferedImage legend = null;
+            if(future != null){
+                try{
+                    legend = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                catch(TimeoutException e){
+                    future.cancel(true);
+                }
+                catch(ExecutionException e){
+                    LOGGER.log(Level.FINE, "Legend of " + layerWmsIds.get(i) + " could not be read", e.getCause());
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    future.cancel(true);
+                }
+            }
+            if(legend != null){
+                legends.put(layerWmsIds.get(i), legend);
+            }
+            else{
+                this.missingLegends.incrementAndGet();
+            }
+        }
+        return compose(legends, layers);
+    }
+
+    /**
+     * Returns the legend of a layer with its configured style, or null if the
+     * layer does not exist or GeoServer did not answer an image.
+     */
+    private BufferedImage fetchLegend(String layerWmsId) throws IOException{
+        final String style = TileGrid.getInstance().getStyle(layerWmsId);
+        if(style == null){
+            return null;
+        }
+        final WMSResponse response = GeoServerCommunication.fetchLegend(layerWmsId, style, LEGEND_SIZE, LEGEND_SIZE);
+        if(response.isError()){
+            return null;
+        }
+        return ImageIO.read(new ByteArrayInputStream(response.getData()));
+    }
+
+    /**
+     * Stacks the legends vertically, aligned to the left, in a single PNG image.
+     */
+    private Sprite compose(Map<String,BufferedImage> legends,LayerSet layers){
+        int width = 1;
+        int height = 0;
+        for(BufferedImage legend : legends.values()){
+            width = Math.max(width, legend.getWidth());
+            height += legend.getHeight();
+        }
+        final BufferedImage image = new BufferedImage(width, Math.max(1, height), BufferedImage.TYPE_INT_ARGB);
+        final Map<String,Map<String,Integer>> offsets = new LinkedHashMap<>();
+        final Graphics2D graphics = image.createGraphics();
+        try{
+            int y = 0;
+            for(Map.Entry<String,BufferedImage> entry : legends.entrySet()){
+                final BufferedImage legend = entry.getValue();
+                graphics.drawImage(legend, 0, y, null);
+                final Map<String,Integer> offset = new LinkedHashMap<>();
+                offset.put("x", 0);
+                offset.put("y", y);
+                offset.put("width", legend.getWidth());
+                offset.put("height", legend.getHeight());
+                offsets.put(entry.getKey(), offset);
+                y += legend.getHeight();
+            }
+        }
+        finally{
+            graphics.dispose();
+        }
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try{
+            ImageIO.write(image, "png", output);
+        }
+        catch(IOException e){
+            //Written to memory
+            throw new IllegalStateException(e);
+        }
+        final long spriteTtl = offsets.size() < layers.size() ? Math.min(this.ttl, INCOMPLETE_TTL) : this.ttl;
+        return new Sprite(output.toByteArray(), image.getWidth(), image.getHeight(), offsets, System.currentTimeMillis() + spriteTtl, layers);
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        long bytes = 0;
+        for(Sprite sprite : this.sprites.values()){
+            bytes += sprite.data.length;
+        }
+        statistics.put("enabled", this.enabled);
+        statistics.put("sprites", this.sprites.size());
+        statistics.put("bytes", bytes);
+        statistics.put("ttl", this.ttl);
+        statistics.put("hits", this.hits.get());
+        statistics.put("misses", this.misses.get());
+        statistics.put("builds", this.builds.get());
+        statistics.put("missingLegends", this.missingLegends.get());
+        statistics.put("invalidations", this.invalidations.get());
+        statistics.put("activeThreads", this.executor.getActiveCount());
+        statistics.put("buildCoalescing", this.flights.getStatistics());
+        return statistics;
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.servlet.ServletContext;
+
+/**
+ * Groups tiles of the WMS proxy in metatiles.
+ *
+ * Instead of asking GeoServer for a single 256x256 tile, the proxy asks for the
+ * block of NxM tiles that contains it, slices the rendered image into tiles and
+ * stores all of them in the {@link TileCache}, so the requests for the sibling
+ * tiles that follow are answered from the cache. Labels and point symbols that
+ * cross the border of a tile are rendered once and are not cut.
+ *
+ * Only GetMap requests of square tiles of the EPSG:3857 grid used by OpenLayers,
+ * in PNG or JPEG, are grouped. Other requests are proxied as they are.
+ *
+ * The following context parameters configure the metatiles:
+ * metatile.enabled, metatile.default (e.g. "1x1", which disables metatiling) and
+ * metatile.layers, a comma separated list of wmsId=NxM (e.g.
+ * "rio2016:bairro_part=4x4,rio2016:hoteis=2x2") with the size of each layer.
+ */
+public final class Metatiler {
+    private static final Logger LOGGER = Logger.getLogger(Metatiler.class.getName());
+
+    //EPSG:3857 grid used by the tiles of OpenLayers
+    static final double HALF_WORLD = Math.PI * 6378137;
+    static final double WORLD = 2 * HALF_WORLD;
+    private static final double TOLERANCE = 1e-6;
+    private static final int MAX_ZOOM = 30;
+    private static final int MAX_METATILE_SIZE = 8;
+
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final String DEFAULT_SIZE = "1x1";
+
+    private static volatile Metatiler instance = null;
+
+    private final boolean enabled;
+    private final int[] defaultSize;
+    private final Map<String,int[]> layerSizes;
+
+    private final AtomicLong renderedMetatiles = new AtomicLong();
+    private final AtomicLong slicedTiles = new AtomicLong();
+    private final AtomicLong failedMetatiles = new AtomicLong();
+
+    /**
+     * A block of tiles requested to GeoServer as a single image.
+     */
+    public static final class Metatile {
+        private final WMSRequestKey key;
+        private final int tileWidth;
+        private final int tileHeight;
+        private final WMSRequestKey[][] tileKeys;
+
+        private Metatile(WMSRequestKey key,int tileWidth,int tileHeight,WMSRequestKey[][] tileKeys){
+            this.key = key;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+            this.tileKeys = tileKeys;
+        }
+
+        /**
+         * Returns the key of the GetMap request of the whole block.
+         * @return key
+         */
+        public WMSRequestKey getKey(){
+            return this.key;
+        }
+
+        /**
+         * Returns the keys of the tiles of this metatile.
+         * @return keys of the tiles, from top left to bottom right
+         */
+        public List<WMSRequestKey> getTileKeys(){
+            final List<WMSRequestKey> keys = new ArrayList<>();
+            for(WMSRequestKey[] row : this.tileKeys){
+                Collections.addAll(keys, row);
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Creates the application wide metatiler from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new Metatiler(
+            ContextParameters.getBoolean(context, "metatile.enabled", DEFAULT_ENABLED),
+            ContextParameters.getString(context, "metatile.default", DEFAULT_SIZE),
+            ContextParameters.getString(context, "metatile.layers", ""));
+    }
+
+    /**
+     * Returns the application wide metatiler.
+     * If it was not initialized by the application metatiles of 1x1 are used, i.e. no metatiling.
+     * @return the metatiler
+     */
+    public static Metatiler getInstance(){
+        Metatiler metatiler = instance;
+        if(metatiler == null){
+            synchronized(Metatiler.class){
+                if(instance == null){
+                    instance = new Metatiler(DEFAULT_ENABLED, DEFAULT_SIZE, "");
+                }
+                metatiler = instance;
+            }
+        }
+        return metatiler;
+    }
+
+    private Metatiler(boolean enabled,String defaultSize,String layerSizes){
+        this.enabled = enabled;
+        this.defaultSize = parseSize(defaultSize, new int[]{1,1});
+        this.layerSizes = new HashMap<>();
+        for(String layerSize : layerSizes.split(",")){
+            final int separator = layerSize.lastIndexOf('=');
+            if(separator > 0){
+                final int[] size = parseSize(layerSize.substring(separator + 1), null);
+                if(size != null){
+                    this.layerSizes.put(layerSize.substring(0, separator).trim(), size);
+                }
+            }
+            else if(!layerSize.trim().equals("")){
+                LOGGER.log(Level.WARNING, "Invalid metatile size: {0}", layerSize);
+            }
+        }
+    }
+
+    private static int[] parseSize(String size,int[] defaultValue){
+        final String[] dimensions = size.trim().toLowerCase(Locale.ROOT).split("x");
+        if(dimensions.length == 2){
+            try{
+                final int columns = Integer.parseInt(dimensions[0].trim());
+                final int rows = Integer.parseInt(dimensions[1].trim());
+                if(columns >= 1 && rows >= 1 && columns <= MAX_METATILE_SIZE && rows <= MAX_METATILE_SIZE){
+                    return new int[]{columns,rows};
+                }
+            }
+            catch(NumberFormatException e){
+            }
+        }
+        LOGGER.log(Level.WARNING, "Invalid metatile size: {0}", size);
+        return defaultValue;
+    }
+
+    /**
+     * Returns the metatile that contains the tile of a request.
+     * @param key
+     * The key of a GetMap request.
+     * @return the metatile or null if the request must not be grouped in a metatile
+     */
+    public Metatile getMetatile(WMSRequestKey key){
+        if(!this.enabled){
+            return null;
+        }
+        final String[] layers = key.getLayers();
+        final int[] size = layers.length == 1 && this.layerSizes.containsKey(layers[0]) ?
+                this.layerSizes.get(layers[0]) : this.defaultSize;
+        if(size[0] == 1 && size[1] == 1){
+            return null;
+        }
+        final String format = key.getParameter("FORMAT");
+        if(!"image/png".equals(format) && !"image/jpeg".equals(format)){
+            return null;
+        }
+        final String crs = key.getParameter("CRS") != null ? key.getParameter("CRS") : key.getParameter("SRS");
+        if(!"EPSG:3857".equals(crs) && !"EPSG:900913".equals(crs)){
+            return null;
+        }
+        final int width;
+        final int height;
+        final double[] bbox = new double[4];
+        try{
+            width = Integer.parseInt(key.getParameter("WIDTH"));
+            height = Integer.parseInt(key.getParameter("HEIGHT"));
+            final String[] coordinates = key.getParameter("BBOX").split(",");
+            if(coordinates.length != 4){
+                return null;
+            }
+            for(int i = 0;i < 4;i++){
+                bbox[i] = Double.parseDouble(coordinates[i]);
+            }
+        }
+        catch(NumberFormatException | NullPointerException e){
+            return null;
+        }
+        if(width != height || width <= 0){
+            return null;
+        }
+
+        //Find the zoom level and the column and row of the tile in the grid
+        final double span = bbox[2] - bbox[0];
+        if(span <= 0 || Math.abs((bbox[3] - bbox[1]) - span) > span * TOLERANCE){
+            return null;
+        }
+        final int zoom = (int) Math.round(Math.log(WORLD / span) / Math.log(2));
+        if(zoom < 0 || zoom > MAX_ZOOM || Math.abs(WORLD / Math.pow(2, zoom) - span) > span * TOLERANCE){
+            return null;
+        }
+        final long tilesPerSide = 1L << zoom;
+        //The bounding boxes of the siblings are computed like OpenLayers does, from the grid
+        final double gridSpan = WORLD / tilesPerSide;
+        final double column = (bbox[0] + HALF_WORLD) / span;
+        final double row = (HALF_WORLD - bbox[3]) / span;
+        final long tileColumn = Math.round(column);
+        final long tileRow = Math.round(row);
+        if(Math.abs(column - tileColumn) > 1e-3 || Math.abs(row - tileRow) > 1e-3
+                || tileColumn < 0 || tileRow < 0 || tileColumn >= tilesPerSide || tileRow >= tilesPerSide){
+            return null;
+        }
+
+        //The metatile is aligned to its size and clipped at the border of the world
+        final long firstColumn = (tileColumn / size[0]) * size[0];
+        final long firstRow = (tileRow / size[1]) * size[1];
+        final int columns = (int) Math.min(size[0], tilesPerSide - firstColumn);
+        final int rows = (int) Math.min(size[1], tilesPerSide - firstRow);
+
+        final WMSRequestKey[][] tileKeys = new WMSRequestKey[rows][columns];
+        for(int i = 0;i < rows;i++){
+            for(int j = 0;j < columns;j++){
+                if(firstRow + i == tileRow && firstColumn + j == tileColumn){
+                    tileKeys[i][j] = key;
+                }
+                else{
+                    tileKeys[i][j] = key.withParameters(Collections.singletonMap("BBOX",
+                            boundingBox(firstColumn + j, firstRow + i, 1, 1, gridSpan)));
+                }
+            }
+        }
+        final Map<String,String> metatileParameters = new HashMap<>();
+        metatileParameters.put("BBOX", boundingBox(firstColumn, firstRow, columns, rows, gridSpan));
+        metatileParameters.put("WIDTH", Integer.toString(columns * width));
+        metatileParameters.put("HEIGHT", Integer.toString(rows * height));
+        return new Metatile(key.withParameters(metatileParameters), width, height, tileKeys);
+    }
+
+    /**
+     * Returns the BBOX parameter of a block of tiles of the grid, formatted like OpenLayers does.
+     */
+    static String boundingBox(long column,long row,int columns,int rows,double span){
+        final double minX = -HALF_WORLD + column * span;
+        final double maxY = HALF_WORLD - row * span;
+        return coordinate(minX) + "," + coordinate(maxY - rows * span) + ","
+                + coordinate(minX + columns * span) + "," + coordinate(maxY);
+    }
+
+    private static String coordinate(double value){
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+
+    /**
+     * Slices the image of a metatile into its tiles.
+     * @param metatile
+     * The metatile.
+     * @param response
+     * The response of GeoServer to the request of the metatile.
+     * @return the response of each tile by key, or null if the image could not be sliced
+     */
+    public Map<WMSRequestKey,WMSResponse> slice(Metatile metatile,WMSResponse response){
+        final String contentType = response.getContentType();
+        final String formatName = contentType != null && contentType.startsWith("image/jpeg") ? "jpeg" : "png";
+        try{
+            final BufferedImage image = ImageIO.read(new ByteArrayInputStream(response.getData()));
+            final int rows = metatile.tileKeys.length;
+            final int columns = metatile.tileKeys[0].length;
+            if(image == null || image.getWidth() != columns * metatile.tileWidth || image.getHeight() != rows * metatile.tileHeight){
+                this.failedMetatiles.incrementAndGet();
+                return null;
+            }
+            final Map<WMSRequestKey,WMSResponse> tiles = new LinkedHashMap<>();
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            for(int i = 0;i < rows;i++){
+                for(int j = 0;j < columns;j++){
+                    final BufferedImage tile = image.getSubimage(j * metatile.tileWidth, i * metatile.tileHeight,
+                            metatile.tileWidth, metatile.tileHeight);
+                    os.reset();
+                    if(!ImageIO.write(tile, formatName, os)){
+                        this.failedMetatiles.incrementAndGet();
+                        return null;
+                    }
+                    tiles.put(metatile.tileKeys[i][j], WMSResponse.success(contentType, os.toByteArray(), response.getLastModified(), response.getUpstreamMillis()));
+                }
+            }
+            this.renderedMetatiles.incrementAndGet();
+            this.slicedTiles.addAndGet(tiles.size());
+            return tiles;
+        }
+        catch(IOException | RuntimeException e){
+            LOGGER.log(Level.WARNING, "Could not slice metatile " + metatile.getKey(), e);
+            this.failedMetatiles.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the metatiling statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", this.enabled);
+        statistics.put("defaultSize", this.defaultSize[0] + "x" + this.defaultSize[1]);
+        statistics.put("configuredLayers", this.layerSizes.size());
+        statistics.put("renderedMetatiles", this.renderedMetatiles.get());
+        statistics.put("slicedTiles", this.slicedTiles.get());
+        statistics.put("failedMetatiles", this.failedMetatiles.get());
+        return statistics;
+    }
+}
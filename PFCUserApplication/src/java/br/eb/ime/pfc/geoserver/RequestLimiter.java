@@ -0,0 +1,483 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.domain.AccessLevel;
+import br.eb.ime.pfc.hibernate.HibernateUtil;
+import br.eb.ime.pfc.hibernate.LoadingCache;
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+/**
+ * Limits the requests that each user and each access level make to GeoServer,
+ * so a single user with many layers can not starve the others.
+ *
+ * Three limits are applied, configured per access level by the administration
+ * application: the concurrent requests of the whole access level and the
+ * concurrent requests and the rate of requests of each of its users. The
+ * concurrency limits are bulkheads (semaphores) and the rate limit is a token
+ * bucket implemented as a single compare-and-set on the time the next request
+ * conforms (GCRA), so no lock is held by the requests.
+ *
+ * A request over a limit waits for at most ratelimit.queueTimeout milliseconds
+ * and is then rejected with a {@link LimitExceededException} that carries the
+ * number of seconds the client should wait.
+ *
+ * The limits are read from the database the first time an access level is used
+ * and reloaded when the administration application changes it. A null limit
+ * uses the default of the context parameters and 0 means unlimited.
+ *
+ * The following context parameters configure the limiter:
+ * ratelimit.enabled, ratelimit.queueTimeout (milliseconds), ratelimit.burstSeconds,
+ * ratelimit.default.maxConcurrentRequests, ratelimit.default.userMaxConcurrentRequests
+ * and ratelimit.default.userRequestsPerSecond.
+ */
+public final class RequestLimiter {
+    private static final Logger LOGGER = Logger.getLogger(RequestLimiter.class.getName());
+
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 1000;
+    public static final double DEFAULT_BURST_SECONDS = 2.0;
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 0;
+    public static final int DEFAULT_USER_MAX_CONCURRENT_REQUESTS = 12;
+    public static final double DEFAULT_USER_REQUESTS_PER_SECOND = 50.0;
+
+    private static volatile RequestLimiter instance = null;
+
+    private final boolean enabled;
+    private final long queueTimeoutNanos;
+    private final double burstSeconds;
+    private final Limits defaultLimits;
+
+    private final LoadingCache<String,Limits> accessLevelLimits = new LoadingCache<String,Limits>(){
+        @Override
+        protected Limits load(String accessLevel) throws HibernateException{
+            return loadLimits(accessLevel);
+        }
+    };
+    private final ConcurrentMap<String,AccessLevelState> accessLevels = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,UserState> users = new ConcurrentHashMap<>();
+
+    private final AtomicLong acquiredPermits = new AtomicLong();
+    private final AtomicLong delayedRequests = new AtomicLong();
+    private final AtomicLong rateRejections = new AtomicLong();
+    private final AtomicLong concurrencyRejections = new AtomicLong();
+
+    /**
+     * Creates the application wide limiter from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new RequestLimiter(
+            ContextParameters.getBoolean(context, "ratelimit.enabled", DEFAULT_ENABLED),
+            ContextParameters.getLong(context, "ratelimit.queueTimeout", DEFAULT_QUEUE_TIMEOUT),
+            ContextParameters.getDouble(context, "ratelimit.burstSeconds", DEFAULT_BURST_SECONDS),
+            ContextParameters.getInt(context, "ratelimit.default.maxConcurrentRequests", DEFAULT_MAX_CONCURRENT_REQUESTS),
+            ContextParameters.getInt(context, "ratelimit.default.userMaxConcurrentRequests", DEFAULT_USER_MAX_CONCURRENT_REQUESTS),
+            ContextParameters.getDouble(context, "ratelimit.default.userRequestsPerSecond", DEFAULT_USER_REQUESTS_PER_SECOND));
+    }
+
+    /**
+     * Returns the application wide limiter.
+     * If the limiter was not initialized by the application a limiter with the
+     * default configuration is created.
+     * @return the request limiter
+     */
+    public static RequestLimiter getInstance(){
+        RequestLimiter limiter = instance;
+        if(limiter == null){
+            synchronized(RequestLimiter.class){
+                if(instance == null){
+                    instance = new RequestLimiter(DEFAULT_ENABLED, DEFAULT_QUEUE_TIMEOUT, DEFAULT_BURST_SECONDS,
+                            DEFAULT_MAX_CONCURRENT_REQUESTS, DEFAULT_USER_MAX_CONCURRENT_REQUESTS, DEFAULT_USER_REQUESTS_PER_SECOND);
+                }
+                limiter = instance;
+            }
+        }
+        return limiter;
+    }
+
+    private RequestLimiter(boolean enabled,long queueTimeout,double burstSeconds,int maxConcurrentRequests,
+            int userMaxConcurrentRequests,double userRequestsPerSecond){
+        this.enabled = enabled;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, queueTimeout));
+        this.burstSeconds = Math.max(0, burstSeconds);
+        this.defaultLimits = new Limits(Math.max(0, maxConcurrentRequests), Math.max(0, userMaxConcurrentRequests),
+                Math.max(0, userRequestsPerSecond));
+        if(enabled){
+            LOGGER.log(Level.INFO, "Request limiter created, default limits: {0}", this.defaultLimits);
+        }
+    }
+
+    /**
+     * Acquires the permission to make a request to GeoServer, waiting for at most
+     * ratelimit.queueTimeout milliseconds if the user or its access level are over their limits.
+     * @param user
+     * The user that makes the request.
+     * @param accessLevel
+     * The name of the access level of the user, or null to use the default limits.
+     * @return the permit, that must be released when the request to GeoServer is done
+     * @throws LimitExceededException
+     * If the request can not be made within the queue timeout.
+     */
+    public Permit acquire(String user,String accessLevel) throws LimitExceededException{
+        if(!this.enabled || user == null){
+            return Permit.NONE;
+        }
+        final Limits limits = getLimits(accessLevel);
+        final UserState userState = getUserState(user, limits);
+        final long deadline = System.nanoTime() + this.queueTimeoutNanos;
+
+        long delay = 0;
+        if(userState.rate != null){
+            delay = userState.rate.reserve(this.queueTimeoutNanos);
+            if(delay < 0){
+                this.rateRejections.incrementAndGet();
+                throw new LimitExceededException(toRetryAfter(-delay));
+            }
+        }
+        //A request refused by a bulkhead gives its reserved time back, so it does not use up the rate of the user
+        boolean acquired = false;
+        try{
+            if(delay > 0){
+                this.delayedRequests.incrementAndGet();
+                sleep(delay);
+            }
+            final Semaphore userSemaphore = userState.concurrency;
+            if(userSemaphore != null && !tryAcquire(userSemaphore, deadline)){
+                this.concurrencyRejections.incrementAndGet();
+                throw new LimitExceededException(1);
+            }
+            final Semaphore accessLevelSemaphore = accessLevel == null ? null : getAccessLevelState(accessLevel, limits).concurrency;
+            if(accessLevelSemaphore != null && !tryAcquire(accessLevelSemaphore, deadline)){
+                if(userSemaphore != null){
+                    userSemaphore.release();
+                }
+                this.concurrencyRejections.incrementAndGet();
+                throw new LimitExceededException(1);
+            }
+            acquired = true;
+            this.acquiredPermits.incrementAndGet();
+            return new Permit(userSemaphore, accessLevelSemaphore);
+        }
+        finally{
+            if(!acquired && userState.rate != null){
+                userState.rate.cancel();
+            }
+        }
+    }
+
+    private boolean tryAcquire(Semaphore semaphore,long deadline) throws LimitExceededException{
+        if(semaphore.tryAcquire()){
+            return true;
+        }
+        final long timeout = deadline - System.nanoTime();
+        if(timeout <= 0){
+            return false;
+        }
+        this.delayedRequests.incrementAndGet();
+        try{
+            return semaphore.tryAcquire(timeout, TimeUnit.NANOSECONDS);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new LimitExceededException(1);
+        }
+    }
+
+    private static void sleep(long nanos) throws LimitExceededException{
+        try{
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new LimitExceededException(1);
+        }
+    }
+
+    private static int toRetryAfter(long nanos){
+        return (int) Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Discards the limits of an access level, which are read again from the
+     * database by the next request of its users.
+     * @param accessLevel
+     * The name of the access level, or null to discard the limits of every access level.
+     */
+    public void invalidate(String accessLevel){
+        this.accessLevelLimits.invalidate(accessLevel);
+    }
+
+    private Limits getLimits(String accessLevel){
+        if(accessLevel == null){
+            return this.defaultLimits;
+        }
+        try{
+            return this.accessLevelLimits.get(accessLevel);
+        }
+        catch(HibernateException e){
+            //Not kept, so the limits are read again by the next request
+            LOGGER.log(Level.WARNING, "Could not read the request limits of access level " + accessLevel + ", using the defaults", e);
+            return this.defaultLimits;
+        }
+    }
+
+    private Limits loadLimits(final String accessLevelName) throws HibernateException{
+        final AccessLevel accessLevel = HibernateUtil.read(new HibernateUtil.Work<AccessLevel>(){
+            @Override
+            public AccessLevel execute(Session session) throws HibernateException{
+                return (AccessLevel) session.get(AccessLevel.class, accessLevelName);
+            }
+        });
+        if(accessLevel == null){
+            return this.defaultLimits;
+        }
+        return new Limits(
+            accessLevel.getMaxConcurrentRequests() != null ? accessLevel.getMaxConcurrentRequests() : this.defaultLimits.maxConcurrentRequests,
+            accessLevel.getUserMaxConcurrentRequests() != null ? accessLevel.getUserMaxConcurrentRequests() : this.defaultLimits.userMaxConcurrentRequests,
+            accessLevel.getUserRequestsPerSecond() != null ? accessLevel.getUserRequestsPerSecond() : this.defaultLimits.userRequestsPerSecond);
+    }
+
+    /**
+     * Returns the state of a user, replacing it if the limits of its access
+     * level changed. Permits of the previous state are released to the
+     * semaphores they were acquired from.
+     */
+    private UserState getUserState(String user,Limits limits){
+        final UserState state = this.users.get(user);
+        if(state != null && state.limits == limits){
+            return state;
+        }
+        final UserState newState = new UserState(limits, this.burstSeconds);
+        if(state == null){
+            final UserState previous = this.users.putIfAbsent(user, newState);
+            return previous != null ? previous : newState;
+        }
+        return this.users.replace(user, state, newState) ? newState : this.users.get(user);
+    }
+
+    private AccessLevelState getAccessLevelState(String accessLevel,Limits limits){
+        final AccessLevelState state = this.accessLevels.get(accessLevel);
+        if(state != null && state.limits == limits){
+            return state;
+        }
+        final AccessLevelState newState = new AccessLevelState(limits);
+        if(state == null){
+            final AccessLevelState previous = this.accessLevels.putIfAbsent(accessLevel, newState);
+            return previous != null ? previous : newState;
+        }
+        return this.accessLevels.replace(accessLevel, state, newState) ? newState : this.accessLevels.get(accessLevel);
+    }
+
+    /**
+     * Returns a snapshot of the limiter statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", this.enabled);
+        statistics.put("queueTimeout", TimeUnit.NANOSECONDS.toMillis(this.queueTimeoutNanos));
+        statistics.put("defaultLimits", this.defaultLimits.toMap());
+        statistics.put("acquiredPermits", this.acquiredPermits.get());
+        statistics.put("delayedRequests", this.delayedRequests.get());
+        statistics.put("rateRejections", this.rateRejections.get());
+        statistics.put("concurrencyRejections", this.concurrencyRejections.get());
+        final Map<String,Object> accessLevelStatistics = new LinkedHashMap<>();
+        for(Map.Entry<String,AccessLevelState> entry : this.accessLevels.entrySet()){
+            final AccessLevelState state = entry.getValue();
+            final Map<String,Object> levelStatistics = state.limits.toMap();
+            if(state.concurrency != null){
+                levelStatistics.put("inFlightRequests", state.limits.maxConcurrentRequests - state.concurrency.availablePermits());
+            }
+            accessLevelStatistics.put(entry.getKey(), levelStatistics);
+        }
+        statistics.put("accessLevels", accessLevelStatistics);
+        return statistics;
+    }
+
+    /**
+     * The permission to make a request to GeoServer. Releasing it more than once has no effect.
+     */
+    public static final class Permit {
+        /**
+         * A permit of a request that is not limited.
+         */
+        public static final Permit NONE = new Permit(null, null);
+
+        private final Semaphore userSemaphore;
+        private final Semaphore accessLevelSemaphore;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(Semaphore userSemaphore,Semaphore accessLevelSemaphore){
+            this.userSemaphore = userSemaphore;
+            this.accessLevelSemaphore = accessLevelSemaphore;
+        }
+
+        public void release(){
+            if(this == NONE || !this.released.compareAndSet(false, true)){
+                return;
+            }
+            if(this.accessLevelSemaphore != null){
+                this.accessLevelSemaphore.release();
+            }
+            if(this.userSemaphore != null){
+                this.userSemaphore.release();
+            }
+        }
+    }
+
+    /**
+     * The limits of an access level. Instances are compared by identity to
+     * detect that the limits were reloaded.
+     */
+    private static final class Limits {
+        private final int maxConcurrentRequests;
+        private final int userMaxConcurrentRequests;
+        private final double userRequestsPerSecond;
+
+        private Limits(int maxConcurrentRequests,int userMaxConcurrentRequests,double userRequestsPerSecond){
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            this.userMaxConcurrentRequests = userMaxConcurrentRequests;
+            this.userRequestsPerSecond = userRequestsPerSecond;
+        }
+
+        private Map<String,Object> toMap(){
+            final Map<String,Object> map = new LinkedHashMap<>();
+            map.put("maxConcurrentRequests", this.maxConcurrentRequests);
+            map.put("userMaxConcurrentRequests", this.userMaxConcurrentRequests);
+            map.put("userRequestsPerSecond", this.userRequestsPerSecond);
+            return map;
+        }
+
+        @Override
+        public String toString(){
+            return toMap().toString();
+        }
+    }
+
+    private static final class AccessLevelState {
+        private final Limits limits;
+        private final Semaphore concurrency;
+
+        private AccessLevelState(Limits limits){
+            this.limits = limits;
+            this.concurrency = limits.maxConcurrentRequests > 0 ? new Semaphore(limits.maxConcurrentRequests) : null;
+        }
+    }
+
+    private static final class UserState {
+        private final Limits limits;
+        private final Semaphore concurrency;
+        private final RateLimit rate;
+
+        private UserState(Limits limits,double burstSeconds){
+            this.limits = limits;
+            this.concurrency = limits.userMaxConcurrentRequests > 0 ? new Semaphore(limits.userMaxConcurrentRequests) : null;
+            this.rate = limits.userRequestsPerSecond > 0 ? new RateLimit(limits.userRequestsPerSecond, burstSeconds) : null;
+        }
+    }
+
+    /**
+     * A token bucket in the form of the generic cell rate algorithm: the only
+     * state is the theoretical arrival time of the next request, which is moved
+     * forward by one interval for each accepted request.
+     */
+    private static final class RateLimit {
+        private final long interval;
+        private final long tolerance;
+        private final AtomicLong theoreticalArrivalTime;
+
+        private RateLimit(double requestsPerSecond,double burstSeconds){
+            this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond));
+            final long burst = Math.max(1, (long) Math.ceil(requestsPerSecond * burstSeconds));
+            this.tolerance = this.interval * (burst - 1);
+            this.theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Reserves the time of a request.
+         * @param maxDelay
+         * The maximum time the request can wait, in nanoseconds.
+         * @return the time the request must wait before it is made, or the negated
+         * time it would have to wait if that is more than maxDelay, in which case nothing is reserved
+         */
+        private long reserve(long maxDelay){
+            while(true){
+                final long now = System.nanoTime();
+                final long arrivalTime = this.theoreticalArrivalTime.get();
+                final long base = arrivalTime - now > 0 ? arrivalTime : now;
+                final long delay = Math.max(0, base - this.tolerance - now);
+                if(delay > maxDelay){
+                    return -delay;
+                }
+                if(this.theoreticalArrivalTime.compareAndSet(arrivalTime, base + this.interval)){
+                    return delay;
+                }
+            }
+        }
+
+        /**
+         * Gives back the time reserved by a request that was not made.
+         */
+        private void cancel(){
+            this.theoreticalArrivalTime.addAndGet(-this.interval);
+        }
+    }
+
+    /**
+     * Thrown when a request exceeds the limits of its user or access level.
+     */
+    public static class LimitExceededException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final int retryAfter;
+
+        /**
+         * Creates a LimitExceededException.
+         * @param retryAfter
+         * The number of seconds the client should wait before it tries again.
+         */
+        public LimitExceededException(int retryAfter){
+            super("Request limit exceeded");
+            this.retryAfter = retryAfter;
+        }
+
+        public int getRetryAfter(){
+            return this.retryAfter;
+        }
+    }
+}
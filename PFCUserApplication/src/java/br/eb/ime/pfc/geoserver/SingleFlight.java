@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical concurrent calls.
+ *
+ * The first thread that executes a call for a key (the leader) runs it; every
+ * other thread that asks for the same key while the call is in flight waits
+ * for the leader and receives the same result instead of running the call
+ * again. Once the call finishes the key is forgotten, so later calls run again.
+ *
+ * The calls in flight are kept in a ConcurrentHashMap, so threads with
+ * different keys never wait for each other.
+ *
+ * @param <K> the type of the keys, which must implement equals and hashCode
+ * @param <V> the type of the results
+ */
+public final class SingleFlight<K,V> {
+    private final ConcurrentHashMap<K,FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executedCalls = new AtomicLong();
+    private final AtomicLong coalescedCalls = new AtomicLong();
+
+    /**
+     * Runs the call for the key, or waits for the call already in flight for the same key.
+     * @param key
+     * The key that identifies identical calls.
+     * @param call
+     * The call to be run if there is no call in flight for the key.
+     * @return the result of the call
+     * @throws ExecutionException
+     * If the call threw an exception, which is the cause of the ExecutionException.
+     * @throws InterruptedException
+     * If the thread was interrupted while waiting for the call of another thread.
+     */
+    public V execute(K key,Callable<V> call) throws ExecutionException, InterruptedException{
+        final FutureTask<V> task = new FutureTask<>(call);
+        final FutureTask<V> existing = this.inFlight.putIfAbsent(key, task);
+        if(existing != null){
+            this.coalescedCalls.incrementAndGet();
+            return existing.get();
+        }
+        this.executedCalls.incrementAndGet();
+        try{
+            task.run();
+        }
+        finally{
+            this.inFlight.remove(key, task);
+        }
+        return task.get();
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * coalescedCalls is the number of calls that were saved by waiting for another call.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("inFlightCalls", this.inFlight.size());
+        statistics.put("executedCalls", this.executedCalls.get());
+        statistics.put("coalescedCalls", this.coalescedCalls.get());
+        return statistics;
+    }
+}
@@ -0,0 +1,541 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+
+/**
+ * In-memory cache of GetMap responses, keyed by {@link WMSRequestKey}.
+ *
+ * The bytes of the tiles are kept outside of the Java heap, in direct buffers
+ * ("slabs") that are divided in pages of fixed size. A tile occupies as many
+ * pages as it needs and the pages are returned to a free list when the tile is
+ * evicted, so a cache of several gigabytes does not add work to the garbage
+ * collector. Only the index (keys and page numbers) lives on the heap.
+ *
+ * The cache is divided in segments, each one with its own lock, slabs and LRU
+ * order, to reduce contention between the threads of the proxy. When a segment
+ * reaches its share of the size budget the least recently used tiles are evicted.
+ *
+ * The following context parameters configure the cache:
+ * tilecache.enabled, tilecache.maxSizeMB, tilecache.slabSizeMB,
+ * tilecache.pageSize (bytes), tilecache.maxTileSize (bytes) and tilecache.segments.
+ * The JVM option -XX:MaxDirectMemorySize must be larger than tilecache.maxSizeMB.
+ */
+public final class TileCache {
+    private static final Logger LOGGER = Logger.getLogger(TileCache.class.getName());
+    private static final long MEGABYTE = 1024L * 1024L;
+
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final int DEFAULT_MAX_SIZE_MB = 256;
+    public static final int DEFAULT_SLAB_SIZE_MB = 16;
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    public static final int DEFAULT_MAX_TILE_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private static volatile TileCache instance = null;
+
+    private final boolean enabled;
+    private final long maxSize;
+    private final int pageSize;
+    private final int maxTileSize;
+    private final Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong purges = new AtomicLong();
+
+    /**
+     * Creates the application wide cache from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        if(instance != null){
+            instance.clear();
+        }
+        instance = new TileCache(
+            ContextParameters.getBoolean(context, "tilecache.enabled", DEFAULT_ENABLED),
+            ContextParameters.getInt(context, "tilecache.maxSizeMB", DEFAULT_MAX_SIZE_MB),
+            ContextParameters.getInt(context, "tilecache.slabSizeMB", DEFAULT_SLAB_SIZE_MB),
+            ContextParameters.getInt(context, "tilecache.pageSize", DEFAULT_PAGE_SIZE),
+            ContextParameters.getInt(context, "tilecache.maxTileSize", DEFAULT_MAX_TILE_SIZE),
+            ContextParameters.getInt(context, "tilecache.segments", DEFAULT_SEGMENTS));
+    }
+
+    /**
+     * Drops every cached tile. The direct buffers are released by the garbage
+     * collector once the cache is no longer referenced.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.clear();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide cache.
+     * If the cache was not initialized by the application a cache with the
+     * default configuration is created.
+     * @return the tile cache
+     */
+    public static TileCache getInstance(){
+        TileCache cache = instance;
+        if(cache == null){
+            synchronized(TileCache.class){
+                if(instance == null){
+                    instance = new TileCache(DEFAULT_ENABLED, DEFAULT_MAX_SIZE_MB, DEFAULT_SLAB_SIZE_MB,
+                            DEFAULT_PAGE_SIZE, DEFAULT_MAX_TILE_SIZE, DEFAULT_SEGMENTS);
+                }
+                cache = instance;
+            }
+        }
+        return cache;
+    }
+
+    private TileCache(boolean enabled,int maxSizeMB,int slabSizeMB,int pageSize,int maxTileSize,int segmentCount){
+        this.enabled = enabled && maxSizeMB > 0;
+        this.maxSize = Math.max(0, maxSizeMB) * MEGABYTE;
+        this.pageSize = Math.max(512, pageSize);
+        final int segmentTotal = Math.max(1, segmentCount);
+        final long segmentBudget = this.maxSize / segmentTotal;
+        final long requestedSlabSize = Math.max(1, slabSizeMB) * MEGABYTE;
+        //A slab can not be larger than the share of a segment nor than a direct buffer
+        final long slabSize = Math.min(Math.min(requestedSlabSize, Math.max(segmentBudget, this.pageSize)), Integer.MAX_VALUE);
+        final int pagesPerSlab = (int) Math.max(1, slabSize / this.pageSize);
+        final int slabsPerSegment = (int) Math.max(1, segmentBudget / ((long) pagesPerSlab * this.pageSize));
+        this.maxTileSize = (int) Math.min(Math.max(0, maxTileSize), (long) pagesPerSlab * slabsPerSegment * this.pageSize);
+
+        this.segments = new Segment[segmentTotal];
+        for(int i = 0;i < segmentTotal;i++){
+            this.segments[i] = new Segment(this.pageSize, pagesPerSlab, slabsPerSegment);
+        }
+        if(this.enabled){
+            LOGGER.log(Level.INFO, "Tile cache created: {0} MB in {1} segments of {2} slabs with {3} pages of {4} bytes",
+                    new Object[]{maxSizeMB, segmentTotal, slabsPerSegment, pagesPerSlab, this.pageSize});
+        }
+    }
+
+    /**
+     * Indicates whether responses should be looked up and stored in this cache.
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled(){
+        return this.enabled;
+    }
+
+    /**
+     * Returns the cached response of a request.
+     * @param key
+     * The canonical key of a GetMap request.
+     * @return the cached response, with a copy of the bytes, or null if the request is not cached
+     */
+    public WMSResponse get(WMSRequestKey key){
+        if(!this.enabled){
+            return null;
+        }
+        final WMSResponse tile = segmentFor(key).get(key);
+        if(tile == null){
+            this.misses.incrementAndGet();
+        }
+        else{
+            this.hits.incrementAndGet();
+        }
+        return tile;
+    }
+
+    /**
+     * Indicates whether the response of a request is cached, without reading it
+     * and without changing the order in which tiles are evicted.
+     * @param key
+     * The canonical key of a GetMap request.
+     * @return true if the request is cached
+     */
+    public boolean contains(WMSRequestKey key){
+        return this.enabled && segmentFor(key).contains(key);
+    }
+
+    /**
+     * Stores the response of a request, evicting the least recently used tiles
+     * of its segment if there is not enough space.
+     * Tiles larger than tilecache.maxTileSize, and tiles that do not fit in their
+     * segment even after evicting every other tile, are not stored.
+     * @param key
+     * The canonical key of a GetMap request.
+     * @param response
+     * The successful response to the request.
+     * @return true if the tile was stored
+     */
+    public boolean put(WMSRequestKey key,WMSResponse response){
+        if(!this.enabled){
+            return false;
+        }
+        final byte[] data = response.getData();
+        if(response.isError() || data.length == 0 || data.length > this.maxTileSize){
+            this.rejections.incrementAndGet();
+            return false;
+        }
+        if(!segmentFor(key).put(key, response.getContentType(), data, response.getLastModified(), response.getETag())){
+            this.rejections.incrementAndGet();
+            return false;
+        }
+        this.stores.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes every cached tile that contains the specified layer.
+     * Used when the style or the data of a layer are changed.
+     * @param layerWmsId
+     * The wmsId of the layer.
+     * @return the number of removed tiles
+     */
+    public int purgeLayer(String layerWmsId){
+        int removed = 0;
+        for(Segment segment : this.segments){
+            removed += segment.removeLayer(layerWmsId);
+        }
+        this.purges.addAndGet(removed);
+        LOGGER.log(Level.INFO, "Purged {0} tiles of layer {1}", new Object[]{removed, layerWmsId});
+        return removed;
+    }
+
+    /**
+     * Removes every cached tile that draws a layer with the specified style.
+     * Used when the style is changed. The tiles of the layers whose default
+     * style is the changed style must be purged with {@link #purgeLayer(String)}.
+     * @param style
+     * The name of the style.
+     * @return the number of tiles removed
+     */
+    public int purgeStyle(String style){
+        int removed = 0;
+        for(Segment segment : this.segments){
+            removed += segment.removeStyle(style);
+        }
+        this.purges.addAndGet(removed);
+        LOGGER.log(Level.INFO, "Purged {0} tiles of style {1}", new Object[]{removed, style});
+        return removed;
+    }
+
+    /**
+     * Removes every cached tile.
+     */
+    public void clear(){
+        int removed = 0;
+        for(Segment segment : this.segments){
+            removed += segment.clear();
+        }
+        this.purges.addAndGet(removed);
+    }
+
+    /**
+     * Returns a snapshot of the cache statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        long entries = 0;
+        long usedBytes = 0;
+        long storedBytes = 0;
+        long allocatedBytes = 0;
+        for(Segment segment : this.segments){
+            final long[] segmentStatistics = segment.getStatistics();
+            entries += segmentStatistics[0];
+            usedBytes += segmentStatistics[1];
+            storedBytes += segmentStatistics[2];
+            allocatedBytes += segmentStatistics[3];
+        }
+        final long hitCount = this.hits.get();
+        final long missCount = this.misses.get();
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", this.enabled);
+        statistics.put("maxSize", this.maxSize);
+        statistics.put("allocatedSize", allocatedBytes);
+        statistics.put("usedSize", usedBytes);
+        statistics.put("storedSize", storedBytes);
+        statistics.put("entries", entries);
+        statistics.put("hits", hitCount);
+        statistics.put("misses", missCount);
+        statistics.put("hitRatio", (hitCount + missCount) == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        statistics.put("stores", this.stores.get());
+        statistics.put("rejections", this.rejections.get());
+        statistics.put("evictions", this.evictions.get());
+        statistics.put("purges", this.purges.get());
+        return statistics;
+    }
+
+    private Segment segmentFor(WMSRequestKey key){
+        final int hash = key.hashCode();
+        final int spread = hash ^ (hash >>> 16);
+        return this.segments[(spread & Integer.MAX_VALUE) % this.segments.length];
+    }
+
+    /**
+     * The heap part of a cached tile: its validators and where its bytes are stored off-heap.
+     */
+    private static final class Entry {
+        private final WMSRequestKey key;
+        private final String contentType;
+        private final long lastModified;
+        private final String etag;
+        private final int length;
+        private final int[] pages;
+
+        private Entry(WMSRequestKey key,String contentType,long lastModified,String etag,int length,int[] pages){
+            this.key = key;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.length = length;
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * A part of the cache with its own lock, direct buffers, free page list and LRU order.
+     * Slabs are allocated on demand, up to the share of the size budget of the segment.
+     */
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int pageSize;
+        private final int pagesPerSlab;
+        private final int maxSlabs;
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private final LinkedHashMap<WMSRequestKey,Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private int[] freePages = new int[0];
+        private int freePageCount = 0;
+        private long storedBytes = 0;
+
+        private Segment(int pageSize,int pagesPerSlab,int maxSlabs){
+            this.pageSize = pageSize;
+            this.pagesPerSlab = pagesPerSlab;
+            this.maxSlabs = maxSlabs;
+        }
+
+        private WMSResponse get(WMSRequestKey key){
+            this.lock.lock();
+            try{
+                final Entry entry = this.entries.get(key);
+                if(entry == null){
+                    return null;
+                }
+                final byte[] data = new byte[entry.length];
+                int offset = 0;
+                for(int page : entry.pages){
+                    final int length = Math.min(this.pageSize, entry.length - offset);
+                    final ByteBuffer slab = this.slabs.get(page / this.pagesPerSlab);
+                    slab.position((page % this.pagesPerSlab) * this.pageSize);
+                    slab.get(data, offset, length);
+                    offset += length;
+                }
+                return WMSResponse.success(entry.contentType, data, entry.lastModified, entry.etag);
+            }
+            finally{
+                this.lock.unlock();
+            }
+        }
+
+        private boolean contains(WMSRequestKey key){
+            this.lock.lock();
+            try{
+                return this.entries.containsKey(key);
+            }
+            finally{
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Stores a tile, evicting the least recently used tiles until it fits.
+         * @return false if the tile does not fit in the segment
+         */
+        private boolean put(WMSRequestKey key,String contentType,byte[] data,long lastModified,String etag){
+            final int pageCount = (data.length + this.pageSize - 1) / this.pageSize;
+            this.lock.lock();
+            try{
+                final Entry previous = this.entries.remove(key);
+                if(previous != null){
+                    release(previous);
+                }
+                while(this.freePageCount < pageCount && !allocateSlab()){
+                    if(!evictEldest()){
+                        return false;
+                    }
+                }
+                final int[] pages = new int[pageCount];
+                int offset = 0;
+                for(int i = 0;i < pageCount;i++){
+                    final int page = this.freePages[--this.freePageCount];
+                    final int length = Math.min(this.pageSize, data.length - offset);
+                    final ByteBuffer slab = this.slabs.get(page / this.pagesPerSlab);
+                    slab.position((page % this.pagesPerSlab) * this.pageSize);
+                    slab.put(data, offset, length);
+                    offset += length;
+                    pages[i] = page;
+                }
+                this.entries.put(key, new Entry(key, contentType, lastModified, etag, data.length, pages));
+                this.storedBytes += data.length;
+                return true;
+            }
+            finally{
+                this.lock.unlock();
+            }
+        }
+
+        private int removeLayer(String layerWmsId){
+            this.lock.lock();
+            try{
+                int removed = 0;
+                final Iterator<Entry> iterator = this.entries.values().iterator();
+                while(iterator.hasNext()){
+                    final Entry entry = iterator.next();
+                    if(entry.key.containsLayer(layerWmsId)){
+                        iterator.remove();
+                        release(entry);
+                        removed++;
+                    }
+                }
+                return removed;
+            }
+            finally{
+                this.lock.unlock();
+            }
+        }
+
+        private int removeStyle(String style){
+            this.lock.lock();
+            try{
+                int removed = 0;
+                final Iterator<Entry> iterator = this.entries.values().iterator();
+                while(iterator.hasNext()){
+                    final Entry entry = iterator.next();
+                    if(entry.key.containsStyle(style)){
+                        iterator.remove();
+                        release(entry);
+                        removed++;
+                    }
+                }
+                return removed;
+            }
+            finally{
+                this.lock.unlock();
+            }
+        }
+
+        private int clear(){
+            this.lock.lock();
+            try{
+                final int removed = this.entries.size();
+                for(Entry entry : this.entries.values()){
+                    release(entry);
+                }
+                this.entries.clear();
+                return removed;
+            }
+            finally{
+                this.lock.unlock();
+            }
+        }
+
+        private long[] getStatistics(){
+            this.lock.lock();
+            try{
+                final long allocated = (long) this.slabs.size() * this.pagesPerSlab * this.pageSize;
+                final long used = allocated - (long) this.freePageCount * this.pageSize;
+                return new long[]{this.entries.size(), used, this.storedBytes, allocated};
+            }
+            finally{
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Allocates a new slab and pushes its pages to the free list.
+         * Must be called with the lock held.
+         * @return false if the segment already has all the slabs it may allocate
+         */
+        private boolean allocateSlab(){
+            if(this.slabs.size() >= this.maxSlabs){
+                return false;
+            }
+            final ByteBuffer slab;
+            try{
+                slab = ByteBuffer.allocateDirect(this.pagesPerSlab * this.pageSize);
+            }
+            catch(OutOfMemoryError e){
+                LOGGER.log(Level.WARNING, "Could not allocate a tile cache slab, check -XX:MaxDirectMemorySize", e);
+                return false;
+            }
+            final int firstPage = this.slabs.size() * this.pagesPerSlab;
+            this.slabs.add(slab);
+            if(this.freePages.length < this.freePageCount + this.pagesPerSlab){
+                final int[] grown = new int[this.slabs.size() * this.pagesPerSlab];
+                System.arraycopy(this.freePages, 0, grown, 0, this.freePageCount);
+                this.freePages = grown;
+            }
+            for(int page = firstPage + this.pagesPerSlab - 1;page >= firstPage;page--){
+                this.freePages[this.freePageCount++] = page;
+            }
+            return true;
+        }
+
+        /**
+         * Evicts the least recently used tile. Must be called with the lock held.
+         * @return false if the segment is empty
+         */
+        private boolean evictEldest(){
+            final Iterator<Entry> iterator = this.entries.values().iterator();
+            if(!iterator.hasNext()){
+                return false;
+            }
+            final Entry eldest = iterator.next();
+            iterator.remove();
+            release(eldest);
+            TileCache.this.evictions.incrementAndGet();
+            return true;
+        }
+
+        private void release(Entry entry){
+            for(int page : entry.pages){
+                this.freePages[this.freePageCount++] = page;
+            }
+            this.storedBytes -= entry.length;
+        }
+    }
+}
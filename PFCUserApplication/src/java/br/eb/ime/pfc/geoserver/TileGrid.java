@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletContext;
+
+/**
+ * The fixed grid of the tiles served by /tiles/{layer}/{z}/{x}/{y}.{png|jpg|pbf}.
+ *
+ * The grid is the EPSG:3857 grid of 256x256 tiles used by OpenLayers, with x
+ * growing to the east and y to the south from the top left corner of the world.
+ * Each tile is mapped to the canonical GetMap request that the map of the users
+ * would send for it, with the style configured on the layer, so the tiles of
+ * this endpoint, of the WMS proxy and of the {@link TileSeeder} share the
+ * entries of the {@link TileCache} and the metatiles of the {@link Metatiler}.
+ *
+ * The style of each layer is read from the database once, by the
+ * {@link LayerRegistry}, and kept until the administrator changes the layer.
+ *
+ * The following context parameters configure the grid:
+ * tiles.maxZoom and tiles.parameters (the parameters of the GetMap requests,
+ * besides LAYERS, STYLES, BBOX and FORMAT, by default seed.parameters).
+ */
+public final class TileGrid {
+    public static final int DEFAULT_MAX_ZOOM = 20;
+
+    private static final int MAX_ZOOM = 30;
+
+    private static volatile TileGrid instance = null;
+
+    private final int maxZoom;
+    private final Map<String,String> parameters;
+    private final Map<String,Map<String,String>> formats = new HashMap<>();
+
+    private final AtomicLong tileRequests = new AtomicLong();
+    private final AtomicLong invalidTileRequests = new AtomicLong();
+
+    /**
+     * Creates the application wide grid from the context parameters of the web application.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        instance = new TileGrid(
+            ContextParameters.getInt(context, "tiles.maxZoom", DEFAULT_MAX_ZOOM),
+            ContextParameters.getString(context, "tiles.parameters",
+                    ContextParameters.getString(context, "seed.parameters", TileSeeder.DEFAULT_PARAMETERS)));
+    }
+
+    /**
+     * Returns the application wide grid, creating the default one if the
+     * application did not initialize it.
+     * @return the tile grid
+     */
+    public static TileGrid getInstance(){
+        TileGrid grid = instance;
+        if(grid == null){
+            synchronized(TileGrid.class){
+                if(instance == null){
+                    instance = new TileGrid(DEFAULT_MAX_ZOOM, TileSeeder.DEFAULT_PARAMETERS);
+                }
+                grid = instance;
+            }
+        }
+        return grid;
+    }
+
+    private TileGrid(int maxZoom,String parameters){
+        this.maxZoom = Math.max(0, Math.min(MAX_ZOOM, maxZoom));
+        this.parameters = new HashMap<>();
+        for(String parameter : parameters.split("&")){
+            final int separator = parameter.indexOf('=');
+            if(separator > 0){
+                this.parameters.put(parameter.substring(0, separator).trim(), parameter.substring(separator + 1).trim());
+            }
+        }
+        this.formats.put("png", format("image/png", "true"));
+        this.formats.put("jpg", format("image/jpeg", "false"));
+        this.formats.put("pbf", format("application/vnd.mapbox-vector-tile", null));
+    }
+
+    private static Map<String,String> format(String format,String transparent){
+        final Map<String,String> parameters = new HashMap<>();
+        parameters.put("FORMAT", format);
+        if(transparent != null){
+            parameters.put("TRANSPARENT", transparent);
+        }
+        return parameters;
+    }
+
+    /**
+     * Returns the key of the GetMap request of a tile.
+     * @param layerWmsId
+     * The wmsId of the layer.
+     * @param zoom
+     * The zoom level, from 0 to tiles.maxZoom.
+     * @param x
+     * The column of the tile, from 0 at the west.
+     * @param y
+     * The row of the tile, from 0 at the north.
+     * @param extension
+     * The extension of the format: png, jpg or pbf.
+     * @return the canonical key of the request, or null if the layer does not
+     * exist or the tile is not in the grid
+     */
+    public WMSRequestKey getTileKey(String layerWmsId,int zoom,long x,long y,String extension){
+        this.tileRequests.incrementAndGet();
+        final Map<String,String> format = this.formats.get(extension.toLowerCase(Locale.ROOT));
+        if(format == null || zoom < 0 || zoom > this.maxZoom || x < 0 || y < 0 || x >= (1L << zoom) || y >= (1L << zoom)){
+            this.invalidTileRequests.incrementAndGet();
+            return null;
+        }
+        final String style = getStyle(layerWmsId);
+        if(style == null){
+            this.invalidTileRequests.incrementAndGet();
+            return null;
+        }
+        final Map<String,String[]> tileParameters = new HashMap<>();
+        for(Map.Entry<String,String> parameter : this.parameters.entrySet()){
+            tileParameters.put(parameter.getKey(), new String[]{parameter.getValue()});
+        }
+        for(Map.Entry<String,String> parameter : format.entrySet()){
+            tileParameters.put(parameter.getKey(), new String[]{parameter.getValue()});
+        }
+        tileParameters.put("LAYERS", new String[]{layerWmsId});
+        tileParameters.put("STYLES", new String[]{style});
+        tileParameters.put("BBOX", new String[]{Metatiler.boundingBox(x, y, 1, 1, Metatiler.WORLD / (1L << zoom))});
+        return WMSRequestKey.fromParameters("/wms", tileParameters);
+    }
+
+    /**
+     * Returns the style configured on a layer.
+     * @param layerWmsId
+     * The wmsId of the layer.
+     * @return the style, an empty String for the default style of GeoServer, or
+     * null if the layer does not exist
+     */
+    String getStyle(String layerWmsId){
+        final LayerRegistry.LayerDefinition layer = LayerRegistry.getInstance().get(layerWmsId);
+        return layer == null ? null : layer.getStyle();
+    }
+
+    /**
+     * Returns a snapshot of the statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("maxZoom", this.maxZoom);
+        statistics.put("tileRequests", this.tileRequests.get());
+        statistics.put("invalidTileRequests", this.invalidTileRequests.get());
+        return statistics;
+    }
+}
@@ -0,0 +1,815 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.domain.AccessLevel;
+import br.eb.ime.pfc.domain.AccessLevelManager;
+import br.eb.ime.pfc.domain.Layer;
+import br.eb.ime.pfc.domain.LayerManager;
+import br.eb.ime.pfc.domain.ObjectNotFoundException;
+import br.eb.ime.pfc.hibernate.HibernateUtil;
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+/**
+ * Pre-renders the tiles of the layers in the background, so the first users at
+ * each zoom level do not pay the render cost after the application starts or
+ * after a layer changes.
+ *
+ * A seeding job walks the layers attached to the access levels (or a single
+ * layer), generating the GetMap request of every tile of the EPSG:3857 grid of
+ * OpenLayers that intersects seed.bbox, from seed.minZoom to seed.maxZoom. The
+ * tiles are requested through {@link GeoServerCommunication#fetchTile(WMSRequestKey)},
+ * so they are grouped in metatiles and stored in the {@link TileCache} exactly
+ * like the tiles requested by the users. Tiles that are already cached are skipped.
+ *
+ * Jobs run one at a time with seed.threads low priority threads. Before each
+ * tile the seeder waits while the GeoServer nodes are unavailable or while they
+ * answer more than seed.throttleThreshold interactive requests, so seeding only
+ * uses the capacity the users leave idle. The progress of each job is saved to
+ * seed.directory, and unfinished jobs are resumed from their last checkpoint when
+ * the application starts again.
+ *
+ * The following context parameters configure the seeder:
+ * seed.enabled, seed.threads, seed.bbox (minX,minY,maxX,maxY in EPSG:3857),
+ * seed.minZoom, seed.maxZoom, seed.parameters (the parameters of the GetMap
+ * requests, besides LAYERS, STYLES and BBOX, as sent by the map of the users),
+ * seed.throttleThreshold, seed.throttlePause (milliseconds), seed.directory,
+ * seed.onStartup and seed.onLayerChange.
+ */
+public final class TileSeeder {
+    private static final Logger LOGGER = Logger.getLogger(TileSeeder.class.getName());
+
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final int DEFAULT_THREADS = 2;
+    public static final String DEFAULT_BBOX = "-4880000,-2660000,-4795000,-2590000";
+    public static final int DEFAULT_MIN_ZOOM = 10;
+    public static final int DEFAULT_MAX_ZOOM = 14;
+    public static final String DEFAULT_PARAMETERS = "SERVICE=WMS&VERSION=1.3.0&REQUEST=GetMap&FORMAT=image/png"
+            + "&TRANSPARENT=true&CRS=EPSG:3857&WIDTH=256&HEIGHT=256";
+    public static final int DEFAULT_THROTTLE_THRESHOLD = 16;
+    public static final long DEFAULT_THROTTLE_PAUSE = 1000;
+    public static final boolean DEFAULT_ON_STARTUP = false;
+    public static final boolean DEFAULT_ON_LAYER_CHANGE = false;
+
+    private static final int MAX_ZOOM = 24;
+    private static final long CHECKPOINT_INTERVAL = 5000;
+    private static final int MAX_FINISHED_JOBS = 10;
+    private static final String JOB_FILE_SUFFIX = ".properties";
+
+    private static volatile TileSeeder instance = null;
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        CANCELLED
+    }
+
+    private final boolean enabled;
+    private final int threads;
+    private final double[] bbox;
+    private final int minZoom;
+    private final int maxZoom;
+    private final Map<String,String[]> parameters;
+    private final int throttleThreshold;
+    private final long throttlePause;
+    private final boolean onLayerChange;
+    private final File directory;
+
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final Deque<Job> finishedJobs = new ArrayDeque<>();
+    private final Thread coordinator;
+    private final ExecutorService workers;
+    private volatile boolean running = true;
+    private volatile Job currentJob = null;
+
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final AtomicLong seededTiles = new AtomicLong();
+    private final AtomicLong throttledPauses = new AtomicLong();
+    private final AtomicLong jobSequence = new AtomicLong();
+
+    /**
+     * A seeding job: the tiles of a set of layers in a range of zoom levels.
+     *
+     * The tiles are numbered layer by layer, zoom level by zoom level and row by
+     * row, so a job is resumed from the lowest tile that was not seeded yet.
+     */
+    public static final class Job {
+        private final String id;
+        //The wmsId of the layer or null for the layers of every access level
+        private final String target;
+        private final long createdTime;
+        private volatile State state = State.QUEUED;
+        private volatile boolean cancelled = false;
+        private volatile long startedTime = -1;
+        private volatile long finishedTime = -1;
+
+        //Resolved when the job starts
+        private String[] layerIds;
+        private String[] layerStyles;
+        private double[] bbox;
+        private int minZoom;
+        private long[] zoomOffsets;
+        private long[] firstColumns;
+        private long[] firstRows;
+        private long[] columns;
+        private long tilesPerLayer;
+        private volatile long total = -1;
+
+        private long next = 0;
+        private final TreeSet<Long> inProgress = new TreeSet<>();
+        private final AtomicLong seeded = new AtomicLong();
+        private final AtomicLong cached = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        private Job(String id,String target,long createdTime){
+            this.id = id;
+            this.target = target;
+            this.createdTime = createdTime;
+        }
+
+        private void resolve(Map<String,String> layers,double[] bbox,int minZoom,int maxZoom){
+            this.layerIds = layers.keySet().toArray(new String[layers.size()]);
+            this.layerStyles = layers.values().toArray(new String[layers.size()]);
+            this.bbox = bbox;
+            this.minZoom = minZoom;
+            final int zoomLevels = maxZoom - minZoom + 1;
+            this.zoomOffsets = new long[zoomLevels + 1];
+            this.firstColumns = new long[zoomLevels];
+            this.firstRows = new long[zoomLevels];
+            this.columns = new long[zoomLevels];
+            for(int i = 0;i < zoomLevels;i++){
+                final long tilesPerSide = 1L << (minZoom + i);
+                final double span = Metatiler.WORLD / tilesPerSide;
+                final long firstColumn = clamp((long) Math.floor((bbox[0] + Metatiler.HALF_WORLD) / span), 0, tilesPerSide - 1);
+                final long lastColumn = clamp((long) Math.ceil((bbox[2] + Metatiler.HALF_WORLD) / span) - 1, firstColumn, tilesPerSide - 1);
+                final long firstRow = clamp((long) Math.floor((Metatiler.HALF_WORLD - bbox[3]) / span), 0, tilesPerSide - 1);
+                final long lastRow = clamp((long) Math.ceil((Metatiler.HALF_WORLD - bbox[1]) / span) - 1, firstRow, tilesPerSide - 1);
+                this.firstColumns[i] = firstColumn;
+                this.firstRows[i] = firstRow;
+                this.columns[i] = lastColumn - firstColumn + 1;
+                this.zoomOffsets[i + 1] = this.zoomOffsets[i] + this.columns[i] * (lastRow - firstRow + 1);
+            }
+            this.tilesPerLayer = this.zoomOffsets[zoomLevels];
+            this.total = this.tilesPerLayer * this.layerIds.length;
+        }
+
+        private static long clamp(long value,long min,long max){
+            return Math.max(min, Math.min(max, value));
+        }
+
+        /**
+         * Returns the key of the GetMap request of a tile.
+         */
+        private WMSRequestKey getTileKey(long index,Map<String,String[]> parameters){
+            final int layer = (int) (index / this.tilesPerLayer);
+            final long offset = index % this.tilesPerLayer;
+            int zoomLevel = 0;
+            while(offset >= this.zoomOffsets[zoomLevel + 1]){
+                zoomLevel++;
+            }
+            final long tile = offset - this.zoomOffsets[zoomLevel];
+            final long row = this.firstRows[zoomLevel] + tile / this.columns[zoomLevel];
+            final long column = this.firstColumns[zoomLevel] + tile % this.columns[zoomLevel];
+            final Map<String,String[]> tileParameters = new HashMap<>(parameters);
+            tileParameters.put("LAYERS", new String[]{this.layerIds[layer]});
+            tileParameters.put("STYLES", new String[]{this.layerStyles[layer]});
+            tileParameters.put("BBOX", new String[]{Metatiler.boundingBox(column, row, 1, 1,
+                    Metatiler.WORLD / (1L << (this.minZoom + zoomLevel)))});
+            return WMSRequestKey.fromParameters("/wms", tileParameters);
+        }
+
+        /**
+         * Claims the next tile to be seeded.
+         * @return the index of the tile or -1 if every tile was claimed
+         */
+        private synchronized long claim(){
+            if(this.next >= this.total){
+                return -1;
+            }
+            final long index = this.next++;
+            this.inProgress.add(index);
+            return index;
+        }
+
+        private synchronized void release(long index){
+            this.inProgress.remove(index);
+        }
+
+        /**
+         * Returns the lowest tile that was not seeded yet, where the job is resumed.
+         */
+        private synchronized long getCheckpoint(){
+            return this.inProgress.isEmpty() ? this.next : this.inProgress.first();
+        }
+
+        public String getId(){
+            return this.id;
+        }
+
+        public State getState(){
+            return this.state;
+        }
+
+        private Properties toProperties(){
+            final Properties properties = new Properties();
+            properties.setProperty("id", this.id);
+            if(this.target != null){
+                properties.setProperty("target", this.target);
+            }
+            properties.setProperty("created", Long.toString(this.createdTime));
+            if(this.layerIds != null){
+                properties.setProperty("layers", Integer.toString(this.layerIds.length));
+                for(int i = 0;i < this.layerIds.length;i++){
+                    properties.setProperty("layer." + i + ".id", this.layerIds[i]);
+                    properties.setProperty("layer." + i + ".style", this.layerStyles[i]);
+                }
+                properties.setProperty("bbox", this.bbox[0] + "," + this.bbox[1] + "," + this.bbox[2] + "," + this.bbox[3]);
+                properties.setProperty("minZoom", Integer.toString(this.minZoom));
+                properties.setProperty("maxZoom", Integer.toString(this.minZoom + this.columns.length - 1));
+                properties.setProperty("checkpoint", Long.toString(getCheckpoint()));
+                properties.setProperty("seeded", Long.toString(this.seeded.get()));
+                properties.setProperty("cached", Long.toString(this.cached.get()));
+                properties.setProperty("failed", Long.toString(this.failed.get()));
+            }
+            return properties;
+        }
+
+        private static Job fromProperties(Properties properties){
+            final String id = properties.getProperty("id");
+            if(id == null){
+                throw new IllegalArgumentException("Seeding job without id");
+            }
+            final Job job = new Job(id, properties.getProperty("target"), Long.parseLong(properties.getProperty("created", "0")));
+            final String layerCount = properties.getProperty("layers");
+            if(layerCount != null){
+                final Map<String,String> layers = new LinkedHashMap<>();
+                for(int i = 0;i < Integer.parseInt(layerCount);i++){
+                    layers.put(properties.getProperty("layer." + i + ".id"), properties.getProperty("layer." + i + ".style", ""));
+                }
+                job.resolve(layers, parseBoundingBox(properties.getProperty("bbox")),
+                        Integer.parseInt(properties.getProperty("minZoom")), Integer.parseInt(properties.getProperty("maxZoom")));
+                job.next = Math.min(job.total, Long.parseLong(properties.getProperty("checkpoint", "0")));
+                job.seeded.set(Long.parseLong(properties.getProperty("seeded", "0")));
+                job.cached.set(Long.parseLong(properties.getProperty("cached", "0")));
+                job.failed.set(Long.parseLong(properties.getProperty("failed", "0")));
+            }
+            return job;
+        }
+
+        /**
+         * Returns the progress of this job.
+         * @return map of statistic name to value
+         */
+        public Map<String,Object> getStatistics(){
+            final Map<String,Object> statistics = new LinkedHashMap<>();
+            final long totalTiles = this.total;
+            statistics.put("id", this.id);
+            statistics.put("target", this.target == null ? "accessLevels" : this.target);
+            statistics.put("state", this.state.name());
+            statistics.put("layers", this.layerIds == null ? -1 : this.layerIds.length);
+            statistics.put("totalTiles", totalTiles);
+            statistics.put("seededTiles", this.seeded.get());
+            statistics.put("cachedTiles", this.cached.get());
+            statistics.put("failedTiles", this.failed.get());
+            statistics.put("progress", totalTiles <= 0 ? (this.state == State.COMPLETED ? 100.0 : 0.0) : getCheckpoint() * 100.0 / totalTiles);
+            statistics.put("createdTime", this.createdTime);
+            statistics.put("startedTime", this.startedTime);
+            statistics.put("finishedTime", this.finishedTime);
+            return statistics;
+        }
+    }
+
+    /**
+     * Creates the application wide seeder from the context parameters of the web
+     * application, resumes the unfinished jobs and, if seed.onStartup is set,
+     * seeds the layers of every access level.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        destroy();
+        final String instanceRoot = System.getProperty("com.sun.aas.instanceRoot");
+        final String defaultDirectory = (instanceRoot != null ? instanceRoot : System.getProperty("java.io.tmpdir"))
+                + File.separator + "pfc-seed";
+        final boolean enabled = ContextParameters.getBoolean(context, "seed.enabled", DEFAULT_ENABLED);
+        instance = new TileSeeder(enabled,
+            ContextParameters.getInt(context, "seed.threads", DEFAULT_THREADS),
+            ContextParameters.getString(context, "seed.bbox", DEFAULT_BBOX),
+            ContextParameters.getInt(context, "seed.minZoom", DEFAULT_MIN_ZOOM),
+            ContextParameters.getInt(context, "seed.maxZoom", DEFAULT_MAX_ZOOM),
+            ContextParameters.getString(context, "seed.parameters", DEFAULT_PARAMETERS),
+            ContextParameters.getInt(context, "seed.throttleThreshold", DEFAULT_THROTTLE_THRESHOLD),
+            ContextParameters.getLong(context, "seed.throttlePause", DEFAULT_THROTTLE_PAUSE),
+            ContextParameters.getBoolean(context, "seed.onLayerChange", DEFAULT_ON_LAYER_CHANGE),
+            new File(ContextParameters.getString(context, "seed.directory", defaultDirectory)),
+            enabled);
+        if(enabled){
+            instance.resume();
+            if(ContextParameters.getBoolean(context, "seed.onStartup", DEFAULT_ON_STARTUP)){
+                instance.seedAccessLevels();
+            }
+        }
+    }
+
+    /**
+     * Stops the seeding threads. The running job keeps its checkpoint and is
+     * resumed when the application starts again.
+     */
+    public static synchronized void destroy(){
+        if(instance != null){
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the application wide seeder.
+     * If the seeder was not initialized by the application (e.g. when this class
+     * is used from a main method) a disabled seeder is returned.
+     * @return the seeder
+     */
+    public static TileSeeder getInstance(){
+        TileSeeder seeder = instance;
+        if(seeder == null){
+            synchronized(TileSeeder.class){
+                if(instance == null){
+                    instance = new TileSeeder(false, DEFAULT_THREADS, DEFAULT_BBOX, DEFAULT_MIN_ZOOM, DEFAULT_MAX_ZOOM,
+                            DEFAULT_PARAMETERS, DEFAULT_THROTTLE_THRESHOLD, DEFAULT_THROTTLE_PAUSE,
+                            DEFAULT_ON_LAYER_CHANGE, null, false);
+                }
+                seeder = instance;
+            }
+        }
+        return seeder;
+    }
+
+    private TileSeeder(boolean enabled,int threads,String bbox,int minZoom,int maxZoom,String parameters,
+            int throttleThreshold,long throttlePause,boolean onLayerChange,File directory,boolean startThreads){
+        this.enabled = enabled;
+        this.threads = Math.max(1, threads);
+        double[] boundingBox;
+        try{
+            boundingBox = parseBoundingBox(bbox);
+        }
+        catch(IllegalArgumentException e){
+            LOGGER.log(Level.WARNING, "Invalid seeding bounding box {0}, using {1}", new Object[]{bbox, DEFAULT_BBOX});
+            boundingBox = parseBoundingBox(DEFAULT_BBOX);
+        }
+        this.bbox = boundingBox;
+        this.minZoom = Math.max(0, Math.min(MAX_ZOOM, minZoom));
+        this.maxZoom = Math.max(this.minZoom, Math.min(MAX_ZOOM, maxZoom));
+        this.parameters = parseParameters(parameters);
+        this.throttleThreshold = Math.max(0, throttleThreshold);
+        this.throttlePause = Math.max(10, throttlePause);
+        this.onLayerChange = onLayerChange;
+        this.directory = startThreads ? prepareDirectory(directory) : null;
+        if(startThreads){
+            this.workers = Executors.newFixedThreadPool(this.threads, new ThreadFactory(){
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "TileSeeder-Worker-" + this.threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+            this.coordinator = new Thread(new Runnable(){
+                @Override
+                public void run() {
+                    runJobs();
+                }
+            }, "TileSeeder");
+            this.coordinator.setDaemon(true);
+            this.coordinator.setPriority(Thread.MIN_PRIORITY);
+            this.coordinator.start();
+            LOGGER.log(Level.INFO, "Tile seeder created: zoom levels {0} to {1} with {2} threads",
+                    new Object[]{this.minZoom, this.maxZoom, this.threads});
+        }
+        else{
+            this.workers = null;
+            this.coordinator = null;
+        }
+    }
+
+    private static double[] parseBoundingBox(String bbox){
+        final String[] coordinates = bbox == null ? new String[0] : bbox.split(",");
+        if(coordinates.length != 4){
+            throw new IllegalArgumentException("Invalid bounding box: " + bbox);
+        }
+        final double[] boundingBox = new double[4];
+        for(int i = 0;i < 4;i++){
+            boundingBox[i] = Double.parseDouble(coordinates[i].trim());
+        }
+        if(boundingBox[0] >= boundingBox[2] || boundingBox[1] >= boundingBox[3]){
+            throw new IllegalArgumentException("Invalid bounding box: " + bbox);
+        }
+        return boundingBox;
+    }
+
+    private static Map<String,String[]> parseParameters(String parameters){
+        final Map<String,String[]> parameterMap = new HashMap<>();
+        for(String parameter : parameters.split("&")){
+            final int separator = parameter.indexOf('=');
+            if(separator > 0){
+                parameterMap.put(parameter.substring(0, separator).trim(), new String[]{parameter.substring(separator + 1).trim()});
+            }
+        }
+        return parameterMap;
+    }
+
+    private static File prepareDirectory(File directory){
+        if(directory != null && (directory.isDirectory() || directory.mkdirs())){
+            return directory;
+        }
+        LOGGER.log(Level.WARNING, "Could not create the directory of the seeding jobs {0}, jobs will not be resumed", directory);
+        return null;
+    }
+
+    /**
+     * Seeds the tiles of the layers attached to every access level.
+     * @return the job or null if seeding is disabled
+     */
+    public Job seedAccessLevels(){
+        return submit(null);
+    }
+
+    /**
+     * Seeds the tiles of a single layer.
+     * @param layerWmsId
+     * The wmsId of the layer.
+     * @return the job or null if seeding is disabled
+     */
+    public Job seedLayer(String layerWmsId){
+        if(layerWmsId == null || layerWmsId.trim().equals("")){
+            return null;
+        }
+        return submit(layerWmsId.trim());
+    }
+
+    /**
+     * Indicates whether the tiles of a layer are seeded again when the
+     * administrator changes the layer.
+     * @return the value of seed.onLayerChange
+     */
+    public boolean isSeedingOnLayerChange(){
+        return this.enabled && this.onLayerChange;
+    }
+
+    private synchronized Job submit(String target){
+        if(!this.enabled || this.coordinator == null){
+            return null;
+        }
+        if(!TileCache.getInstance().isEnabled()){
+            LOGGER.log(Level.WARNING, "The tile cache is disabled, the tiles of {0} are not seeded",
+                    target == null ? "the access levels" : target);
+            return null;
+        }
+        //A job waiting for the same layers already covers this request
+        for(Job job : this.queue){
+            if(target == null ? job.target == null : target.equals(job.target)){
+                return job;
+            }
+        }
+        final long now = System.currentTimeMillis();
+        final Job job = new Job("seed-" + now + "-" + this.jobSequence.incrementAndGet(), target, now);
+        save(job);
+        this.queue.add(job);
+        LOGGER.log(Level.INFO, "Seeding job {0} queued for {1}", new Object[]{job.id, target == null ? "the access levels" : target});
+        return job;
+    }
+
+    /**
+     * Cancels a queued or running job.
+     * @param jobId
+     * The id of the job.
+     * @return true if the job was found
+     */
+    public boolean cancel(String jobId){
+        final Job running = this.currentJob;
+        if(running != null && running.id.equals(jobId)){
+            running.cancelled = true;
+            return true;
+        }
+        for(Job job : this.queue){
+            if(job.id.equals(jobId) && this.queue.remove(job)){
+                finish(job, State.CANCELLED);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues the unfinished jobs saved in seed.directory, in the order they were created.
+     */
+    private void resume(){
+        if(this.directory == null){
+            return;
+        }
+        final File[] files = this.directory.listFiles();
+        if(files == null){
+            return;
+        }
+        Arrays.sort(files);
+        for(File file : files){
+            if(!file.getName().endsWith(JOB_FILE_SUFFIX)){
+                continue;
+            }
+            try(InputStream is = new FileInputStream(file)){
+                final Properties properties = new Properties();
+                properties.load(is);
+                final Job job = Job.fromProperties(properties);
+                this.queue.add(job);
+                LOGGER.log(Level.INFO, "Seeding job {0} resumed at tile {1}", new Object[]{job.id, job.next});
+            }
+            catch(IOException | RuntimeException e){
+                LOGGER.log(Level.WARNING, "Discarding the invalid seeding job " + file, e);
+                if(!file.delete()){
+                    LOGGER.log(Level.WARNING, "Could not delete {0}", file);
+                }
+            }
+        }
+    }
+
+    private void runJobs(){
+        try{
+            while(this.running){
+                final Job job = this.queue.take();
+                this.currentJob = job;
+                try{
+                    runJob(job);
+                }
+                finally{
+                    this.currentJob = null;
+                }
+            }
+        }
+        catch(InterruptedException e){
+            //The application is being stopped
+        }
+    }
+
+    private void runJob(final Job job) throws InterruptedException{
+        if(job.total < 0){
+            try{
+                job.resolve(readLayers(job.target), this.bbox, this.minZoom, this.maxZoom);
+            }
+            catch(HibernateException | ObjectNotFoundException e){
+                LOGGER.log(Level.WARNING, "Could not read the layers of seeding job " + job.id, e);
+                finish(job, State.CANCELLED);
+                return;
+            }
+        }
+        job.state = State.RUNNING;
+        job.startedTime = System.currentTimeMillis();
+        final CountDownLatch finishedWorkers = new CountDownLatch(this.threads);
+        for(int i = 0;i < this.threads;i++){
+            this.workers.execute(new Runnable(){
+                @Override
+                public void run() {
+                    try{
+                        seedTiles(job);
+                    }
+                    catch(InterruptedException e){
+                        //The application is being stopped
+                    }
+                    catch(RuntimeException e){
+                        LOGGER.log(Level.WARNING, "Seeding job " + job.id + " failed", e);
+                        job.cancelled = true;
+                    }
+                    finally{
+                        finishedWorkers.countDown();
+                    }
+                }
+            });
+        }
+        try{
+            while(!finishedWorkers.await(CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS)){
+                save(job);
+            }
+        }
+        finally{
+            save(job);
+        }
+        if(this.running){
+            finish(job, job.cancelled ? State.CANCELLED : State.COMPLETED);
+        }
+    }
+
+    private void seedTiles(Job job) throws InterruptedException{
+        final TileCache tileCache = TileCache.getInstance();
+        while(this.running && !job.cancelled){
+            throttle();
+            final long index = job.claim();
+            if(index < 0){
+                return;
+            }
+            try{
+                final WMSRequestKey key = job.getTileKey(index, this.parameters);
+                if(tileCache.contains(key)){
+                    job.cached.incrementAndGet();
+                    continue;
+                }
+                final WMSResponse response;
+                this.inFlightRequests.incrementAndGet();
+                try{
+                    response = GeoServerCommunication.fetchTile(key);
+                }
+                finally{
+                    this.inFlightRequests.decrementAndGet();
+                }
+                if(response.isError()){
+                    job.failed.incrementAndGet();
+                }
+                else{
+                    job.seeded.incrementAndGet();
+                    this.seededTiles.incrementAndGet();
+                }
+            }
+            finally{
+                job.release(index);
+            }
+        }
+    }
+
+    /**
+     * Waits while GeoServer is unavailable or busy with the requests of the users.
+     */
+    private void throttle() throws InterruptedException{
+        final GeoServerNodePool nodePool = GeoServerNodePool.getInstance();
+        while(this.running && (!nodePool.isAvailable()
+                || nodePool.getInFlightRequests() - this.inFlightRequests.get() > this.throttleThreshold)){
+            this.throttledPauses.incrementAndGet();
+            Thread.sleep(this.throttlePause);
+        }
+    }
+
+    /**
+     * Reads the layers of a job, with their styles, sorted by wmsId.
+     * @param layerWmsId
+     * The wmsId of a layer or null for the layers of every access level.
+     */
+    private static Map<String,String> readLayers(final String layerWmsId){
+        return HibernateUtil.read(new HibernateUtil.Work<Map<String,String>>(){
+            @Override
+            public Map<String,String> execute(Session session) throws HibernateException{
+                final Map<String,String> layers = new TreeMap<>();
+                if(layerWmsId == null){
+                    for(AccessLevel accessLevel : new AccessLevelManager(session).readAll()){
+                        for(Layer layer : accessLevel.getLayers()){
+                            layers.put(layer.getWmsId(), layer.getStyle() == null ? "" : layer.getStyle());
+                        }
+                    }
+                }
+                else{
+                    final Layer layer = new LayerManager(session).getById(layerWmsId);
+                    layers.put(layer.getWmsId(), layer.getStyle() == null ? "" : layer.getStyle());
+                }
+                return layers;
+            }
+        });
+    }
+
+    private void finish(Job job,State state){
+        job.state = state;
+        job.finishedTime = System.currentTimeMillis();
+        final File file = getJobFile(job);
+        if(file != null && file.exists() && !file.delete()){
+            LOGGER.log(Level.WARNING, "Could not delete {0}", file);
+        }
+        synchronized(this.finishedJobs){
+            this.finishedJobs.addFirst(job);
+            while(this.finishedJobs.size() > MAX_FINISHED_JOBS){
+                this.finishedJobs.removeLast();
+            }
+        }
+        LOGGER.log(Level.INFO, "Seeding job {0} {1}: {2} tiles seeded, {3} already cached, {4} failed",
+                new Object[]{job.id, state.name().toLowerCase(), job.seeded.get(), job.cached.get(), job.failed.get()});
+    }
+
+    /**
+     * Saves the checkpoint of a job, replacing its previous file at once.
+     */
+    private void save(Job job){
+        final File file = getJobFile(job);
+        if(file == null){
+            return;
+        }
+        final File temporaryFile = new File(this.directory, job.id + ".tmp");
+        try{
+            try(OutputStream os = new FileOutputStream(temporaryFile)){
+                job.toProperties().store(os, "Seeding job");
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e){
+            LOGGER.log(Level.WARNING, "Could not save seeding job " + job.id, e);
+        }
+    }
+
+    private File getJobFile(Job job){
+        return this.directory == null ? null : new File(this.directory, job.id + JOB_FILE_SUFFIX);
+    }
+
+    /**
+     * Returns a snapshot of the seeding statistics and of the progress of the jobs.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", this.enabled);
+        statistics.put("threads", this.threads);
+        statistics.put("minZoom", this.minZoom);
+        statistics.put("maxZoom", this.maxZoom);
+        statistics.put("throttleThreshold", this.throttleThreshold);
+        statistics.put("inFlightRequests", this.inFlightRequests.get());
+        statistics.put("seededTiles", this.seededTiles.get());
+        statistics.put("throttledPauses", this.throttledPauses.get());
+        final Job running = this.currentJob;
+        statistics.put("currentJob", running == null ? null : running.getStatistics());
+        final List<Map<String,Object>> queuedJobs = new ArrayList<>();
+        for(Job job : this.queue){
+            queuedJobs.add(job.getStatistics());
+        }
+        statistics.put("queuedJobs", queuedJobs);
+        final List<Map<String,Object>> finished = new ArrayList<>();
+        synchronized(this.finishedJobs){
+            for(Job job : this.finishedJobs){
+                finished.add(job.getStatistics());
+            }
+        }
+        statistics.put("finishedJobs", finished);
+        return statistics;
+    }
+
+    private void shutdown(){
+        this.running = false;
+        if(this.coordinator != null){
+            this.coordinator.interrupt();
+            this.workers.shutdownNow();
+            try{
+                this.coordinator.join(CHECKPOINT_INTERVAL);
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
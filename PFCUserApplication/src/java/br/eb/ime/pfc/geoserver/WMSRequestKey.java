@@ -0,0 +1,304 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable, canonical representation of a WMS request.
+ *
+ * Two requests that only differ in the order of their parameters, in the case
+ * of the parameter names, in spaces between layer names or in the way the
+ * numbers of the bounding box are formatted have the same key. The key is used
+ * to look up responses in the {@link TileCache}.
+ */
+public final class WMSRequestKey {
+    private static final int BBOX_SCALE = 6;
+
+    private final String path;
+    private final SortedMap<String,String> parameters;
+    private final String request;
+    private final String canonicalForm;
+    private final String[] layers;
+    private final int hashCode;
+
+    /**
+     * Creates the key of a WMS request from its parameters.
+     * @param path
+     * The path of the WMS service relative to the proxy, e.g. "/wms".
+     * @param parameterMap
+     * The parameters of the request, as returned by ServletRequest.getParameterMap().
+     * @return the canonical key of the request
+     */
+    public static WMSRequestKey fromParameters(String path,Map<String,String[]> parameterMap){
+        final SortedMap<String,String> canonicalParameters = new TreeMap<>();
+        for(Map.Entry<String,String[]> entry : parameterMap.entrySet()){
+            final String name = entry.getKey().toUpperCase(Locale.ROOT);
+            final String[] values = entry.getValue();
+            final StringBuilder valueBuilder = new StringBuilder();
+            for(int i = 0;i < values.length;i++){
+                if(i > 0){
+                    valueBuilder.append(',');
+                }
+                valueBuilder.append(values[i]);
+            }
+            canonicalParameters.put(name, canonicalValue(name, valueBuilder.toString()));
+        }
+        return new WMSRequestKey(path,canonicalParameters);
+    }
+
+    private static String canonicalValue(String name,String value){
+        switch(name){
+            case "LAYERS":
+            case "STYLES":
+                return removeSpaces(value);
+            case "FORMAT":
+                return value.trim().toLowerCase(Locale.ROOT);
+            case "REQUEST":
+            case "SERVICE":
+            case "TRANSPARENT":
+            case "SRS":
+            case "CRS":
+                return value.trim().toUpperCase(Locale.ROOT);
+            case "WIDTH":
+            case "HEIGHT":
+                try{
+                    return Integer.toString(Integer.parseInt(value.trim()));
+                }
+                catch(NumberFormatException e){
+                    return value;
+                }
+            case "BBOX":
+                return canonicalBoundingBox(value);
+            default:
+                return value;
+        }
+    }
+
+    private static String removeSpaces(String value){
+        final StringBuilder builder = new StringBuilder(value.length());
+        for(int i = 0;i < value.length();i++){
+            final char c = value.charAt(i);
+            if(c != ' '){
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Formats each coordinate of the bounding box with a fixed precision, so
+     * "-4852834.0517527" and "-4852834.051752700" are the same coordinate.
+     */
+    private static String canonicalBoundingBox(String value){
+        final String[] coordinates = value.split(",");
+        final StringBuilder builder = new StringBuilder();
+        for(int i = 0;i < coordinates.length;i++){
+            if(i > 0){
+                builder.append(',');
+            }
+            try{
+                final BigDecimal coordinate = new BigDecimal(coordinates[i].trim()).setScale(BBOX_SCALE, RoundingMode.HALF_UP);
+                builder.append(coordinate.stripTrailingZeros().toPlainString());
+            }
+            catch(NumberFormatException e){
+                return value;
+            }
+        }
+        return builder.toString();
+    }
+
+    private WMSRequestKey(String path,SortedMap<String,String> canonicalParameters){
+        this.path = path == null ? "" : path;
+        this.parameters = Collections.unmodifiableSortedMap(canonicalParameters);
+        final String requestValue = canonicalParameters.get("REQUEST");
+        this.request = requestValue == null ? "" : requestValue;
+        final String layersValue = canonicalParameters.get("LAYERS");
+        this.layers = (layersValue == null || layersValue.equals("")) ? new String[0] : layersValue.split(",");
+
+        final StringBuilder builder = new StringBuilder(this.path).append('?');
+        boolean first = true;
+        for(Map.Entry<String,String> entry : canonicalParameters.entrySet()){
+            if(!first){
+                builder.append('&');
+            }
+            builder.append(entry.getKey()).append('=').append(entry.getValue());
+            first = false;
+        }
+        this.canonicalForm = builder.toString();
+        this.hashCode = this.canonicalForm.hashCode();
+    }
+
+    /**
+     * Returns the key of the same request with some parameters replaced.
+     * @param replacements
+     * The new values of the parameters, by parameter name.
+     * @return the canonical key of the new request
+     */
+    public WMSRequestKey withParameters(Map<String,String> replacements){
+        final SortedMap<String,String> canonicalParameters = new TreeMap<>(this.parameters);
+        for(Map.Entry<String,String> entry : replacements.entrySet()){
+            final String name = entry.getKey().toUpperCase(Locale.ROOT);
+            canonicalParameters.put(name, canonicalValue(name, entry.getValue()));
+        }
+        return new WMSRequestKey(this.path,canonicalParameters);
+    }
+
+    /**
+     * Returns the path of the WMS service relative to the proxy, e.g. "/wms".
+     * @return path
+     */
+    public String getPath(){
+        return this.path;
+    }
+
+    /**
+     * Returns the canonical value of a parameter.
+     * @param name
+     * The name of the parameter in upper case.
+     * @return the value or null if the request does not have the parameter
+     */
+    public String getParameter(String name){
+        return this.parameters.get(name);
+    }
+
+    /**
+     * Returns the canonical parameters as an URL encoded query string.
+     * @return query string, without the leading '?'
+     */
+    public String toQueryString(){
+        final StringBuilder builder = new StringBuilder();
+        try{
+            for(Map.Entry<String,String> entry : this.parameters.entrySet()){
+                if(builder.length() > 0){
+                    builder.append('&');
+                }
+                builder.append(URLEncoder.encode(entry.getKey(), "UTF-8")).append('=')
+                        .append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+        }
+        catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Indicates whether this key represents a GetMap request, the only kind of
+     * request whose responses are stored in the tile cache.
+     * @return true if the REQUEST parameter is GetMap
+     */
+    public boolean isGetMap(){
+        return this.request.equals("GETMAP");
+    }
+
+    /**
+     * Returns the REQUEST parameter in upper case, or an empty String if the request has none.
+     * @return request
+     */
+    public String getRequest(){
+        return this.request;
+    }
+
+    /**
+     * Returns the wmsIds of the layers in the LAYERS parameter.
+     * @return a copy of the layer ids
+     */
+    public String[] getLayers(){
+        return Arrays.copyOf(this.layers, this.layers.length);
+    }
+
+    /**
+     * Indicates whether the request contains the specified layer.
+     * @param layerWmsId
+     * The wmsId of a layer.
+     * @return true if the LAYERS parameter contains the layer
+     */
+    public boolean containsLayer(String layerWmsId){
+        for(String layer : this.layers){
+            if(layer.equals(layerWmsId)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicates whether the request draws a layer with the specified style.
+     * Layers drawn with their default style are not matched.
+     * @param style
+     * The name of a style.
+     * @return true if the STYLES parameter contains the style
+     */
+    public boolean containsStyle(String style){
+        final String styles = this.parameters.get("STYLES");
+        if(styles == null){
+            return false;
+        }
+        for(String layerStyle : styles.split(",")){
+            if(layerStyle.equals(style)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the canonical String form of this key.
+     * @return the path followed by the canonical parameters sorted by name
+     */
+    public String getCanonicalForm(){
+        return this.canonicalForm;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(o instanceof WMSRequestKey){
+            final WMSRequestKey other = (WMSRequestKey) o;
+            return other.hashCode == this.hashCode && other.canonicalForm.equals(this.canonicalForm);
+        }
+        else{
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode(){
+        return this.hashCode;
+    }
+
+    @Override
+    public String toString(){
+        return this.canonicalForm;
+    }
+}
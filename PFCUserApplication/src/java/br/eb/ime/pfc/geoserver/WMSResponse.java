@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.geoserver;
+
+import br.eb.ime.pfc.domain.HTTP_STATUS;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * A response of GeoServer read into memory, ready to be written to the client.
+ *
+ * A response is either a successful body with its content type and validators
+ * (ETag and Last-Modified) or an error status that must be sent to the client instead.
+ */
+public final class WMSResponse {
+    private final HTTP_STATUS errorStatus;
+    private final String contentType;
+    private final byte[] data;
+    private final long lastModified;
+    private final long upstreamMillis;
+    private volatile String etag;
+
+    /**
+     * Creates a successful response.
+     * @param contentType
+     * The content type of the body.
+     * @param data
+     * The body.
+     * @param lastModified
+     * The time the body was last modified, in milliseconds since the epoch.
+     * @param upstreamMillis
+     * The time GeoServer took to answer, in milliseconds.
+     * @return the response
+     */
+    public static WMSResponse success(String contentType,byte[] data,long lastModified,long upstreamMillis){
+        return new WMSResponse(null,contentType,data,lastModified,upstreamMillis,null);
+    }
+
+    /**
+     * Creates a successful response whose strong ETag is already known,
+     * e.g. a response read from the tile cache.
+     */
+    static WMSResponse success(String contentType,byte[] data,long lastModified,String etag){
+        return new WMSResponse(null,contentType,data,lastModified,-1,etag);
+    }
+
+    public static WMSResponse error(HTTP_STATUS status){
+        return new WMSResponse(status,null,new byte[0],-1,-1,null);
+    }
+
+    private WMSResponse(HTTP_STATUS errorStatus,String contentType,byte[] data,long lastModified,long upstreamMillis,String etag){
+        this.errorStatus = errorStatus;
+        this.contentType = contentType;
+        this.data = data;
+        this.lastModified = lastModified;
+        this.upstreamMillis = upstreamMillis;
+        this.etag = etag;
+    }
+
+    public boolean isError(){
+        return this.errorStatus != null;
+    }
+
+    /**
+     * Returns the status to be sent to the client when this response is an error.
+     * @return the error status or null if the response is successful
+     */
+    public HTTP_STATUS getErrorStatus(){
+        return this.errorStatus;
+    }
+
+    public String getContentType(){
+        return this.contentType;
+    }
+
+    public byte[] getData(){
+        return this.data;
+    }
+
+    public long getLastModified(){
+        return this.lastModified;
+    }
+
+    /**
+     * Returns the time GeoServer took to answer this response.
+     * @return the latency in milliseconds, or -1 if the response was not requested to GeoServer (e.g. read from the tile cache)
+     */
+    public long getUpstreamMillis(){
+        return this.upstreamMillis;
+    }
+
+    /**
+     * Returns the strong ETag of this response, a quoted digest of its body.
+     * @return the ETag, with quotes
+     */
+    public String getETag(){
+        String value = this.etag;
+        if(value == null){
+            value = "\"" + DigestUtils.md5Hex(this.data) + "\"";
+            this.etag = value;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.hibernate;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+
+/**
+ * Receives the changes published by the administration application.
+ *
+ * The administration application runs in another JVM, so it publishes every
+ * change of the configuration with PostgreSQL NOTIFY on the channel
+ * {@link #CHANNEL}, with a payload "type:id" (e.g. "layer:rio2016:hoteis").
+ * This class keeps a dedicated connection that LISTENs to that channel in a
+ * background thread and dispatches each change to the handlers registered for
+ * its type.
+ *
+ * Notifications sent while the connection is down are lost, so after a
+ * reconnection every handler is called with a null id, meaning that any object
+ * of its type may have changed.
+ *
+ * The following context parameters configure the listener:
+ * changes.pollInterval and changes.reconnectDelay (milliseconds).
+ */
+public final class ChangeNotificationListener implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(ChangeNotificationListener.class.getName());
+
+    public static final String CHANNEL = "pfc_changes";
+    public static final String LAYER = "layer";
+    public static final String ACCESS_LEVEL = "access_level";
+    public static final String USER = "user";
+    //A style of GeoServer changed, the id is the name of the style
+    public static final String STYLE = "style";
+    //Not a change: a request of the administrator to seed the tiles of a layer
+    public static final String SEED = "seed";
+
+    public static final long DEFAULT_POLL_INTERVAL = 1000;
+    public static final long DEFAULT_RECONNECT_DELAY = 5000;
+
+    private static final ConcurrentHashMap<String,List<Handler>> HANDLERS = new ConcurrentHashMap<>();
+    private static ChangeNotificationListener instance = null;
+
+    private final long pollInterval;
+    private final long reconnectDelay;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean connected = false;
+    private final AtomicLong receivedNotifications = new AtomicLong();
+    private final AtomicLong reconnections = new AtomicLong();
+
+    /**
+     * Handles the changes of one type of object.
+     */
+    public interface Handler {
+        /**
+         * Called from the listener thread when an object has changed.
+         * @param type
+         * The type of the object, e.g. {@link #LAYER}.
+         * @param id
+         * The id of the object or null if any object of this type may have changed.
+         */
+        void onChange(String type,String id);
+    }
+
+    /**
+     * Registers a handler for the changes of a type of object.
+     * @param type
+     * The type of the object, e.g. {@link #LAYER}.
+     * @param handler
+     * The handler to be called.
+     */
+    public static void addHandler(String type,Handler handler){
+        List<Handler> handlers = HANDLERS.get(type);
+        if(handlers == null){
+            final List<Handler> newHandlers = new CopyOnWriteArrayList<>();
+            handlers = HANDLERS.putIfAbsent(type, newHandlers);
+            if(handlers == null){
+                handlers = newHandlers;
+            }
+        }
+        handlers.add(handler);
+    }
+
+    /**
+     * Starts listening to the changes in a background thread.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void start(ServletContext context){
+        stop();
+        instance = new ChangeNotificationListener(
+            ContextParameters.getLong(context, "changes.pollInterval", DEFAULT_POLL_INTERVAL),
+            ContextParameters.getLong(context, "changes.reconnectDelay", DEFAULT_RECONNECT_DELAY));
+        instance.thread.start();
+    }
+
+    /**
+     * Stops the background thread. The handlers stay registered, since
+     * {@link #start(ServletContext)} stops the previous thread as well; they are
+     * removed by {@link #clearHandlers()} when the application is undeployed.
+     */
+    public static synchronized void stop(){
+        if(instance != null){
+            instance.running = false;
+            instance.thread.interrupt();
+            try{
+                instance.thread.join(instance.pollInterval * 2);
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * Removes every registered handler.
+     */
+    public static void clearHandlers(){
+        HANDLERS.clear();
+    }
+
+    /**
+     * Returns a snapshot of the listener statistics.
+     * @return map of statistic name to value
+     */
+    public static synchronized Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("running", instance != null);
+        statistics.put("connected", instance != null && instance.connected);
+        statistics.put("receivedNotifications", instance == null ? 0L : instance.receivedNotifications.get());
+        statistics.put("reconnections", instance == null ? 0L : instance.reconnections.get());
+        return statistics;
+    }
+
+    private ChangeNotificationListener(long pollInterval,long reconnectDelay){
+        this.pollInterval = Math.max(10, pollInterval);
+        this.reconnectDelay = Math.max(100, reconnectDelay);
+        this.thread = new Thread(this, "ChangeNotificationListener");
+        this.thread.setDaemon(true);
+    }
+
+    @Override
+    public void run(){
+        boolean firstConnection = true;
+        while(this.running){
+            Connection connection = null;
+            try{
+                connection = HibernateUtil.openDedicatedConnection();
+                //The driver is provided by the server, so its API is used through reflection
+                final ClassLoader driverClassLoader = connection.getClass().getClassLoader();
+                final Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection", true, driverClassLoader);
+                final Method getNotifications = pgConnectionClass.getMethod("getNotifications");
+                final Method getParameter = Class.forName("org.postgresql.PGNotification", true, driverClassLoader).getMethod("getParameter");
+                try(Statement statement = connection.createStatement()){
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                this.connected = true;
+                if(!firstConnection){
+                    this.reconnections.incrementAndGet();
+                    dispatchAll();
+                }
+                firstConnection = false;
+                while(this.running){
+                    //The driver only reads the notifications when it talks to the server
+                    try(Statement statement = connection.createStatement()){
+                        statement.execute("SELECT 1");
+                    }
+                    final Object[] notifications = (Object[]) getNotifications.invoke(connection);
+                    if(notifications != null){
+                        for(Object notification : notifications){
+                            this.receivedNotifications.incrementAndGet();
+                            dispatch((String) getParameter.invoke(notification));
+                        }
+                    }
+                    Thread.sleep(this.pollInterval);
+                }
+            }
+            catch(InterruptedException e){
+                return;
+            }
+            catch(SQLException | ReflectiveOperationException | RuntimeException e){
+                LOGGER.log(Level.WARNING, "Lost the connection used to listen to changes, reconnecting", e);
+            }
+            finally{
+                this.connected = false;
+                if(connection != null){
+                    try{
+                        connection.close();
+                    }
+                    catch(SQLException e){
+                    }
+                }
+            }
+            firstConnection = false;
+            try{
+                Thread.sleep(this.reconnectDelay);
+            }
+            catch(InterruptedException e){
+                return;
+            }
+        }
+    }
+
+    private void dispatch(String payload){
+        if(payload == null){
+            return;
+        }
+        final int separator = payload.indexOf(':');
+        final String type = separator < 0 ? payload : payload.substring(0, separator);
+        final String id = separator < 0 ? null : payload.substring(separator + 1);
+        notifyHandlers(type, id);
+    }
+
+    private void dispatchAll(){
+        for(String type : HANDLERS.keySet()){
+            notifyHandlers(type, null);
+        }
+    }
+
+    private void notifyHandlers(String type,String id){
+        final List<Handler> handlers = HANDLERS.get(type);
+        if(handlers == null){
+            return;
+        }
+        for(Handler handler : handlers){
+            try{
+                handler.onChange(type, id);
+            }
+            catch(RuntimeException e){
+                LOGGER.log(Level.WARNING, "Could not handle the change of "+type+" "+id, e);
+            }
+        }
+    }
+}
@@ -27,28 +27,49 @@ import br.eb.ime.pfc.domain.AccessLevel;
 import br.eb.ime.pfc.domain.Feature;
 import br.eb.ime.pfc.domain.Layer;
 import br.eb.ime.pfc.domain.User;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.hibernate.Cache;
+import org.hibernate.FlushMode;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
 
 /**
  * Hibernate Utility class with a convenient method to get Session Factory
  * object.
+ *
+ * Users, access levels, layers and their collections are kept in the second
+ * level cache, and the queries marked as cacheable in the query cache. Since the
+ * administration application writes to the same database, the cache is evicted
+ * by the changes it publishes (see {@link ChangeNotificationListener}) through
+ * {@link #evictLayer(String)}, {@link #evictAccessLevel(String)} and
+ * {@link #evictUser(String)}.
  */
 public class HibernateUtil {
     private static final Logger LOGGER = Logger.getLogger(HibernateUtil.class.getName());
     private static final String hibernateConfigurationFilePath = "/br/eb/ime/pfc/hibernate/hibernate.cfg.xml";
     private static SessionFactory sessionFactory = null;
+    private static final Properties connectionProperties = new Properties();
+    private static final String LAYER_FEATURES = Layer.class.getName() + ".features";
+    private static final String ACCESS_LEVEL_LAYERS = AccessLevel.class.getName() + ".layers";
     
     static {
         SessionFactory sf = null;
         try{
             final Configuration configuration = new Configuration();
             configuration.configure(hibernateConfigurationFilePath);
+            connectionProperties.putAll(configuration.getProperties());
             StandardServiceRegistryBuilder ssrb = new StandardServiceRegistryBuilder().applySettings(configuration.getProperties());
             sf = configuration.buildSessionFactory(ssrb.build());
         }
@@ -85,8 +106,58 @@ public class HibernateUtil {
         }
     }
     
+    /**
+     * Work done in a session of its own, see {@link #read(Work)}.
+     * @param <T> the type of the result
+     */
+    public interface Work<T> {
+        T execute(Session session) throws HibernateException;
+    }
+    
+    /**
+     * Runs a work in a read-only transaction of a session of its own, which is
+     * not bound to the thread, so the session of the current request is left
+     * alone. The transaction is committed, or rolled back if the work throws,
+     * and the session is closed.
+     * @param <T> the type of the result
+     * @param work
+     * The work, which only reads.
+     * @return the result of the work
+     * @throws HibernateException if the database could not be read
+     */
+    public static <T> T read(Work<T> work) throws HibernateException{
+        final Session session = openSession();
+        try{
+            session.setDefaultReadOnly(true);
+            session.setFlushMode(FlushMode.MANUAL);
+            session.beginTransaction();
+            final T result = work.execute(session);
+            session.getTransaction().commit();
+            return result;
+        }
+        catch(RuntimeException e){
+            if(session.getTransaction().isActive()){
+                session.getTransaction().rollback();
+            }
+            throw e;
+        }
+        finally{
+            session.close();
+        }
+    }
+    
+    /**
+     * Returns the session of the current request. The session of the
+     * {@link UnitOfWork} of the thread is opened on first use.
+     * @return the current session
+     * @throws HibernateException if there is no session or it could not be opened
+     */
     public static Session getCurrentSession() throws HibernateException{
         if(sessionFactory != null){
+            final Session session = UnitOfWork.currentSession();
+            if(session != null){
+                return session;
+            }
             //Throws HibernateException if there is no Session open.
             return sessionFactory.getCurrentSession();
         }
@@ -95,6 +166,147 @@ public class HibernateUtil {
         }
     }
     
+    /**
+     * Opens a JDBC connection to the application database that is not managed by
+     * Hibernate, for long lived work such as listening to notifications.
+     * The caller is responsible for closing it.
+     * @return a new connection
+     * @throws SQLException if the connection could not be opened
+     */
+    public static Connection openDedicatedConnection() throws SQLException{
+        final String driverClass = connectionProperties.getProperty("hibernate.connection.driver_class");
+        if(driverClass != null){
+            try{
+                Class.forName(driverClass);
+            }
+            catch(ClassNotFoundException e){
+                throw new SQLException("JDBC driver not found: "+driverClass,e);
+            }
+        }
+        return DriverManager.getConnection(connectionProperties.getProperty("hibernate.connection.url"),
+                connectionProperties.getProperty("hibernate.connection.username"),
+                connectionProperties.getProperty("hibernate.connection.password"));
+    }
+    
+    /**
+     * Evicts a layer from the second level cache, with its features and the
+     * layers of every access level, which may contain it.
+     * @param wmsId
+     * The wmsId of the layer, or null to evict every layer.
+     */
+    public static void evictLayer(String wmsId){
+        final Cache cache = getCache();
+        if(cache == null){
+            return;
+        }
+        if(wmsId == null){
+            cache.evictEntityRegion(Layer.class);
+            cache.evictCollectionRegion(LAYER_FEATURES);
+        }
+        else{
+            cache.evictEntity(Layer.class, wmsId);
+            cache.evictCollection(LAYER_FEATURES, wmsId);
+        }
+        cache.evictCollectionRegion(ACCESS_LEVEL_LAYERS);
+        cache.evictQueryRegions();
+    }
+    
+    /**
+     * Evicts an access level from the second level cache, with its layers. The
+     * users are evicted as well, since deleting an access level deletes its users.
+     * @param name
+     * The name of the access level, or null to evict every access level.
+     */
+    public static void evictAccessLevel(String name){
+        final Cache cache = getCache();
+        if(cache == null){
+            return;
+        }
+        if(name == null){
+            cache.evictEntityRegion(AccessLevel.class);
+            cache.evictCollectionRegion(ACCESS_LEVEL_LAYERS);
+        }
+        else{
+            cache.evictEntity(AccessLevel.class, name);
+            cache.evictCollection(ACCESS_LEVEL_LAYERS, name);
+        }
+        cache.evictEntityRegion(User.class);
+        cache.evictQueryRegions();
+    }
+    
+    /**
+     * Evicts a user from the second level cache.
+     * @param username
+     * The username of the user, or null to evict every user.
+     */
+    public static void evictUser(String username){
+        final Cache cache = getCache();
+        if(cache == null){
+            return;
+        }
+        if(username == null){
+            cache.evictEntityRegion(User.class);
+        }
+        else{
+            cache.evictEntity(User.class, username);
+        }
+        cache.evictQueryRegions();
+    }
+    
+    private static Cache getCache(){
+        return sessionFactory == null ? null : sessionFactory.getCache();
+    }
+    
+    /**
+     * Returns the hits, misses and hit ratio of the second level cache, of each
+     * of its regions and of the query cache.
+     * @return map of statistic name to value
+     */
+    public static Map<String,Object> getCacheStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        if(sessionFactory == null || !sessionFactory.getStatistics().isStatisticsEnabled()){
+            return statistics;
+        }
+        final Statistics hibernateStatistics = sessionFactory.getStatistics();
+        statistics.put("hits", hibernateStatistics.getSecondLevelCacheHitCount());
+        statistics.put("misses", hibernateStatistics.getSecondLevelCacheMissCount());
+        statistics.put("hitRatio", hitRatio(hibernateStatistics.getSecondLevelCacheHitCount(), hibernateStatistics.getSecondLevelCacheMissCount()));
+        final Map<String,Object> regions = new LinkedHashMap<>();
+        for(String regionName : hibernateStatistics.getSecondLevelCacheRegionNames()){
+            final SecondLevelCacheStatistics regionStatistics = hibernateStatistics.getSecondLevelCacheStatistics(regionName);
+            if(regionStatistics == null){
+                continue;
+            }
+            final Map<String,Object> region = new LinkedHashMap<>();
+            region.put("entries", regionStatistics.getElementCountInMemory());
+            region.put("hits", regionStatistics.getHitCount());
+            region.put("misses", regionStatistics.getMissCount());
+            region.put("hitRatio", hitRatio(regionStatistics.getHitCount(), regionStatistics.getMissCount()));
+            regions.put(regionName, region);
+        }
+        statistics.put("regions", regions);
+        final Map<String,Object> queries = new LinkedHashMap<>();
+        queries.put("hits", hibernateStatistics.getQueryCacheHitCount());
+        queries.put("misses", hibernateStatistics.getQueryCacheMissCount());
+        queries.put("hitRatio", hitRatio(hibernateStatistics.getQueryCacheHitCount(), hibernateStatistics.getQueryCacheMissCount()));
+        statistics.put("queries", queries);
+        return statistics;
+    }
+    
+    private static double hitRatio(long hits,long misses){
+        return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+    
+    /**
+     * Closes the session factory and its pool of connections, so their threads
+     * do not outlive the application when it is undeployed.
+     */
+    public static synchronized void close(){
+        if(sessionFactory != null && !sessionFactory.isClosed()){
+            sessionFactory.close();
+        }
+    }
+    
     private HibernateUtil(){
         
     }
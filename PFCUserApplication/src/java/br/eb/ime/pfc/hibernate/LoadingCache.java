@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.hibernate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hibernate.HibernateException;
+
+/**
+ * Values read from the database on first use and kept until the administrator
+ * changes them, i.e. until their change notification invalidates them (see
+ * {@link ChangeNotificationListener}).
+ *
+ * A value read while a change was published is returned but not kept, since it
+ * may have been read before the change, and a value that does not exist (null)
+ * is not kept either. The values are read by {@link #load(Object)}, usually in
+ * {@link HibernateUtil#read(HibernateUtil.Work)}.
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public abstract class LoadingCache<K,V> {
+    private final ConcurrentHashMap<K,V> values = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    /**
+     * Returns the value of a key, reading it if it is not kept.
+     * @param key
+     * The key.
+     * @return the value, or null if it does not exist
+     * @throws HibernateException if the value could not be read
+     */
+    public V get(K key) throws HibernateException{
+        final V cached = this.values.get(key);
+        if(cached != null){
+            return cached;
+        }
+        final long startVersion = this.version.get();
+        this.loads.incrementAndGet();
+        final V loaded = load(key);
+        //Values read before a change was published are not kept
+        if(loaded != null && startVersion == this.version.get()){
+            final V previous = this.values.putIfAbsent(key, loaded);
+            return previous != null ? previous : loaded;
+        }
+        return loaded;
+    }
+
+    /**
+     * Forgets the value of a key, which is read again by its next use.
+     * @param key
+     * The key, or null to forget every value.
+     */
+    public void invalidate(K key){
+        this.version.incrementAndGet();
+        if(key == null){
+            this.values.clear();
+        }
+        else{
+            this.values.remove(key);
+        }
+    }
+
+    public int size(){
+        return this.values.size();
+    }
+
+    public long getLoads(){
+        return this.loads.get();
+    }
+
+    /**
+     * Reads the value of a key.
+     * @param key
+     * The key.
+     * @return the value, or null if it does not exist
+     * @throws HibernateException if the value could not be read
+     */
+    protected abstract V load(K key) throws HibernateException;
+}
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.hibernate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.context.internal.ManagedSessionContext;
+import org.hibernate.jdbc.Work;
+
+/**
+ * The unit of work of a request: the Hibernate session and transaction used by
+ * the request, confined to the thread that processes it.
+ *
+ * The session is opened lazily, by the first call to
+ * {@link HibernateUtil#getCurrentSession()}, so a request answered from the
+ * caches never takes a connection from the pool. A read only unit of work never
+ * flushes: its session loads read only entities with FlushMode.MANUAL and its
+ * JDBC connection is marked as read only, which the pool restores when the
+ * connection is returned.
+ */
+public final class UnitOfWork {
+    private static final Logger LOGGER = Logger.getLogger(UnitOfWork.class.getName());
+    private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+
+    private static final AtomicLong begun = new AtomicLong();
+    private static final AtomicLong readOnlyBegun = new AtomicLong();
+    private static final AtomicLong sessionsOpened = new AtomicLong();
+    private static final AtomicLong commits = new AtomicLong();
+    private static final AtomicLong rollbacks = new AtomicLong();
+
+    private final boolean readOnly;
+    private Session session = null;
+
+    private UnitOfWork(boolean readOnly){
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Begins the unit of work of the calling thread. No session is opened until
+     * it is used.
+     * @param readOnly
+     * True if the work only reads from the database.
+     * @return the unit of work, which must be ended by {@link #end(boolean)}
+     * @throws IllegalStateException if the thread already has a unit of work
+     */
+    public static UnitOfWork begin(boolean readOnly){
+        if(CURRENT.get() != null){
+            throw new IllegalStateException("The thread already has a unit of work.");
+        }
+        final UnitOfWork unitOfWork = new UnitOfWork(readOnly);
+        CURRENT.set(unitOfWork);
+        begun.incrementAndGet();
+        if(readOnly){
+            readOnlyBegun.incrementAndGet();
+        }
+        return unitOfWork;
+    }
+
+    /**
+     * Returns the session of the unit of work of the calling thread, opening it
+     * and beginning its transaction on first use.
+     * @return the session or null if the thread has no unit of work
+     * @throws HibernateException if the session could not be opened
+     */
+    static Session currentSession() throws HibernateException{
+        final UnitOfWork unitOfWork = CURRENT.get();
+        return unitOfWork == null ? null : unitOfWork.getSession();
+    }
+
+    private Session getSession() throws HibernateException{
+        if(this.session == null){
+            final Session opened = HibernateUtil.openSession();
+            try{
+                if(this.readOnly){
+                    opened.setDefaultReadOnly(true);
+                    opened.setFlushMode(FlushMode.MANUAL);
+                }
+                opened.beginTransaction();
+                if(this.readOnly){
+                    //No statement has run yet, so the driver accepts the change
+                    opened.doWork(new Work(){
+                        @Override
+                        public void execute(Connection connection) throws SQLException{
+                            connection.setReadOnly(true);
+                        }
+                    });
+                }
+            }
+            catch(HibernateException e){
+                opened.close();
+                throw e;
+            }
+            ManagedSessionContext.bind(opened);
+            this.session = opened;
+            sessionsOpened.incrementAndGet();
+        }
+        return this.session;
+    }
+
+    public boolean isReadOnly(){
+        return this.readOnly;
+    }
+
+    /**
+     * Indicates whether the unit of work has used the database.
+     * @return true if its session was opened
+     */
+    public boolean isSessionOpen(){
+        return this.session != null;
+    }
+
+    /**
+     * Ends the unit of work of the calling thread. If its session was opened the
+     * transaction is committed, flushing first unless it is read only, or rolled
+     * back, and the session is closed in any case.
+     * @param succeeded
+     * False if the work failed and its changes must be discarded.
+     * @throws HibernateException if the transaction could not be committed; it is rolled back
+     */
+    public void end(boolean succeeded) throws HibernateException{
+        CURRENT.remove();
+        if(this.session == null){
+            return;
+        }
+        final Session ended = this.session;
+        this.session = null;
+        ManagedSessionContext.unbind(ended.getSessionFactory());
+        //The session is closed even if flushing fails, or its connection never returns to the pool
+        try{
+            final Transaction transaction = ended.getTransaction();
+            if(succeeded && !this.readOnly){
+                ended.flush();
+            }
+            if(succeeded && transaction.isActive()){
+                transaction.commit();
+                commits.incrementAndGet();
+            }
+            else if(transaction.isActive()){
+                transaction.rollback();
+                rollbacks.incrementAndGet();
+            }
+        }
+        catch(HibernateException e){
+            rollback(ended);
+            throw e;
+        }
+        finally{
+            ended.close();
+        }
+    }
+
+    private static void rollback(Session session){
+        try{
+            if(session.getTransaction().isActive()){
+                session.getTransaction().rollback();
+                rollbacks.incrementAndGet();
+            }
+        }
+        catch(HibernateException e){
+            LOGGER.log(Level.WARNING,"Could not roll back the transaction of the unit of work",e);
+        }
+    }
+
+    /**
+     * Returns how many units of work were begun, how many were read only and
+     * how many actually opened a session.
+     * @return map of statistic name to value
+     */
+    public static Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("begun", begun.get());
+        statistics.put("readOnly", readOnlyBegun.get());
+        statistics.put("sessionsOpened", sessionsOpened.get());
+        statistics.put("sessionsAvoided", begun.get() - sessionsOpened.get());
+        statistics.put("commits", commits.get());
+        statistics.put("rollbacks", rollbacks.get());
+        return statistics;
+    }
+}
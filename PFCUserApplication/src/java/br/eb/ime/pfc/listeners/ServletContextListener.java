@@ -24,21 +24,137 @@
 
 package br.eb.ime.pfc.listeners;
 
+import br.eb.ime.pfc.domain.LayerManager;
+import br.eb.ime.pfc.filters.AccessTokens;
+import br.eb.ime.pfc.filters.AuthorizationRegistry;
+import br.eb.ime.pfc.filters.CredentialCache;
+import br.eb.ime.pfc.geoserver.AsyncWMSProxy;
+import br.eb.ime.pfc.geoserver.BufferPool;
+import br.eb.ime.pfc.geoserver.CachePolicy;
+import br.eb.ime.pfc.geoserver.CapabilitiesCache;
+import br.eb.ime.pfc.geoserver.FeatureInfoService;
+import br.eb.ime.pfc.geoserver.GeoServerConnectionPool;
+import br.eb.ime.pfc.geoserver.GeoServerNodePool;
+import br.eb.ime.pfc.geoserver.LayerRegistry;
+import br.eb.ime.pfc.geoserver.LegendCache;
+import br.eb.ime.pfc.geoserver.LegendSprite;
+import br.eb.ime.pfc.geoserver.Metatiler;
+import br.eb.ime.pfc.geoserver.RequestLimiter;
+import br.eb.ime.pfc.geoserver.TileCache;
+import br.eb.ime.pfc.geoserver.TileGrid;
+import br.eb.ime.pfc.geoserver.TileSeeder;
+import br.eb.ime.pfc.hibernate.ChangeNotificationListener;
 import br.eb.ime.pfc.hibernate.HibernateUtil;
+import br.eb.ime.pfc.logging.AccessLog;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletContextEvent;
 import org.hibernate.HibernateException;
+import org.hibernate.Session;
 
 /**
  * Web application lifecycle listener.
  *
  */
 public class ServletContextListener implements javax.servlet.ServletContextListener {
+    private static final Logger LOGGER = Logger.getLogger(ServletContextListener.class.getName());
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
+        AccessLog.initialize(sce.getServletContext());
+        GeoServerConnectionPool.initialize(sce.getServletContext());
+        BufferPool.initialize(sce.getServletContext());
+        GeoServerNodePool.initialize(sce.getServletContext());
+        TileCache.initialize(sce.getServletContext());
+        Metatiler.initialize(sce.getServletContext());
+        TileGrid.initialize(sce.getServletContext());
+        CachePolicy.initialize(sce.getServletContext());
+        CapabilitiesCache.initialize(sce.getServletContext());
+        LegendCache.initialize(sce.getServletContext());
+        LegendSprite.initialize(sce.getServletContext());
+        AsyncWMSProxy.initialize(sce.getServletContext());
+        RequestLimiter.initialize(sce.getServletContext());
+        TileSeeder.initialize(sce.getServletContext());
+        FeatureInfoService.initialize(sce.getServletContext());
+        CredentialCache.initialize(sce.getServletContext());
+        AccessTokens.initialize(sce.getServletContext());
+        
+        //Tiles of a layer are purged, and the capabilities, features and legends read again, when the administrator changes the layer
+        ChangeNotificationListener.addHandler(ChangeNotificationListener.LAYER, new ChangeNotificationListener.Handler(){
+            @Override
+            public void onChange(String type, String id) {
+                //The layers of the access levels are read again first, the caches below are rebuilt from them
+                HibernateUtil.evictLayer(id);
+                AuthorizationRegistry.getInstance().invalidate(null);
+                CapabilitiesCache.getInstance().invalidate(null);
+                LayerRegistry.getInstance().invalidate(id);
+                LegendCache.getInstance().invalidateLayer(id);
+                LegendSprite.getInstance().invalidate(null);
+                if(id == null){
+                    TileCache.getInstance().clear();
+                }
+                else{
+                    TileCache.getInstance().purgeLayer(id);
+                    if(TileSeeder.getInstance().isSeedingOnLayerChange()){
+                        TileSeeder.getInstance().seedLayer(id);
+                    }
+                }
+            }
+        });
+        
+        //Legends and tiles drawn with a style are requested again when the administrator changes the style
+        ChangeNotificationListener.addHandler(ChangeNotificationListener.STYLE, new ChangeNotificationListener.Handler(){
+            @Override
+            public void onChange(String type, String id) {
+                if(id == null){
+                    LegendCache.getInstance().invalidateLayer(null);
+                    TileCache.getInstance().clear();
+                }
+                else{
+                    LegendCache.getInstance().invalidateStyle(id);
+                    purgeTilesOfStyle(id);
+                }
+                LegendSprite.getInstance().invalidate(null);
+            }
+        });
+        
+        //The administrator may ask for the tiles of a layer to be seeded
+        ChangeNotificationListener.addHandler(ChangeNotificationListener.SEED, new ChangeNotificationListener.Handler(){
+            @Override
+            public void onChange(String type, String id) {
+                if(id != null){
+                    TileSeeder.getInstance().seedLayer(id);
+                }
+            }
+        });
+        
+        //The credentials of a user are verified again, and its tokens refused, when the administrator changes the user
+        ChangeNotificationListener.addHandler(ChangeNotificationListener.USER, new ChangeNotificationListener.Handler(){
+            @Override
+            public void onChange(String type, String id) {
+                HibernateUtil.evictUser(id);
+                CredentialCache.getInstance().invalidateUser(id);
+                AccessTokens.getInstance().invalidateUser(id);
+            }
+        });
+        
+        //The layers, the limits, the capabilities and the legend sprite of an access level are read again when the administrator changes it
+        ChangeNotificationListener.addHandler(ChangeNotificationListener.ACCESS_LEVEL, new ChangeNotificationListener.Handler(){
+            @Override
+            public void onChange(String type, String id) {
+                HibernateUtil.evictAccessLevel(id);
+                AuthorizationRegistry.getInstance().invalidate(id);
+                RequestLimiter.getInstance().invalidate(id);
+                CapabilitiesCache.getInstance().invalidate(id);
+                LegendSprite.getInstance().invalidate(id);
+                CredentialCache.getInstance().invalidateAccessLevel(id);
+            }
+        });
         
         try{
             HibernateUtil.getSessionFactory();
+            ChangeNotificationListener.start(sce.getServletContext());
             try{
                 //GeoServerCommunication.main(null);
             }
@@ -51,8 +167,50 @@ public class ServletContextListener implements javax.servlet.ServletContextListe
         }
     }
 
+    /**
+     * Purges the tiles drawn with a style: the tiles that name the style and
+     * every tile of the layers drawn with the style by default. The tile cache
+     * has no expiration, so the tiles would be served with the old style otherwise.
+     */
+    private static void purgeTilesOfStyle(final String style){
+        final TileCache tileCache = TileCache.getInstance();
+        tileCache.purgeStyle(style);
+        try{
+            final List<String> layerWmsIds = HibernateUtil.read(new HibernateUtil.Work<List<String>>(){
+                @Override
+                public List<String> execute(Session session) throws HibernateException{
+                    return new LayerManager(session).readWmsIdsByStyle(style);
+                }
+            });
+            for(String layerWmsId : layerWmsIds){
+                tileCache.purgeLayer(layerWmsId);
+            }
+        }
+        catch(HibernateException e){
+            //Without the layers of the style no stale tile may remain
+            LOGGER.log(Level.WARNING, "Could not read the layers of style " + style + ", clearing the tile cache", e);
+            tileCache.clear();
+        }
+    }
+
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
-        
+        ChangeNotificationListener.stop();
+        ChangeNotificationListener.clearHandlers();
+        AccessTokens.destroy();
+        AuthorizationRegistry.destroy();
+        CredentialCache.destroy();
+        TileSeeder.destroy();
+        FeatureInfoService.destroy();
+        AsyncWMSProxy.destroy();
+        CapabilitiesCache.destroy();
+        LegendSprite.destroy();
+        LegendCache.destroy();
+        TileCache.destroy();
+        GeoServerNodePool.destroy();
+        GeoServerConnectionPool.destroy();
+        BufferPool.destroy();
+        AccessLog.destroy();
+        HibernateUtil.close();
     }
 }
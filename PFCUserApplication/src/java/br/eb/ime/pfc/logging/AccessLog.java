@@ -0,0 +1,449 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.logging;
+
+import br.eb.ime.pfc.listeners.ContextParameters;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Access log of the WMS proxy.
+ *
+ * Request threads never touch the file: they copy their {@link AccessLogEvent}
+ * into a preallocated record of a ring buffer, claiming the record with a
+ * compare-and-set, and go on. A background thread drains the buffer in batches
+ * and writes them to a file that is rolled when it reaches its maximum size or
+ * when the day changes. If the writer falls behind and the buffer is full the
+ * records are dropped and counted, so logging never blocks a request.
+ *
+ * Each line has the fields: time, user, access level, request type, layers,
+ * status, bytes, upstream latency in milliseconds ("-" when GeoServer was not
+ * called, e.g. a cached tile) and total duration in milliseconds.
+ *
+ * The following context parameters configure the access log:
+ * accesslog.enabled, accesslog.directory, accesslog.fileName,
+ * accesslog.maxFileSizeMB, accesslog.maxFiles, accesslog.bufferSize (records),
+ * accesslog.flushInterval (milliseconds) and accesslog.sampleRate (from 0 to 1,
+ * the fraction of successful requests that are logged; errors are always logged).
+ */
+public final class AccessLog {
+    private static final Logger LOGGER = Logger.getLogger(AccessLog.class.getName());
+
+    public static final boolean DEFAULT_ENABLED = true;
+    public static final String DEFAULT_FILE_NAME = "pfc-access.log";
+    public static final int DEFAULT_MAX_FILE_SIZE_MB = 100;
+    public static final int DEFAULT_MAX_FILES = 10;
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+    public static final long DEFAULT_FLUSH_INTERVAL = 500;
+    public static final double DEFAULT_SAMPLE_RATE = 1.0;
+
+    private static final AccessLog DISABLED = new AccessLog();
+    private static volatile AccessLog instance = DISABLED;
+
+    private final boolean enabled;
+    private final double sampleRate;
+    private final Record[] records;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final RollingFileWriter writer;
+    private final Thread writerThread;
+    private volatile boolean running;
+
+    private final AtomicLong writtenRecords = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    /**
+     * A preallocated slot of the ring buffer.
+     */
+    private static final class Record {
+        private long time;
+        private String user;
+        private String accessLevel;
+        private String requestType;
+        private String layers;
+        private int status;
+        private long bytes;
+        private long upstreamMillis;
+        private long durationMillis;
+    }
+
+    /**
+     * Creates the application wide access log from the context parameters of
+     * the web application and starts its writer thread.
+     * @param context
+     * The servlet context of this application.
+     */
+    public static synchronized void initialize(ServletContext context){
+        destroy();
+        if(!ContextParameters.getBoolean(context, "accesslog.enabled", DEFAULT_ENABLED)){
+            return;
+        }
+        final String instanceRoot = System.getProperty("com.sun.aas.instanceRoot");
+        final String defaultDirectory = instanceRoot != null ? instanceRoot + File.separator + "logs" : System.getProperty("java.io.tmpdir");
+        try{
+            instance = new AccessLog(
+                new File(ContextParameters.getString(context, "accesslog.directory", defaultDirectory)),
+                ContextParameters.getString(context, "accesslog.fileName", DEFAULT_FILE_NAME),
+                ContextParameters.getInt(context, "accesslog.maxFileSizeMB", DEFAULT_MAX_FILE_SIZE_MB),
+                ContextParameters.getInt(context, "accesslog.maxFiles", DEFAULT_MAX_FILES),
+                ContextParameters.getInt(context, "accesslog.bufferSize", DEFAULT_BUFFER_SIZE),
+                ContextParameters.getLong(context, "accesslog.flushInterval", DEFAULT_FLUSH_INTERVAL),
+                ContextParameters.getDouble(context, "accesslog.sampleRate", DEFAULT_SAMPLE_RATE));
+        }
+        catch(IOException e){
+            LOGGER.log(Level.SEVERE, "Could not open the access log, requests will not be logged", e);
+        }
+    }
+
+    /**
+     * Stops the writer thread after writing the records left in the buffer.
+     */
+    public static synchronized void destroy(){
+        final AccessLog accessLog = instance;
+        instance = DISABLED;
+        if(accessLog.enabled){
+            accessLog.shutdown();
+        }
+    }
+
+    /**
+     * Returns the application wide access log, which is disabled if it was not initialized.
+     * @return the access log
+     */
+    public static AccessLog getInstance(){
+        return instance;
+    }
+
+    private AccessLog(){
+        this.enabled = false;
+        this.sampleRate = 0;
+        this.records = new Record[0];
+        this.published = new AtomicLongArray(0);
+        this.mask = 0;
+        this.writer = null;
+        this.writerThread = null;
+    }
+
+    private AccessLog(File directory,String fileName,int maxFileSizeMB,int maxFiles,int bufferSize,
+            long flushInterval,double sampleRate) throws IOException{
+        this.enabled = true;
+        this.sampleRate = sampleRate;
+        int capacity = 1024;
+        while(capacity < bufferSize && capacity < (1 << 24)){
+            capacity <<= 1;
+        }
+        this.records = new Record[capacity];
+        for(int i = 0;i < capacity;i++){
+            this.records[i] = new Record();
+        }
+        this.published = new AtomicLongArray(capacity);
+        for(int i = 0;i < capacity;i++){
+            this.published.set(i, -1);
+        }
+        this.mask = capacity - 1;
+        this.writer = new RollingFileWriter(directory, fileName, Math.max(1, maxFileSizeMB) * 1024L * 1024L, Math.max(1, maxFiles));
+        this.running = true;
+        final long interval = Math.max(10, flushInterval);
+        this.writerThread = new Thread(new Runnable(){
+            @Override
+            public void run() {
+                writeLoop(interval);
+            }
+        }, "AccessLogWriter");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        LOGGER.log(Level.INFO, "Access log written to {0}", new File(directory, fileName).getAbsolutePath());
+    }
+
+    /**
+     * Starts the event of a request. The sampling decision is made here.
+     * @param user
+     * The user that made the request, or null.
+     * @param accessLevel
+     * The access level of the user, or null.
+     * @param requestType
+     * The REQUEST parameter.
+     * @param layers
+     * The LAYERS parameter, as sent by the client.
+     * @return the event to be filled and finished by the request
+     */
+    public AccessLogEvent startEvent(String user,String accessLevel,String requestType,String layers){
+        final boolean sampled = this.enabled && (this.sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < this.sampleRate);
+        return new AccessLogEvent(this, sampled, user, accessLevel, requestType, layers);
+    }
+
+    /**
+     * Starts the event of a request made by the user signed in its session.
+     * @param request
+     * The request.
+     * @param requestType
+     * The REQUEST parameter.
+     * @param layers
+     * The LAYERS parameter, as sent by the client.
+     * @return the event to be filled and finished by the request
+     */
+    public AccessLogEvent startEvent(HttpServletRequest request,String requestType,String layers){
+        final HttpSession session = request.getSession(false);
+        if(session == null){
+            return startEvent(null, null, requestType, layers);
+        }
+        return startEvent((String) session.getAttribute("user"), (String) session.getAttribute("accessLevel"), requestType, layers);
+    }
+
+    void publish(AccessLogEvent event){
+        if(!this.enabled){
+            return;
+        }
+        long sequence;
+        do{
+            sequence = this.claimed.get();
+            if(sequence - this.consumed.get() >= this.records.length){
+                this.droppedRecords.incrementAndGet();
+                return;
+            }
+        }while(!this.claimed.compareAndSet(sequence, sequence + 1));
+
+        final int slot = (int) (sequence & this.mask);
+        final Record record = this.records[slot];
+        record.time = event.getStartTime();
+        record.user = event.getUser();
+        record.accessLevel = event.getAccessLevel();
+        record.requestType = event.getRequestType();
+        record.layers = event.getLayers();
+        record.status = event.getStatus();
+        record.bytes = event.getBytes();
+        record.upstreamMillis = event.getUpstreamMillis();
+        record.durationMillis = event.getDurationMillis();
+        //Makes the record visible to the writer thread
+        this.published.set(slot, sequence);
+    }
+
+    private void writeLoop(long flushInterval){
+        final StringBuilder line = new StringBuilder(256);
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        final Date date = new Date();
+        while(true){
+            final boolean stopping = !this.running;
+            long sequence = this.consumed.get();
+            int batch = 0;
+            try{
+                while(this.published.get((int) (sequence & this.mask)) == sequence){
+                    final Record record = this.records[(int) (sequence & this.mask)];
+                    date.setTime(record.time);
+                    line.setLength(0);
+                    line.append(dateFormat.format(date)).append(' ')
+                        .append(field(record.user)).append(' ')
+                        .append(field(record.accessLevel)).append(' ')
+                        .append(field(record.requestType)).append(' ')
+                        .append(field(record.layers)).append(' ')
+                        .append(record.status).append(' ')
+                        .append(record.bytes).append(' ');
+                    if(record.upstreamMillis < 0){
+                        line.append('-');
+                    }
+                    else{
+                        line.append(record.upstreamMillis);
+                    }
+                    line.append(' ').append(record.durationMillis).append('\n');
+                    record.user = null;
+                    record.accessLevel = null;
+                    record.requestType = null;
+                    record.layers = null;
+                    this.writer.write(line, record.time);
+                    sequence++;
+                    batch++;
+                    this.consumed.set(sequence);
+                }
+                if(batch > 0){
+                    this.writer.flush();
+                    this.writtenRecords.addAndGet(batch);
+                }
+            }
+            catch(IOException e){
+                LOGGER.log(Level.WARNING, "Could not write the access log", e);
+            }
+            if(stopping){
+                this.writer.close();
+                return;
+            }
+            if(batch == 0){
+                try{
+                    Thread.sleep(flushInterval);
+                }
+                catch(InterruptedException e){
+                    //Interrupted by shutdown, write what is left and stop
+                    this.running = false;
+                }
+            }
+        }
+    }
+
+    private static String field(String value){
+        if(value == null || value.isEmpty()){
+            return "-";
+        }
+        return value.indexOf(' ') < 0 ? value : value.replace(' ', '+');
+    }
+
+    private void shutdown(){
+        this.running = false;
+        this.writerThread.interrupt();
+        try{
+            this.writerThread.join(5000);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the access log statistics.
+     * @return map of statistic name to value
+     */
+    public Map<String,Object> getStatistics(){
+        final Map<String,Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", this.enabled);
+        statistics.put("sampleRate", this.sampleRate);
+        statistics.put("bufferSize", this.records.length);
+        statistics.put("pendingRecords", this.claimed.get() - this.consumed.get());
+        statistics.put("writtenRecords", this.writtenRecords.get());
+        statistics.put("droppedRecords", this.droppedRecords.get());
+        return statistics;
+    }
+
+    /**
+     * Writes lines to a file, renaming it with a timestamp in milliseconds, and a
+     * sequence number if that name is taken, when it reaches the maximum size or
+     * when the day changes, and keeping at most maxFiles old files.
+     * Only used by the writer thread.
+     */
+    private static final class RollingFileWriter {
+        private final File directory;
+        private final String fileName;
+        private final long maxFileSize;
+        private final int maxFiles;
+        private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyyMMdd");
+        private final SimpleDateFormat rollFormat = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS");
+        private final Date date = new Date();
+        private Writer writer;
+        private long size;
+        private String day;
+
+        private RollingFileWriter(File directory,String fileName,long maxFileSize,int maxFiles) throws IOException{
+            this.directory = directory;
+            this.fileName = fileName;
+            this.maxFileSize = maxFileSize;
+            this.maxFiles = maxFiles;
+            if(!directory.isDirectory() && !directory.mkdirs()){
+                throw new IOException("Could not create directory " + directory);
+            }
+            open();
+        }
+
+        private void open() throws IOException{
+            final File file = new File(this.directory, this.fileName);
+            this.size = file.length();
+            this.date.setTime(file.exists() ? file.lastModified() : System.currentTimeMillis());
+            this.day = this.dayFormat.format(this.date);
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+        }
+
+        private void write(CharSequence line,long time) throws IOException{
+            this.date.setTime(time);
+            if(this.size >= this.maxFileSize || !this.dayFormat.format(this.date).equals(this.day)){
+                roll();
+            }
+            this.writer.append(line);
+            this.size += line.length();
+        }
+
+        private void flush() throws IOException{
+            this.writer.flush();
+        }
+
+        private void roll() throws IOException{
+            this.writer.close();
+            final File file = new File(this.directory, this.fileName);
+            this.date.setTime(System.currentTimeMillis());
+            final String rolledName = this.fileName + "." + this.rollFormat.format(this.date);
+            File rolled = new File(this.directory, rolledName);
+            //Rolls in the same millisecond, or files left by a clock set back, are not overwritten
+            for(int sequence = 1;rolled.exists();sequence++){
+                rolled = new File(this.directory, rolledName + String.format("-%03d", sequence));
+            }
+            if(!file.renameTo(rolled)){
+                LOGGER.log(Level.WARNING, "Could not roll the access log to {0}", rolled);
+            }
+            deleteOldFiles();
+            open();
+        }
+
+        private void deleteOldFiles(){
+            final File[] rolledFiles = this.directory.listFiles(new java.io.FilenameFilter(){
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(RollingFileWriter.this.fileName + ".");
+                }
+            });
+            if(rolledFiles == null || rolledFiles.length <= this.maxFiles){
+                return;
+            }
+            //The timestamp in the name sorts the files from the oldest to the newest
+            Arrays.sort(rolledFiles);
+            for(int i = 0;i < rolledFiles.length - this.maxFiles;i++){
+                if(!rolledFiles[i].delete()){
+                    LOGGER.log(Level.WARNING, "Could not delete old access log {0}", rolledFiles[i]);
+                }
+            }
+        }
+
+        private void close(){
+            try{
+                this.writer.close();
+            }
+            catch(IOException e){
+            }
+        }
+    }
+}
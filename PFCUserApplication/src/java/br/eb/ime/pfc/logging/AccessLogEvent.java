@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.logging;
+
+/**
+ * The access log data of one request, filled while the request is processed.
+ *
+ * An event is owned by a single request at a time: it may be handed to another
+ * thread (e.g. by the asynchronous proxy) but is never written concurrently.
+ * {@link #finish()} copies it into the ring buffer of the {@link AccessLog}.
+ */
+public final class AccessLogEvent {
+    private final AccessLog accessLog;
+    private final boolean sampled;
+    private final long startTime;
+    private final long startNanos;
+    private final String user;
+    private final String accessLevel;
+    private final String requestType;
+    private final String layers;
+    private int status = 200;
+    private long bytes = 0;
+    private long upstreamMillis = -1;
+    private boolean finished = false;
+
+    AccessLogEvent(AccessLog accessLog,boolean sampled,String user,String accessLevel,String requestType,String layers){
+        this.accessLog = accessLog;
+        this.sampled = sampled;
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.user = user;
+        this.accessLevel = accessLevel;
+        this.requestType = requestType;
+        this.layers = layers;
+    }
+
+    public void setStatus(int status){
+        this.status = status;
+    }
+
+    public void setBytes(long bytes){
+        this.bytes = bytes;
+    }
+
+    /**
+     * Sets the time GeoServer took to answer the request.
+     * @param upstreamMillis
+     * The latency in milliseconds, or -1 if the response did not come from GeoServer (e.g. a cached tile).
+     */
+    public void setUpstreamMillis(long upstreamMillis){
+        this.upstreamMillis = upstreamMillis;
+    }
+
+    /**
+     * Writes the event to the access log. Successful requests are only written
+     * if they were sampled; errors are always written. Calling it again has no effect.
+     */
+    public void finish(){
+        if(this.finished){
+            return;
+        }
+        this.finished = true;
+        if(this.sampled || this.status >= 400){
+            this.accessLog.publish(this);
+        }
+    }
+
+    long getStartTime(){
+        return this.startTime;
+    }
+
+    long getDurationMillis(){
+        return (System.nanoTime() - this.startNanos) / 1000000L;
+    }
+
+    String getUser(){
+        return this.user;
+    }
+
+    String getAccessLevel(){
+        return this.accessLevel;
+    }
+
+    String getRequestType(){
+        return this.requestType;
+    }
+
+    String getLayers(){
+        return this.layers;
+    }
+
+    int getStatus(){
+        return this.status;
+    }
+
+    long getBytes(){
+        return this.bytes;
+    }
+
+    long getUpstreamMillis(){
+        return this.upstreamMillis;
+    }
+}
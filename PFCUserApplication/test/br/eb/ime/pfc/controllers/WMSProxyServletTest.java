@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.controllers;
+
+import br.eb.ime.pfc.domain.LayerSet;
+import br.eb.ime.pfc.geoserver.WMSRequestKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ * Authorization of the LAYERS parameter of the requests to the WMS proxy.
+ */
+public class WMSProxyServletTest {
+    private static final String ALLOWED = "rio2016:bairro_part";
+    private static final String SECRET = "rio2016:hoteis";
+    private static final LayerSet LAYERS = LayerSet.of(Arrays.asList(ALLOWED));
+
+    private static Map<String,String[]> getMap(String... nameValuePairs){
+        final Map<String,String[]> parameters = new LinkedHashMap<>();
+        parameters.put("REQUEST", new String[]{"GetMap"});
+        for(int i = 0;i < nameValuePairs.length;i += 2){
+            final String[] values = parameters.get(nameValuePairs[i]);
+            if(values == null){
+                parameters.put(nameValuePairs[i], new String[]{nameValuePairs[i + 1]});
+            }
+            else{
+                final String[] newValues = Arrays.copyOf(values, values.length + 1);
+                newValues[values.length] = nameValuePairs[i + 1];
+                parameters.put(nameValuePairs[i], newValues);
+            }
+        }
+        return parameters;
+    }
+
+    @Test
+    public void singleLayersParameterIsAuthorized(){
+        final String layersParameter = WMSProxyServlet.getLayersParameter(getMap("layers", ALLOWED));
+        assertEquals(layersParameter, ALLOWED);
+        assertTrue(WMSProxyServlet.authenticateLayers(layersParameter, LAYERS));
+        assertFalse(WMSProxyServlet.authenticateLayers(ALLOWED + "," + SECRET, LAYERS));
+    }
+
+    @Test
+    public void missingLayersParameterIsNull(){
+        assertNull(WMSProxyServlet.getLayersParameter(getMap()));
+    }
+
+    @Test
+    public void identicalRepeatedLayersParametersAreAccepted(){
+        assertEquals(WMSProxyServlet.getLayersParameter(getMap("LAYERS", ALLOWED, "layers", " " + ALLOWED)), ALLOWED);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void repeatedLayersParameterIsRejected(){
+        WMSProxyServlet.getLayersParameter(getMap("LAYERS", ALLOWED, "LAYERS", SECRET));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void caseVariantLayersParameterIsRejected(){
+        WMSProxyServlet.getLayersParameter(getMap("LAYERS", ALLOWED, "layers", SECRET));
+    }
+
+    @Test
+    public void layersOfTheCacheKeyAreAuthorized(){
+        //Repeated values of one name are all kept in the key, and all of them are authorized
+        final WMSRequestKey repeated = WMSRequestKey.fromParameters("/wms", getMap("LAYERS", ALLOWED, "LAYERS", SECRET));
+        assertEquals(repeated.getParameter("LAYERS"), ALLOWED + "," + SECRET);
+        assertFalse(WMSProxyServlet.authenticateLayers(repeated.getParameter("LAYERS"), LAYERS));
+        final WMSRequestKey allowed = WMSRequestKey.fromParameters("/wms", getMap("LAYERS", ALLOWED));
+        assertEquals(allowed.getParameter("LAYERS"), ALLOWED);
+        assertTrue(WMSProxyServlet.authenticateLayers(allowed.getParameter("LAYERS"), LAYERS));
+    }
+
+    @Test
+    public void lastCaseVariantOfLayersIsTheLayersOfTheCacheKey(){
+        //The names are upper-cased, so only the last case variant is kept in the key: the
+        //key is authorized and its query is sent to GeoServer, so the layers rendered are
+        //the layers authorized, whichever variant is kept
+        final WMSRequestKey secretLast = WMSRequestKey.fromParameters("/wms", getMap("LAYERS", ALLOWED, "layers", SECRET));
+        assertEquals(secretLast.getLayers(), new String[]{SECRET});
+        assertFalse(WMSProxyServlet.authenticateLayers(secretLast.getParameter("LAYERS"), LAYERS));
+        final WMSRequestKey allowedLast = WMSRequestKey.fromParameters("/wms", getMap("layers", SECRET, "LAYERS", ALLOWED));
+        assertEquals(allowedLast.getParameter("LAYERS"), ALLOWED);
+        assertEquals(allowedLast.getLayers(), new String[]{ALLOWED});
+        assertTrue(WMSProxyServlet.authenticateLayers(allowedLast.getParameter("LAYERS"), LAYERS));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.domain;
+
+import br.eb.ime.pfc.hibernate.HibernateUtil;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.testng.SkipException;
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Counts the statements issued by each fetch plan of the domain managers,
+ * including the statements issued when the fetched associations are used.
+ *
+ * The tests run against the database of hibernate.cfg.xml and are skipped if
+ * it is not available.
+ */
+public class FetchPlanTest {
+    private SessionFactory sessionFactory;
+    private Statistics statistics;
+    private Session session;
+
+    @BeforeClass
+    public void checkDatabase(){
+        try{
+            this.sessionFactory = HibernateUtil.getSessionFactory();
+            final Session probe = this.sessionFactory.openSession();
+            try{
+                probe.beginTransaction().rollback();
+            }
+            finally{
+                probe.close();
+            }
+        }
+        catch(HibernateException e){
+            throw new SkipException("The database is not available", e);
+        }
+        this.statistics = this.sessionFactory.getStatistics();
+        this.statistics.setStatisticsEnabled(true);
+    }
+
+    @BeforeMethod
+    public void openSession(){
+        //Entities cached by a previous test would hide the statements of the plan
+        this.sessionFactory.getCache().evictAllRegions();
+        this.session = this.sessionFactory.openSession();
+        this.session.beginTransaction();
+        this.statistics.clear();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void closeSession(){
+        if(this.session != null){
+            this.session.getTransaction().rollback();
+            this.session.close();
+            this.session = null;
+        }
+    }
+
+    private long getStatements(){
+        return this.statistics.getPrepareStatementCount();
+    }
+
+    @Test
+    public void layersAreReadInOneStatement(){
+        new LayerManager(this.session).readAll(LayerManager.FetchPlan.LAYERS);
+        assertEquals(getStatements(), 1);
+    }
+
+    @Test
+    public void layersAndFeaturesAreReadInOneStatement(){
+        for(Layer layer : new LayerManager(this.session).readAll(LayerManager.FetchPlan.FEATURES)){
+            layer.getFeatures().size();
+        }
+        assertEquals(getStatements(), 1);
+    }
+
+    @Test
+    public void layersAndAccessLevelsAreReadInOneStatement(){
+        for(Layer layer : new LayerManager(this.session).readAll(LayerManager.FetchPlan.ACCESS_LEVELS)){
+            layer.getAccessLevels().size();
+        }
+        assertEquals(getStatements(), 1);
+    }
+
+    @Test
+    public void layersFeaturesAndAccessLevelsAreReadInTwoStatements(){
+        final List<Layer> layers = new LayerManager(this.session).readAll(LayerManager.FetchPlan.FEATURES_AND_ACCESS_LEVELS);
+        for(Layer layer : layers){
+            layer.getFeatures().size();
+            layer.getAccessLevels().size();
+        }
+        //The second statement is not issued when there is no layer
+        assertEquals(getStatements(), layers.isEmpty() ? 1 : 2);
+    }
+
+    @Test
+    public void accessLevelsAreReadInOneStatement(){
+        new AccessLevelManager(this.session).readAll(AccessLevelManager.FetchPlan.ACCESS_LEVELS);
+        assertEquals(getStatements(), 1);
+    }
+
+    @Test
+    public void accessLevelsAndLayersAreReadInOneStatement(){
+        for(AccessLevel accessLevel : new AccessLevelManager(this.session).readAll(AccessLevelManager.FetchPlan.LAYERS)){
+            accessLevel.getLayers().size();
+        }
+        assertEquals(getStatements(), 1);
+    }
+
+    @Test
+    public void usersReadTheirAccessLevelsWithAStatementEach(){
+        final Set<String> accessLevels = new HashSet<>();
+        for(User user : new UserManager(this.session).readAll(UserManager.FetchPlan.USERS)){
+            accessLevels.add(user.getAccessLevel().getName());
+        }
+        assertEquals(getStatements(), 1 + accessLevels.size());
+    }
+
+    @Test
+    public void usersAndAccessLevelsAreReadInOneStatement(){
+        for(User user : new UserManager(this.session).readAll(UserManager.FetchPlan.ACCESS_LEVEL)){
+            user.getAccessLevel().getName();
+        }
+        assertEquals(getStatements(), 1);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 arthurfernandes.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package br.eb.ime.pfc.hibernate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import org.testng.annotations.Test;
+
+/**
+ * Values of the {@link LoadingCache}, kept until a change invalidates them.
+ */
+public class LoadingCacheTest {
+
+    /**
+     * Loads the key with a counter, so every load returns a new value.
+     */
+    private static class CountingCache extends LoadingCache<String,String> {
+        private final AtomicInteger loads = new AtomicInteger();
+
+        @Override
+        protected String load(String key){
+            return key.equals("missing") ? null : key + loads.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void valuesAreLoadedOnce(){
+        final CountingCache cache = new CountingCache();
+        assertEquals(cache.get("layer"), "layer1");
+        assertEquals(cache.get("layer"), "layer1");
+        assertEquals(cache.getLoads(), 1);
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void missingValuesAreNotKept(){
+        final CountingCache cache = new CountingCache();
+        assertNull(cache.get("missing"));
+        assertNull(cache.get("missing"));
+        assertEquals(cache.getLoads(), 2);
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void invalidatedValuesAreLoadedAgain(){
+        final CountingCache cache = new CountingCache();
+        cache.get("a");
+        cache.get("b");
+        cache.invalidate("a");
+        assertEquals(cache.get("a"), "a3");
+        assertEquals(cache.get("b"), "b2");
+        cache.invalidate(null);
+        assertEquals(cache.size(), 0);
+        assertEquals(cache.get("b"), "b4");
+    }
+
+    @Test
+    public void valuesLoadedDuringAChangeAreNotKept(){
+        final LoadingCache<String,String> cache = new LoadingCache<String,String>(){
+            private boolean first = true;
+
+            @Override
+            protected String load(String key){
+                if(first){
+                    //The change is published while the value is read
+                    first = false;
+                    invalidate(key);
+                    return "old";
+                }
+                return "new";
+            }
+        };
+        assertEquals(cache.get("layer"), "old");
+        assertEquals(cache.get("layer"), "new");
+        assertEquals(cache.get("layer"), "new");
+        assertEquals(cache.getLoads(), 2);
+    }
+}
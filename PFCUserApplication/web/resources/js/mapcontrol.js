@@ -5,6 +5,9 @@ var mapControl = {
     baseLayerStyles : ['Road','Aerial','AerialWithLabels'],
     layerJSONURL : 'layers',
     layerWMSURL : 'geoserver/wms',
+    featureInfoURL : 'feature-info',
+    layerTilesURL : 'tiles',
+    legendSpriteURL : 'legend-sprite.json',
     layers : [],
     baseLayers : [],
     olLayers : [], 
@@ -82,12 +85,9 @@ mapControl.addLayers = function(layers){
     var i,ii;
     for(i = 0, ii = layers.length;i<ii;i++){
         var layer = layers[i];
-        var source = new ol.source.TileWMS(({
-            url: this.layerWMSURL,
-            params: { 
-                STYLES : layer.style,
-                LAYERS: layer.wmsId
-            }
+        //The tiles have stable URLs, which the browser can keep in its cache until the style of the layer changes
+        var source = new ol.source.XYZ(({
+            url: this.layerTilesURL + '/' + encodeURIComponent(layer.wmsId) + '/{z}/{x}/{y}.png?v=' + encodeURIComponent(layer.tileVersion)
         }));
         var self = this;
         source.on('tileloadstart', function(event) {self.progress.addLoading();});
@@ -108,9 +108,18 @@ mapControl.addLayers = function(layers){
 };
 
 mapControl.configureLayerBar = function(){
+    var self = this;
+    //The legends of every layer come in a single image, layers missing from it request their own legends
+    $.getJSON(this.legendSpriteURL,function(sprite){
+        self.renderLayerBar(sprite);
+    }).error(function(){
+        self.renderLayerBar({legends : {}});
+    });
+};
+
+mapControl.renderLayerBar = function(sprite){
     var obj = $("#layers #ol");
     var i = 0,ii=0;
-    var self = this;
     if(obj !== undefined){
         obj.empty();
         for(i = 0,ii = this.layers.length;i<ii;i++){
@@ -120,12 +129,27 @@ mapControl.configureLayerBar = function(){
                 append($("<span></span>").addClass("text-danger").html(this.layers[i].name));
             item.attr("onclick","mapControl.showLayer(this,"+i+")");
             
-            var legend = $("<img/>").addClass("layer-legend-image");
-            legend.attr("src","legend-graphic?layer="+this.layers[i].wmsId);
-            legend[0].bitem = item;
-            legend.on('load',function(e){
-                this.bitem.prepend(this);
-            });
+            var offset = sprite.legends[this.layers[i].wmsId];
+            if(offset !== undefined){
+                var scale = Math.min(1, 25 / Math.max(offset.width, offset.height));
+                var spriteLegend = $("<span></span>").addClass("layer-legend-image layer-legend-sprite").css({
+                    "background-image" : "url(" + sprite.image + ")",
+                    "background-position" : (-offset.x * scale) + "px " + (-offset.y * scale) + "px",
+                    "background-size" : (sprite.width * scale) + "px " + (sprite.height * scale) + "px",
+                    "width" : (offset.width * scale) + "px",
+                    "height" : (offset.height * scale) + "px"
+                });
+                item.prepend(spriteLegend);
+            }
+            else{
+                var legend = $("<img/>").addClass("layer-legend-image");
+                legend.attr("src","legend-graphic?layer="+encodeURIComponent(this.layers[i].wmsId)
+                        +"&style="+encodeURIComponent(this.layers[i].style || ""));
+                legend[0].bitem = item;
+                legend.on('load',function(e){
+                    this.bitem.prepend(this);
+                });
+            }
             
             obj.append(item);
         }
@@ -212,84 +236,53 @@ mapControl.configurePopup = function(){
 mapControl.getFeatureInfo = function(evt,obj){
     var popup = obj["popup"];
     var content = $("<div></div>");//.addClass(".ol-popup-content");
-    var hasFeatures = false;
     var view = this.map.getView();
-    var viewResolution = view.getResolution();
-    var viewProjection = view.getProjection();
+    var wmsIds = [];
     var i,ii;
     for(i = 0,ii = this.olLayers.length;i<ii;i++){
-        if(this.olLayers[i].getVisible()){
-            var source = this.olLayers[i].getSource();
-            var url = source.getGetFeatureInfoUrl(
-              evt.coordinate, viewResolution, viewProjection,
-              {'INFO_FORMAT': 'application/json', 'FEATURE_COUNT': 1});
-            if (url) {
-                var olLayer = this.olLayers[i];
-                //var name = this.olLayers[i].name;
-                $.ajax({
-                    url : url,
-                    async : false,
-                    success: function(data){
-                        var jsonData;
-                        try{
-                            if(typeof data === 'object'){
-                                jsonData = data;
-                            }
-                            else{
-                                jsonData = $.parseJSON(data);
-                            }
-                        }
-                        catch(err){
-                            return;
-                        }
-                        
-                        var featuresData = jsonData.features[0];
-                        //console.log(featuresData);
-                        var layerObj = olLayer.layerObj;
-                        var features = layerObj.features;
-                        var name = layerObj.name;
-                        //counting size of featuresData
-                        var key, count = 0;
-                        for(key in featuresData) {
-                          if(featuresData.hasOwnProperty(key)) {
-                            count++;
-                          } 
-                        }
-                        if (count === 0 || features.length === 0) {
-                            return false;
-                        }
-                        
-                        var j,jj;
-                        var layerTable = $("<table></table>").addClass("table").addClass("");
-                        var layerTableRowHeader = $("<tr></tr>");
-                        layerTableRowHeader.append($("<th></th>").html(name).attr("rowspan",features.length));
-                        var featureValue = featuresData.properties[features[0].wmsId];
-                        if(featureValue){
-                                layerTableRowHeader.append($("<td></td>").html(features[0].name));
-                                layerTableRowHeader.append($("<td></td>").html(featureValue));
-                                layerTable.append(layerTableRowHeader);
-                        }
-                        layerTable.append(layerTableRowHeader);
-                        
-                        for(j = 1,jj = features.length;j<jj;j++){
-                            featureValue = featuresData.properties[features[j].wmsId];
-                            if(featureValue){
-                                var layerTableRow = $("<tr></tr>");
-                                layerTableRow.append($("<td></td>").html(features[j].name));
-                                layerTableRow.append($("<td></td>").html(featureValue));
-                                layerTable.append(layerTableRow);
-                            }
-                        }
-                        content.append(layerTable);
-                        
-                        hasFeatures = true;
-                        popup.show(evt.coordinate, content.html());
-                    }
-                });
-            }
+        if(this.olLayers[i].getVisible() && this.olLayers[i].layerObj.features.length > 0){
+            wmsIds.push(this.olLayers[i].layerObj.wmsId);
         }
     }
-    return hasFeatures;
+    if(wmsIds.length === 0){
+        return false;
+    }
+    //The features of every visible layer are queried at once by the server
+    $.getJSON(this.featureInfoURL,{
+        layers : wmsIds.join(","),
+        x : evt.coordinate[0],
+        y : evt.coordinate[1],
+        resolution : view.getResolution(),
+        crs : view.getProjection().getCode()
+    },function(data){
+        var j,jj,k,kk;
+        for(j = 0,jj = data.layers.length;j<jj;j++){
+            var layerData = data.layers[j];
+            var featureData = layerData.features[0];
+            var labels = [];
+            var label;
+            for(label in featureData){
+                if(featureData.hasOwnProperty(label)){
+                    labels.push(label);
+                }
+            }
+            var layerTable = $("<table></table>").addClass("table").addClass("");
+            for(k = 0,kk = labels.length;k<kk;k++){
+                var layerTableRow = $("<tr></tr>");
+                if(k === 0){
+                    layerTableRow.append($("<th></th>").html(layerData.name).attr("rowspan",labels.length));
+                }
+                layerTableRow.append($("<td></td>").html(labels[k]));
+                layerTableRow.append($("<td></td>").html(featureData[labels[k]]));
+                layerTable.append(layerTableRow);
+            }
+            content.append(layerTable);
+        }
+        if(data.layers.length > 0){
+            popup.show(evt.coordinate, content.html());
+        }
+    });
+    return true;
 };
 
 //PROGRESS BAR